@@ -0,0 +1,33 @@
+package SMTP.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Class that runs the benchmarks with the usual JMH command line, always adding the GC profiler so that every
+ * result comes with its allocation rate ({@code gc.alloc.rate.norm} is the number of bytes allocated per
+ * operation).
+ */
+public class BenchmarkRunner {
+    /**
+     * Main entry point to the program.
+     * @param args The JMH command line arguments, such as a benchmark name pattern or {@code -f 1}.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,117 @@
+package SMTP.benchmarks;
+
+import SMTP.CommandParser;
+import SMTP.HostResolver;
+import SMTP.Log;
+import SMTP.ServerConfig;
+import SMTP.ServerMetrics;
+import SMTP.SmtpSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the command loop of a session: recognizing each line, and dispatching it to the state of the
+ * session, for the envelope of an email with a number of recipients.
+ * <p>
+ * The lines are those a client sends for one email, from EHLO to RSET, and the replies go to a
+ * {@link MemoryTransport}, so what is measured is the work the server does per line once it has been read.
+ * {@code parse} recognizes the lines only and should allocate nothing; {@code dispatch} also updates the
+ * session, which keeps the sender and recipients as strings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    @Param({"1", "10"})
+    private int recipients;
+
+    private byte[][] lines;
+    private final CommandParser parser = new CommandParser();
+    private final MemoryTransport transport = new MemoryTransport();
+    private HostResolver resolver;
+    private SmtpSession session;
+
+    /**
+     * Build the lines of the envelope, and a session with logging turned down so it does not write to the console.
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setLogLevel(Log.Level.WARN);
+        config.setMaxRecipients(Math.max(config.getMaxRecipients(), recipients));
+        Log.configure(config);
+
+        List<String> commands = new ArrayList<>();
+        commands.add("EHLO client.example.com");
+        commands.add("MAIL FROM:<sender@example.com> BODY=8BITMIME");
+        for (int i = 0; i < recipients; i++) {
+            commands.add("RCPT TO:<recipient" + i + "@example.com>");
+        }
+        commands.add("NOOP");
+        commands.add("RSET");
+        lines = new byte[commands.size()][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = commands.get(i).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        resolver = new HostResolver(config);
+        // no email is ever completed, so the session is given no writer to save one with, nor timeouts or limits
+        session = new SmtpSession("server.example.com", InetAddress.getLoopbackAddress(), resolver, transport,
+                config, null, new ServerMetrics(), null, null);
+    }
+
+    /**
+     * Release the buffer of the session.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    /**
+     * Recognize every line of the envelope.
+     * @return A value computed from the results, so that the parsing cannot be optimized away.
+     */
+    @Benchmark
+    public int parse() {
+        int result = 0;
+        for (byte[] line : lines) {
+            result += parser.parse(line, line.length).ordinal() + parser.getAddressLength();
+        }
+        return result;
+    }
+
+    /**
+     * Feed every line of the envelope to the session.
+     * @return The number of replies so far, so that the dispatch cannot be optimized away.
+     * @throws Exception
+     */
+    @Benchmark
+    public long dispatch() throws Exception {
+        for (byte[] line : lines) {
+            session.handleLine(line, line.length);
+        }
+        return transport.getReplies();
+    }
+}
@@ -0,0 +1,130 @@
+package SMTP.benchmarks;
+
+import SMTP.DataDecoder;
+import SMTP.MessageBuffer;
+import SMTP.ServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of assembling the body of an email from the bytes a session receives, across email sizes.
+ * <p>
+ * The received bytes are handed over in pieces of {@value #READ_SIZE} bytes, as the read buffer of a connection
+ * would, and are collected in a {@link MessageBuffer} with the server's default spill threshold, so the largest
+ * emails are spilled to a file as they would be in the server. After DATA the bytes are dot-stuffed and end with
+ * the terminator, and go through a {@link DataDecoder}; after BDAT they are copied in bulk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataAssemblyBenchmark {
+    private static final int READ_SIZE = 8192;
+    private static final int LINE_LENGTH = 76;
+    private static final int DOT_LINE_INTERVAL = 20; // one line in this many starts with a dot
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    @Param({"DATA", "BDAT"})
+    private String command;
+
+    private ByteBuffer received;
+    private Path spoolDirectory;
+    private MessageBuffer email;
+    private final DataDecoder decoder = new DataDecoder();
+
+    /**
+     * Build the bytes the client sends for an email of the given size, and the buffer it is collected in.
+     * @throws IOException
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + size / 32 + 8);
+        int written = 0;
+        for (int line = 0; written < size; line++) {
+            int length = Math.min(LINE_LENGTH, size - written - 2);
+            if (line % DOT_LINE_INTERVAL == DOT_LINE_INTERVAL - 1 && length > 0) {
+                if (command.equals("DATA")) {
+                    bytes.write('.'); // the dot added by dot-stuffing, which the decoder removes
+                }
+                bytes.write('.');
+                length--;
+                written++;
+            }
+            for (int i = 0; i < length; i++) {
+                bytes.write('a' + i % 26);
+            }
+            bytes.write('\r');
+            bytes.write('\n');
+            written += Math.max(length, 0) + 2;
+        }
+        if (command.equals("DATA")) {
+            bytes.write('.');
+            bytes.write('\r');
+            bytes.write('\n');
+        }
+        received = ByteBuffer.wrap(bytes.toByteArray());
+
+        ServerConfig config = new ServerConfig();
+        spoolDirectory = Files.createTempDirectory("smtp-bench-spool");
+        email = new MessageBuffer(config.getSpillThresholdBytes(), spoolDirectory);
+    }
+
+    /**
+     * Delete the buffer and its spool directory.
+     * @throws IOException
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        email.close();
+        Files.deleteIfExists(spoolDirectory);
+    }
+
+    /**
+     * Collect one email from the received bytes.
+     * @return The length of the body collected, so that the work cannot be optimized away.
+     * @throws IOException
+     */
+    @Benchmark
+    public long assemble() throws IOException {
+        email.reset();
+        decoder.reset();
+        received.clear();
+        int end = received.capacity();
+        boolean data = command.equals("DATA");
+        for (int read = 0; read < end; read = received.position()) {
+            received.limit(Math.min(read + READ_SIZE, end));
+            if (data) {
+                if (decoder.decode(received, email)) {
+                    break;
+                }
+            } else {
+                int count = received.remaining();
+                email.write(received, read, count);
+                received.position(read + count);
+            }
+        }
+        return email.length();
+    }
+}
@@ -0,0 +1,164 @@
+package SMTP.benchmarks;
+
+import SMTP.DeflateCodec;
+import SMTP.MailboxStore;
+import SMTP.MessageBuffer;
+import SMTP.MessageCodec;
+import SMTP.ServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of saving an email to the mailbox store, as the delivery writer does for each email of a batch.
+ * <p>
+ * {@code append} writes the record and the index entry of every recipient without forcing anything to disk, which
+ * is the part of a delivery that is paid per email; {@code appendAndSync} adds the fsync a batch of one email
+ * pays, so it mostly measures the disk. With a compression level above 0, the email is first deflated into a
+ * buffer of its own as a compression thread would, so the time saved writing fewer bytes can be weighed against
+ * the time spent compressing them. The store is created afresh in a temporary directory for every iteration
+ * and deleted after it, so that a run does not fill the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxWriteBenchmark {
+    @Param({"1024", "65536"})
+    private int size;
+
+    @Param({"1", "10"})
+    private int recipients;
+
+    @Param({"0", "1", "6"})
+    private int compressionLevel;
+
+    private MessageBuffer email;
+    private MessageCodec codec; // null when the email is stored raw
+    private List<String> recipientList;
+    private Path directory;
+    private MailboxStore store;
+
+    /**
+     * Build the email, held in memory as a session would hold it.
+     * @throws IOException
+     */
+    @Setup(Level.Trial)
+    public void setUpEmail() throws IOException {
+        email = new MessageBuffer(size, Path.of(System.getProperty("java.io.tmpdir")));
+        for (int i = 0; i < size; i++) {
+            email.write(i % 78 == 76 ? '\r' : i % 78 == 77 ? '\n' : 'a' + i % 26);
+        }
+        recipientList = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            recipientList.add("recipient" + i + "@example.com");
+        }
+        codec = compressionLevel == 0 ? null : new DeflateCodec(compressionLevel);
+    }
+
+    /**
+     * Create an empty store.
+     * @throws IOException
+     */
+    @Setup(Level.Iteration)
+    public void setUpStore() throws IOException {
+        directory = Files.createTempDirectory("smtp-bench-mailbox");
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        store = new MailboxStore(config);
+    }
+
+    /**
+     * Close the store and delete its files.
+     * @throws IOException
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownStore() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Release the email.
+     * @throws IOException
+     */
+    @TearDown(Level.Trial)
+    public void tearDownEmail() throws IOException {
+        email.close();
+    }
+
+    /**
+     * Append the email and index it for every recipient, without forcing it to disk.
+     * @return The position of the record, so that the work cannot be optimized away.
+     * @throws IOException
+     */
+    @Benchmark
+    public long append() throws IOException {
+        return save(false);
+    }
+
+    /**
+     * Append the email, force it to disk, and index it for every recipient.
+     * @return The position of the record, so that the work cannot be optimized away.
+     * @throws IOException
+     */
+    @Benchmark
+    public long appendAndSync() throws IOException {
+        return save(true);
+    }
+
+    /**
+     * Save the email in the order the delivery writer does.
+     * @param sync Whether to force the record to disk before indexing it.
+     * @return The position of the record.
+     * @throws IOException
+     */
+    private long save(boolean sync) throws IOException {
+        MailboxStore.Appended appended;
+        if (codec == null) {
+            appended = store.append("sender@example.com", recipientList, email);
+        } else {
+            try (MessageBuffer compressed = new MessageBuffer(size, Path.of(System.getProperty("java.io.tmpdir")))) {
+                try (InputStream in = email.openStream(); OutputStream out = codec.compress(compressed)) {
+                    in.transferTo(out);
+                }
+                appended = store.append("sender@example.com", recipientList, compressed, codec, email.length());
+            }
+        }
+        if (sync) {
+            store.sync();
+        }
+        for (String recipient : recipientList) {
+            store.index(recipient, appended);
+        }
+        store.rollIfNeeded();
+        return appended.position();
+    }
+}
@@ -0,0 +1,88 @@
+package SMTP.benchmarks;
+
+import SMTP.SmtpSession;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class that stands in for a socket: it keeps the replies of a session in memory instead of transmitting them,
+ * and runs continuations as soon as their operation has completed.
+ */
+public class MemoryTransport implements SmtpSession.Transport {
+    private String lastReply;
+    private long replies;
+
+    /**
+     * Keep a reply instead of transmitting it.
+     * @param message The reply.
+     */
+    @Override
+    public void sendMessage(String message) {
+        lastReply = message;
+        replies++;
+    }
+
+    /**
+     * Wait for an operation, then run the continuation on the calling thread.
+     * @param operation The operation.
+     * @param continuation The work to do once the operation has completed.
+     * @throws Exception
+     */
+    @Override
+    public void await(CompletableFuture<?> operation, SmtpSession.Continuation continuation) throws Exception {
+        try {
+            operation.join();
+        } catch (RuntimeException e) {
+            // the continuation looks at how the operation completed
+        }
+        continuation.run();
+    }
+
+    /**
+     * Keep the final reply of a session that has timed out.
+     * @param reply The reply.
+     */
+    @Override
+    public void expire(String reply) {
+        sendMessage(reply);
+    }
+
+    /**
+     * Do nothing, since there is no connection to close.
+     */
+    @Override
+    public void abort() {
+    }
+
+    /**
+     * Refuse STARTTLS, since there is no connection to encrypt.
+     * @return False.
+     */
+    @Override
+    public boolean canStartTls() {
+        return false;
+    }
+
+    /**
+     * Do nothing, since STARTTLS is never offered.
+     */
+    @Override
+    public void startTls() {
+    }
+
+    /**
+     * Get the last reply of the session.
+     * @return The reply, or null if there was none.
+     */
+    public String getLastReply() {
+        return lastReply;
+    }
+
+    /**
+     * Get the number of replies of the session.
+     * @return The number of replies.
+     */
+    public long getReplies() {
+        return replies;
+    }
+}
@@ -0,0 +1,191 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the connection slots and token buckets of admission control, and of the replies the server gives when
+ * they run out.
+ */
+class AdmissionControlTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * Once an address has as many connections open as it may, the next one is answered with 421 before any session
+     * is started for it.
+     * @throws Exception
+     */
+    @Test
+    void refusesConnectionOverLimitOfAddress() throws Exception {
+        ServerConfig config = config();
+        config.setMaxConnectionsPerIp(2);
+        Server server = new Server("127.0.0.1", 0, config);
+        server.start();
+
+        try (Socket first = connect(server); Socket second = connect(server); Socket third = connect(server)) {
+            assertTrue(readReply(first).startsWith("220 "));
+            assertTrue(readReply(second).startsWith("220 "));
+            String reply = readReply(third);
+            assertTrue(reply.startsWith("421 "), reply);
+            assertTrue(reply.endsWith(AdmissionControl.Refusal.IP_CONNECTIONS.getReason()), reply);
+        }
+    }
+
+    /**
+     * A MAIL command that finds the bucket of emails of its address empty is answered with 450, while the
+     * connection stays open.
+     * @throws Exception
+     */
+    @Test
+    void refusesMailWhenBucketIsEmpty() throws Exception {
+        ServerConfig config = config();
+        config.setIpMessagesPerMinute(1);
+        Server server = new Server("127.0.0.1", 0, config);
+        server.start();
+
+        try (Socket socket = connect(server)) {
+            assertTrue(readReply(socket).startsWith("220 "));
+            assertTrue(command(socket, "EHLO client").startsWith("250 "));
+            assertEquals("250 ok", command(socket, "MAIL FROM:<a@example.com>"));
+            assertEquals("250 ok", command(socket, "RSET"));
+            assertEquals("450 " + AdmissionControl.Refusal.IP_MESSAGES.getReason(),
+                    command(socket, "MAIL FROM:<a@example.com>"));
+            assertTrue(command(socket, "NOOP").startsWith("250"));
+        }
+    }
+
+    /**
+     * Releasing a peer gives its connection slot back, both to its address and to the server.
+     * @throws Exception
+     */
+    @Test
+    void releaseGivesBackSlot() throws Exception {
+        ServerConfig config = config();
+        config.setMaxConnections(1);
+        config.setMaxConnectionsPerIp(1);
+        AdmissionControl admission = new AdmissionControl(config, new ServerMetrics());
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+
+        AdmissionControl.Admission first = admission.admit(client);
+        assertNotNull(first.peer());
+        assertEquals(AdmissionControl.Refusal.OVERLOADED, admission.admit(client).refusal());
+        assertEquals(AdmissionControl.Refusal.OVERLOADED,
+                admission.admit(InetAddress.getByName("192.0.2.2")).refusal());
+
+        first.peer().release();
+        AdmissionControl.Admission second = admission.admit(client);
+        assertNull(second.refusal());
+        assertSame(first.peer(), second.peer());
+    }
+
+    /**
+     * A full table evicts the least recently seen address without open connections, and never one whose
+     * connections are still open, even if that lets the table grow past its capacity.
+     * @throws Exception
+     */
+    @Test
+    void neverEvictsPeerWithConnections() throws Exception {
+        ServerConfig config = config();
+        config.setMaxConnectionsPerIp(1);
+        config.setMaxTrackedIps(64); // a single address per stripe
+        AdmissionControl admission = new AdmissionControl(config, new ServerMetrics());
+        // the stripe of an IPv4 address is its value modulo the number of stripes, so these share a stripe
+        InetAddress busy = InetAddress.getByName("10.0.0.0");
+        InetAddress idle = InetAddress.getByName("10.0.0.64");
+        InetAddress other = InetAddress.getByName("10.0.0.128");
+
+        AdmissionControl.Peer busyPeer = admission.admit(busy).peer();
+        AdmissionControl.Peer idlePeer = admission.admit(idle).peer();
+        assertEquals(2, admission.getTrackedAddresses());
+        idlePeer.release();
+
+        // the busy address is the oldest, but only the idle one may make room for another
+        assertNotNull(admission.admit(other).peer());
+        assertEquals(2, admission.getTrackedAddresses());
+        assertEquals(AdmissionControl.Refusal.IP_CONNECTIONS, admission.admit(busy).refusal());
+        AdmissionControl.Peer returning = admission.admit(idle).peer();
+        assertNotNull(returning);
+        assertNotSame(idlePeer, returning);
+
+        busyPeer.release();
+        assertSame(busyPeer, admission.admit(busy).peer());
+    }
+
+    /**
+     * Create the settings of a server that keeps its files in the temporary directory and logs only warnings.
+     * @return The settings.
+     */
+    private ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.WARN);
+        Log.configure(config);
+        return config;
+    }
+
+    /**
+     * Open a connection to a server on the loopback address.
+     * @param server The server.
+     * @return The connection.
+     * @throws IOException
+     */
+    private static Socket connect(Server server) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    /**
+     * Send a command and read its reply.
+     * @param socket The connection.
+     * @param command The command, without its line terminator.
+     * @return The last line of the reply.
+     * @throws IOException
+     */
+    private static String command(Socket socket, String command) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+        return readReply(socket);
+    }
+
+    /**
+     * Read a reply, skipping the lines of a multiline one. The bytes are read one at a time, so that nothing is
+     * buffered past the reply.
+     * @param socket The connection.
+     * @return The last line of the reply, without its line terminator, or null if the connection was closed.
+     * @throws IOException
+     */
+    private static String readReply(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b != '\n') {
+                line.append((char) b);
+            } else if (line.length() > 3 && line.charAt(3) == '-') {
+                line.setLength(0); // a line of a multiline reply
+            } else {
+                return line.toString().strip();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,182 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the recognition of commands in the bytes of a line, and of the limit on the length of a line.
+ */
+class CommandParserTest {
+    private final CommandParser parser = new CommandParser();
+
+    /**
+     * Every verb is recognized whatever the case of its letters, HELLO is taken for HELO, and anything else is
+     * unknown.
+     */
+    @Test
+    void recognizesVerbsInAnyCase() {
+        assertEquals(CommandParser.Verb.HELO, parse("helo client"));
+        assertEquals(CommandParser.Verb.HELO, parse("HeLLo client"));
+        assertEquals(CommandParser.Verb.EHLO, parse("EhLo client"));
+        assertEquals(CommandParser.Verb.MAIL, parse("mail FROM:<a@example.com>"));
+        assertEquals(CommandParser.Verb.RCPT, parse("RcPt to:<b@example.com>"));
+        assertEquals(CommandParser.Verb.DATA, parse("data"));
+        assertEquals(CommandParser.Verb.BDAT, parse("bDaT 10"));
+        assertEquals(CommandParser.Verb.RSET, parse("Rset"));
+        assertEquals(CommandParser.Verb.NOOP, parse("NOOP"));
+        assertEquals(CommandParser.Verb.QUIT, parse("quit"));
+        assertEquals(CommandParser.Verb.STARTTLS, parse("StartTLS"));
+
+        assertEquals(CommandParser.Verb.UNKNOWN, parse("VRFY b@example.com"));
+        assertEquals(CommandParser.Verb.UNKNOWN, parse("HELP"));
+        assertEquals(CommandParser.Verb.UNKNOWN, parse("MAILS FROM:<a@example.com>"));
+        assertEquals(CommandParser.Verb.UNKNOWN, parse(""));
+    }
+
+    /**
+     * The domain of HELO and EHLO is required, and STARTTLS takes no argument.
+     */
+    @Test
+    void checksArgumentsOfGreetingAndStartTls() {
+        assertEquals(CommandParser.Verb.EHLO, parse("EHLO   client.example.com  "));
+        assertTrue(parser.isValid());
+        assertEquals("client.example.com", parser.argument());
+
+        parse("HELO");
+        assertFalse(parser.isValid());
+        parse("EHLO   ");
+        assertFalse(parser.isValid());
+        parse("STARTTLS now");
+        assertFalse(parser.isValid());
+    }
+
+    /**
+     * The null reverse-path {@code <>} is a valid sender, and the address of MAIL is read with or without its
+     * brackets.
+     */
+    @Test
+    void acceptsNullReversePath() {
+        parse("MAIL FROM:<>");
+        assertTrue(parser.isValid());
+        assertEquals(0, parser.getAddressLength());
+        assertEquals("", parser.address());
+        assertEquals(-1, parser.getDeclaredSize());
+
+        parse("MAIL FROM: a@example.com");
+        assertTrue(parser.isValid());
+        assertEquals("a@example.com", parser.address());
+    }
+
+    /**
+     * The SIZE parameter of MAIL is read in any case and among other parameters, and a missing, non-numeric or
+     * overflowing size makes the command invalid.
+     */
+    @Test
+    void readsDeclaredSize() {
+        parse("MAIL FROM:<a@example.com> SIZE=1000");
+        assertTrue(parser.isValid());
+        assertEquals(1000, parser.getDeclaredSize());
+
+        parse("MAIL FROM:<> BODY=8BITMIME size=42");
+        assertTrue(parser.isValid());
+        assertEquals(42, parser.getDeclaredSize());
+
+        parse("MAIL FROM:<a@example.com> SIZE=999999999999999999");
+        assertTrue(parser.isValid());
+        assertEquals(999999999999999999L, parser.getDeclaredSize());
+
+        for (String size : new String[] { "SIZE=", "SIZE=12a", "SIZE=-1", "SIZE=1000000000000000000" }) {
+            parse("MAIL FROM:<a@example.com> " + size);
+            assertFalse(parser.isValid(), size);
+        }
+    }
+
+    /**
+     * A missing keyword, a missing address, an empty recipient, a missing closing bracket or parameters stuck to
+     * the address make MAIL or RCPT invalid, which the session answers with 501.
+     */
+    @Test
+    void refusesMalformedAddresses() {
+        String[] lines = { "MAIL", "MAIL <a@example.com>", "MAIL FROM:", "MAIL FROM:   ", "MAIL FROM:<a@example.com",
+                "MAIL FROM:<a@example.com>SIZE=1", "RCPT", "RCPT TO:", "RCPT TO:<>", "RCPT TO:<b@example.com",
+                "RCPT FROM:<b@example.com>", "RCPT TO:<b@example.com>NOTIFY=NEVER" };
+        for (String line : lines) {
+            parse(line);
+            assertFalse(parser.isValid(), line);
+        }
+
+        parse("RCPT TO:<b@example.com> NOTIFY=NEVER");
+        assertTrue(parser.isValid());
+        assertEquals("b@example.com", parser.address());
+    }
+
+    /**
+     * BDAT reads the size of its chunk and an optional LAST in any case, and refuses a size that is missing, zero
+     * digits long, not a number or too large to fit in a long, as well as anything after LAST.
+     */
+    @Test
+    void readsChunkSize() {
+        parse("BDAT 10");
+        assertTrue(parser.isValid());
+        assertEquals(10, parser.getChunkSize());
+        assertFalse(parser.isLastChunk());
+
+        parse("BDAT 0 last");
+        assertTrue(parser.isValid());
+        assertEquals(0, parser.getChunkSize());
+        assertTrue(parser.isLastChunk());
+
+        parse("BDAT 999999999999999999 LAST");
+        assertTrue(parser.isValid());
+        assertEquals(999999999999999999L, parser.getChunkSize());
+
+        String[] lines = { "BDAT", "BDAT LAST", "BDAT 10LAST", "BDAT 10 LAST x", "BDAT 10 FIRST", "BDAT -1",
+                "BDAT 1000000000000000000", "BDAT 99999999999999999999999999999999 LAST" };
+        for (String line : lines) {
+            parse(line);
+            assertFalse(parser.isValid(), line);
+        }
+    }
+
+    /**
+     * A long line is parsed without limit by the parser, while the reader of lines refuses one longer than its
+     * limit before it reaches the parser.
+     * @throws IOException
+     */
+    @Test
+    void limitsOverlongLines() throws IOException {
+        String address = "a".repeat(10_000) + "@example.com";
+        parse("RCPT TO:<" + address + ">");
+        assertTrue(parser.isValid());
+        assertEquals(address, parser.address());
+
+        byte[] input = ("NOOP\r\n" + "x".repeat(513) + "\r\nQUIT\r\n").getBytes(StandardCharsets.US_ASCII);
+        LineReader reader = new LineReader(new ByteArrayInputStream(input), 512);
+        assertTrue(reader.readLine());
+        assertEquals(CommandParser.Verb.NOOP, parser.parse(reader.getLine(), reader.getLineLength()));
+        assertThrows(IOException.class, reader::readLine);
+
+        input = ("x".repeat(512) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        reader = new LineReader(new ByteArrayInputStream(input), 512);
+        assertTrue(reader.readLine());
+        assertEquals(512, reader.getLineLength());
+    }
+
+    /**
+     * Parse a line with a buffer larger than the line, as the line buffer of a session is.
+     * @param line The line, without its line terminator.
+     * @return The verb of the command.
+     */
+    private CommandParser.Verb parse(String line) {
+        byte[] bytes = (line + "garbage past the end").getBytes(StandardCharsets.US_ASCII);
+        return parser.parse(bytes, line.length());
+    }
+}
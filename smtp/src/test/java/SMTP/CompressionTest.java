@@ -0,0 +1,219 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the compression of the bodies of emails in the mailbox store.
+ */
+class CompressionTest {
+    private static final String HEADERS = "Subject: report\r\nFrom: a@example.com\r\n\r\n";
+    private static final String TEXT = "The same line of the report, over and over again.\r\n".repeat(100);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A body at or above the threshold is stored compressed, and reads back byte for byte through both the body and
+     * the header section.
+     * @throws Exception
+     */
+    @Test
+    void readsBackCompressedEmail() throws Exception {
+        ServerConfig config = config();
+        MailboxStore store = new MailboxStore(config);
+        try {
+            byte[] email = (HEADERS + TEXT).getBytes(StandardCharsets.US_ASCII);
+            deliver(writer(store, config), email);
+
+            MailboxStore.Message message = store.message("b@example.com", 0);
+            assertEquals(DeflateCodec.ID, message.codec());
+            assertEquals(email.length, message.rawLength());
+            assertTrue(message.bodyLength() < email.length);
+            assertArrayEquals(email, read(store.openBody(message)));
+            assertArrayEquals(HEADERS.getBytes(StandardCharsets.US_ASCII), read(store.openHeaders(message)));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A body below the threshold, and one the codec cannot make smaller, are both stored raw.
+     * @throws Exception
+     */
+    @Test
+    void storesSmallAndIncompressibleEmailsRaw() throws Exception {
+        ServerConfig config = config();
+        MailboxStore store = new MailboxStore(config);
+        try {
+            byte[] small = (HEADERS + "short\r\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] noise = new byte[4096];
+            new Random(42).nextBytes(noise);
+            byte[] incompressible = concat(HEADERS.getBytes(StandardCharsets.US_ASCII), noise);
+            DeliveryWriter writer = writer(store, config);
+            deliver(writer, small);
+            deliver(writer, incompressible);
+
+            MailboxStore.Message first = store.message("b@example.com", 0);
+            MailboxStore.Message second = store.message("b@example.com", 1);
+            assertEquals(0, first.codec());
+            assertEquals(0, second.codec());
+            assertEquals(incompressible.length, second.bodyLength());
+            assertArrayEquals(small, read(store.openBody(first)));
+            assertArrayEquals(incompressible, read(store.openBody(second)));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Opening a store again recovers a segment in which raw and compressed records alternate, indexing the ones that
+     * were synced but not indexed and dropping a torn compressed record at its end.
+     * @throws IOException
+     */
+    @Test
+    void recoversMixedSegment() throws IOException {
+        ServerConfig config = config();
+        MessageCodec codec = config.getCompressionCodec();
+        byte[] raw = (HEADERS + "raw\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] compressed = (HEADERS + TEXT).getBytes(StandardCharsets.US_ASCII);
+
+        MailboxStore store = new MailboxStore(config);
+        store.append("a@example.com", List.of("b@example.com"), buffer(raw));
+        store.append("a@example.com", List.of("b@example.com"), compress(codec, compressed), codec,
+                compressed.length);
+        store.append("a@example.com", List.of("b@example.com"), buffer(raw));
+        store.append("a@example.com", List.of("b@example.com"), compress(codec, compressed), codec,
+                compressed.length);
+        store.sync();
+        store.close();
+
+        Path segment;
+        try (Stream<Path> segments = Files.list(directory.resolve("segments"))) {
+            segment = segments.findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        MailboxStore reopened = new MailboxStore(config);
+        try {
+            assertEquals(3, reopened.count("b@example.com"));
+            for (int i = 0; i < 3; i++) {
+                MailboxStore.Message message = reopened.message("b@example.com", i);
+                assertEquals(i == 1 ? DeflateCodec.ID : 0, message.codec());
+                assertArrayEquals(i == 1 ? compressed : raw, read(reopened.openBody(message)));
+                assertArrayEquals(HEADERS.getBytes(StandardCharsets.US_ASCII), read(reopened.openHeaders(message)));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Create the settings of a store in the temporary directory that compresses bodies of 1 KiB or more with
+     * Deflate, with logging turned down.
+     * @return The settings.
+     */
+    private ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setCompressionCodec(new DeflateCodec(DeflateCodec.DEFAULT_LEVEL));
+        config.setCompressionThresholdBytes(1024);
+        config.setLogLevel(Log.Level.OFF);
+        Log.configure(config);
+        return config;
+    }
+
+    /**
+     * Start a delivery writer, which decides whether the body of each email is compressed.
+     * @param store The store.
+     * @param config The settings of the store.
+     * @return The writer.
+     */
+    private static DeliveryWriter writer(MailboxStore store, ServerConfig config) {
+        DeliveryWriter writer = new DeliveryWriter(store, null, config, new ServerMetrics());
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Deliver an email to the recipient through a delivery writer, and wait until it has been saved.
+     * @param writer The writer.
+     * @param email The email.
+     * @throws Exception
+     */
+    private void deliver(DeliveryWriter writer, byte[] email) throws Exception {
+        writer.deliver("a@example.com", List.of("b@example.com"), null, buffer(email)).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Collect bytes in a message buffer.
+     * @param bytes The bytes.
+     * @return The buffer.
+     * @throws IOException
+     */
+    private MessageBuffer buffer(byte[] bytes) throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        buffer.write(bytes);
+        return buffer;
+    }
+
+    /**
+     * Compress bytes into a message buffer.
+     * @param codec The codec.
+     * @param bytes The bytes.
+     * @return The buffer holding the compressed bytes.
+     * @throws IOException
+     */
+    private MessageBuffer compress(MessageCodec codec, byte[] bytes) throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        try (OutputStream out = codec.compress(buffer)) {
+            out.write(bytes);
+        }
+        return buffer;
+    }
+
+    /**
+     * Join two arrays of bytes.
+     * @param first The first bytes.
+     * @param second The bytes that follow them.
+     * @return The joined bytes.
+     */
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    /**
+     * Read a stream to its end, closing it.
+     * @param in The stream.
+     * @return The bytes.
+     * @throws IOException
+     */
+    private static byte[] read(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the decoding of DATA bodies, in particular of the terminator, which only {@code <CRLF>.<CRLF>} may be.
+ */
+class DataDecoderTest {
+    @TempDir
+    Path spool;
+
+    /**
+     * The body ends at {@code <CRLF>.<CRLF>}, and the bytes after it are left for the next command.
+     * @throws IOException
+     */
+    @Test
+    void endsAtTerminator() throws IOException {
+        ByteBuffer in = bytes("Subject: a\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+        MessageBuffer out = new MessageBuffer(1024, spool);
+        assertTrue(new DataDecoder().decode(in, out));
+        assertEquals("Subject: a\r\n\r\nbody\r\n", read(out));
+        assertEquals("QUIT\r\n", StandardCharsets.US_ASCII.decode(in).toString());
+    }
+
+    /**
+     * The dot the client added in front of a line that starts with a dot is removed.
+     * @throws IOException
+     */
+    @Test
+    void removesStuffedDots() throws IOException {
+        assertEquals(".line\r\n..two\r\n", decodeWhole("..line\r\n...two\r\n.\r\n"));
+    }
+
+    /**
+     * A dot on a line of its own after a bare line feed is body data, whatever ends that line.
+     * @throws IOException
+     */
+    @Test
+    void keepsDotAfterBareLineFeed() throws IOException {
+        assertEquals("a\n.\nb\r\n", decodeWhole("a\n.\nb\r\n.\r\n"));
+        assertEquals("a\n.\r\nb\r\n", decodeWhole("a\n.\r\nb\r\n.\r\n"));
+        assertEquals("a\r\n.\nb\r\n", decodeWhole("a\r\n.\nb\r\n.\r\n"));
+    }
+
+    /**
+     * Commands smuggled after a terminator with bare line feeds stay in the body instead of being read as commands.
+     * @throws IOException
+     */
+    @Test
+    void doesNotEndAtSmuggledTerminator() throws IOException {
+        String smuggled = "hi\n.\nMAIL FROM:<a@example.com>\r\nRCPT TO:<b@example.com>\r\nDATA\r\nforged\r\n";
+        for (String bare : new String[] { "\n.\n", "\n.\r\n", "\r\n.\n" }) {
+            String body = smuggled.replace("\n.\n", bare);
+            assertEquals(body, decodeWhole(body + ".\r\n"));
+        }
+    }
+
+    /**
+     * A bare line feed stays body data when the body arrives one byte at a time, so the carriage return before a
+     * line feed is remembered across pieces.
+     * @throws IOException
+     */
+    @Test
+    void decodesBytewise() throws IOException {
+        String body = "a\n.\nb\r\n..c\r\n.\r\n";
+        DataDecoder decoder = new DataDecoder();
+        MessageBuffer out = new MessageBuffer(1024, spool);
+        byte[] raw = body.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < raw.length; i++) {
+            boolean ended = decoder.decode(ByteBuffer.wrap(raw, i, 1), out);
+            assertEquals(i == raw.length - 1, ended, "ended at byte " + i);
+        }
+        assertEquals("a\n.\nb\r\n.c\r\n", read(out));
+    }
+
+    /**
+     * A body without a terminator is not complete.
+     * @throws IOException
+     */
+    @Test
+    void waitsForTerminator() throws IOException {
+        assertFalse(new DataDecoder().decode(bytes("a\n.\n"), new MessageBuffer(1024, spool)));
+    }
+
+    /**
+     * A body that is dropped still ends at its terminator, whatever dots and bare line feeds it holds, and leaves the
+     * bytes after it for the next command.
+     * @throws IOException
+     */
+    @Test
+    void dropsBodyUpToTerminator() throws IOException {
+        DataDecoder decoder = new DataDecoder();
+        assertFalse(decoder.decode(bytes("..a\n.\nb\r\n.\r"), null));
+        ByteBuffer in = bytes("\nNOOP\r\n");
+        assertTrue(decoder.decode(in, null));
+        assertEquals("NOOP\r\n", StandardCharsets.US_ASCII.decode(in).toString());
+    }
+
+    /**
+     * Decode a body given in one piece, which must end with the terminator.
+     * @param received The received bytes.
+     * @return The body.
+     * @throws IOException
+     */
+    private String decodeWhole(String received) throws IOException {
+        ByteBuffer in = bytes(received);
+        MessageBuffer out = new MessageBuffer(1024, spool);
+        assertTrue(new DataDecoder().decode(in, out), "no terminator in " + received);
+        assertFalse(in.hasRemaining());
+        return read(out);
+    }
+
+    /**
+     * Wrap the bytes of a string.
+     * @param s The string.
+     * @return The buffer.
+     */
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Read the body collected in a message buffer.
+     * @param out The buffer.
+     * @return The body.
+     * @throws IOException
+     */
+    private static String read(MessageBuffer out) throws IOException {
+        try (InputStream in = out.openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+}
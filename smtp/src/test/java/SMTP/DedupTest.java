@@ -0,0 +1,75 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the deduplication of the text of emails in the blob store.
+ */
+class DedupTest {
+    private static final String TEXT = "The same newsletter for everyone.\r\n".repeat(64);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Two sessions sending the same text under different headers share one blob, while each email keeps its own
+     * header section.
+     * @throws Exception
+     */
+    @Test
+    void sessionsWithDifferentHeadersShareBlob() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setDedup(true);
+        config.setDedupThresholdBytes(1024);
+        config.setLogLevel(Log.Level.WARN);
+        Server server = new Server("127.0.0.1", 0, config);
+        server.start();
+
+        String first = "Subject: news\r\nMessage-ID: <1@example.com>\r\n\r\n" + TEXT;
+        String second = "Subject: news\r\nMessage-ID: <2@example.com>\r\nX-Extra: yes\r\n\r\n" + TEXT;
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+        for (String email : new String[] { first, second }) {
+            try (ClientConnection connection = new ClientConnection(address, new ClientConfig())) {
+                byte[] body = email.getBytes(StandardCharsets.US_ASCII);
+                assertTrue(connection.send(Envelope.of("a@example.com", "b@example.com"), body).isEmpty());
+            }
+        }
+
+        MailboxStore store = server.getStore();
+        assertEquals(2, store.count("b@example.com"));
+        assertEquals(1, store.getBlobs().size());
+        MailboxStore.Message one = store.message("b@example.com", 0);
+        MailboxStore.Message two = store.message("b@example.com", 1);
+        assertNotNull(one.blob());
+        assertEquals(one.blob(), two.blob());
+        assertEquals(first, read(store.openBody(one)));
+        assertEquals(second, read(store.openBody(two)));
+        assertEquals(second.length(), two.rawLength());
+        assertEquals(second.substring(0, second.indexOf("\r\n\r\n") + 4), read(store.openHeaders(two)));
+    }
+
+    /**
+     * Read a stream to its end as text, closing it.
+     * @param in The stream.
+     * @return The text.
+     * @throws IOException
+     */
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the group commits of the delivery writer when writing an index entry fails.
+ */
+class DeliveryWriterTest {
+    @TempDir
+    Path directory;
+
+    private MailboxStore store;
+    private DeliveryWriter writer;
+
+    /**
+     * Open a store in the temporary directory, with a writer that indexes every stripe on its own thread, and make
+     * the index of one recipient impossible to open, by putting a directory where its file would be.
+     * @throws IOException
+     */
+    @BeforeEach
+    void setUp() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.OFF);
+        config.setIndexThreads(4);
+        Log.configure(config);
+        store = new MailboxStore(config);
+        writer = new DeliveryWriter(store, null, config, new ServerMetrics());
+        writer.start();
+        Files.createDirectories(directory.resolve("index").resolve("broken%40example.com.idx"));
+    }
+
+    /**
+     * Close the store.
+     * @throws IOException
+     */
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+    }
+
+    /**
+     * An email whose entry could be written for some recipients is accepted, since the client would otherwise send
+     * it again to the recipients that already have it.
+     * @throws Exception
+     */
+    @Test
+    void acceptsEmailIndexedForSomeRecipients() throws Exception {
+        List<String> recipients = List.of("b@example.com", "broken@example.com", "c@example.com");
+        writer.deliver("a@example.com", recipients, null, body()).get(10, TimeUnit.SECONDS);
+        assertEquals(1, store.count("b@example.com"));
+        assertEquals(1, store.count("c@example.com"));
+    }
+
+    /**
+     * An email whose entry could not be written for any recipient is reported as failed.
+     * @throws Exception
+     */
+    @Test
+    void failsEmailIndexedForNoRecipient() throws Exception {
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> writer.deliver("a@example.com", List.of("broken@example.com"), null, body())
+                        .get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause());
+    }
+
+    /**
+     * Collect an email in a message buffer.
+     * @return The buffer.
+     * @throws IOException
+     */
+    private MessageBuffer body() throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        buffer.write("Subject: indexed\r\n\r\nhello\r\n".getBytes(StandardCharsets.US_ASCII));
+        return buffer;
+    }
+}
@@ -0,0 +1,244 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the mailbox store.
+ */
+class MailboxStoreTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * Records discarded after a failed sync are not indexed when the store is opened again, while the records
+     * before them are kept.
+     * @throws IOException
+     */
+    @Test
+    void discardedRecordsAreNotRecovered() throws IOException {
+        ServerConfig config = config();
+
+        MailboxStore store = new MailboxStore(config);
+        MailboxStore.Appended kept = store.append("a@example.com", List.of("b@example.com"), body("kept\r\n"));
+        store.sync();
+        store.index("b@example.com", kept);
+        MailboxStore.Appended lost = store.append("a@example.com", List.of("b@example.com"), body("lost\r\n"));
+        store.append("a@example.com", List.of("c@example.com"), body("lost too\r\n"));
+        store.discard(lost);
+        store.close();
+
+        MailboxStore reopened = new MailboxStore(config);
+        try {
+            assertEquals(1, reopened.count("b@example.com"));
+            assertEquals(0, reopened.count("c@example.com"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Emails appended, synced and indexed read back the same, envelope, body and header section, once the store is
+     * opened again.
+     * @throws IOException
+     */
+    @Test
+    void readsBackEmailsAfterReopening() throws IOException {
+        ServerConfig config = config();
+        MailboxStore store = new MailboxStore(config);
+        deliver(store, List.of("b@example.com", "c@example.com"), "Subject: one\r\n\r\nfirst\r\n");
+        deliver(store, List.of("b@example.com"), "Subject: two\r\n\r\nsecond\r\n");
+        store.close();
+
+        MailboxStore reopened = new MailboxStore(config);
+        try {
+            assertEquals(2, reopened.count("b@example.com"));
+            assertEquals(1, reopened.count("c@example.com"));
+            MailboxStore.Message first = reopened.message("b@example.com", 0);
+            assertEquals("a@example.com", first.sender());
+            assertEquals(List.of("b@example.com", "c@example.com"), first.recipients());
+            assertEquals("Subject: one\r\n\r\nfirst\r\n", read(reopened.openBody(first)));
+            assertEquals("Subject: two\r\n\r\n", read(reopened.openHeaders(reopened.message("b@example.com", 1))));
+            assertEquals(first, reopened.message("c@example.com", 0));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Recovery indexes a complete record whose index entry was lost, and truncates a record torn by a crash along
+     * with the entry pointing at it, keeping the records before it.
+     * @throws IOException
+     */
+    @Test
+    void recoversTornTail() throws IOException {
+        ServerConfig config = config();
+        MailboxStore store = new MailboxStore(config);
+        deliver(store, List.of("b@example.com"), "Subject: kept\r\n\r\nkept\r\n");
+        store.append("a@example.com", List.of("b@example.com"), body("Subject: unindexed\r\n\r\nsynced\r\n"));
+        store.sync();
+        deliver(store, List.of("c@example.com"), "Subject: torn\r\n\r\ntorn\r\n");
+        store.close();
+
+        Path segment;
+        try (Stream<Path> segments = Files.list(directory.resolve("segments"))) {
+            segment = segments.findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        MailboxStore reopened = new MailboxStore(config);
+        try {
+            assertEquals(2, reopened.count("b@example.com"));
+            assertEquals(0, reopened.count("c@example.com"));
+            assertEquals("Subject: unindexed\r\n\r\nsynced\r\n",
+                    read(reopened.openBody(reopened.message("b@example.com", 1))));
+            deliver(reopened, List.of("c@example.com"), "Subject: after\r\n\r\nafter\r\n");
+            assertEquals(1, reopened.count("c@example.com"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * A segment that has outgrown its size is rolled, and the emails of both segments stay readable, after the store
+     * is opened again too.
+     * @throws IOException
+     */
+    @Test
+    void rollsSegment() throws IOException {
+        ServerConfig config = config();
+        config.setSegmentBytes(64);
+        MailboxStore store = new MailboxStore(config);
+        deliver(store, List.of("b@example.com"), "Subject: one\r\n\r\nfirst\r\n");
+        store.rollIfNeeded();
+        deliver(store, List.of("b@example.com"), "Subject: two\r\n\r\nsecond\r\n");
+        store.close();
+
+        try (Stream<Path> segments = Files.list(directory.resolve("segments"))) {
+            assertEquals(2, segments.count());
+        }
+        MailboxStore reopened = new MailboxStore(config);
+        try {
+            MailboxStore.Message first = reopened.message("b@example.com", 0);
+            MailboxStore.Message second = reopened.message("b@example.com", 1);
+            assertNotEquals(first.segment(), second.segment());
+            assertEquals("Subject: one\r\n\r\nfirst\r\n", read(reopened.openBody(first)));
+            assertEquals("Subject: two\r\n\r\nsecond\r\n", read(reopened.openBody(second)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Emails appended and indexed from many threads at once, for recipients spread over every stripe, all end up
+     * in the right mailboxes with their own bodies.
+     * @throws Exception
+     */
+    @Test
+    void appendsConcurrently() throws Exception {
+        int threads = 8;
+        int emails = 50;
+        ServerConfig config = config();
+        config.setMailboxStripes(4);
+        MailboxStore store = new MailboxStore(config);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+                for (int t = 0; t < threads; t++) {
+                    String recipient = "user" + t + "@example.com";
+                    tasks.add(pool.submit(() -> {
+                        for (int i = 0; i < emails; i++) {
+                            deliver(store, List.of(recipient, "all@example.com"), recipient + " " + i + "\r\n");
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+
+            assertEquals(threads * emails, store.count("all@example.com"));
+            for (int t = 0; t < threads; t++) {
+                String recipient = "user" + t + "@example.com";
+                assertEquals(emails, store.count(recipient));
+                for (int i = 0; i < emails; i++) {
+                    assertEquals(recipient + " " + i + "\r\n", read(store.openBody(store.message(recipient, i))));
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Create the settings of a store in the temporary directory, with logging turned down.
+     * @return The settings.
+     */
+    private ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.OFF);
+        Log.configure(config);
+        return config;
+    }
+
+    /**
+     * Append an email, force it to disk and index it for each of its recipients.
+     * @param store The store.
+     * @param recipients The recipients.
+     * @param text The body.
+     * @throws IOException
+     */
+    private void deliver(MailboxStore store, List<String> recipients, String text) throws IOException {
+        MailboxStore.Appended appended = store.append("a@example.com", recipients, body(text));
+        store.sync();
+        for (String recipient : recipients) {
+            store.index(recipient, appended);
+        }
+    }
+
+    /**
+     * Read a stream to its end as text, closing it.
+     * @param in The stream.
+     * @return The text.
+     * @throws IOException
+     */
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Collect a body in a message buffer.
+     * @param text The body.
+     * @return The buffer.
+     * @throws IOException
+     */
+    private MessageBuffer body(String text) throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        buffer.write(text.getBytes(StandardCharsets.US_ASCII));
+        return buffer;
+    }
+}
@@ -0,0 +1,240 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the POP3 sessions of the mailbox store, held over a loopback socket.
+ */
+class Pop3ServerTest {
+    private static final String RECIPIENT = "b@example.com";
+    private static final String DOTTED = "Subject: dots\r\n\r\n.leading dot\r\n..two dots\r\nplain\r\n.\r\n";
+    private static final String LINES = "Subject: lines\r\nX-Test: yes\r\n\r\none\r\ntwo\r\nthree\r\n";
+
+    @TempDir
+    Path directory;
+
+    private MailboxStore store;
+    private Pop3Server server;
+
+    /**
+     * Open a store holding two emails for the recipient, and serve it over POP3 on a port of the system's choosing.
+     * @throws IOException
+     */
+    @BeforeEach
+    void setUp() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.WARN);
+        Log.configure(config);
+        Path users = directory.resolve("pop3.users");
+        Files.writeString(users, RECIPIENT + ":secret\n");
+        config.setPop3Users(users);
+
+        store = new MailboxStore(config);
+        deliver(DOTTED);
+        deliver(LINES);
+        server = new Pop3Server(config, store);
+        server.start();
+    }
+
+    /**
+     * Close the store.
+     * @throws IOException
+     */
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+    }
+
+    /**
+     * RETR sends the whole email with every leading dot doubled, so that a line of the email is never taken for the
+     * end of the reply.
+     * @throws IOException
+     */
+    @Test
+    void retrieveStuffsLeadingDots() throws IOException {
+        try (Socket socket = login()) {
+            assertEquals("+OK " + DOTTED.length() + " octets", command(socket, "RETR 1"));
+            assertEquals("Subject: dots\r\n\r\n..leading dot\r\n...two dots\r\nplain\r\n..\r\n", readLines(socket));
+        }
+    }
+
+    /**
+     * TOP sends the header section followed by as many lines of the text as asked for, and the header section
+     * alone for none.
+     * @throws IOException
+     */
+    @Test
+    void topSendsHeadersAndLines() throws IOException {
+        try (Socket socket = login()) {
+            assertEquals("+OK", command(socket, "TOP 2 0"));
+            assertEquals("Subject: lines\r\nX-Test: yes\r\n\r\n", readLines(socket));
+            assertEquals("+OK", command(socket, "TOP 2 2"));
+            assertEquals("Subject: lines\r\nX-Test: yes\r\n\r\none\r\ntwo\r\n", readLines(socket));
+            assertEquals("+OK", command(socket, "TOP 1 1"));
+            assertEquals("Subject: dots\r\n\r\n..leading dot\r\n", readLines(socket));
+        }
+    }
+
+    /**
+     * An email marked with DELE is only deleted from the store once the session quits, and is then gone from the
+     * mailbox.
+     * @throws IOException
+     */
+    @Test
+    void deleteTakesEffectOnQuit() throws IOException {
+        try (Socket socket = login()) {
+            assertEquals("+OK message 1 deleted", command(socket, "DELE 1"));
+            assertTrue(command(socket, "RETR 1").startsWith("-ERR "));
+            assertEquals(2, liveCount());
+            assertEquals("+OK 1 messages deleted", command(socket, "QUIT"));
+        }
+
+        MailboxStore.Mailbox mailbox = store.open(RECIPIENT);
+        assertTrue(mailbox.isDeleted(0));
+        assertNull(mailbox.message(0));
+        assertEquals(1, liveCount());
+    }
+
+    /**
+     * A mailbox can only be opened by one session at a time, and is free again once that session has quit.
+     * @throws IOException
+     */
+    @Test
+    void locksMailboxWhileLoggedIn() throws IOException {
+        try (Socket first = login(); Socket second = connect()) {
+            assertEquals("+OK send PASS", command(second, "USER " + RECIPIENT));
+            assertEquals("-ERR mailbox already in use", command(second, "PASS secret"));
+            assertTrue(command(first, "QUIT").startsWith("+OK "));
+        }
+        // the lock is released once the session of the first socket has ended, which may take a moment
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        String reply;
+        do {
+            try (Socket socket = connect()) {
+                command(socket, "USER " + RECIPIENT);
+                reply = command(socket, "PASS secret");
+            }
+        } while (!reply.startsWith("+OK ") && System.nanoTime() < deadline);
+        assertEquals("+OK 2 messages", reply);
+    }
+
+    /**
+     * Append an email for the recipient, force it to disk and index it.
+     * @param text The email.
+     * @throws IOException
+     */
+    private void deliver(String text) throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        buffer.write(text.getBytes(StandardCharsets.US_ASCII));
+        MailboxStore.Appended appended = store.append("a@example.com", List.of(RECIPIENT), buffer);
+        store.sync();
+        store.index(RECIPIENT, appended);
+    }
+
+    /**
+     * Count the emails of the recipient that are not deleted.
+     * @return The number of emails.
+     * @throws IOException
+     */
+    private long liveCount() throws IOException {
+        MailboxStore.Mailbox mailbox = store.open(RECIPIENT);
+        long count = 0;
+        for (long number = 0; number < mailbox.size(); number++) {
+            if (!mailbox.isDeleted(number)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open a connection to the POP3 server and read its greeting.
+     * @return The connection.
+     * @throws IOException
+     */
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10_000);
+        assertEquals("+OK POP3 ready", readLine(socket));
+        return socket;
+    }
+
+    /**
+     * Open a connection to the POP3 server and log in to the mailbox of the recipient.
+     * @return The connection.
+     * @throws IOException
+     */
+    private Socket login() throws IOException {
+        Socket socket = connect();
+        assertEquals("+OK send PASS", command(socket, "USER " + RECIPIENT));
+        assertEquals("+OK 2 messages", command(socket, "PASS secret"));
+        return socket;
+    }
+
+    /**
+     * Send a command and read the first line of its reply.
+     * @param socket The connection.
+     * @param command The command, without its line terminator.
+     * @return The first line of the reply.
+     * @throws IOException
+     */
+    private static String command(Socket socket, String command) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+        return readLine(socket);
+    }
+
+    /**
+     * Read the lines of a multi-line reply up to the line holding a single dot, exactly as they were sent.
+     * @param socket The connection.
+     * @return The lines with their line terminators, without the final dot.
+     * @throws IOException
+     */
+    private static String readLines(Socket socket) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        String line;
+        while (!(line = readLine(socket)).equals(".")) {
+            lines.append(line).append("\r\n");
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Read a line one byte at a time, so that nothing is buffered past it.
+     * @param socket The connection.
+     * @return The line, without its CRLF.
+     * @throws IOException If the connection is closed before the line ends.
+     */
+    private static String readLine(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("The connection was closed");
+            }
+            line.append((char) b);
+        }
+        return line.substring(0, line.length() - 1);
+    }
+}
@@ -0,0 +1,187 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the relay against a second server that stands in for the server of the other domain.
+ */
+class RelayTest {
+    private static final String TRACE = "Received: from client.test ([127.0.0.1])\r\n\tby relay.test with ESMTP\r\n";
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A recipient the other server defers is tried again by a queue started on the same spool, while the
+     * recipient it accepted is not sent the email a second time.
+     * @throws Exception
+     */
+    @Test
+    void resumesAfterRestartWithoutResending() throws Exception {
+        // the other server takes one recipient per email, so the second is deferred with 452
+        ServerConfig downstreamConfig = config("downstream");
+        downstreamConfig.setMaxRecipients(1);
+        Server downstream = new Server("127.0.0.1", 0, downstreamConfig);
+        downstream.start();
+        MailboxStore mailboxes = downstream.getStore();
+
+        ServerConfig config = relayConfig(downstream.getPort());
+        ServerMetrics metrics = new ServerMetrics();
+        RelayQueue relay = new RelayQueue(config, metrics);
+        relay.start();
+        relay.enqueue("a@local.test", List.of("b@remote.test", "c@remote.test"), TRACE, body()).get();
+        awaitTrue(() -> relayed(metrics, RelayQueue.Outcome.DEFERRED) == 1);
+        relay.stop();
+        assertEquals(1, relayed(metrics, RelayQueue.Outcome.DELIVERED));
+        awaitTrue(() -> count(mailboxes, "b@remote.test") == 1);
+        assertEquals(0, mailboxes.count("c@remote.test"));
+
+        ServerMetrics restartedMetrics = new ServerMetrics();
+        RelayQueue restarted = new RelayQueue(config, restartedMetrics);
+        assertEquals(0, restarted.size());
+        restarted.start();
+        assertEquals(1, restarted.size());
+        awaitTrue(() -> restarted.size() == 0);
+        restarted.stop();
+        assertEquals(1, relayed(restartedMetrics, RelayQueue.Outcome.DELIVERED));
+        awaitTrue(() -> count(mailboxes, "c@remote.test") == 1);
+        assertEquals(1, mailboxes.count("b@remote.test"));
+
+        MailboxStore.Message message = mailboxes.message("c@remote.test", 0);
+        try (InputStream in = mailboxes.openBody(message)) {
+            assertTrue(new String(in.readAllBytes(), StandardCharsets.US_ASCII).startsWith(TRACE));
+        }
+    }
+
+    /**
+     * An email whose server cannot be reached is tried again after the first retry delay, then after twice that
+     * delay up to the largest one, and is delivered once the server is up.
+     * @throws Exception
+     */
+    @Test
+    void backsOffUntilServerIsReachable() throws Exception {
+        int port;
+        try (ServerSocket reserved = new ServerSocket(0)) {
+            port = reserved.getLocalPort(); // nothing listens on the port until the other server starts
+        }
+
+        ServerConfig config = relayConfig(port);
+        config.setRelayRetryMinSeconds(1);
+        config.setRelayRetryMaxSeconds(2);
+        ServerMetrics metrics = new ServerMetrics();
+        RelayQueue relay = new RelayQueue(config, metrics);
+        relay.start();
+        relay.enqueue("a@local.test", List.of("b@remote.test"), TRACE, body()).get();
+
+        long[] attempts = new long[3];
+        for (int i = 0; i < attempts.length; i++) {
+            int deferred = i + 1;
+            awaitTrue(() -> relayed(metrics, RelayQueue.Outcome.DEFERRED) >= deferred);
+            attempts[i] = System.nanoTime();
+        }
+        long first = TimeUnit.NANOSECONDS.toMillis(attempts[1] - attempts[0]);
+        long second = TimeUnit.NANOSECONDS.toMillis(attempts[2] - attempts[1]);
+        assertTrue(first >= 900 && first < 1900, "first retry after " + first + " ms");
+        assertTrue(second >= 1900 && second < 2900, "second retry after " + second + " ms");
+
+        Server downstream = new Server("127.0.0.1", port, config("downstream"));
+        downstream.start();
+        awaitTrue(() -> relay.size() == 0);
+        relay.stop();
+        assertEquals(1, relayed(metrics, RelayQueue.Outcome.DELIVERED));
+        assertEquals(3, relayed(metrics, RelayQueue.Outcome.DEFERRED));
+        awaitTrue(() -> count(downstream.getStore(), "b@remote.test") == 1);
+    }
+
+    /**
+     * Create the settings of a server that keeps its files in a directory of its own.
+     * @param name The name of the directory.
+     * @return The settings.
+     */
+    private ServerConfig config(String name) {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory.resolve(name));
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.WARN);
+        return config;
+    }
+
+    /**
+     * Create the settings of a relay that sends every email to a server on the loopback address.
+     * @param port The port of the server.
+     * @return The settings.
+     */
+    private ServerConfig relayConfig(int port) {
+        ServerConfig config = config("relay");
+        config.setLocalDomains(Set.of("local.test"));
+        config.setRelayRoutes(Map.of("*", InetSocketAddress.createUnresolved("127.0.0.1", port)));
+        config.setRelayRetryMinSeconds(1);
+        return config;
+    }
+
+    /**
+     * Collect an email in a message buffer.
+     * @return The buffer.
+     * @throws IOException
+     */
+    private MessageBuffer body() throws IOException {
+        MessageBuffer buffer = new MessageBuffer(1024, directory);
+        buffer.write("Subject: relayed\r\n\r\nhello\r\n".getBytes(StandardCharsets.US_ASCII));
+        return buffer;
+    }
+
+    /**
+     * Get the number of relayed recipients with an outcome.
+     * @param metrics The metrics of the relay.
+     * @param outcome The outcome.
+     * @return The number of recipients.
+     */
+    private static long relayed(ServerMetrics metrics, RelayQueue.Outcome outcome) {
+        return metrics.getRelayedRecipients().get(outcome.name());
+    }
+
+    /**
+     * Get the number of emails in a mailbox, for a condition that cannot throw.
+     * @param mailboxes The mailbox store.
+     * @param recipient The recipient.
+     * @return The number of emails.
+     */
+    private static long count(MailboxStore mailboxes, String recipient) {
+        try {
+            return mailboxes.count(recipient);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Wait until a condition holds.
+     * @param condition The condition.
+     * @throws InterruptedException
+     */
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
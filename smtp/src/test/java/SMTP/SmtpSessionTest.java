@@ -0,0 +1,430 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the protocol of a session, fed bytes the way a transport reads them, with its replies kept in memory.
+ */
+class SmtpSessionTest {
+    private static final String ENVELOPE = "MAIL FROM:<a@example.com>\r\nRCPT TO:<b@example.com>\r\n";
+
+    @TempDir
+    Path directory;
+
+    private final MemoryTransport transport = new MemoryTransport();
+    private MailboxStore store;
+    private AdmissionControl admission;
+    private SmtpSession session;
+
+    /**
+     * Close the session and the store it saved emails in.
+     * @throws Exception
+     */
+    @AfterEach
+    void tearDown() throws Exception {
+        if (session != null) {
+            session.close();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * A DATA body that grows past the largest size is read to its end and refused with 552, and the connection
+     * stays open for the next email.
+     * @throws Exception
+     */
+    @Test
+    void refusesOversizedDataWithoutClosing() throws Exception {
+        ServerConfig config = config();
+        config.setMaxMessageBytes(100);
+        open(config);
+
+        String body = "Subject: big\r\n\r\n" + "x".repeat(300) + "\r\n.\r\n";
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "DATA\r\n" + body + "NOOP\r\n"));
+        assertEquals(List.of("250 ok", "250 ok", "354 End data with <CR><LF>.<CR><LF>",
+                "552 " + AdmissionControl.Refusal.MESSAGE_SIZE.getReason(), "250 ok"), transport.replies(5));
+
+        assertTrue(send(ENVELOPE + "DATA\r\nSubject: small\r\n\r\nhi\r\n.\r\n"));
+        assertTrue(transport.last().startsWith("250 "));
+        assertEquals(1, store.count("b@example.com"));
+    }
+
+    /**
+     * A BDAT chunk that would make the email too large is read and dropped before it is refused with 552, and the
+     * command after it is still answered.
+     * @throws Exception
+     */
+    @Test
+    void refusesOversizedChunkWithoutClosing() throws Exception {
+        ServerConfig config = config();
+        config.setMaxMessageBytes(100);
+        open(config);
+
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "BDAT 300 LAST\r\n" + "y".repeat(300) + "NOOP\r\n"));
+        assertEquals(List.of("552 " + AdmissionControl.Refusal.MESSAGE_SIZE.getReason(), "250 ok"),
+                transport.replies(2));
+        assertEquals(0, store.count("b@example.com"));
+    }
+
+    /**
+     * A DATA body the in-flight budget has no room for is dropped and refused with 452, and its reservation is
+     * given back.
+     * @throws Exception
+     */
+    @Test
+    void refusesDataBeyondBudgetWithoutClosing() throws Exception {
+        ServerConfig config = config();
+        config.setMaxInFlightBytes(200);
+        open(config);
+
+        String body = "Subject: big\r\n\r\n" + "x".repeat(500) + "\r\n.\r\n";
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "DATA\r\n" + body + "NOOP\r\n"));
+        assertEquals(List.of("452 " + AdmissionControl.Refusal.IN_FLIGHT_BYTES.getReason(), "250 ok"),
+                transport.replies(2));
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    /**
+     * A MAIL or RCPT whose address is missing or malformed is answered with 501, and does not start an email.
+     * @throws Exception
+     */
+    @Test
+    void refusesMalformedAddressWith501() throws Exception {
+        open(config());
+
+        String syntax = "501 Syntax error in parameters or arguments";
+        assertTrue(send("EHLO client\r\nMAIL FROM:\r\nMAIL FROM:<a@example.com\r\nRCPT TO:<b@example.com>\r\n"
+                + "MAIL FROM:<>\r\nRCPT TO:<>\r\nRCPT TO:<b@example.com>\r\n"));
+        assertEquals(List.of(syntax, syntax, "503 Bad sequence of commands", "250 ok", syntax, "250 ok"),
+                transport.replies(6));
+    }
+
+    /**
+     * A client that says nothing after the greeting is sent a 421 reply once the greeting timeout has passed, and
+     * not before.
+     * @throws Exception
+     */
+    @Test
+    void expiresSilentClient() throws Exception {
+        ServerConfig config = config();
+        config.setGreetingTimeoutSeconds(1);
+        long start = System.nanoTime();
+        open(config, timer());
+
+        assertEquals("421 server.test Timed out waiting for a command, closing connection",
+                transport.expiry.get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Entering DATA moves the deadline of the session before the check scheduled for the command timeout, so a
+     * client that stops sending its email is expired at the shorter data timeout.
+     * @throws Exception
+     */
+    @Test
+    void expiresStalledEmailBeforeCommandTimeout() throws Exception {
+        ServerConfig config = config();
+        config.setCommandTimeoutSeconds(60);
+        config.setDataTimeoutSeconds(1);
+        open(config, timer());
+
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "DATA\r\nSubject: stalled\r\n"));
+        assertEquals("421 server.test Timed out waiting for the email, closing connection",
+                transport.expiry.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Commands pipelined in a single write, across two emails, each get exactly one reply, in the order they were
+     * sent, including a command that is refused along the way.
+     * @throws Exception
+     */
+    @Test
+    void answersPipelinedCommandsInOrder() throws Exception {
+        open(config());
+        assertTrue(send("EHLO client\r\n"));
+
+        String accepted = "250 ok Message accepted for delivery";
+        assertFalse(send(ENVELOPE + "DATA\r\nSubject: one\r\n\r\none\r\n.\r\n"
+                + "MAIL FROM:<a@example.com>\r\nRCPT TO:<>\r\nRCPT TO:<b@example.com>\r\nRCPT TO:<c@example.com>\r\n"
+                + "DATA\r\nSubject: two\r\n\r\ntwo\r\n.\r\nNOOP\r\nQUIT\r\n"));
+        assertEquals(List.of("250 ok", "250 ok", "354 End data with <CR><LF>.<CR><LF>", accepted, "250 ok",
+                "501 Syntax error in parameters or arguments", "250 ok", "250 ok",
+                "354 End data with <CR><LF>.<CR><LF>", accepted, "250 ok", "221 server.test closing connection"),
+                transport.replies(12));
+        assertEquals(2, store.count("b@example.com"));
+        assertEquals(1, store.count("c@example.com"));
+    }
+
+    /**
+     * An email sent in several BDAT chunks is acknowledged chunk by chunk and saved as their concatenation, without
+     * a line holding a single dot being taken for its end.
+     * @throws Exception
+     */
+    @Test
+    void acceptsSeveralChunks() throws Exception {
+        open(config());
+
+        String[] chunks = { "Subject: chunks\r\n\r\n", "first\r\n.\r\n", "second\r\n" };
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "BDAT " + chunks[0].length() + "\r\n" + chunks[0]
+                + "BDAT " + chunks[1].length() + "\r\n" + chunks[1]
+                + "BDAT " + chunks[2].length() + " LAST\r\n" + chunks[2] + "NOOP\r\n"));
+        assertEquals(List.of("250 ok " + chunks[0].length() + " octets received",
+                "250 ok " + chunks[1].length() + " octets received", "250 ok Message accepted for delivery",
+                "250 ok"), transport.replies(4));
+        assertEquals(1, store.count("b@example.com"));
+        assertTrue(read(store.openBody(store.message("b@example.com", 0))).endsWith(String.join("", chunks)));
+    }
+
+    /**
+     * An empty last chunk ends an email sent in chunks, saving the chunks received before it.
+     * @throws Exception
+     */
+    @Test
+    void acceptsEmptyLastChunk() throws Exception {
+        open(config());
+
+        String chunk = "Subject: empty last\r\n\r\nbody\r\n";
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "BDAT " + chunk.length() + "\r\n" + chunk
+                + "BDAT 0 LAST\r\n"));
+        assertEquals(List.of("250 ok " + chunk.length() + " octets received", "250 ok Message accepted for delivery"),
+                transport.replies(2));
+        assertTrue(read(store.openBody(store.message("b@example.com", 0))).endsWith(chunk));
+    }
+
+    /**
+     * A chunk sent before any recipient has been accepted is refused with 503 once its bytes have been read, so
+     * none of them is taken for a command, and the session carries on.
+     * @throws Exception
+     */
+    @Test
+    void drainsChunkBeforeRecipients() throws Exception {
+        open(config());
+
+        assertTrue(send("EHLO client\r\nBDAT 12\r\nQUIT\r\nQUIT\r\n"
+                + "MAIL FROM:<a@example.com>\r\nBDAT 6 LAST\r\nRSET\r\nNOOP\r\n"));
+        assertEquals(List.of("503 No valid recipients", "250 ok", "503 No valid recipients", "250 ok"),
+                transport.replies(4));
+
+        assertTrue(send(ENVELOPE + "BDAT 4 LAST\r\nhi\r\n"));
+        assertEquals("250 ok Message accepted for delivery", transport.last());
+        assertEquals(1, store.count("b@example.com"));
+    }
+
+    /**
+     * DATA is refused in the middle of an email sent in chunks, and allowed again once RSET has abandoned that
+     * email.
+     * @throws Exception
+     */
+    @Test
+    void allowsDataAfterResetOfChunks() throws Exception {
+        open(config());
+
+        assertTrue(send("EHLO client\r\n" + ENVELOPE + "BDAT 7\r\nchunked" + "DATA\r\nRSET\r\n"));
+        assertEquals(List.of("250 ok 7 octets received", "503 Bad sequence of commands", "250 ok"),
+                transport.replies(3));
+
+        assertTrue(send(ENVELOPE + "DATA\r\nSubject: plain\r\n\r\nplain\r\n.\r\n"));
+        assertEquals(List.of("354 End data with <CR><LF>.<CR><LF>", "250 ok Message accepted for delivery"),
+                transport.replies(2));
+        String body = read(store.openBody(store.message("b@example.com", 0)));
+        assertTrue(body.endsWith("Subject: plain\r\n\r\nplain\r\n"));
+        assertFalse(body.contains("chunked"));
+    }
+
+    /**
+     * Create the settings of a server that keeps its files in the temporary directory and logs only warnings.
+     * @return The settings.
+     */
+    private ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setLogLevel(Log.Level.WARN);
+        return config;
+    }
+
+    /**
+     * Open a session without timeouts, and greet the client.
+     * @param config The settings of the server.
+     * @throws Exception
+     */
+    private void open(ServerConfig config) throws Exception {
+        open(config, null);
+    }
+
+    /**
+     * Start a timer wheel with a tick of ten milliseconds.
+     * @return The timer wheel.
+     */
+    private static TimerWheel timer() {
+        TimerWheel timer = new TimerWheel(10, TimeUnit.MILLISECONDS);
+        timer.start();
+        return timer;
+    }
+
+    /**
+     * Open a session of a client on the loopback address, admitted by admission control and saving its emails in
+     * a store of its own, and greet the client.
+     * @param config The settings of the server.
+     * @param timer The timer wheel the timeouts of the session are checked on, or null for none.
+     * @throws Exception
+     */
+    private void open(ServerConfig config, TimerWheel timer) throws Exception {
+        Log.configure(config);
+        ServerMetrics metrics = new ServerMetrics();
+        store = new MailboxStore(config);
+        DeliveryWriter writer = new DeliveryWriter(store, null, config, metrics);
+        writer.start();
+        admission = new AdmissionControl(config, metrics);
+        InetAddress address = InetAddress.getLoopbackAddress();
+        session = new SmtpSession("server.test", address, new HostResolver(config), transport, config, writer,
+                metrics, timer, admission.admit(address).peer());
+        session.initiateCommunication();
+    }
+
+    /**
+     * Feed bytes to the session the way a transport does: line by line while it waits for commands, and as they
+     * come while it receives an email.
+     * @param input The bytes the client sends, all in one piece.
+     * @return Whether the session kept the connection open.
+     * @throws Exception
+     */
+    private boolean send(String input) throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(input.getBytes(StandardCharsets.ISO_8859_1));
+        while (data.hasRemaining()) {
+            if (session.isReceivingEmail()) {
+                if (!session.handleData(data)) {
+                    return false;
+                }
+                continue;
+            }
+            int end = data.position();
+            while (end < data.limit() && data.get(end) != '\n') {
+                end++;
+            }
+            int length = end > data.position() && data.get(end - 1) == '\r' ? end - 1 - data.position()
+                    : end - data.position();
+            byte[] line = Arrays.copyOfRange(data.array(), data.position(), data.position() + length);
+            data.position(Math.min(end + 1, data.limit()));
+            if (!session.handleLine(line, length)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a stream to its end as text, closing it.
+     * @param in The stream.
+     * @return The text.
+     * @throws IOException
+     */
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Class that keeps the replies of a session in memory, and runs continuations as soon as their operation has
+     * completed.
+     */
+    private static class MemoryTransport implements SmtpSession.Transport {
+        private final List<String> replies = new ArrayList<>();
+        private final CompletableFuture<String> expiry = new CompletableFuture<>();
+
+        /**
+         * Keep a reply instead of transmitting it.
+         * @param message The reply.
+         */
+        @Override
+        public void sendMessage(String message) {
+            replies.add(message);
+        }
+
+        /**
+         * Wait for an operation, then run the continuation on the calling thread.
+         * @param operation The operation.
+         * @param continuation The work to do once the operation has completed.
+         * @throws Exception
+         */
+        @Override
+        public void await(CompletableFuture<?> operation, SmtpSession.Continuation continuation) throws Exception {
+            try {
+                operation.join();
+            } catch (RuntimeException e) {
+                // the continuation looks at how the operation completed
+            }
+            continuation.run();
+        }
+
+        /**
+         * Keep the final reply of a session that has timed out, which is sent from the timer thread.
+         * @param reply The reply.
+         */
+        @Override
+        public void expire(String reply) {
+            expiry.complete(reply);
+        }
+
+        /**
+         * Do nothing, since there is no connection to close.
+         */
+        @Override
+        public void abort() {
+        }
+
+        /**
+         * Refuse STARTTLS, since there is no connection to encrypt.
+         * @return False.
+         */
+        @Override
+        public boolean canStartTls() {
+            return false;
+        }
+
+        /**
+         * Do nothing, since STARTTLS is never offered.
+         */
+        @Override
+        public void startTls() {
+        }
+
+        /**
+         * Get the last replies of the session.
+         * @param count The number of replies.
+         * @return The replies, oldest first.
+         */
+        List<String> replies(int count) {
+            return List.copyOf(replies.subList(replies.size() - count, replies.size()));
+        }
+
+        /**
+         * Get the last reply of the session.
+         * @return The reply.
+         */
+        String last() {
+            return replies.get(replies.size() - 1);
+        }
+    }
+}
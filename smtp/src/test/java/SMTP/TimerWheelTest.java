@@ -0,0 +1,105 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the tasks run by the timer wheel, with a tick of one millisecond so that a turn of the wheel lasts half a
+ * second.
+ */
+class TimerWheelTest {
+    private static final long TURN_MILLIS = 512;
+
+    private TimerWheel timer;
+
+    /**
+     * Start a wheel with a tick of one millisecond.
+     */
+    @BeforeEach
+    void setUp() {
+        timer = new TimerWheel(1, TimeUnit.MILLISECONDS);
+        timer.start();
+    }
+
+    /**
+     * A task runs once its delay has passed, and not before, and can no longer be cancelled once it has run.
+     * @throws InterruptedException
+     */
+    @Test
+    void runsTaskOnceDue() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout = timer.schedule(() -> {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(timeout.cancel());
+    }
+
+    /**
+     * A cancelled task never runs, while a task scheduled after it still does.
+     * @throws InterruptedException
+     */
+    @Test
+    void skipsCancelledTask() throws InterruptedException {
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = timer.schedule(() -> cancelledRan.set(true), 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        timer.schedule(ran::countDown, 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+
+    /**
+     * A task due later than one turn of the wheel waits for the turns still to go, rather than running the first
+     * time its bucket comes round.
+     * @throws InterruptedException
+     */
+    @Test
+    void waitsForLaterTurns() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long delay = TURN_MILLIS * 2 + 100;
+        long start = System.nanoTime();
+        timer.schedule(() -> {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }, delay, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    /**
+     * A deadline that moves earlier, by cancelling its task and scheduling another, runs at the new deadline and
+     * never at the old one.
+     * @throws InterruptedException
+     */
+    @Test
+    void runsDeadlineMovedEarlier() throws InterruptedException {
+        AtomicBoolean lateRan = new AtomicBoolean();
+        CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout late = timer.schedule(() -> lateRan.set(true), 10, TimeUnit.SECONDS);
+        assertTrue(late.cancel());
+        timer.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+
+        // the latch can only be released by the earlier deadline, well before the later one
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(lateRan.get());
+    }
+}
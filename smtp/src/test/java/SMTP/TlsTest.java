@@ -0,0 +1,94 @@
+package SMTP;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of STARTTLS between the client and a server with a self-signed certificate.
+ */
+class TlsTest {
+    private static final String PASSWORD = "changeit";
+
+    @TempDir
+    Path directory;
+
+    /**
+     * The first connection makes a full handshake, and the next one made with the same client settings resumes its
+     * session, which the server counts as such.
+     * @throws Exception
+     */
+    @Test
+    void resumesSessionOfEarlierConnection() throws Exception {
+        Path keyStore = generateKeyStore();
+        ServerConfig config = new ServerConfig();
+        config.setMailboxDirectory(directory);
+        config.setSpoolDirectory(directory);
+        config.setTlsKeyStore(keyStore);
+        config.setTlsKeyStorePassword(PASSWORD);
+        config.setLogLevel(Log.Level.WARN);
+        Server server = new Server("127.0.0.1", 0, config);
+        server.start();
+
+        ClientConfig client = new ClientConfig();
+        client.setStartTls(true);
+        client.setTrustStore(keyStore);
+        client.setTrustStorePassword(PASSWORD);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+        try (ClientConnection first = new ClientConnection(address, client)) {
+            assertTrue(first.isSecure());
+        }
+        assertEquals(1L, handshakes(server, "TlsFullHandshakes"));
+        assertEquals(0L, handshakes(server, "TlsResumedHandshakes"));
+
+        try (ClientConnection second = new ClientConnection(address, client)) {
+            assertTrue(second.isSecure());
+            byte[] body = "Subject: resumed\r\n\r\nhello\r\n".getBytes(StandardCharsets.US_ASCII);
+            assertTrue(second.send(Envelope.of("a@example.com", "b@example.com"), body).isEmpty());
+        }
+        assertEquals(1L, handshakes(server, "TlsFullHandshakes"));
+        assertEquals(1L, handshakes(server, "TlsResumedHandshakes"));
+    }
+
+    /**
+     * Generate a key store with a self-signed certificate for the loopback address, which the client also uses as
+     * its trust store.
+     * @return The path of the key store.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private Path generateKeyStore() throws IOException, InterruptedException {
+        Path keyStore = directory.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "smtp", "-keyalg", "EC", "-dname", "CN=localhost",
+                "-ext", "SAN=ip:127.0.0.1,dns:localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, keytool.waitFor(), output);
+        return keyStore;
+    }
+
+    /**
+     * Read a handshake counter of a server over JMX.
+     * @param server The server.
+     * @param attribute The name of the counter.
+     * @return The number of handshakes.
+     * @throws Exception
+     */
+    private static long handshakes(Server server, String attribute) throws Exception {
+        ObjectName name = new ObjectName("SMTP:type=Server,port=" + server.getPort());
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, attribute);
+    }
+}
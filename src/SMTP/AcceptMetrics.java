@@ -0,0 +1,76 @@
+package SMTP;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that records how quickly the listener accepts connections and hands them to the worker model.
+ * <p>
+ * Java cannot see when the kernel completed a handshake, so the accept queue is observed indirectly: an accept
+ * that returns almost immediately found a connection already waiting in the backlog. When nearly every accept is
+ * immediate and the hand-off latency grows, the listener rather than the workers is the bottleneck.
+ */
+public class AcceptMetrics {
+    private static final long IMMEDIATE_ACCEPT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder immediateAccepts = new LongAdder();
+    private final LongAdder handoffs = new LongAdder();
+    private final LongAdder handoffNanos = new LongAdder();
+    private final LongAccumulator maxHandoffNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a connection returned by accept().
+     * @param waitNanos How long the call to accept() blocked.
+     */
+    public void recordAccept(long waitNanos) {
+        accepted.increment();
+        if (waitNanos < IMMEDIATE_ACCEPT_NANOS) {
+            immediateAccepts.increment();
+        }
+    }
+
+    /**
+     * Record that an accepted connection has started being served by a worker.
+     * @param nanos The time between accept() returning and the worker picking the connection up.
+     */
+    public void recordHandoff(long nanos) {
+        handoffs.increment();
+        handoffNanos.add(nanos);
+        maxHandoffNanos.accumulate(nanos);
+    }
+
+    /**
+     * Get the number of connections accepted since the server started.
+     * @return The number of accepted connections.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Get the number of accepts that found a connection already waiting in the backlog.
+     * @return The number of immediate accepts.
+     */
+    public long getImmediateAccepts() {
+        return immediateAccepts.sum();
+    }
+
+    /**
+     * Get the mean time accepted connections waited before a worker picked them up.
+     * @return The mean hand-off latency in microseconds.
+     */
+    public long getMeanHandoffMicros() {
+        long count = handoffs.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(handoffNanos.sum() / count);
+    }
+
+    /**
+     * Get the longest time an accepted connection waited before a worker picked it up, and start measuring afresh.
+     * @return The maximum hand-off latency in microseconds since the previous call.
+     */
+    public long getAndResetMaxHandoffMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxHandoffNanos.getThenReset());
+    }
+}
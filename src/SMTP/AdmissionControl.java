@@ -0,0 +1,316 @@
+package SMTP;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that decides whether the server takes on a client, before any handler or session is allocated for it,
+ * how much mail each client address may send, and how many bytes of email the server holds at once.
+ * <p>
+ * A connection is refused with 421 when the server already has too many open, or when its address does; once
+ * admitted, each address draws its emails and bytes from token buckets, and a MAIL command that finds a bucket
+ * empty is answered with 450. Every session reserves the bytes of the email it is receiving from a single budget
+ * before it buffers them, and gives them back once the email has been saved or discarded, so the memory and spool
+ * space taken by emails in flight stays bounded however many clients send at once.
+ * <p>
+ * The state of each address lives in a table that is split into stripes, each an LRU map with its own lock, so
+ * admitting a client locks a small part of the table for a few operations, and a table that is full evicts the
+ * least recently seen idle address of a stripe rather than scanning every address.
+ */
+public class AdmissionControl {
+    private static final int STRIPES = 64;
+    private static final int EVICTION_SCAN = 8; // the idle addresses looked for at the old end of a full stripe
+
+    private final int maxConnections;
+    private final int maxConnectionsPerIp;
+    private final double messagesPerNano;
+    private final double messageBurst;
+    private final double bytesPerNano;
+    private final double byteBurst;
+    private final long maxInFlightBytes;
+    private final ServerMetrics metrics;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Why a client was turned away, along with the text of the reply.
+     */
+    public enum Refusal {
+        OVERLOADED("Too many connections, try again later"),
+        IP_CONNECTIONS("Too many connections from your address, try again later"),
+        IP_MESSAGES("Too much mail from your address, try again later"),
+        IP_BYTES("Too many bytes from your address, try again later"),
+        MESSAGE_SIZE("Message size exceeds fixed maximum message size"),
+        IN_FLIGHT_BYTES("Insufficient system storage, try again later");
+
+        private final String reason;
+
+        /**
+         * Create an object of type Refusal.
+         * @param reason The text of the reply.
+         */
+        Refusal(String reason) {
+            this.reason = reason;
+        }
+
+        /**
+         * Get the text of the reply, which follows the reply code.
+         * @return The reason.
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * The outcome of admitting a connection.
+     * @param peer The state of the address of the client, which the connection holds until it is closed, or null
+     *             if the connection was refused.
+     * @param refusal Why the connection was refused, or null if it was admitted.
+     */
+    public record Admission(Peer peer, Refusal refusal) {
+    }
+
+    /**
+     * The state of a single client address: its open connections and its token buckets, guarded by its stripe.
+     */
+    public final class Peer {
+        private final Stripe stripe;
+        private int connections;
+        private double messageTokens = messageBurst;
+        private double byteTokens = byteBurst;
+        private long refilledAt = System.nanoTime();
+
+        /**
+         * Create an object of type Peer.
+         * @param stripe The stripe of the table the address belongs to.
+         */
+        private Peer(Stripe stripe) {
+            this.stripe = stripe;
+        }
+
+        /**
+         * Take a token for a new email, unless the address has sent too many emails or bytes recently.
+         * @return Why the email is refused, or null if it may be sent.
+         */
+        public Refusal startMessage() {
+            if (messagesPerNano == 0 && bytesPerNano == 0) {
+                return null;
+            }
+
+            Refusal refusal = null;
+            synchronized (stripe) {
+                refill();
+                if (bytesPerNano > 0 && byteTokens < 0) {
+                    refusal = Refusal.IP_BYTES; // the bytes of the last emails are still being paid for
+                } else if (messagesPerNano > 0 && messageTokens < 1) {
+                    refusal = Refusal.IP_MESSAGES;
+                } else {
+                    messageTokens--;
+                }
+            }
+            if (refusal != null) {
+                metrics.recordRefusal(refusal);
+            }
+            return refusal;
+        }
+
+        /**
+         * Charge the bytes of an email that has been received to the address. The bucket may go into debt, which
+         * refuses the next emails until it has been paid off, since the bytes were already sent.
+         * @param count The number of bytes.
+         */
+        public void recordBytes(long count) {
+            if (bytesPerNano == 0) {
+                return;
+            }
+            synchronized (stripe) {
+                refill();
+                byteTokens -= count;
+            }
+        }
+
+        /**
+         * Reserve room in the budget shared by every connection for bytes of an email that are about to be buffered.
+         * @param count The number of bytes.
+         * @return Whether the bytes fit in the budget; if not, nothing was reserved.
+         */
+        public boolean reserveBytes(long count) {
+            return AdmissionControl.this.reserveBytes(count);
+        }
+
+        /**
+         * Give back bytes reserved for an email that has been saved or discarded.
+         * @param count The number of bytes.
+         */
+        public void releaseBytes(long count) {
+            inFlightBytes.addAndGet(-count);
+        }
+
+        /**
+         * Check whether an email of a given size would fit in the budget at the moment, without reserving anything.
+         * @param count The size of the email in bytes.
+         * @return Whether the email fits.
+         */
+        public boolean hasRoomFor(long count) {
+            return maxInFlightBytes == 0 || inFlightBytes.get() + count <= maxInFlightBytes;
+        }
+
+        /**
+         * Give back the connection slot of a connection that has been closed.
+         */
+        public void release() {
+            synchronized (stripe) {
+                connections--;
+            }
+            AdmissionControl.this.connections.decrementAndGet();
+        }
+
+        /**
+         * Add the tokens earned since the buckets were last refilled, up to their burst. The stripe must be locked.
+         */
+        private void refill() {
+            long now = System.nanoTime();
+            long elapsed = now - refilledAt;
+            refilledAt = now;
+            messageTokens = Math.min(messageBurst, messageTokens + elapsed * messagesPerNano);
+            byteTokens = Math.min(byteBurst, byteTokens + elapsed * bytesPerNano);
+        }
+    }
+
+    /**
+     * A part of the table of addresses, kept in the order they were last seen.
+     */
+    private static final class Stripe {
+        private final LinkedHashMap<InetAddress, Peer> peers = new LinkedHashMap<>(16, 0.75f, true);
+        private final int capacity;
+
+        /**
+         * Create an object of type Stripe.
+         * @param capacity The number of addresses the stripe remembers before it evicts idle ones.
+         */
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Make room for a new address by forgetting the least recently seen ones without open connections, looking
+         * only at a few of the oldest, so a stripe full of busy addresses may briefly grow past its capacity.
+         */
+        void makeRoom() {
+            Iterator<Peer> oldest = peers.values().iterator();
+            for (int i = 0; i < EVICTION_SCAN && peers.size() >= capacity && oldest.hasNext(); i++) {
+                if (oldest.next().connections == 0) {
+                    oldest.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an object of type AdmissionControl.
+     * @param config The settings of the server.
+     * @param metrics The metrics the refusals are recorded in.
+     */
+    public AdmissionControl(ServerConfig config, ServerMetrics metrics) {
+        this.maxConnections = config.getMaxConnections();
+        this.maxConnectionsPerIp = config.getMaxConnectionsPerIp();
+        this.messageBurst = config.getIpMessagesPerMinute();
+        this.messagesPerNano = messageBurst / TimeUnit.MINUTES.toNanos(1);
+        this.byteBurst = config.getIpBytesPerMinute();
+        this.bytesPerNano = byteBurst / TimeUnit.MINUTES.toNanos(1);
+        this.maxInFlightBytes = config.getMaxInFlightBytes();
+        this.metrics = metrics;
+        int capacity = Math.max(1, config.getMaxTrackedIps() / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    /**
+     * Take a connection slot for a newly accepted client, unless the server or its address already has too many
+     * connections open.
+     * @param address The address of the client.
+     * @return The outcome; an admitted connection must release its slot through its peer once it is closed.
+     */
+    public Admission admit(InetAddress address) {
+        // load is shed before the table is even looked at
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            return refuse(Refusal.OVERLOADED);
+        }
+
+        Stripe stripe = stripes[(address.hashCode() & 0x7FFFFFFF) % STRIPES];
+        synchronized (stripe) {
+            Peer peer = stripe.peers.get(address);
+            if (peer == null) {
+                stripe.makeRoom();
+                peer = new Peer(stripe);
+                stripe.peers.put(address, peer);
+            }
+            if (maxConnectionsPerIp == 0 || peer.connections < maxConnectionsPerIp) {
+                peer.connections++;
+                return new Admission(peer, null);
+            }
+        }
+        connections.decrementAndGet();
+        return refuse(Refusal.IP_CONNECTIONS);
+    }
+
+    /**
+     * Reserve bytes in the budget of emails in flight, unless they would overflow it.
+     * @param count The number of bytes.
+     * @return Whether the bytes were reserved.
+     */
+    private boolean reserveBytes(long count) {
+        if (maxInFlightBytes == 0) {
+            inFlightBytes.addAndGet(count); // still counted, for the metrics
+            return true;
+        }
+        long used;
+        do {
+            used = inFlightBytes.get();
+            if (used + count > maxInFlightBytes) {
+                return false;
+            }
+        } while (!inFlightBytes.compareAndSet(used, used + count));
+        return true;
+    }
+
+    /**
+     * Record a refused connection.
+     * @param refusal Why it was refused.
+     * @return The outcome.
+     */
+    private Admission refuse(Refusal refusal) {
+        metrics.recordRefusal(refusal);
+        return new Admission(null, refusal);
+    }
+
+    /**
+     * Get the number of bytes reserved by the emails that are being received or saved.
+     * @return The number of bytes.
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    /**
+     * Get the number of client addresses in the table.
+     * @return The number of addresses.
+     */
+    public long getTrackedAddresses() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.peers.size();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,266 @@
+package SMTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Class that keeps the text of emails once each, in files named after the SHA-256 hash of their content, so
+ * that every copy of a newsletter or bulk notification refers to the same file. The text is what follows the
+ * header section of the body; the headers differ from copy to copy, so they stay in the record of each email.
+ * Each file holds
+ * <pre>
+ * int magic | byte codec | long raw length | text
+ * </pre>
+ * where the text is compressed with the codec unless it is 0. A file is written under a temporary name, forced to
+ * disk and only then renamed, so a blob is always complete before anything refers to it.
+ * <p>
+ * Every index entry that refers to a blob holds one reference to it. The references are counted in memory: the
+ * mailbox store counts them from its indexes when it opens, deliveries add to them before their records are
+ * written, and deletions take them away. A blob left without references, whether its last email was deleted or
+ * it was written for a delivery that failed, is deleted by a collector that runs in the background.
+ */
+public class BlobStore {
+    public static final String ALGORITHM = "SHA-256";
+    public static final int HASH_BYTES = 32;
+    private static final int MAGIC = 0x534D5442; // "SMTB"
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Path directory;
+    private final Map<Integer, MessageCodec> codecs;
+    private final Map<String, Long> references = new ConcurrentHashMap<>(); // by blob, including unreferenced ones
+    private ScheduledExecutorService collector;
+
+    /**
+     * A blob an email refers to.
+     * @param key The hash of the content, in hexadecimal.
+     * @param rawLength The length of the content in bytes, as it was received.
+     * @param written Whether the blob was written for this email, rather than already held.
+     */
+    public record Blob(String key, long rawLength, boolean written) {
+    }
+
+    /**
+     * Create an object of type BlobStore over a directory, taking stock of the blobs already in it with no
+     * references, and deleting any file left half written by a crash.
+     * @param directory The directory holding the blobs.
+     * @param codecs The codecs blobs can be compressed with, by identifier.
+     * @throws IOException
+     */
+    public BlobStore(Path directory, Map<Integer, MessageCodec> codecs) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.codecs = codecs;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else {
+                    references.put(name, 0L);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the key of a blob from the hash of its content.
+     * @param hash The hash.
+     * @return The key.
+     */
+    public static String key(byte[] hash) {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    /**
+     * Take references to the blob of the text of a body, writing the blob and forcing it to disk unless it is
+     * already held. The references are taken before the blob is looked for, so the collector cannot delete it in
+     * between.
+     * @param body The body, which has been hashed.
+     * @param codec The codec a new blob is compressed with, or null to write it raw.
+     * @param count The number of references to take, one for every index entry that will refer to the blob.
+     * @return The blob.
+     * @throws IOException If the blob could not be written, in which case no reference is taken.
+     */
+    public Blob store(MessageBuffer body, MessageCodec codec, int count) throws IOException {
+        String key = key(body.hash());
+        long length = body.length() - body.headerLength();
+        acquire(key, count);
+        try {
+            Path path = directory.resolve(key);
+            if (Files.exists(path)) {
+                return new Blob(key, length, false);
+            }
+
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                // the stream is deliberately left open until the channel is forced
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(channel), WRITE_BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeByte(codec == null ? 0 : codec.getId());
+                out.writeLong(length);
+                try (InputStream in = body.openStream();
+                        OutputStream content = codec == null ? null : codec.compress(out)) {
+                    in.skipNBytes(body.headerLength());
+                    in.transferTo(content == null ? out : content);
+                }
+                out.flush();
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            // a blob written at the same time by another delivery has the same content, so either may win
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            RecordFiles.forceDirectory(directory);
+            return new Blob(key, length, true);
+        } catch (IOException | RuntimeException e) {
+            // a codec is pluggable, so whatever it throws must not leave references behind
+            release(key, count);
+            throw e;
+        }
+    }
+
+    /**
+     * Open a stream over the content of a blob, decompressed as it is read.
+     * @param key The key of the blob.
+     * @return The stream, which the caller must close.
+     * @throws IOException
+     */
+    public InputStream open(String key) throws IOException {
+        InputStream file = new BufferedInputStream(Files.newInputStream(directory.resolve(key)), READ_BUFFER_SIZE);
+        try {
+            DataInputStream in = new DataInputStream(file);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Blob " + key + " is corrupt");
+            }
+            int id = in.readUnsignedByte();
+            in.readLong(); // the raw length, which the records referring to the blob hold as well
+            if (id == 0) {
+                return file;
+            }
+            MessageCodec codec = codecs.get(id);
+            if (codec == null) {
+                throw new IOException("Unknown codec " + id + " in blob " + key);
+            }
+            return codec.decompress(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Add references to a blob.
+     * @param key The key of the blob.
+     * @param count The number of references.
+     */
+    public void acquire(String key, long count) {
+        references.merge(key, count, Long::sum);
+    }
+
+    /**
+     * Take references away from a blob, which the collector deletes once it has none left.
+     * @param key The key of the blob.
+     * @param count The number of references.
+     */
+    public void release(String key, long count) {
+        references.merge(key, -count, Long::sum);
+    }
+
+    /**
+     * Get the number of blobs held, including those waiting to be collected.
+     * @return The number of blobs.
+     */
+    public int size() {
+        return references.size();
+    }
+
+    /**
+     * Start deleting the blobs left without references periodically, on a daemon thread.
+     * @param intervalSeconds The time between two collections.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (collector != null) {
+            return;
+        }
+        collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-blob-collector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector.scheduleWithFixedDelay(this::collectQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Delete every blob left without references. A blob that gains a reference in the meantime is kept, since
+     * the references of a blob are updated one at a time.
+     * @return The number of blobs deleted.
+     */
+    public int collect() {
+        int collected = 0;
+        for (String key : references.keySet()) {
+            boolean[] deleted = new boolean[1];
+            references.computeIfPresent(key, (blob, count) -> {
+                if (count > 0) {
+                    return count;
+                }
+                try {
+                    Files.deleteIfExists(directory.resolve(blob));
+                    deleted[0] = true;
+                    return null;
+                } catch (IOException e) {
+                    Log.warn("Could not delete blob " + blob + ": " + e.getMessage());
+                    return count;
+                }
+            });
+            if (deleted[0]) {
+                collected++;
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * Stop the collector.
+     */
+    public synchronized void close() {
+        if (collector != null) {
+            collector.shutdownNow();
+            collector = null;
+        }
+    }
+
+    /**
+     * Collect the blobs without references, logging how many were deleted.
+     */
+    private void collectQuietly() {
+        try {
+            int collected = collect();
+            if (collected > 0) {
+                RecordFiles.forceDirectory(directory);
+                Log.debug("Deleted " + collected + " blobs without references");
+            }
+        } catch (Exception e) {
+            Log.error("Could not collect blobs: " + e);
+        }
+    }
+}
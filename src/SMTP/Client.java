@@ -3,11 +3,16 @@ package SMTP;
 import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -16,13 +21,17 @@ import java.util.Scanner;
  *
  */
 public class Client {
+    private static final long EHLO_TIMEOUT_MILLIS = 5000; // how long a server that ignores EHLO is waited for
+
     private Socket socket;
     private PrintWriter output;
+    private OutputStream stream; // the stream under output, which a BDAT chunk is written to directly
     private InputStreamReader input;
     private BufferedReader br;
     private InetAddress serverAddress;
     private int serverPort;
     private Scanner scanner;
+    private ClientConfig config = ClientConfig.fromSystemProperties();
     private DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
 
     /**
@@ -63,7 +72,9 @@ public class Client {
      * @throws Exception
      */
     private void setupStreams() throws Exception {
-        output = new PrintWriter(socket.getOutputStream(), true);
+        // commands are flushed explicitly, so a pipelined envelope leaves in a single write
+        stream = socket.getOutputStream();
+        output = new PrintWriter(stream, false);
         input = new InputStreamReader(socket.getInputStream());
         br = new BufferedReader(input);
         println("Streams are setup");
@@ -75,7 +86,7 @@ public class Client {
      * @throws Exception
      */
     private void sendMessage(String message) throws Exception {
-        output.println(message);
+        output.print(message + "\r\n");
     }
 
     /**
@@ -85,70 +96,232 @@ public class Client {
     private void sendEmail() throws Exception {
         String line;
 
-        // until the client types a ".", send each line to the server
+        // until the client types a ".", send each line to the server, doubling a leading dot so it is not
+        // mistaken for the end of the email
         while (!(line = scanner.nextLine()).equals(".")) {
-            sendMessage(line);
+            sendMessage(line.startsWith(".") ? "." + line : line);
         }
 
         sendMessage(".");
     }
 
     /**
-     * Primary method used to transmit and receive messages to and from the server.
+     * Capture each line of the email, then transmit it to the server as a single, final BDAT chunk.
+     * The chunk is sent exactly as typed, so no line needs its leading dot doubled.
      * @throws Exception
      */
-    private void exchangeMessages() throws Exception {
+    private void sendChunk() throws Exception {
+        StringBuilder email = new StringBuilder();
         String line;
-        String message;
-        boolean sentRecipient = false;
-        boolean sentData = false;
 
-        // until the message that is received starts with "221", keep reading messages from the server
-        while (!(line = br.readLine()).startsWith("221")) {
+        // until the client types a ".", collect each line of the email
+        while (!(line = scanner.nextLine()).equals(".")) {
+            email.append(line).append("\r\n");
+        }
+
+        byte[] bytes = email.toString().getBytes(Charset.defaultCharset());
+        sendMessage("BDAT " + bytes.length + " LAST");
+        output.flush();
+        stream.write(bytes);
+        stream.flush();
+    }
+
+    /**
+     * Read a reply from the server, which spans several lines when every line but the last has a "-" after its code.
+     * @return The lines of the reply.
+     * @throws Exception
+     */
+    private List<String> readReply() throws Exception {
+        List<String> reply = new ArrayList<>();
+        String line;
+
+        do {
+            line = br.readLine();
+            if (line == null) {
+                throw new EOFException();
+            }
             println("Server: " + line);
+            reply.add(line);
+        } while (line.length() > 3 && line.charAt(3) == '-');
+
+        return reply;
+    }
+
+    /**
+     * Check whether the last line of a reply starts with a code.
+     * @param reply The lines of the reply.
+     * @param code The expected code, or its leading digits.
+     * @return Whether the reply has the code.
+     */
+    private static boolean hasCode(List<String> reply, String code) {
+        return reply.get(reply.size() - 1).startsWith(code);
+    }
 
-            // if the line starts with "220", respond with a greeting
-            if (line.startsWith("220")) {
-                sendMessage("HELLO " + socket.getInetAddress().getHostName());
+    /**
+     * Check whether the reply to EHLO lists an extension.
+     * @param hello The lines of the reply.
+     * @param name The name of the extension.
+     * @return Whether the server supports the extension.
+     */
+    private static boolean hasExtension(List<String> hello, String name) {
+        for (String line : hello) {
+            if (line.length() > 4 && line.substring(4).equalsIgnoreCase(name)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // if the line starts with "250 Hello"
-            if (line.startsWith("250 Hello")) {
-                // prompt the user to enter the sender of the email and transmit it to the server
-                print("MAIL FROM: ");
-                message = scanner.nextLine();
-                sendMessage("MAIL FROM: <" + message + ">");
+    /**
+     * Greet the server with EHLO, or with HELLO when {@code smtp.client.extendedHello} is off. A server that refuses
+     * EHLO with a 5xx reply, or does not answer it at all as the single-threaded STServer does, is greeted again
+     * with HELLO, and none of its extensions are used.
+     * @return The lines of the reply, which list the extensions of the server.
+     * @throws Exception
+     */
+    private List<String> hello() throws Exception {
+        String name = InetAddress.getLocalHost().getHostName();
+        if (config.isExtendedHello()) {
+            sendMessage("EHLO " + name);
+            output.flush();
+            List<String> reply;
+            socket.setSoTimeout((int) Math.min(EHLO_TIMEOUT_MILLIS, config.getReadTimeoutMillis()));
+            try {
+                reply = readReply();
+            } catch (SocketTimeoutException e) {
+                reply = null;
+            } finally {
+                socket.setSoTimeout(0);
             }
+            if (reply != null && !hasCode(reply, "5")) {
+                return reply;
+            }
+            println("The server does not support EHLO, so it is greeted with HELLO");
+        }
+        sendMessage("HELLO " + name);
+        output.flush();
+        return readReply();
+    }
 
-            // if the message is "250 ok" and the user hasn't entered the recipient of the email
-            if (line.equals("250 ok") && !sentRecipient) {
-                // prompt the user to enter the recipient and transmit it to the server
-                print("RCPT TO: ");
-                message = scanner.nextLine();
-                sendMessage("RCPT TO: <" + message + ">");
-                sentRecipient = true; // user has sent the recipient now
+    /**
+     * Run the TLS handshake once the server has accepted STARTTLS, and send and receive everything else through
+     * the TLS engine. The server is trusted according to the {@code smtp.client.trustStore} setting.
+     * @throws Exception
+     */
+    private void startTls() throws Exception {
+        TlsEngine engine = config.getTlsContext().newClientEngine(serverAddress.getHostName(), serverPort,
+                TlsEngine.HandshakeListener.NONE);
+        engine.handshake(socket.getInputStream(), socket.getOutputStream());
+        stream = engine.outputStream(socket.getOutputStream());
+        output = new PrintWriter(stream, false);
+        input = new InputStreamReader(engine.inputStream(socket.getInputStream(), socket.getOutputStream()));
+        br = new BufferedReader(input);
+        println("TLS started: " + engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite());
+    }
+
+    /**
+     * Primary method used to transmit and receive messages to and from the server.
+     * @throws Exception
+     */
+    private void exchangeMessages() throws Exception {
+        // wait for the server's greeting, and respond with one of our own
+        if (hasCode(readReply(), "220")) {
+            List<String> hello = hello();
+
+            // with STARTTLS the rest of the session is encrypted, and the server is greeted again over TLS
+            if (config.isStartTls() && hasCode(hello, "250") && hasExtension(hello, "STARTTLS")) {
+                sendMessage("STARTTLS");
+                output.flush();
+                if (hasCode(readReply(), "220")) {
+                    startTls();
+                    hello = hello();
+                }
             }
 
-            // if the message is "250 ok", and the user has entered the recipient of the email,
-            // and "DATA" has not been sent yet, respond with "DATA"
-            if (line.equals("250 ok") && sentRecipient && !sentData) {
-                sendMessage("DATA");
-                sentData = true;
+            // with PIPELINING the whole envelope can be transmitted without waiting for each reply,
+            // and with CHUNKING the email can be transmitted as it is, with its exact length announced
+            boolean pipelining = hasExtension(hello, "PIPELINING");
+            boolean chunking = hasExtension(hello, "CHUNKING");
+
+            if (hasCode(hello, "250")) {
+                sendEnvelope(pipelining, chunking);
             }
+        }
 
-            // if the line starts with "354", the user can now type the email they wish to send
-            if (line.startsWith("354")) {
-                sendEmail();
+        sendMessage("QUIT");
+        output.flush();
+        readReply();
+    }
+
+    /**
+     * Prompt the user for the sender and recipients of the email, transmit them along with "DATA", and if the
+     * server is ready for it, the email itself. With CHUNKING the email is transmitted with "BDAT" instead.
+     * @param pipelining Whether the server accepts pipelined commands.
+     * @param chunking Whether the server accepts BDAT.
+     * @throws Exception
+     */
+    private void sendEnvelope(boolean pipelining, boolean chunking) throws Exception {
+        // prompt the user to enter the sender and the recipients of the email, separated by commas
+        print("MAIL FROM: ");
+        String sender = scanner.nextLine();
+        print("RCPT TO: ");
+        List<String> recipients = new ArrayList<>();
+        for (String recipient : scanner.nextLine().split(",")) {
+            if (!recipient.isBlank()) {
+                recipients.add(recipient.trim());
+            }
+        }
+
+        List<String> commands = new ArrayList<>();
+        commands.add("MAIL FROM: <" + sender + ">");
+        for (String recipient : recipients) {
+            commands.add("RCPT TO: <" + recipient + ">");
+        }
+        if (!chunking) {
+            commands.add("DATA");
+        }
+
+        // transmit every command in a single write, then read their replies in order,
+        // or without PIPELINING, transmit each command once the previous one has been answered
+        List<String> dataReply = null;
+        boolean accepted = false;
+        if (pipelining) {
+            for (String command : commands) {
+                sendMessage(command);
+            }
+            output.flush();
+            for (String command : commands) {
+                dataReply = readReply();
+                accepted |= command.startsWith("RCPT") && hasCode(dataReply, "2");
             }
+        } else {
+            for (String command : commands) {
+                sendMessage(command);
+                output.flush();
+                dataReply = readReply();
+                if (command.startsWith("MAIL") && !hasCode(dataReply, "250")) {
+                    return;
+                }
+                accepted |= command.startsWith("RCPT") && hasCode(dataReply, "2");
+            }
+        }
 
-            // if the line starts with "250 ok Message", respond with "QUIT"
-            if (line.startsWith("250 ok Message")) {
-                sendMessage("QUIT");
+        // with CHUNKING, the email the user types is transmitted in a single chunk once it is complete
+        if (chunking) {
+            if (accepted) {
+                println("End data with <CR><LF>.<CR><LF>");
+                sendChunk();
+                readReply();
             }
+            return;
         }
 
-        // print the final message received from the server
-        println("Server: " + line);
+        // if the reply to "DATA" starts with "354", the user can now type the email they wish to send
+        if (hasCode(dataReply, "354")) {
+            sendEmail();
+            output.flush();
+            readReply();
+        }
     }
 
     /**
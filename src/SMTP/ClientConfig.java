@@ -0,0 +1,298 @@
+package SMTP;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Class that holds the tunable settings of the programmatic SMTP client and its connection pool.
+ * Every setting has a sensible default and can be overridden with a system property, e.g.
+ * {@code -Dsmtp.client.maxConnections=16}.
+ */
+public class ClientConfig {
+    private String clientName = "localhost";
+    private int maxConnections = 8;
+    private long connectTimeoutMillis = 5000;
+    private long readTimeoutMillis = 60000;
+    private long idleTimeoutMillis = 30000;
+    private long healthCheckMillis = 5000;
+    private int maxMessagesPerConnection = 0;
+    private boolean extendedHello = true;
+    private boolean pipelining = true;
+    private boolean chunking = true;
+    private boolean startTls = false;
+    private Path trustStore = null;
+    private String trustStorePassword = "changeit";
+    private TlsContext tlsContext;
+
+    /**
+     * Create an object of type ClientConfig populated from the {@code smtp.client.*} system properties.
+     * @return The configuration.
+     */
+    public static ClientConfig fromSystemProperties() {
+        ClientConfig config = new ClientConfig();
+        config.setClientName(System.getProperty("smtp.client.name", config.getClientName()));
+        config.setMaxConnections(Integer.getInteger("smtp.client.maxConnections", config.getMaxConnections()));
+        config.setConnectTimeoutMillis(Long.getLong("smtp.client.connectTimeoutMillis", config.getConnectTimeoutMillis()));
+        config.setReadTimeoutMillis(Long.getLong("smtp.client.readTimeoutMillis", config.getReadTimeoutMillis()));
+        config.setIdleTimeoutMillis(Long.getLong("smtp.client.idleTimeoutMillis", config.getIdleTimeoutMillis()));
+        config.setHealthCheckMillis(Long.getLong("smtp.client.healthCheckMillis", config.getHealthCheckMillis()));
+        config.setMaxMessagesPerConnection(Integer.getInteger("smtp.client.maxMessagesPerConnection", config.getMaxMessagesPerConnection()));
+        config.setExtendedHello(Boolean.parseBoolean(System.getProperty("smtp.client.extendedHello", String.valueOf(config.isExtendedHello()))));
+        config.setPipelining(Boolean.parseBoolean(System.getProperty("smtp.client.pipelining", String.valueOf(config.isPipelining()))));
+        config.setChunking(Boolean.parseBoolean(System.getProperty("smtp.client.chunking", String.valueOf(config.isChunking()))));
+        config.setStartTls(Boolean.parseBoolean(System.getProperty("smtp.client.startTls", String.valueOf(config.isStartTls()))));
+        String trustStore = System.getProperty("smtp.client.trustStore");
+        config.setTrustStore(trustStore == null || trustStore.isEmpty() ? null : Path.of(trustStore));
+        config.setTrustStorePassword(System.getProperty("smtp.client.trustStorePassword", config.getTrustStorePassword()));
+        return config;
+    }
+
+    /**
+     * Get the name the client introduces itself with in EHLO.
+     * @return The client name.
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Set the name the client introduces itself with in EHLO.
+     * @param clientName The client name, usually the host name of the machine.
+     */
+    public void setClientName(String clientName) {
+        if (clientName == null || clientName.isBlank() || clientName.contains(" ")) {
+            throw new IllegalArgumentException("clientName must be a single word");
+        }
+        this.clientName = clientName;
+    }
+
+    /**
+     * Get the largest number of connections kept open to the same server.
+     * @return The maximum number of connections per server.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the largest number of connections kept open to the same server.
+     * @param maxConnections The maximum number of connections per server, at least 1.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Get how long to wait for a connection to a server to be established.
+     * @return The connect timeout in milliseconds.
+     */
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Set how long to wait for a connection to a server to be established.
+     * @param connectTimeoutMillis The connect timeout in milliseconds, 0 to wait forever.
+     */
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || connectTimeoutMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("connectTimeoutMillis must be between 0 and " + Integer.MAX_VALUE);
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Get how long to wait for a reply from a server.
+     * @return The read timeout in milliseconds.
+     */
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Set how long to wait for a reply from a server.
+     * @param readTimeoutMillis The read timeout in milliseconds, 0 to wait forever.
+     */
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        if (readTimeoutMillis < 0 || readTimeoutMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("readTimeoutMillis must be between 0 and " + Integer.MAX_VALUE);
+        }
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Get how long an unused connection stays in the pool before it is closed.
+     * @return The idle timeout in milliseconds.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Set how long an unused connection stays in the pool before it is closed.
+     * @param idleTimeoutMillis The idle timeout in milliseconds, at least 1.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 1) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be at least 1");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Get how long a connection may stay unused before it is checked with NOOP prior to being reused.
+     * @return The health check interval in milliseconds.
+     */
+    public long getHealthCheckMillis() {
+        return healthCheckMillis;
+    }
+
+    /**
+     * Set how long a connection may stay unused before it is checked with NOOP prior to being reused.
+     * @param healthCheckMillis The health check interval in milliseconds, 0 to check before every reuse.
+     */
+    public void setHealthCheckMillis(long healthCheckMillis) {
+        if (healthCheckMillis < 0) {
+            throw new IllegalArgumentException("healthCheckMillis must not be negative");
+        }
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * Get the number of emails sent over a connection before it is replaced by a new one.
+     * @return The maximum number of emails per connection, 0 for no limit.
+     */
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    /**
+     * Set the number of emails sent over a connection before it is replaced by a new one.
+     * @param maxMessagesPerConnection The maximum number of emails per connection, 0 for no limit.
+     */
+    public void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+        if (maxMessagesPerConnection < 0) {
+            throw new IllegalArgumentException("maxMessagesPerConnection must not be negative");
+        }
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    /**
+     * Check whether the client greets servers with EHLO and uses the extensions they advertise.
+     * @return Whether EHLO is used.
+     */
+    public boolean isExtendedHello() {
+        return extendedHello;
+    }
+
+    /**
+     * Set whether the client greets servers with EHLO and uses the extensions they advertise.
+     * @param extendedHello Whether EHLO is used; false greets with HELLO, as the single-threaded STServer
+     *                      expects, and uses no extension.
+     */
+    public void setExtendedHello(boolean extendedHello) {
+        this.extendedHello = extendedHello;
+    }
+
+    /**
+     * Check whether the client pipelines commands when the server advertises PIPELINING.
+     * @return Whether pipelining is used.
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * Set whether the client pipelines commands when the server advertises PIPELINING.
+     * @param pipelining Whether pipelining is used.
+     */
+    public void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    /**
+     * Check whether the client sends emails with BDAT when the server advertises CHUNKING.
+     * @return Whether chunking is used.
+     */
+    public boolean isChunking() {
+        return chunking;
+    }
+
+    /**
+     * Set whether the client sends emails with BDAT when the server advertises CHUNKING.
+     * @param chunking Whether chunking is used; false always sends emails with DATA.
+     */
+    public void setChunking(boolean chunking) {
+        this.chunking = chunking;
+    }
+
+    /**
+     * Check whether the client upgrades its connections with STARTTLS when the server advertises it.
+     * @return Whether STARTTLS is used.
+     */
+    public boolean isStartTls() {
+        return startTls;
+    }
+
+    /**
+     * Set whether the client upgrades its connections with STARTTLS when the server advertises it.
+     * @param startTls Whether STARTTLS is used; a server that does not advertise it is still talked to in plain
+     *                 text.
+     */
+    public void setStartTls(boolean startTls) {
+        this.startTls = startTls;
+    }
+
+    /**
+     * Get the trust store holding the certificates the client trusts servers with.
+     * @return The path of the trust store, or null for the trust store of the JDK.
+     */
+    public Path getTrustStore() {
+        return trustStore;
+    }
+
+    /**
+     * Set the trust store holding the certificates the client trusts servers with, such as a self-signed one.
+     * @param trustStore The path of a PKCS12 or JKS trust store, or null for the trust store of the JDK.
+     */
+    public synchronized void setTrustStore(Path trustStore) {
+        this.trustStore = trustStore;
+        tlsContext = null;
+    }
+
+    /**
+     * Get the password of the trust store.
+     * @return The password.
+     */
+    public String getTrustStorePassword() {
+        return trustStorePassword;
+    }
+
+    /**
+     * Set the password of the trust store.
+     * @param trustStorePassword The password.
+     */
+    public synchronized void setTrustStorePassword(String trustStorePassword) {
+        if (trustStorePassword == null) {
+            throw new IllegalArgumentException("trustStorePassword must not be null");
+        }
+        this.trustStorePassword = trustStorePassword;
+        tlsContext = null;
+    }
+
+    /**
+     * Get the TLS context shared by every connection made with these settings, so that a new connection resumes the
+     * session of an earlier one instead of making a full handshake. It is created the first time it is needed.
+     * @return The TLS context.
+     * @throws IOException If the trust store cannot be read.
+     */
+    public synchronized TlsContext getTlsContext() throws IOException {
+        if (tlsContext == null) {
+            tlsContext = TlsContext.forClient(this);
+        }
+        return tlsContext;
+    }
+}
@@ -0,0 +1,563 @@
+package SMTP;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class that holds an established SMTP session with a server and sends emails over it, without any user input.
+ * <p>
+ * The session is greeted with EHLO once, and then carries any number of emails, each one starting with its own
+ * MAIL FROM. When the server advertises PIPELINING the envelope of an email is written in one go, and when it
+ * advertises CHUNKING the email follows as a single BDAT chunk in the same write, so an email costs a single
+ * round trip. A connection is not thread-safe; {@link ClientPool} hands each one to a single sender at a time.
+ * <p>
+ * With {@link ClientConfig#isExtendedHello()} turned off the session is greeted with HELLO instead, in the
+ * dialect of the interactive Client, and no extension is used, which is what the single-threaded STServer
+ * understands. A {@link PhaseListener} can be given to time each step of the exchange.
+ * <p>
+ * With {@link ClientConfig#isStartTls()} turned on, a server that advertises STARTTLS is talked to over TLS from
+ * the second EHLO onwards. The TLS context comes from the configuration, so the connections made with the same
+ * configuration resume each other's sessions rather than each paying for a full handshake.
+ */
+public class ClientConnection implements AutoCloseable {
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final PhaseListener NO_LISTENER = (phase, nanos) -> { };
+
+    /**
+     * The steps of an SMTP exchange that a connection reports to its {@link PhaseListener}.
+     */
+    public enum Phase {
+        /** The TCP connection was established. */
+        CONNECT,
+        /** The 220 greeting of the server arrived. */
+        GREETING,
+        /** The reply to EHLO or HELLO arrived. */
+        HELLO,
+        /** The TLS handshake that follows STARTTLS completed, and the second EHLO was answered. */
+        TLS,
+        /** The replies to MAIL FROM and every RCPT TO arrived. */
+        ENVELOPE,
+        /** The 354 reply to DATA arrived; BDAT has no such step. */
+        DATA,
+        /** The server accepted the email with its final 250 reply. */
+        ACCEPTED
+    }
+
+    /**
+     * Callback told how long each step of an exchange took, on the thread that uses the connection.
+     */
+    @FunctionalInterface
+    public interface PhaseListener {
+        /**
+         * Record that a step completed.
+         * @param phase The step.
+         * @param nanos The time the step took, in nanoseconds.
+         */
+        void completed(Phase phase, long nanos);
+    }
+
+    private final Socket socket;
+    private final PhaseListener listener;
+    private final boolean pipelining;
+    private final boolean chunking;
+    private final boolean declaringSize; // whether MAIL FROM announces the size of the email
+    private final String mailFrom;
+    private final String rcptTo;
+    private LineReader input;
+    private OutputStream output;
+    private boolean secure;
+    private final Set<String> extensions = new HashSet<>();
+    private long lastUsed = System.nanoTime();
+    private int messagesSent;
+    private boolean broken;
+
+    /**
+     * Create an object of type ClientConnection by connecting to a server and greeting it with EHLO, or HELLO.
+     * @param server The address of the server.
+     * @param config The settings of the client.
+     * @throws IOException If the connection fails or the server does not accept it.
+     */
+    public ClientConnection(InetSocketAddress server, ClientConfig config) throws IOException {
+        this(server, config, NO_LISTENER);
+    }
+
+    /**
+     * Create an object of type ClientConnection by connecting to a server and greeting it, timing each step.
+     * @param server The address of the server.
+     * @param config The settings of the client.
+     * @param listener The callback told how long each step took, from the connection itself onwards.
+     * @throws IOException If the connection fails or the server does not accept it.
+     */
+    public ClientConnection(InetSocketAddress server, ClientConfig config, PhaseListener listener)
+            throws IOException {
+        this.listener = listener;
+        boolean extended = config.isExtendedHello();
+        mailFrom = extended ? "MAIL FROM:<" : "MAIL FROM: <";
+        rcptTo = extended ? "RCPT TO:<" : "RCPT TO: <";
+        socket = new Socket();
+        try {
+            long start = System.nanoTime();
+            socket.setTcpNoDelay(true);
+            socket.connect(server, (int) config.getConnectTimeoutMillis());
+            socket.setSoTimeout((int) config.getReadTimeoutMillis());
+            input = new LineReader(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            start = completed(Phase.CONNECT, start);
+
+            expect(readReply(), 220);
+            start = completed(Phase.GREETING, start);
+            if (extended) {
+                command("EHLO " + config.getClientName());
+                flush();
+                expect(readExtensions(), 250);
+            } else {
+                command("HELLO " + config.getClientName());
+                flush();
+                expect(readReply(), 250);
+            }
+            start = completed(Phase.HELLO, start);
+            if (extended && config.isStartTls() && extensions.contains("STARTTLS")) {
+                startTls(server, config);
+                completed(Phase.TLS, start);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        pipelining = config.isPipelining() && extensions.contains("PIPELINING");
+        chunking = config.isChunking() && extensions.contains("CHUNKING");
+        declaringSize = extensions.contains("SIZE");
+    }
+
+    /**
+     * Upgrade the connection with STARTTLS, then greet the server again, since it forgets everything it was told in
+     * plain text and may advertise other extensions over TLS.
+     * @param server The address of the server, which identifies the sessions that can be resumed.
+     * @param config The settings of the client, which hold the TLS context.
+     * @throws IOException If the server refuses STARTTLS or the handshake fails.
+     */
+    private void startTls(InetSocketAddress server, ClientConfig config) throws IOException {
+        command("STARTTLS");
+        flush();
+        expect(readReply(), 220);
+
+        InputStream rawInput = socket.getInputStream();
+        OutputStream rawOutput = socket.getOutputStream();
+        TlsEngine engine = config.getTlsContext().newClientEngine(server.getHostString(), server.getPort(),
+                TlsEngine.HandshakeListener.NONE);
+        engine.handshake(rawInput, rawOutput);
+        input = new LineReader(engine.inputStream(rawInput, rawOutput));
+        output = new BufferedOutputStream(engine.outputStream(rawOutput), OUTPUT_BUFFER_SIZE);
+        secure = true;
+
+        extensions.clear();
+        command("EHLO " + config.getClientName());
+        flush();
+        expect(readExtensions(), 250);
+    }
+
+    /**
+     * Tell the listener that a step completed.
+     * @param phase The step.
+     * @param start The value of System.nanoTime() when the step started.
+     * @return The value of System.nanoTime() now, when the next step starts.
+     */
+    private long completed(Phase phase, long start) {
+        long now = System.nanoTime();
+        listener.completed(phase, now - start);
+        return now;
+    }
+
+    /**
+     * Check whether the server advertised an extension in its reply to EHLO; none is known after HELLO.
+     * @param extension The name of the extension, such as "PIPELINING".
+     * @return Whether the extension is supported.
+     */
+    public boolean supports(String extension) {
+        return extensions.contains(extension.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Check whether the connection was upgraded to TLS.
+     * @return Whether the connection is encrypted.
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Send an email and wait until the server has accepted it.
+     * @param envelope The sender and recipients of the email.
+     * @param body The email, with CRLF line endings; it is sent as it is, whichever command carries it.
+     * @return The recipients the server refused while accepting the email for the others, with its replies;
+     *         empty when every recipient was accepted.
+     * @throws SmtpException If the server refused the email, in which case the connection can still be used unless
+     *                       it is {@link #isBroken() broken}. When every recipient was refused, a transient refusal
+     *                       is reported over a permanent one.
+     * @throws IOException If the connection failed, in which case it must be closed.
+     */
+    public Map<String, SmtpException> send(Envelope envelope, byte[] body) throws IOException {
+        try {
+            Map<String, SmtpException> refusedRecipients = new LinkedHashMap<>();
+            if (pipelining) {
+                sendPipelined(envelope, body, refusedRecipients);
+            } else {
+                sendInTurn(envelope, body, refusedRecipients);
+            }
+            messagesSent++;
+            return refusedRecipients;
+        } catch (SmtpException e) {
+            // leave no half-finished email behind for the next one; if that fails, the replies may be out of step
+            // with the commands, so the connection must not be reused
+            try {
+                reset();
+            } catch (IOException resetFailure) {
+                broken = true;
+                e.addSuppressed(resetFailure);
+            }
+            throw e;
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        } finally {
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    /**
+     * Build the MAIL FROM command of an email, which announces its size when the server advertises SIZE, so an
+     * email that is too large is refused before it is transmitted.
+     * @param envelope The sender and recipients of the email.
+     * @param body The email.
+     * @return The command.
+     */
+    private String mailFrom(Envelope envelope, byte[] body) {
+        return mailFrom + envelope.sender() + (declaringSize ? "> SIZE=" + body.length : ">");
+    }
+
+    /**
+     * Write the whole envelope, and the email too with CHUNKING, then read every reply.
+     * @param envelope The sender and recipients of the email.
+     * @param body The email.
+     * @param refusedRecipients The map the refused recipients are added to, with the replies they got.
+     * @throws IOException
+     */
+    private void sendPipelined(Envelope envelope, byte[] body, Map<String, SmtpException> refusedRecipients)
+            throws IOException {
+        long start = System.nanoTime();
+        command(mailFrom(envelope, body));
+        for (String recipient : envelope.recipients()) {
+            command(rcptTo + recipient + ">");
+        }
+        if (chunking) {
+            command("BDAT " + body.length + " LAST");
+            output.write(body);
+        } else {
+            command("DATA");
+        }
+        flush();
+
+        // every reply must be read, even after a failure, to keep the replies in step with the commands
+        SmtpException refused = check(readReply(), 250, null);
+        Reply refusal = null;
+        int accepted = 0;
+        for (String recipient : envelope.recipients()) {
+            Reply reply = readReply();
+            if (reply.code() / 100 == 2) { // 251 forwards the email, which accepts it all the same
+                accepted++;
+            } else {
+                refusal = refuseRecipient(recipient, reply, refusal, refusedRecipients);
+            }
+        }
+        if (accepted == 0) {
+            refused = check(refusal, 250, refused); // only a failure once no recipient is left
+        }
+        start = completed(Phase.ENVELOPE, start);
+
+        Reply reply = readReply();
+        if (!chunking && reply.code() == 354) {
+            // the server is waiting for the email, and must be given the terminator even after a failure
+            start = completed(Phase.DATA, start);
+            writeStuffed(body);
+            flush();
+            reply = readReply();
+        }
+        refused = check(reply, 250, refused);
+        if (refused == null) {
+            completed(Phase.ACCEPTED, start);
+        }
+
+        if (refused != null) {
+            throw refused;
+        }
+    }
+
+    /**
+     * Send each command of the email once the previous one has been answered.
+     * @param envelope The sender and recipients of the email.
+     * @param body The email.
+     * @param refusedRecipients The map the refused recipients are added to, with the replies they got.
+     * @throws IOException
+     */
+    private void sendInTurn(Envelope envelope, byte[] body, Map<String, SmtpException> refusedRecipients)
+            throws IOException {
+        long start = System.nanoTime();
+        command(mailFrom(envelope, body));
+        flush();
+        expect(readReply(), 250);
+
+        Reply refusal = null;
+        int accepted = 0;
+        for (String recipient : envelope.recipients()) {
+            command(rcptTo + recipient + ">");
+            flush();
+            Reply reply = readReply();
+            if (reply.code() / 100 == 2) { // 251 forwards the email, which accepts it all the same
+                accepted++;
+            } else {
+                refusal = refuseRecipient(recipient, reply, refusal, refusedRecipients);
+            }
+        }
+        if (accepted == 0) {
+            expect(refusal, 250);
+        }
+        start = completed(Phase.ENVELOPE, start);
+
+        if (chunking) {
+            command("BDAT " + body.length + " LAST");
+            output.write(body);
+        } else {
+            command("DATA");
+            flush();
+            expect(readReply(), 354);
+            start = completed(Phase.DATA, start);
+            writeStuffed(body);
+        }
+        flush();
+        expect(readReply(), 250);
+        completed(Phase.ACCEPTED, start);
+    }
+
+    /**
+     * Remember that the server refused a recipient.
+     * @param recipient The recipient.
+     * @param reply The reply to its RCPT TO.
+     * @param refusal The refusal reported so far if every recipient is refused, or null.
+     * @param refusedRecipients The map of refused recipients.
+     * @return The refusal to report if every recipient is refused, which is transient if any of them was.
+     */
+    private static Reply refuseRecipient(String recipient, Reply reply, Reply refusal,
+            Map<String, SmtpException> refusedRecipients) {
+        refusedRecipients.put(recipient, new SmtpException(reply.code(), reply.text()));
+        return refusal != null && refusal.code() < 500 ? refusal : reply;
+    }
+
+    /**
+     * Write an email after DATA, doubling each dot that starts a line, and end it with the terminator.
+     * @param body The email.
+     * @throws IOException
+     */
+    private void writeStuffed(byte[] body) throws IOException {
+        int start = 0;
+        for (int i = 0; i < body.length; i++) {
+            if (body[i] == '.' && (i == 0 || body[i - 1] == '\n')) {
+                output.write(body, start, i - start);
+                output.write('.');
+                start = i;
+            }
+        }
+        output.write(body, start, body.length - start);
+        if (body.length > 0 && body[body.length - 1] != '\n') {
+            output.write('\r');
+            output.write('\n');
+        }
+        output.write(".\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Abandon the email that is being sent, if any.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        command("RSET");
+        flush();
+        expect(readReply(), 250);
+    }
+
+    /**
+     * Check that the server still answers on this connection, with NOOP.
+     * @return Whether the connection can be used.
+     */
+    public boolean isHealthy() {
+        if (broken || socket.isClosed()) {
+            return false;
+        }
+        try {
+            command("NOOP");
+            flush();
+            expect(readReply(), 250);
+            lastUsed = System.nanoTime();
+            return true;
+        } catch (IOException e) {
+            broken = true;
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the connection failed and must be closed rather than reused.
+     * @return Whether the connection is broken.
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Get when the connection was last used.
+     * @return The value of System.nanoTime() when the last command was answered.
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Get the number of emails sent over the connection.
+     * @return The number of emails accepted by the server.
+     */
+    public int getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * Say goodbye with QUIT if the connection still works, then close it.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!broken && !socket.isClosed()) {
+                command("QUIT");
+                flush();
+                readReply();
+            }
+        } catch (IOException e) {
+            // the connection is being closed anyway
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more can be done with a socket that fails to close
+            }
+        }
+    }
+
+    /**
+     * A reply from the server.
+     * @param code The reply code.
+     * @param text The last line of the reply.
+     */
+    private record Reply(int code, String text) {
+    }
+
+    /**
+     * Queue a command for the server; it is transmitted by the next flush.
+     * @param command The command, without a line terminator.
+     * @throws IOException
+     */
+    private void command(String command) throws IOException {
+        output.write((command + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Transmit the queued commands.
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Read a reply from the server, which spans several lines when every line but the last has a "-" after its code.
+     * @return The reply.
+     * @throws IOException
+     */
+    private Reply readReply() throws IOException {
+        return readReply(null);
+    }
+
+    /**
+     * Read the reply to EHLO and remember the extensions it lists.
+     * @return The reply.
+     * @throws IOException
+     */
+    private Reply readExtensions() throws IOException {
+        return readReply(extensions);
+    }
+
+    /**
+     * Read a reply from the server, optionally collecting the first word of every line but the first.
+     * @param words The set the words are added to, or null.
+     * @return The reply.
+     * @throws IOException
+     */
+    private Reply readReply(Set<String> words) throws IOException {
+        boolean first = true;
+        while (true) {
+            if (!input.readLine()) {
+                throw new EOFException("The server closed the connection");
+            }
+            String line = new String(input.getLine(), 0, input.getLineLength(), StandardCharsets.UTF_8);
+            if (line.length() < 3) {
+                throw new IOException("Malformed reply: " + line);
+            }
+            if (words != null && !first && line.length() > 4) {
+                words.add(line.substring(4).split(" ")[0].toUpperCase(Locale.ROOT));
+            }
+            first = false;
+            if (line.length() == 3 || line.charAt(3) != '-') {
+                try {
+                    return new Reply(Integer.parseInt(line.substring(0, 3)), line);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed reply: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail unless a reply has the expected code.
+     * @param reply The reply.
+     * @param code The expected code.
+     * @throws SmtpException If the reply has another code.
+     */
+    private static void expect(Reply reply, int code) throws SmtpException {
+        SmtpException refused = check(reply, code, null);
+        if (refused != null) {
+            throw refused;
+        }
+    }
+
+    /**
+     * Turn a reply without the expected code into an exception, keeping the first such exception.
+     * @param reply The reply.
+     * @param code The expected code.
+     * @param refused The exception of an earlier reply, or null.
+     * @return The earlier exception, or a new one if this reply has another code, or null.
+     */
+    private static SmtpException check(Reply reply, int code, SmtpException refused) {
+        if (refused != null || reply.code() == code) {
+            return refused;
+        }
+        return new SmtpException(reply.code(), reply.text());
+    }
+}
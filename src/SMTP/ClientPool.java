@@ -0,0 +1,191 @@
+package SMTP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class that sends emails for an application over a pool of established SMTP sessions.
+ * <p>
+ * Every server gets its own pool of at most {@link ClientConfig#getMaxConnections()} connections. An email is
+ * sent on a virtual thread over an idle connection when there is one, so the TCP handshake and the EHLO
+ * exchange are paid once per connection rather than once per email, and a new connection is only opened while
+ * the pool is below its limit. A connection that has been idle for a while is checked with NOOP before it is
+ * reused, and one that stays idle past the idle timeout is closed with QUIT in the background.
+ */
+public class ClientPool implements AutoCloseable {
+    private final ClientConfig config;
+    private final Map<InetSocketAddress, ServerPool> servers = new ConcurrentHashMap<>();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    /**
+     * The connections to a single server.
+     */
+    private class ServerPool {
+        private final InetSocketAddress address;
+        private final Deque<ClientConnection> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore permits = new Semaphore(config.getMaxConnections(), true);
+
+        /**
+         * Create an object of type ServerPool.
+         * @param address The address of the server.
+         */
+        ServerPool(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Send an email over a pooled connection, waiting for one to become free if the pool is at its limit.
+         * @param envelope The sender and recipients of the email.
+         * @param body The email.
+         * @return The recipients the server refused while accepting the email for the others, with its replies.
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        Map<String, SmtpException> send(Envelope envelope, byte[] body) throws IOException, InterruptedException {
+            permits.acquire();
+            ClientConnection connection = null;
+            try {
+                connection = borrow();
+                return connection.send(envelope, body);
+            } finally {
+                if (connection != null) {
+                    giveBack(connection);
+                }
+                permits.release();
+            }
+        }
+
+        /**
+         * Take the most recently used idle connection that still works, or open a new one.
+         * @return The connection.
+         * @throws IOException
+         */
+        private ClientConnection borrow() throws IOException {
+            long healthCheckNanos = TimeUnit.MILLISECONDS.toNanos(config.getHealthCheckMillis());
+            ClientConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (System.nanoTime() - connection.getLastUsed() < healthCheckNanos || connection.isHealthy()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return new ClientConnection(address, config);
+        }
+
+        /**
+         * Return a connection to the pool, or close it if it cannot or should not be reused.
+         * @param connection The connection.
+         */
+        private void giveBack(ClientConnection connection) {
+            int maxMessages = config.getMaxMessagesPerConnection();
+            if (closed || connection.isBroken()
+                    || maxMessages > 0 && connection.getMessagesSent() >= maxMessages) {
+                connection.close();
+            } else {
+                idle.addFirst(connection);
+            }
+        }
+
+        /**
+         * Close the idle connections that have not been used for longer than the idle timeout.
+         */
+        void evictIdle() {
+            long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+            // the least recently used connections are at the end of the deque
+            Iterator<ClientConnection> connections = idle.descendingIterator();
+            while (connections.hasNext()) {
+                ClientConnection connection = connections.next();
+                if (System.nanoTime() - connection.getLastUsed() >= idleTimeoutNanos && idle.remove(connection)) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Close every idle connection.
+         */
+        void closeIdle() {
+            ClientConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Create an object of type ClientPool.
+     * @param config The settings of the client.
+     */
+    public ClientPool(ClientConfig config) {
+        this.config = config;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-client-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, config.getIdleTimeoutMillis() / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send an email to a server without waiting for it.
+     * @param server The address of the server.
+     * @param envelope The sender and recipients of the email.
+     * @param body The email, with CRLF line endings.
+     * @return A future completed once the server has accepted the email, with the recipients it refused while
+     *         accepting the email for the others, or completed exceptionally with an SmtpException if it refused
+     *         the email, or another IOException if the connection failed.
+     */
+    public CompletableFuture<Map<String, SmtpException>> send(InetSocketAddress server, Envelope envelope,
+            byte[] body) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("The client pool is closed"));
+        }
+
+        ServerPool pool = servers.computeIfAbsent(server, ServerPool::new);
+        CompletableFuture<Map<String, SmtpException>> sent = new CompletableFuture<>();
+        senders.execute(() -> {
+            try {
+                sent.complete(pool.send(envelope, body));
+            } catch (Exception e) {
+                sent.completeExceptionally(e);
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Close the idle connections of every server that have not been used for longer than the idle timeout.
+     */
+    private void evictIdle() {
+        for (ServerPool pool : servers.values()) {
+            pool.evictIdle();
+        }
+    }
+
+    /**
+     * Wait for the emails that are being sent, then close every connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        senders.close();
+        for (ServerPool pool : servers.values()) {
+            pool.closeIdle();
+        }
+    }
+}
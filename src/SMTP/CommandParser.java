@@ -0,0 +1,408 @@
+package SMTP;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that recognizes SMTP commands directly in the bytes of a received line.
+ * <p>
+ * A parser belongs to a single session and is reused for each of its lines. Verbs are matched case-insensitively
+ * by packing their letters into an int and switching on it, and the domain, address and parameters of a command
+ * are exposed as offsets into the line rather than copied out of it, so parsing a command allocates nothing.
+ * Only the parts a session decides to keep are turned into strings, with {@link #argument()} and
+ * {@link #address()}.
+ */
+public class CommandParser {
+    /**
+     * The commands the parser recognizes.
+     */
+    public enum Verb {
+        HELO, EHLO, MAIL, RCPT, DATA, BDAT, RSET, NOOP, QUIT, STARTTLS, UNKNOWN
+    }
+
+    // the letters of each verb in lower case, packed into an int
+    private static final int HELO = 'h' << 24 | 'e' << 16 | 'l' << 8 | 'o';
+    private static final int HELL = 'h' << 24 | 'e' << 16 | 'l' << 8 | 'l'; // the start of HELLO
+    private static final int EHLO = 'e' << 24 | 'h' << 16 | 'l' << 8 | 'o';
+    private static final int MAIL = 'm' << 24 | 'a' << 16 | 'i' << 8 | 'l';
+    private static final int RCPT = 'r' << 24 | 'c' << 16 | 'p' << 8 | 't';
+    private static final int DATA = 'd' << 24 | 'a' << 16 | 't' << 8 | 'a';
+    private static final int BDAT = 'b' << 24 | 'd' << 16 | 'a' << 8 | 't';
+    private static final int RSET = 'r' << 24 | 's' << 16 | 'e' << 8 | 't';
+    private static final int NOOP = 'n' << 24 | 'o' << 16 | 'o' << 8 | 'p';
+    private static final int QUIT = 'q' << 24 | 'u' << 16 | 'i' << 8 | 't';
+    private static final int STAR = 's' << 24 | 't' << 16 | 'a' << 8 | 'r'; // the start of STARTTLS
+    private static final int TTLS = 't' << 24 | 't' << 16 | 'l' << 8 | 's'; // the end of STARTTLS
+    private static final byte[] FROM = "from:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TO = "to:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST = "last".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SIZE = "size=".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_SIZE_DIGITS = 18; // so a size always fits in a long
+
+    private byte[] line;
+    private Verb verb;
+    private boolean valid;
+    private int argumentOffset;
+    private int argumentLength;
+    private int addressOffset;
+    private int addressLength;
+    private int parametersOffset;
+    private int parametersLength;
+    private long chunkSize;
+    private boolean lastChunk;
+    private long declaredSize;
+
+    /**
+     * Parse a line received from the client. The line must not change while its parts are being read.
+     * @param line The bytes of the line, without its line terminator.
+     * @param length The number of bytes in the line.
+     * @return The verb of the command, or UNKNOWN if it is not one the parser recognizes.
+     */
+    public Verb parse(byte[] line, int length) {
+        this.line = line;
+        valid = true;
+        argumentOffset = argumentLength = addressOffset = addressLength = parametersOffset = parametersLength = 0;
+        chunkSize = 0;
+        lastChunk = false;
+        declaredSize = -1;
+
+        int end = trimEnd(line, 0, length);
+        int verbEnd = 0;
+        while (verbEnd < end && line[verbEnd] != ' ') {
+            verbEnd++;
+        }
+        verb = verbOf(line, verbEnd);
+
+        int argument = skipSpaces(line, verbEnd, end);
+        argumentOffset = argument;
+        argumentLength = end - argument;
+
+        switch (verb) {
+            case HELO, EHLO -> valid = argumentLength > 0;
+            case MAIL -> valid = parsePath(FROM, argument, end, true) && parseSize();
+            case RCPT -> valid = parsePath(TO, argument, end, false);
+            case BDAT -> valid = parseChunk(argument, end);
+            case STARTTLS -> valid = argumentLength == 0;
+            default -> {
+                // the remaining commands take no arguments that the server looks at
+            }
+        }
+        return verb;
+    }
+
+    /**
+     * Recognize the verb at the start of a line.
+     * @param line The bytes of the line.
+     * @param length The number of bytes in the verb.
+     * @return The verb.
+     */
+    private static Verb verbOf(byte[] line, int length) {
+        if (length != 4 && length != 5 && length != 8) {
+            return Verb.UNKNOWN;
+        }
+
+        int key = pack(line, 0);
+        if (length == 5) {
+            return key == HELL && (line[4] | 0x20) == 'o' ? Verb.HELO : Verb.UNKNOWN;
+        }
+        if (length == 8) {
+            return key == STAR && pack(line, 4) == TTLS ? Verb.STARTTLS : Verb.UNKNOWN;
+        }
+        return switch (key) {
+            case HELO -> Verb.HELO;
+            case EHLO -> Verb.EHLO;
+            case MAIL -> Verb.MAIL;
+            case RCPT -> Verb.RCPT;
+            case DATA -> Verb.DATA;
+            case BDAT -> Verb.BDAT;
+            case RSET -> Verb.RSET;
+            case NOOP -> Verb.NOOP;
+            case QUIT -> Verb.QUIT;
+            default -> Verb.UNKNOWN;
+        };
+    }
+
+    /**
+     * Pack four letters of a line into an int, in lower case.
+     * @param line The bytes of the line.
+     * @param offset The offset of the first letter.
+     * @return The packed letters.
+     */
+    private static int pack(byte[] line, int offset) {
+        // setting the 0x20 bit turns an upper-case letter into its lower-case form and leaves lower case alone
+        return (line[offset] | 0x20) << 24 | (line[offset + 1] | 0x20) << 16 | (line[offset + 2] | 0x20) << 8
+                | (line[offset + 3] | 0x20);
+    }
+
+    /**
+     * Parse the {@code FROM:<address> parameters} or {@code TO:<address> parameters} argument of MAIL or RCPT.
+     * The angle brackets may be left out, and spaces may follow the colon.
+     * @param keyword The keyword in lower case, including its colon.
+     * @param start The offset of the argument.
+     * @param end The offset just past the argument.
+     * @param allowEmpty Whether the address may be {@code <>}, as the null reverse-path of MAIL is.
+     * @return Whether the argument is well formed.
+     */
+    private boolean parsePath(byte[] keyword, int start, int end, boolean allowEmpty) {
+        if (end - start < keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if ((line[start + i] | 0x20) != keyword[i]) {
+                return false;
+            }
+        }
+
+        int position = skipSpaces(line, start + keyword.length, end);
+        int addressEnd;
+        boolean bracketed = position < end && line[position] == '<';
+        if (bracketed) {
+            addressOffset = position + 1;
+            addressEnd = addressOffset;
+            while (addressEnd < end && line[addressEnd] != '>') {
+                addressEnd++;
+            }
+            if (addressEnd == end) {
+                return false; // the closing bracket is missing
+            }
+            position = addressEnd + 1;
+        } else {
+            addressOffset = position;
+            addressEnd = position;
+            while (addressEnd < end && line[addressEnd] != ' ') {
+                addressEnd++;
+            }
+            position = addressEnd;
+        }
+        addressLength = addressEnd - addressOffset;
+
+        parametersOffset = skipSpaces(line, position, end);
+        parametersLength = end - parametersOffset;
+        if (parametersLength > 0 && parametersOffset == position) {
+            return false; // parameters must be separated from the address
+        }
+        // only the brackets make an empty address, so a bare FROM: is not taken for the null reverse-path
+        return addressLength > 0 || allowEmpty && bracketed;
+    }
+
+    /**
+     * Look for the {@code SIZE=n} parameter of MAIL among its parameters, ignoring any other.
+     * @return Whether the parameter is absent or well formed.
+     */
+    private boolean parseSize() {
+        int position = parametersOffset;
+        int end = parametersOffset + parametersLength;
+        while (position < end) {
+            int parameterEnd = position;
+            while (parameterEnd < end && line[parameterEnd] != ' ') {
+                parameterEnd++;
+            }
+            if (startsWith(SIZE, position, parameterEnd)) {
+                int digits = parameterEnd - position - SIZE.length;
+                if (digits == 0 || digits > MAX_SIZE_DIGITS) {
+                    return false;
+                }
+                declaredSize = 0;
+                for (int i = position + SIZE.length; i < parameterEnd; i++) {
+                    if (line[i] < '0' || line[i] > '9') {
+                        return false;
+                    }
+                    declaredSize = declaredSize * 10 + (line[i] - '0');
+                }
+            }
+            position = skipSpaces(line, parameterEnd, end);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a part of the line starts with a keyword, ignoring case.
+     * @param keyword The keyword in lower case.
+     * @param start The offset of the part.
+     * @param end The offset just past the part.
+     * @return Whether the part starts with the keyword.
+     */
+    private boolean startsWith(byte[] keyword, int start, int end) {
+        if (end - start < keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if ((line[start + i] | 0x20) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the {@code size [LAST]} argument of BDAT.
+     * @param start The offset of the argument.
+     * @param end The offset just past the argument.
+     * @return Whether the argument is well formed.
+     */
+    private boolean parseChunk(int start, int end) {
+        int position = start;
+        while (position < end && line[position] >= '0' && line[position] <= '9') {
+            chunkSize = chunkSize * 10 + (line[position] - '0');
+            position++;
+        }
+        int digits = position - start;
+        if (digits == 0 || digits > MAX_SIZE_DIGITS) {
+            return false;
+        }
+
+        position = skipSpaces(line, position, end);
+        if (position == end) {
+            return true;
+        }
+        if (position == start + digits || end - position != LAST.length) {
+            return false; // LAST must be separated from the size, and nothing may follow it
+        }
+        for (int i = 0; i < LAST.length; i++) {
+            if ((line[position + i] | 0x20) != LAST[i]) {
+                return false;
+            }
+        }
+        lastChunk = true;
+        return true;
+    }
+
+    /**
+     * Find the first byte that is not a space.
+     * @param line The bytes of the line.
+     * @param from The offset to start at.
+     * @param end The offset to stop at.
+     * @return The offset of the first byte that is not a space, or end.
+     */
+    private static int skipSpaces(byte[] line, int from, int end) {
+        while (from < end && line[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Find the end of a line without its trailing spaces.
+     * @param line The bytes of the line.
+     * @param start The offset to stop at.
+     * @param end The offset just past the line.
+     * @return The offset just past the last byte that is not a space.
+     */
+    private static int trimEnd(byte[] line, int start, int end) {
+        while (end > start && line[end - 1] == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Get the verb of the last line parsed.
+     * @return The verb.
+     */
+    public Verb getVerb() {
+        return verb;
+    }
+
+    /**
+     * Check whether the arguments of the last line parsed are well formed for its verb.
+     * @return Whether the arguments are well formed.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Get the bytes of the last line parsed, which the offsets refer to.
+     * @return The bytes of the line.
+     */
+    public byte[] getLine() {
+        return line;
+    }
+
+    /**
+     * Get the offset of everything after the verb, such as the domain of HELO and EHLO.
+     * @return The offset of the argument.
+     */
+    public int getArgumentOffset() {
+        return argumentOffset;
+    }
+
+    /**
+     * Get the length of everything after the verb, without surrounding spaces.
+     * @return The length of the argument.
+     */
+    public int getArgumentLength() {
+        return argumentLength;
+    }
+
+    /**
+     * Get the offset of the address of MAIL or RCPT, without its angle brackets.
+     * @return The offset of the address.
+     */
+    public int getAddressOffset() {
+        return addressOffset;
+    }
+
+    /**
+     * Get the length of the address of MAIL or RCPT, without its angle brackets.
+     * @return The length of the address.
+     */
+    public int getAddressLength() {
+        return addressLength;
+    }
+
+    /**
+     * Get the offset of the parameters that follow the address of MAIL or RCPT, such as {@code SIZE=1000}.
+     * @return The offset of the parameters.
+     */
+    public int getParametersOffset() {
+        return parametersOffset;
+    }
+
+    /**
+     * Get the length of the parameters that follow the address of MAIL or RCPT.
+     * @return The length of the parameters, 0 if there are none.
+     */
+    public int getParametersLength() {
+        return parametersLength;
+    }
+
+    /**
+     * Get the number of bytes announced by the last BDAT parsed.
+     * @return The size of the chunk.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Check whether the last BDAT parsed announced the final chunk of the email.
+     * @return Whether the chunk is the last one.
+     */
+    public boolean isLastChunk() {
+        return lastChunk;
+    }
+
+    /**
+     * Get the size of the email announced by the {@code SIZE=n} parameter of the last MAIL parsed.
+     * @return The size in bytes, or -1 if the parameter was absent.
+     */
+    public long getDeclaredSize() {
+        return declaredSize;
+    }
+
+    /**
+     * Copy everything after the verb of the last line parsed into a string.
+     * @return The argument.
+     */
+    public String argument() {
+        return new String(line, argumentOffset, argumentLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy the address of the last MAIL or RCPT parsed into a string.
+     * @return The address, without its angle brackets.
+     */
+    public String address() {
+        return new String(line, addressOffset, addressLength, StandardCharsets.UTF_8);
+    }
+}
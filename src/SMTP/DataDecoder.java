@@ -0,0 +1,185 @@
+package SMTP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Class that extracts the body of an email from the raw bytes that follow a DATA command.
+ * <p>
+ * The body is never decoded or split into lines: the bytes are scanned for line feeds eight at a time, runs of
+ * ordinary lines are copied to the message buffer in bulk, and only a line that starts with a dot is looked at
+ * more closely, to remove the dot added by the client's dot-stuffing or to recognize the {@code <CRLF>.<CRLF>}
+ * terminator. Every other octet reaches storage unmodified, line endings and 8-bit content included.
+ * A decoder keeps its state between calls, so the body may arrive in pieces of any size. It can also discard the
+ * body of an email that has been refused while still finding its end, so the session can carry on after it.
+ * <p>
+ * Only a line feed that follows a carriage return ends a line. A bare line feed is body data, so a dot after it is
+ * kept and {@code <LF>.<LF>} or {@code <LF>.<CRLF>} never ends the body: a server that accepted them would parse
+ * whatever follows as new commands of the session, which is how SMTP smuggling slips a second email past the
+ * checks of the hosts in front of it.
+ */
+public class DataDecoder {
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * Where the decoder stands in the body.
+     */
+    private enum State {
+        /** At the start of a line. */
+        LINE_START,
+        /** Inside a line that does not start with a dot. */
+        MIDDLE,
+        /** Just after a dot at the start of a line, which is not part of the body unless a bare line feed follows. */
+        DOT,
+        /** Just after a dot and a carriage return at the start of a line. */
+        DOT_CR
+    }
+
+    private State state = State.LINE_START;
+    private boolean afterCr; // whether the last byte copied in the middle of a line was a carriage return
+
+    /**
+     * Prepare the decoder for the body of the next email.
+     */
+    public void reset() {
+        state = State.LINE_START;
+        afterCr = false;
+    }
+
+    /**
+     * Copy the body bytes of a buffer to a message buffer, up to and including the terminator.
+     * @param in The received bytes, from their position to their limit; the position is advanced past the bytes
+     *           that were consumed, so anything after the terminator is left for the next command.
+     * @param out The message buffer the body is collected in, or null to drop the body.
+     * @return Whether the terminator was reached.
+     * @throws IOException
+     */
+    public boolean decode(ByteBuffer in, MessageBuffer out) throws IOException {
+        while (in.hasRemaining()) {
+            int position = in.position();
+            switch (state) {
+                case LINE_START -> {
+                    if (in.get(position) == '.') {
+                        in.position(position + 1);
+                        state = State.DOT;
+                    } else {
+                        state = State.MIDDLE;
+                    }
+                    afterCr = false;
+                }
+                case MIDDLE -> copyLines(in, out);
+                case DOT -> {
+                    byte b = in.get(position);
+                    if (b == '\r') {
+                        in.position(position + 1);
+                        state = State.DOT_CR;
+                    } else if (b == '\n') {
+                        // a dot alone before a bare line feed is body data, not a terminator
+                        if (out != null) {
+                            out.write('.');
+                        }
+                        state = State.MIDDLE;
+                    } else {
+                        state = State.MIDDLE; // a stuffed dot, which is dropped
+                    }
+                }
+                case DOT_CR -> {
+                    if (in.get(position) == '\n') {
+                        in.position(position + 1);
+                        return true;
+                    }
+                    if (out != null) {
+                        out.write('\r');
+                    }
+                    afterCr = true;
+                    state = State.MIDDLE;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy every byte up to the next line that starts with a dot, or to the end of the buffer, in one go. A line
+     * feed without a carriage return before it does not start a line.
+     * @param in The received bytes.
+     * @param out The message buffer, or null to drop the bytes.
+     * @throws IOException
+     */
+    private void copyLines(ByteBuffer in, MessageBuffer out) throws IOException {
+        int start = in.position();
+        int limit = in.limit();
+        int from = start;
+        while (true) {
+            int newline = indexOfNewline(in, from, limit);
+            if (newline < 0) {
+                write(out, in, start, limit - start);
+                in.position(limit);
+                afterCr = in.get(limit - 1) == '\r';
+                return;
+            }
+            // the carriage return may have come at the end of the previous piece
+            boolean crlf = newline > start ? in.get(newline - 1) == '\r' : afterCr;
+            if (!crlf) {
+                from = newline + 1;
+                continue;
+            }
+            if (newline + 1 == limit) {
+                write(out, in, start, limit - start);
+                in.position(limit);
+                state = State.LINE_START;
+                return;
+            }
+            if (in.get(newline + 1) == '.') {
+                write(out, in, start, newline + 1 - start);
+                in.position(newline + 2);
+                state = State.DOT;
+                return;
+            }
+            from = newline + 1;
+        }
+    }
+
+    /**
+     * Copy bytes of the body to the message buffer, unless the body is dropped.
+     * @param out The message buffer, or null.
+     * @param in The received bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @throws IOException
+     */
+    private static void write(MessageBuffer out, ByteBuffer in, int offset, int length) throws IOException {
+        if (out != null) {
+            out.write(in, offset, length);
+        }
+    }
+
+    /**
+     * Find the next line feed, testing eight bytes at a time.
+     * @param in The bytes.
+     * @param from The index to start at.
+     * @param limit The index to stop at.
+     * @return The index of the line feed, or -1 if there is none.
+     */
+    private static int indexOfNewline(ByteBuffer in, int from, int limit) {
+        boolean bigEndian = in.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            // turn line feeds into zero bytes, then set the high bit of exactly those bytes
+            long word = in.getLong(i) ^ NEWLINES;
+            long found = ~((word & LOW_BITS) + LOW_BITS | word | LOW_BITS);
+            if (found != 0) {
+                int bits = bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found);
+                return i + (bits >>> 3);
+            }
+        }
+        for (; i < limit; i++) {
+            if (in.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
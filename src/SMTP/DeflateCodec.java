@@ -0,0 +1,114 @@
+package SMTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Class that compresses the bodies of emails with the Deflate codec of the JDK. The native memory of every
+ * deflater and inflater is released as soon as its stream is closed, rather than when it is garbage collected.
+ */
+public class DeflateCodec implements MessageCodec {
+    public static final int ID = 1;
+    public static final String NAME = "deflate";
+    public static final int DEFAULT_LEVEL = 6;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int level;
+
+    /**
+     * Create an object of type DeflateCodec.
+     * @param level The compression level, from 1 for the fastest to 9 for the smallest.
+     */
+    public DeflateCodec(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    /**
+     * Get the identifier held by the records written with the codec.
+     * @return The identifier.
+     */
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    /**
+     * Get the name of the codec.
+     * @return The name.
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Get the compression level.
+     * @return The level, from 1 to 9.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Open a stream that deflates the bytes written to it.
+     * @param out The stream the compressed bytes are written to.
+     * @return The stream, which finishes the compressed bytes when closed but leaves the given stream open.
+     */
+    @Override
+    public OutputStream compress(OutputStream out) {
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            private boolean closed;
+
+            /**
+             * Finish the compressed bytes and release the deflater.
+             * @throws IOException
+             */
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    finish();
+                    out.flush();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Open a stream that inflates the bytes read from another.
+     * @param in The stream the compressed bytes are read from.
+     * @return The stream, which closes the given stream when closed.
+     */
+    @Override
+    public InputStream decompress(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            /**
+             * Close the stream and release the inflater.
+             * @throws IOException
+             */
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
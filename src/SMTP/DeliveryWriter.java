@@ -0,0 +1,456 @@
+package SMTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class that writes the emails of every session to the mailbox store with group commits.
+ * <p>
+ * A single writer thread takes the emails that are waiting, keeps collecting more for a short window, appends
+ * them all to the store and forces them to disk with one fsync, and only then indexes them and completes their
+ * futures. A session therefore acknowledges an email only once it is durable, while the cost of the fsync is
+ * shared by every email in the batch. The body of an email is written once whatever the number of recipients,
+ * and the index entries of a batch are grouped by lock stripe and written in parallel. A batch whose fsync fails
+ * is discarded from the store before its emails are reported as failed. An email is only reported as failed
+ * when none of its index entries could be written: once one recipient has it, the client must not send it again,
+ * so a recipient whose entry failed is logged instead.
+ * <p>
+ * With a compression codec configured, the body of an email that is large enough is compressed by a pool of
+ * threads of its own before it joins the queue, so neither the session nor the writer spends any time on it. A
+ * body that does not get smaller is stored raw, as is any body below the threshold.
+ * <p>
+ * With deduplication enabled, the text of a body large enough is instead kept in the blob store under the hash
+ * computed while it was received, by the same pool of threads: only the first copy of a text is written there,
+ * and every copy appends a record that holds its own header section and refers to the blob. The references a
+ * delivery took are released if it fails.
+ */
+public class DeliveryWriter implements Runnable {
+    private final MailboxStore store;
+    private final RelayQueue relay; // null unless recipients in other domains are relayed
+    private final ServerMetrics metrics;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService indexers;
+    private final MessageCodec codec; // null unless bodies are compressed
+    private final long compressionThreshold;
+    private final ExecutorService compressors; // null unless bodies are compressed or deduplicated
+    private final BlobStore blobs;
+    private final boolean dedup;
+    private final long dedupThreshold;
+    private final int spillThreshold;
+    private final Path spoolDirectory;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * What became of the body of an email when compression is enabled.
+     */
+    public enum Compression {
+        COMPRESSED,
+        SMALL,
+        INCOMPRESSIBLE
+    }
+
+    /**
+     * An email waiting to be written.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param email The body of the email.
+     * @param compressed The compressed body of the email, or null if it is stored raw.
+     * @param blob The blob holding the body of the email, or null if the body is stored in the segment.
+     * @param done Completed once the email is durable and indexed.
+     */
+    private record Delivery(String sender, List<String> recipients, MessageBuffer email, MessageBuffer compressed,
+            BlobStore.Blob blob, CompletableFuture<Void> done) {
+    }
+
+    /**
+     * An index entry to be written for one recipient of an appended email.
+     * @param recipient The recipient.
+     * @param appended The location of the email.
+     * @param delivery The email.
+     * @param indexing How the indexing of the email is going, shared by every entry of the email.
+     */
+    private record Entry(String recipient, MailboxStore.Appended appended, Delivery delivery, Indexing indexing) {
+    }
+
+    /**
+     * How the index entries of one email fared, updated by the indexing tasks of every stripe.
+     * @param written The number of entries written.
+     * @param failure The first failure to write an entry, or null while there has been none.
+     */
+    private record Indexing(AtomicInteger written, AtomicReference<Throwable> failure) {
+    }
+
+    /**
+     * Create an object of type DeliveryWriter.
+     * @param store The store the emails are written to.
+     * @param relay The queue the emails of recipients in other domains are relayed with, or null to store the
+     *              emails of every recipient.
+     * @param config The settings of the server.
+     * @param metrics The metrics the latency of the store and the compression and deduplication of bodies are
+     *                recorded in.
+     */
+    public DeliveryWriter(MailboxStore store, RelayQueue relay, ServerConfig config, ServerMetrics metrics) {
+        this.store = store;
+        this.relay = relay;
+        this.metrics = metrics;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(config.getGroupCommitMicros());
+        this.maxBatch = config.getGroupCommitMaxBatch();
+        this.indexers = Executors.newFixedThreadPool(config.getIndexThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "smtp-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.codec = config.getCompressionCodec();
+        this.compressionThreshold = config.getCompressionThresholdBytes();
+        this.spillThreshold = config.getSpillThresholdBytes();
+        this.spoolDirectory = config.getSpoolDirectory();
+        this.blobs = store.getBlobs();
+        this.dedup = config.isDedup();
+        this.dedupThreshold = config.getDedupThresholdBytes();
+        this.compressors = codec == null && !dedup ? null
+                : Executors.newFixedThreadPool(config.getCompressionThreads(), runnable -> {
+                    Thread thread = new Thread(runnable, "smtp-compressor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "smtp-delivery-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Check whether a recipient is in another domain, so its emails are relayed rather than stored.
+     * @param recipient The email address of the recipient.
+     * @return Whether the recipient is relayed; none is without a relay.
+     */
+    public boolean isRelayed(String recipient) {
+        return relay != null && !relay.isLocal(recipient);
+    }
+
+    /**
+     * Queue an email to be written, and spool it for the recipients in other domains if there is a relay. The
+     * buffer must not be reused until the returned future has completed.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param trace The {@code Received} header added to the email for the recipients in other domains, with its
+     *              line terminator.
+     * @param email The body of the email.
+     * @return A future completed once the email is durable, or completed exceptionally if it could not be saved.
+     */
+    public CompletableFuture<Void> deliver(String sender, List<String> recipients, String trace,
+            MessageBuffer email) {
+        List<String> local = recipients;
+        CompletableFuture<Void> relayed = null;
+        if (relay != null) {
+            local = new ArrayList<>(recipients.size());
+            List<String> remote = new ArrayList<>();
+            for (String recipient : recipients) {
+                (relay.isLocal(recipient) ? local : remote).add(recipient);
+            }
+            if (!remote.isEmpty()) {
+                relayed = relay.enqueue(sender, remote, trace, email);
+            }
+            if (local.isEmpty()) {
+                return relayed;
+            }
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        List<String> stored = List.copyOf(local);
+        if (dedup && email.length() >= dedupThreshold && email.hash() != null) {
+            compressors.execute(() -> queue.add(storeBlob(sender, stored, email, done)));
+        } else if (codec != null && email.length() >= compressionThreshold) {
+            compressors.execute(() -> queue.add(compress(sender, stored, email, done)));
+        } else {
+            if (codec != null) {
+                metrics.recordCompression(Compression.SMALL, email.length(), email.length(), 0);
+            }
+            queue.add(new Delivery(sender, stored, email, null, null, done));
+        }
+        return relayed == null ? done : CompletableFuture.allOf(done, relayed);
+    }
+
+    /**
+     * Compress the body of an email on a compression thread, recording the CPU time it took. The body is stored
+     * raw if the codec fails in any way.
+     * @param sender The sender of the email.
+     * @param recipients The recipients the email is stored for.
+     * @param email The body of the email.
+     * @param done Completed once the email is durable and indexed.
+     * @return The email to be written, with its compressed body unless compressing it did not pay off.
+     */
+    private Delivery compress(String sender, List<String> recipients, MessageBuffer email,
+            CompletableFuture<Void> done) {
+        MessageBuffer compressed = new MessageBuffer(spillThreshold, spoolDirectory);
+        long start = threads.getCurrentThreadCpuTime();
+        try {
+            try (InputStream in = email.openStream(); OutputStream out = codec.compress(compressed)) {
+                in.transferTo(out);
+            }
+            long cpuNanos = threads.getCurrentThreadCpuTime() - start;
+            if (compressed.length() < email.length()) {
+                metrics.recordCompression(Compression.COMPRESSED, email.length(), compressed.length(), cpuNanos);
+                return new Delivery(sender, recipients, email, compressed, null, done);
+            }
+            metrics.recordCompression(Compression.INCOMPRESSIBLE, email.length(), email.length(), cpuNanos);
+        } catch (IOException | RuntimeException e) {
+            // a codec is pluggable, so whatever it throws must still leave the email on its way to the writer
+            Log.warn("Could not compress an email, so it is stored raw: " + e);
+        }
+        release(compressed);
+        return new Delivery(sender, recipients, email, null, null, done);
+    }
+
+    /**
+     * Keep the text of an email in the blob store on a compression thread, taking a reference to the blob for
+     * every recipient. The blob is only written, and compressed with the codec if there is one, if no earlier
+     * email had the same text. The blob store or the codec failing in any way leaves the email in the segment.
+     * @param sender The sender of the email.
+     * @param recipients The recipients the email is stored for.
+     * @param email The body of the email, which has been hashed.
+     * @param done Completed once the email is durable and indexed.
+     * @return The email to be written, referring to its blob unless the blob could not be written.
+     */
+    private Delivery storeBlob(String sender, List<String> recipients, MessageBuffer email,
+            CompletableFuture<Void> done) {
+        try {
+            BlobStore.Blob blob = blobs.store(email, codec, recipients.size());
+            metrics.recordDedup(blob.written(), blob.rawLength());
+            return new Delivery(sender, recipients, email, null, blob, done);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Could not keep an email in the blob store, so it is stored in the segment: " + e);
+            return new Delivery(sender, recipients, email, null, null, done);
+        }
+    }
+
+    /**
+     * Primary method used to collect batches of emails and commit them. A batch that fails in an unexpected way is
+     * failed as a whole, and the writer carries on with the next one, since no email could be saved without it.
+     */
+    @Override
+    public void run() {
+        List<Delivery> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                collect(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException | Error e) {
+                Log.error("Could not write a batch of " + batch.size() + " emails: " + e);
+                // the blob references are kept, since an entry may hold one; they are counted again on restart
+                for (Delivery delivery : batch) {
+                    delivery.done().completeExceptionally(e); // a no-op for an email that was already completed
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Wait for an email, then gather more until the window closes or the batch is full.
+     * @param batch The list the emails are gathered in.
+     * @throws InterruptedException
+     */
+    private void collect(List<Delivery> batch) throws InterruptedException {
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - batch.size());
+
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch) {
+            long remaining = deadline - System.nanoTime();
+            Delivery delivery = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (delivery == null) {
+                return;
+            }
+            batch.add(delivery);
+            queue.drainTo(batch, maxBatch - batch.size());
+        }
+    }
+
+    /**
+     * Append a batch of emails, force them to disk together, then index them and complete their futures.
+     * @param batch The emails.
+     */
+    private void commit(List<Delivery> batch) {
+        try {
+            write(batch);
+        } finally {
+            for (Delivery delivery : batch) {
+                release(delivery.compressed());
+            }
+        }
+    }
+
+    /**
+     * Write a batch of emails and complete their futures, whether or not they could be saved.
+     * @param batch The emails.
+     */
+    private void write(List<Delivery> batch) {
+        List<Delivery> appended = new ArrayList<>(batch.size());
+        List<MailboxStore.Appended> locations = new ArrayList<>(batch.size());
+
+        for (Delivery delivery : batch) {
+            try {
+                long start = System.nanoTime();
+                if (delivery.blob() != null) {
+                    locations.add(store.appendReference(delivery.sender(), delivery.recipients(), delivery.email(),
+                            delivery.blob()));
+                } else if (delivery.compressed() != null) {
+                    locations.add(store.append(delivery.sender(), delivery.recipients(), delivery.compressed(), codec,
+                            delivery.email().length()));
+                } else {
+                    locations.add(store.append(delivery.sender(), delivery.recipients(), delivery.email()));
+                }
+                metrics.recordStorageWrite(System.nanoTime() - start);
+                appended.add(delivery);
+            } catch (IOException e) {
+                releaseBlob(delivery, delivery.recipients().size());
+                delivery.done().completeExceptionally(e);
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            store.sync();
+            metrics.recordStorageSync(System.nanoTime() - start, appended.size());
+        } catch (IOException e) {
+            // the records must go, or recovery would index emails whose clients are told they failed
+            if (!locations.isEmpty()) {
+                try {
+                    store.discard(locations.get(0));
+                } catch (IOException discardFailure) {
+                    Log.error("Could not discard emails that failed to sync, so the mailbox store stopped: "
+                            + discardFailure.getMessage());
+                }
+            }
+            for (Delivery delivery : appended) {
+                releaseBlob(delivery, delivery.recipients().size());
+                delivery.done().completeExceptionally(e);
+            }
+            return;
+        }
+
+        index(appended, locations);
+        for (Delivery delivery : appended) {
+            delivery.done().complete(null); // a no-op for an email whose indexing failed
+        }
+
+        try {
+            store.rollIfNeeded();
+        } catch (IOException e) {
+            Log.error("Could not start a new mailbox segment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Discard a compressed body that is no longer needed, deleting any spill file.
+     * @param compressed The compressed body, or null.
+     */
+    private static void release(MessageBuffer compressed) {
+        if (compressed == null) {
+            return;
+        }
+        try {
+            compressed.close();
+        } catch (IOException e) {
+            Log.warn("Could not discard a compressed email: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release references to the blob of an email that will not be indexed for some of its recipients.
+     * @param delivery The email.
+     * @param count The number of recipients it will not be indexed for.
+     */
+    private void releaseBlob(Delivery delivery, int count) {
+        if (delivery.blob() != null) {
+            blobs.release(delivery.blob().key(), count);
+        }
+    }
+
+    /**
+     * Write the index entries of every recipient of the appended emails, one task per lock stripe.
+     * An email none of whose entries could be written is completed exceptionally; one that reached some of its
+     * recipients is left to be completed normally, since failing it would have the client send it to them again.
+     * @param appended The emails.
+     * @param locations The locations of the emails, in the same order.
+     */
+    private void index(List<Delivery> appended, List<MailboxStore.Appended> locations) {
+        Map<Integer, List<Entry>> stripes = new TreeMap<>();
+        List<Indexing> outcomes = new ArrayList<>(appended.size());
+        for (int i = 0; i < appended.size(); i++) {
+            Indexing indexing = new Indexing(new AtomicInteger(), new AtomicReference<>());
+            outcomes.add(indexing);
+            for (String recipient : appended.get(i).recipients()) {
+                stripes.computeIfAbsent(store.stripeOf(recipient), stripe -> new ArrayList<>())
+                        .add(new Entry(recipient, locations.get(i), appended.get(i), indexing));
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(stripes.size());
+        for (List<Entry> entries : stripes.values()) {
+            tasks.add(() -> {
+                for (Entry entry : entries) {
+                    try {
+                        store.index(entry.recipient(), entry.appended());
+                        entry.indexing().written().incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        // invokeAll keeps what a task throws to itself, so every failure is reported here
+                        Log.error("Could not index an email of " + entry.delivery().sender() + " for "
+                                + entry.recipient() + ": " + e);
+                        releaseBlob(entry.delivery(), 1);
+                        entry.indexing().failure().compareAndSet(null, e);
+                    }
+                }
+                return null;
+            });
+        }
+
+        // a single stripe gains nothing from another thread
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).call();
+            } else {
+                indexers.invokeAll(tasks);
+            }
+        } catch (Exception e) {
+            for (Delivery delivery : appended) {
+                delivery.done().completeExceptionally(e);
+            }
+        }
+
+        for (int i = 0; i < appended.size(); i++) {
+            Indexing indexing = outcomes.get(i);
+            if (indexing.written().get() == 0 && indexing.failure().get() != null) {
+                appended.get(i).done().completeExceptionally(indexing.failure().get());
+            }
+        }
+    }
+}
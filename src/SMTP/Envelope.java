@@ -0,0 +1,32 @@
+package SMTP;
+
+import java.util.List;
+
+/**
+ * The sender and recipients of an email, as announced with MAIL FROM and RCPT TO.
+ * @param sender The email address of the sender, which may be empty for a bounce.
+ * @param recipients The email addresses of the recipients.
+ */
+public record Envelope(String sender, List<String> recipients) {
+    /**
+     * Create an object of type Envelope.
+     * @param sender The email address of the sender, which may be empty for a bounce.
+     * @param recipients The email addresses of the recipients, at least one.
+     */
+    public Envelope {
+        if (recipients.isEmpty()) {
+            throw new IllegalArgumentException("An envelope needs at least one recipient");
+        }
+        recipients = List.copyOf(recipients);
+    }
+
+    /**
+     * Create an object of type Envelope for a single recipient.
+     * @param sender The email address of the sender.
+     * @param recipient The email address of the recipient.
+     * @return The envelope.
+     */
+    public static Envelope of(String sender, String recipient) {
+        return new Envelope(sender, List.of(recipient));
+    }
+}
@@ -0,0 +1,140 @@
+package SMTP;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that records values such as latencies or sizes from many threads and reports their percentiles, in the
+ * manner of HdrHistogram.
+ * <p>
+ * Every power of two is split into 64 equal buckets, so a recorded value is known to within about 1.6% whatever
+ * its magnitude, in a fixed array of counters. Recording a value is a few shifts and one atomic increment, and
+ * never allocates, so the histogram can sit on the path being measured. The counters are striped by thread, up to
+ * one stripe per processor, so that threads recording the same value at the same time do not fight over one
+ * counter; the stripes are only added up when the histogram is read.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below 2 * SUB_BUCKETS are counted exactly, larger ones keep their top SUB_BUCKET_BITS + 1 bits
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 8;
+    private static final int STRIPES = Math.min(MAX_STRIPES,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Create an object of type Histogram with no value recorded.
+     */
+    public Histogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Record a value.
+     * @param value The value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        stripes[stripe].incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Find the bucket a value is counted in.
+     * @param value The value, not negative.
+     * @return The index of the bucket.
+     */
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Find the smallest value counted in a bucket.
+     * @param index The index of the bucket.
+     * @return The smallest value of the bucket.
+     */
+    private static long lowestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Get the number of values recorded.
+     * @return The count.
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     * @return The sum.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     * @return The mean, 0 if no value was recorded.
+     */
+    public long getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * Get the largest value recorded.
+     * @return The maximum.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value that a given share of the recorded values do not exceed.
+     * @param percentile The share, between 0 and 100, such as 99.9.
+     * @return The value, as the middle of its bucket, or 0 if no value was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray stripe : stripes) {
+                seen += stripe.get(i);
+            }
+            if (seen >= rank) {
+                long low = lowestValueOf(i);
+                long high = i + 1 < BUCKETS ? lowestValueOf(i + 1) : Long.MAX_VALUE;
+                return Math.min(low + (high - low) / 2, getMax());
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,170 @@
+package SMTP;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class that looks up the host names of client addresses in the background and remembers them for a while.
+ * <p>
+ * A reverse lookup can take seconds when a resolver is slow or unreachable, so no thread that accepts or serves
+ * clients ever waits for one: a lookup is started when a client connects, and a session uses the bare IP address
+ * until the name is known. Addresses without a name are remembered too, for a shorter time, so a client that
+ * keeps reconnecting does not keep the lookup threads busy.
+ * <p>
+ * Both the cache and the lookups are bounded. The cache is split into stripes, each an LRU map with its own lock,
+ * so a new address evicts the least recently seen one of its stripe, whether or not its lookup has completed,
+ * instead of scanning every address. Lookups wait in a queue of fixed size, and a client that connects while it
+ * is full is known by its IP address alone, so a flood of new addresses against a slow resolver costs neither
+ * memory nor time on the accepting thread.
+ */
+public class HostResolver {
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final ExecutorService lookups;
+
+    /**
+     * The host name of an address, or the lookup that will provide it.
+     * @param name The lookup, completed with the host name, or with null if the address has none.
+     * @param expiresAt The value of System.nanoTime() after which the entry must be looked up again, once the
+     *                  lookup has completed.
+     */
+    private record Entry(CompletableFuture<String> name, long expiresAt) {
+    }
+
+    /**
+     * A part of the cache, kept in the order the addresses were last seen and forgetting the oldest once full.
+     */
+    private static final class Stripe extends LinkedHashMap<InetAddress, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        /**
+         * Create an object of type Stripe.
+         * @param capacity The number of addresses the stripe remembers.
+         */
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /**
+         * Forget the least recently seen address once the stripe is over its capacity.
+         * @param eldest The least recently seen address.
+         * @return Whether to forget it.
+         */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Create an object of type HostResolver.
+     * @param config The settings of the server.
+     */
+    public HostResolver(ServerConfig config) {
+        int capacity = Math.max(1, config.getResolverCacheSize() / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(config.getResolverTtlSeconds());
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(config.getResolverNegativeTtlSeconds());
+        this.lookups = new ThreadPoolExecutor(config.getResolverThreads(), config.getResolverThreads(), 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getResolverQueueSize()), runnable -> {
+                    Thread thread = new Thread(runnable, "smtp-resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Start looking up the host name of an address, unless it is already known or being looked up.
+     * @param address The address.
+     * @return The lookup, completed with the host name, or with null if the address has none or the lookup queue
+     *         is full.
+     */
+    public CompletableFuture<String> resolve(InetAddress address) {
+        long now = System.nanoTime();
+        Stripe stripe = stripe(address);
+        Entry started;
+        synchronized (stripe) {
+            Entry entry = stripe.get(address);
+            if (entry != null && (!entry.name().isDone() || now - entry.expiresAt() < 0)) {
+                return entry.name();
+            }
+            started = new Entry(new CompletableFuture<>(), now);
+            stripe.put(address, started);
+        }
+
+        try {
+            lookups.execute(() -> lookUp(address, started));
+        } catch (RejectedExecutionException e) {
+            // the resolver is falling behind, so the address is neither looked up nor remembered
+            synchronized (stripe) {
+                stripe.remove(address, started);
+            }
+            started.name().complete(null);
+        }
+        return started.name();
+    }
+
+    /**
+     * Get the host name of an address if it is already known, without waiting for a lookup.
+     * @param address The address.
+     * @return The host name, or null if it is not known yet or the address has none.
+     */
+    public String lookup(InetAddress address) {
+        Stripe stripe = stripe(address);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(address);
+        }
+        return entry == null ? null : entry.name().getNow(null);
+    }
+
+    /**
+     * Look up the host name of an address on a resolver thread and remember the outcome, unless the address has
+     * been forgotten in the meantime.
+     * @param address The address.
+     * @param started The entry of the lookup.
+     */
+    private void lookUp(InetAddress address, Entry started) {
+        String name;
+        try {
+            // a fresh object, so the lookup is not served from the name cached inside the socket's address
+            name = InetAddress.getByAddress(address.getAddress()).getHostName();
+            if (name.equals(address.getHostAddress())) {
+                name = null; // the address has no name
+            }
+        } catch (Exception e) {
+            name = null;
+        }
+
+        long ttl = name == null ? negativeTtlNanos : ttlNanos;
+        Stripe stripe = stripe(address);
+        synchronized (stripe) {
+            stripe.replace(address, started, new Entry(started.name(), System.nanoTime() + ttl));
+        }
+        started.name().complete(name);
+    }
+
+    /**
+     * Get the stripe of the cache an address belongs to.
+     * @param address The address.
+     * @return The stripe.
+     */
+    private Stripe stripe(InetAddress address) {
+        return stripes[(address.hashCode() & 0x7FFFFFFF) % STRIPES];
+    }
+}
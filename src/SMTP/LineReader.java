@@ -0,0 +1,138 @@
+package SMTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Class that splits the bytes of a blocking input stream into lines without decoding them.
+ * <p>
+ * It plays the part of a BufferedReader for the thread-per-connection handlers, but hands out the bytes of each
+ * line in a buffer it reuses, and does not lock anything while reading, so a virtual thread is never pinned.
+ * Bytes that are not made of lines, such as the body of an email, can be taken from the same buffer with
+ * {@link #fill()}.
+ */
+public class LineReader {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final InputStream input;
+    private final int maxLineLength;
+    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).limit(0);
+    private byte[] line;
+    private int lineLength;
+
+    /**
+     * Create an object of type LineReader that accepts lines of up to 64 KiB.
+     * @param input The stream the lines are read from.
+     */
+    public LineReader(InputStream input) {
+        this(input, MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Create an object of type LineReader.
+     * @param input The stream the lines are read from.
+     * @param maxLineLength The length of the longest line accepted, without its line terminator.
+     */
+    public LineReader(InputStream input, int maxLineLength) {
+        this.input = input;
+        this.maxLineLength = maxLineLength;
+        this.line = new byte[Math.min(128, maxLineLength + 1)];
+    }
+
+    /**
+     * Read the next line, waiting for it if needed. A CRLF or a bare LF ends a line, and is not part of it.
+     * @return Whether a line was read; false once the stream has ended.
+     * @throws IOException If the stream fails or the line is too long.
+     */
+    public boolean readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (fill() == null) {
+                return false;
+            }
+
+            // copy up to the end of the line, or of what has been received, in one go
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            int position = start;
+            while (position < buffer.limit() && bytes[position] != '\n') {
+                position++;
+            }
+            append(start, position - start);
+            if (position < buffer.limit()) {
+                buffer.position(position + 1); // consume the line feed
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                if (lineLength > maxLineLength) {
+                    throw new IOException("Line is too long"); // room was only left for a carriage return
+                }
+                return true;
+            }
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Get the bytes that have been received but not consumed yet, waiting for more if there are none.
+     * The caller consumes bytes by advancing the position of the buffer.
+     * @return The buffer, from its position to its limit, or null once the stream has ended.
+     * @throws IOException
+     */
+    public ByteBuffer fill() throws IOException {
+        if (!buffer.hasRemaining()) {
+            int count = input.read(buffer.array());
+            if (count <= 0) {
+                buffer.limit(0);
+                return null;
+            }
+            buffer.position(0).limit(count);
+        }
+        return buffer;
+    }
+
+    /**
+     * Append received bytes to the line, growing the line buffer when needed.
+     * @param offset The offset of the bytes in the read buffer.
+     * @param count The number of bytes.
+     * @throws IOException If the line becomes too long.
+     */
+    private void append(int offset, int count) throws IOException {
+        if (lineLength + count > line.length) {
+            if (lineLength + count > maxLineLength + 1) {
+                throw new IOException("Line is too long");
+            }
+            line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, lineLength + count), maxLineLength + 1));
+        }
+        System.arraycopy(buffer.array(), offset, line, lineLength, count);
+        lineLength += count;
+    }
+
+    /**
+     * Check whether more input has already arrived, so that reading the next line would not wait.
+     * @return Whether input is waiting.
+     * @throws IOException
+     */
+    public boolean ready() throws IOException {
+        return buffer.hasRemaining() || input.available() > 0;
+    }
+
+    /**
+     * Get the bytes of the last line read. They are overwritten by the next line.
+     * @return The bytes of the line.
+     */
+    public byte[] getLine() {
+        return line;
+    }
+
+    /**
+     * Get the number of bytes in the last line read.
+     * @return The length of the line.
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+}
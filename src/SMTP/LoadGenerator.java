@@ -0,0 +1,345 @@
+package SMTP;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class that measures how much mail a server can take, by sending it emails from many simulated clients at once.
+ * <p>
+ * Sessions arrive at a fixed rate whatever the server does, as independent clients would, rather than waiting
+ * for one another: a closed loop slows down with the server it measures and hides the queueing a real overload
+ * causes. Each session runs on its own virtual thread, so thousands of them can be open at the same time, and
+ * sends its emails over a {@link ClientConnection}, the same protocol code the {@link ClientPool} uses. Arrivals
+ * that would exceed the limit on open sessions are counted as dropped rather than delayed.
+ * <p>
+ * Every step of every session is timed into a {@link Histogram}, and the time an email took is measured
+ * from when it was due to start rather than from when it actually started, so waiting for the server to accept
+ * the connection counts against the server. Emails the server refused or that were lost with their connection
+ * are timed into a histogram of their own, so quick failures do not flatter the latency of accepted emails. Settings are read from the {@code smtp.load.*} system properties,
+ * and the {@code smtp.client.*} properties shape the sessions themselves.
+ */
+public class LoadGenerator {
+    private static final String SENDER = "load@load.test";
+    private static final int LINE_LENGTH = 76;
+
+    private final InetSocketAddress server;
+    private final ClientConfig clientConfig;
+    private final double rate;
+    private final long durationNanos;
+    private final int messagesPerSession;
+    private final int recipients;
+    private final int mailboxes;
+    private final Semaphore openSessions;
+    private final byte[][] bodies;
+    private final int[] cumulativeWeights;
+
+    private final Map<ClientConnection.Phase, Histogram> phases = new EnumMap<>(ClientConnection.Phase.class);
+    private final Histogram messageLatency = new Histogram(); // accepted emails only
+    private final Histogram failureLatency = new Histogram(); // emails refused or lost with their connection
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsDropped = new LongAdder();
+    private final LongAdder sessionsFailed = new LongAdder();
+    private final LongAdder messagesAccepted = new LongAdder();
+    private final LongAdder messagesRefused = new LongAdder(); // answered with an error reply
+    private final LongAdder messagesFailed = new LongAdder(); // lost with a broken connection
+    private final LongAdder bytesAccepted = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Create an object of type LoadGenerator.
+     * @param server The address of the server under test.
+     * @param clientConfig The settings of every simulated client.
+     * @param rate The number of sessions started per second.
+     * @param durationSeconds How long new sessions keep arriving.
+     * @param messagesPerSession The number of emails each session sends before it quits.
+     * @param recipients The number of recipients of each email.
+     * @param mailboxes The number of distinct recipients the recipients of an email are picked from.
+     * @param maxSessions The largest number of sessions open at the same time.
+     * @param sizes The size distribution of the emails, such as {@code 1k:70,64k:25,1m:5}: each size in bytes,
+     *              optionally with a k or m suffix, is followed by its relative weight.
+     */
+    public LoadGenerator(InetSocketAddress server, ClientConfig clientConfig, double rate, long durationSeconds,
+                         int messagesPerSession, int recipients, int mailboxes, int maxSessions, String sizes) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        if (durationSeconds < 1 || messagesPerSession < 1 || recipients < 1 || mailboxes < 1 || maxSessions < 1) {
+            throw new IllegalArgumentException("durationSeconds, messagesPerSession, recipients, mailboxes and "
+                    + "maxSessions must be at least 1");
+        }
+        this.server = server;
+        this.clientConfig = clientConfig;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.messagesPerSession = messagesPerSession;
+        this.recipients = recipients;
+        this.mailboxes = mailboxes;
+        this.openSessions = new Semaphore(maxSessions);
+
+        // every email of a given size is the same, so the bodies are built once, before any timing starts
+        List<byte[]> bodyList = new ArrayList<>();
+        List<Integer> weightList = new ArrayList<>();
+        int totalWeight = 0;
+        for (String entry : sizes.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length > 2 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("Malformed email size: " + entry);
+            }
+            int weight = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (weight < 1) {
+                throw new IllegalArgumentException("The weight of an email size must be at least 1: " + entry);
+            }
+            bodyList.add(body(parseSize(parts[0].trim())));
+            totalWeight += weight;
+            weightList.add(totalWeight);
+        }
+        this.bodies = bodyList.toArray(new byte[0][]);
+        this.cumulativeWeights = weightList.stream().mapToInt(Integer::intValue).toArray();
+        for (ClientConnection.Phase phase : ClientConnection.Phase.values()) {
+            phases.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Parse a size in bytes, optionally followed by k for kibibytes or m for mebibytes.
+     * @param size The size.
+     * @return The number of bytes.
+     */
+    private static int parseSize(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        int multiplier = unit == 'k' ? 1024 : unit == 'm' ? 1024 * 1024 : 1;
+        String digits = multiplier == 1 ? size : size.substring(0, size.length() - 1);
+        int bytes = Math.multiplyExact(Integer.parseInt(digits), multiplier);
+        if (bytes < 0) {
+            throw new IllegalArgumentException("An email size must not be negative: " + size);
+        }
+        return bytes;
+    }
+
+    /**
+     * Build an email of exactly the given size, made of a subject and lines of letters ending with CRLF.
+     * @param size The number of bytes.
+     * @return The email.
+     */
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        byte[] header = "Subject: load test\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        int position = Math.min(header.length, size);
+        System.arraycopy(header, 0, body, 0, position);
+        for (int column = 0; position < size; position++, column = (column + 1) % (LINE_LENGTH + 2)) {
+            body[position] = column < LINE_LENGTH ? (byte) ('a' + column % 26) : column == LINE_LENGTH
+                    ? (byte) '\r' : (byte) '\n';
+        }
+        // the email must end with a line terminator, and hold no bare CR before it
+        if (size >= header.length + 3) {
+            body[size - 3] = body[size - 3] == '\r' ? (byte) 'z' : body[size - 3];
+            body[size - 2] = '\r';
+            body[size - 1] = '\n';
+        }
+        return body;
+    }
+
+    /**
+     * Start sessions at the configured rate until the duration has passed, wait for them to finish, and print
+     * the results.
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        System.out.printf("%nSending to %s: %.1f sessions/s for %ds, %d email(s) per session, %d recipient(s) "
+                        + "per email%n", server, rate, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                messagesPerSession, recipients);
+
+        long start = System.nanoTime();
+        try (ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long arrival = 0; ; arrival++) {
+                long due = start + arrival * intervalNanos;
+                if (due - start >= durationNanos) {
+                    break;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                if (openSessions.tryAcquire()) {
+                    sessions.execute(() -> {
+                        try {
+                            runSession(due);
+                        } finally {
+                            openSessions.release();
+                        }
+                    });
+                } else {
+                    sessionsDropped.increment();
+                }
+            }
+        } // waits for the open sessions to finish
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Run one simulated client: connect, send its emails and quit.
+     * @param due The value of System.nanoTime() when the session was meant to start.
+     */
+    private void runSession(long due) {
+        sessionsStarted.increment();
+        ClientConnection connection;
+        try {
+            connection = new ClientConnection(server, clientConfig, (phase, nanos) -> phases.get(phase).record(nanos));
+        } catch (IOException e) {
+            sessionsFailed.increment();
+            recordError(e);
+            return;
+        }
+
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < messagesPerSession && !connection.isBroken(); i++) {
+                byte[] body = pickBody(random);
+                List<String> to = new ArrayList<>(recipients);
+                for (int j = 0; j < recipients; j++) {
+                    to.add("user" + random.nextInt(mailboxes) + "@load.test");
+                }
+                Histogram latency = messageLatency;
+                try {
+                    connection.send(new Envelope(SENDER, to), body);
+                    messagesAccepted.increment();
+                    bytesAccepted.add(body.length);
+                } catch (SmtpException e) {
+                    messagesRefused.increment();
+                    latency = failureLatency;
+                    recordError(e);
+                } catch (IOException e) {
+                    messagesFailed.increment();
+                    latency = failureLatency;
+                    recordError(e);
+                }
+                long now = System.nanoTime();
+                latency.record(now - due);
+                due = now; // the next email of the session is due as soon as this one is done
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Pick the email to send according to the weights of the sizes.
+     * @param random The random number generator of the current thread.
+     * @return The email.
+     */
+    private byte[] pickBody(ThreadLocalRandom random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (cumulativeWeights[i] <= pick) {
+            i++;
+        }
+        return bodies[i];
+    }
+
+    /**
+     * Count a failure by its kind, and by its reply code when the server refused something.
+     * @param e The failure.
+     */
+    private void recordError(IOException e) {
+        String kind = e instanceof SmtpException refusal
+                ? "reply " + refusal.getCode()
+                : e.getClass().getSimpleName();
+        errors.computeIfAbsent(kind, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Print the throughput and the latency percentiles of the run.
+     * @param elapsedNanos How long the run took, including waiting for the last sessions to finish.
+     */
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("%nSessions: %d started, %d dropped at the limit of open sessions, %d failed to connect%n",
+                sessionsStarted.sum(), sessionsDropped.sum(), sessionsFailed.sum());
+        System.out.printf("Emails:   %d accepted, %d refused, %d lost with their connection, in %.2fs%n",
+                messagesAccepted.sum(), messagesRefused.sum(), messagesFailed.sum(), seconds);
+        System.out.printf("Throughput: %.1f emails/s, %.2f MiB/s%n",
+                messagesAccepted.sum() / seconds, bytesAccepted.sum() / seconds / (1024 * 1024));
+
+        System.out.printf("%nLatency per step:%n");
+        for (Map.Entry<ClientConnection.Phase, Histogram> phase : phases.entrySet()) {
+            if (phase.getValue().getCount() > 0) {
+                System.out.printf("  %-9s %s%n", phase.getKey(), summary(phase.getValue()));
+            }
+        }
+        System.out.printf("  %-9s %s%n", "EMAIL", summary(messageLatency));
+        if (failureLatency.getCount() > 0) {
+            System.out.printf("  %-9s %s%n", "FAILED", summary(failureLatency));
+        }
+
+        if (!errors.isEmpty()) {
+            System.out.printf("%nErrors:%n");
+            new TreeMap<>(errors).forEach((kind, count) -> System.out.printf("  %-24s %d%n", kind, count.sum()));
+        }
+    }
+
+    /**
+     * Describe a distribution of latencies in one line, in milliseconds.
+     * @param latencies The latencies, in nanoseconds.
+     * @return The count, mean, usual percentiles and maximum.
+     */
+    private static String summary(Histogram latencies) {
+        return String.format("n=%-8d mean=%9s p50=%9s p90=%9s p99=%9s p99.9=%9s max=%9s", latencies.getCount(),
+                millis(latencies.getMean()), millis(latencies.getPercentile(50)),
+                millis(latencies.getPercentile(90)), millis(latencies.getPercentile(99)),
+                millis(latencies.getPercentile(99.9)), millis(latencies.getMax()));
+    }
+
+    /**
+     * Format a latency in milliseconds with microsecond precision.
+     * @param nanos The latency in nanoseconds.
+     * @return The formatted latency.
+     */
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Main entry point to the program.
+     * @param args The command line arguments passed to the program: the IP address and port of the server.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        // set the server IP and port number
+        InetAddress serverIP = InetAddress.getLoopbackAddress();
+        int port = 25;
+
+        // if arguments have been provided, reassign the server IP and port number
+        if (args.length > 0) {
+            serverIP = InetAddress.getByName(args[0]);
+            port = Integer.parseInt(args[1]);
+        }
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(serverIP, port),
+                ClientConfig.fromSystemProperties(),
+                Double.parseDouble(System.getProperty("smtp.load.rate", "100")),
+                Long.getLong("smtp.load.durationSeconds", 10),
+                Integer.getInteger("smtp.load.messagesPerSession", 1),
+                Integer.getInteger("smtp.load.recipients", 1),
+                Integer.getInteger("smtp.load.mailboxes", 100),
+                Integer.getInteger("smtp.load.maxSessions", 10000),
+                System.getProperty("smtp.load.sizes", "1k:70,16k:25,256k:5"));
+        generator.run();
+    }
+}
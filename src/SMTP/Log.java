@@ -0,0 +1,495 @@
+package SMTP;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class that prints the messages of the server to the console without making the threads that log them wait
+ * for each other or for the console.
+ * <p>
+ * A message is copied into a slot of a preallocated ring buffer, claimed with a single compare-and-set, and a
+ * background thread formats the slots in order and writes them out in large chunks. The timestamp is formatted
+ * once per second and reused, and neither side allocates for an ordinary message. When the ring is full a
+ * message is either dropped and counted, or its thread waits for a free slot, according to the configuration.
+ */
+public final class Log implements Runnable {
+    /**
+     * The importance of a message; messages below the configured level are discarded without being copied.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * What a thread does when it logs a message while the ring buffer is full.
+     */
+    public enum Overflow {
+        /** Discard the message and count it; the count is printed once the ring has room again. */
+        DROP,
+        /** Wait until the background thread has freed a slot. */
+        BLOCK
+    }
+
+    private static final int MAX_MESSAGE_LENGTH = 8192;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static volatile Log instance;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final Overflow overflow;
+    private final AtomicLong claimed = new AtomicLong(); // the sequence of the next slot to be claimed
+    private final LongAdder dropped = new LongAdder();
+    private final Thread drainer;
+    private volatile long drained; // the sequence of the next slot to be printed
+    private volatile int threshold;
+    private volatile boolean sleeping;
+    private volatile boolean stopping;
+
+    // only touched by the background thread
+    private final OutputStream out = new FileOutputStream(FileDescriptor.out);
+    private final byte[] output = new byte[OUTPUT_BUFFER_SIZE];
+    private int outputLength;
+    private final byte[] timestamp = new byte[19]; // yyyy/MM/dd HH:mm:ss
+    private long timestampSecond = Long.MIN_VALUE;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    /**
+     * A preallocated message in the ring buffer, held as UTF-8.
+     */
+    private static final class Slot {
+        volatile long published; // the sequence of the message plus one, once it may be printed
+        long millis;
+        Level level;
+        byte[] bytes = new byte[128];
+        int length;
+
+        /**
+         * Encode part of a message into the slot, truncating a message that is too long.
+         * @param text The part, or null.
+         */
+        void append(String text) {
+            if (text == null) {
+                return;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (!reserve(4)) {
+                    return;
+                }
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xC0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    bytes[length++] = '?';
+                } else {
+                    bytes[length++] = (byte) (0xE0 | c >> 12);
+                    bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+
+        /**
+         * Copy bytes that are already encoded into the slot, truncating a message that is too long.
+         * @param source The bytes.
+         * @param offset The offset of the first byte.
+         * @param count The number of bytes.
+         */
+        void append(byte[] source, int offset, int count) {
+            count = Math.min(count, MAX_MESSAGE_LENGTH - length);
+            if (count > 0 && reserve(count)) {
+                System.arraycopy(source, offset, bytes, length, count);
+                length += count;
+            }
+        }
+
+        /**
+         * Make room for more bytes, growing the slot up to the longest message allowed.
+         * @param count The number of bytes.
+         * @return Whether there is room for them.
+         */
+        private boolean reserve(int count) {
+            if (length + count <= bytes.length) {
+                return true;
+            }
+            if (length + count > MAX_MESSAGE_LENGTH) {
+                return false;
+            }
+            bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, length + count), MAX_MESSAGE_LENGTH));
+            return true;
+        }
+    }
+
+    /**
+     * Create an object of type Log with an empty ring buffer.
+     * @param config The settings of the server.
+     */
+    private Log(ServerConfig config) {
+        int capacity = Integer.highestOneBit(config.getLogBufferSize() - 1) << 1; // the next power of two
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.overflow = config.getLogOverflow();
+        this.threshold = config.getLogLevel().ordinal();
+        this.drainer = new Thread(this, "smtp-log");
+        drainer.setDaemon(true);
+    }
+
+    /**
+     * Apply the logging settings of the server. The level always takes effect; the size of the ring buffer and
+     * the overflow policy only do if nothing has been logged yet.
+     * @param config The settings of the server.
+     */
+    public static void configure(ServerConfig config) {
+        synchronized (Log.class) {
+            if (instance == null) {
+                instance = start(config);
+                return;
+            }
+        }
+        instance.threshold = config.getLogLevel().ordinal();
+    }
+
+    /**
+     * Get the logger, starting it with the settings of the system properties if it has not been configured.
+     * @return The logger.
+     */
+    private static Log get() {
+        Log log = instance;
+        if (log == null) {
+            synchronized (Log.class) {
+                if (instance == null) {
+                    instance = start(ServerConfig.fromSystemProperties());
+                }
+                log = instance;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Create a logger, start its background thread, and print what is left in its ring when the JVM exits.
+     * @param config The settings of the server.
+     * @return The logger.
+     */
+    private static Log start(ServerConfig config) {
+        Log log = new Log(config);
+        log.drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::stop, "smtp-log-shutdown"));
+        return log;
+    }
+
+    /**
+     * Check whether messages of a level are printed, to avoid building a message that would be discarded.
+     * @param level The level.
+     * @return Whether the messages are printed.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= get().threshold;
+    }
+
+    /**
+     * Log a message useful when investigating a problem.
+     * @param message The message.
+     */
+    public static void debug(String message) {
+        get().publish(Level.DEBUG, message, null, null, null, 0, 0);
+    }
+
+    /**
+     * Log a message about the normal running of the server.
+     * @param message The message.
+     */
+    public static void info(String message) {
+        get().publish(Level.INFO, message, null, null, null, 0, 0);
+    }
+
+    /**
+     * Log a message about the normal running of the server that ends with bytes received from a client, such as
+     * a command line. The parts are joined in the ring buffer rather than by the caller, and the bytes are copied
+     * as they are, so the caller allocates nothing.
+     * @param first The first part of the message.
+     * @param second The second part of the message.
+     * @param bytes The bytes that end the message, in UTF-8.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public static void info(String first, String second, byte[] bytes, int offset, int length) {
+        get().publish(Level.INFO, first, second, null, bytes, offset, length);
+    }
+
+    /**
+     * Log a message about something that went wrong but that the server recovered from.
+     * @param message The message.
+     */
+    public static void warn(String message) {
+        get().publish(Level.WARN, message, null, null, null, 0, 0);
+    }
+
+    /**
+     * Log a message about an operation that failed.
+     * @param message The message.
+     */
+    public static void error(String message) {
+        get().publish(Level.ERROR, message, null, null, null, 0, 0);
+    }
+
+    /**
+     * Log a message about an operation that failed, followed by the stack trace of the failure.
+     * @param message The message.
+     * @param error The failure.
+     */
+    public static void error(String message, Throwable error) {
+        Log log = get();
+        if (Level.ERROR.ordinal() < log.threshold) {
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        log.publish(Level.ERROR, message, System.lineSeparator(), trace.toString(), null, 0, 0);
+    }
+
+    /**
+     * Copy a message into the next slot of the ring buffer and make it visible to the background thread.
+     * @param level The level of the message.
+     * @param first The first part of the message.
+     * @param second The second part of the message, or null.
+     * @param third The third part of the message, or null.
+     * @param bytes Bytes that end the message, or null.
+     * @param offset The offset of the first of those bytes.
+     * @param length The number of those bytes.
+     */
+    private void publish(Level level, String first, String second, String third, byte[] bytes, int offset,
+            int length) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - drained >= slots.length) {
+                if (overflow == Overflow.DROP) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(drainer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.millis = System.currentTimeMillis();
+        slot.level = level;
+        slot.length = 0;
+        slot.append(first);
+        slot.append(second);
+        slot.append(third);
+        if (bytes != null) {
+            slot.append(bytes, offset, length);
+        }
+        slot.published = sequence + 1;
+
+        // only pay for a wake-up when the background thread has run out of messages
+        if (sleeping) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Primary method used to print the messages of the ring buffer in order.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long sequence = drained;
+            Slot slot = slots[(int) sequence & mask];
+            if (slot.published == sequence + 1) {
+                format(slot);
+                drained = sequence + 1;
+                continue;
+            }
+
+            // the ring is empty, so write out what has been formatted before waiting for more
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                appendAscii("\r\n[");
+                appendTimestamp(System.currentTimeMillis());
+                appendAscii("] WARN Dropped " + lost + " log messages");
+                appendBytes(LINE_SEPARATOR);
+            }
+            writeOutput();
+            if (stopping) {
+                return;
+            }
+
+            sleeping = true;
+            if (slot.published != sequence + 1) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Print what is left in the ring buffer and stop the background thread.
+     */
+    private void stop() {
+        stopping = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Format a message into the output buffer, in the same layout the console has always used.
+     * @param slot The slot holding the message.
+     */
+    private void format(Slot slot) {
+        appendAscii("\r\n[");
+        appendTimestamp(slot.millis);
+        appendAscii("] ");
+        if (slot.level != Level.INFO) {
+            appendAscii(slot.level.name());
+            appendAscii(" ");
+        }
+        appendBytes(slot.bytes, slot.length);
+        appendBytes(LINE_SEPARATOR);
+    }
+
+    /**
+     * Append the timestamp of a message, reformatting it only when its second differs from the previous one.
+     * @param millis The time of the message.
+     */
+    private void appendTimestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != timestampSecond) {
+            timestampSecond = second;
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone);
+            writeDigits(time.getYear(), 0, 4);
+            timestamp[4] = '/';
+            writeDigits(time.getMonthValue(), 5, 2);
+            timestamp[7] = '/';
+            writeDigits(time.getDayOfMonth(), 8, 2);
+            timestamp[10] = ' ';
+            writeDigits(time.getHour(), 11, 2);
+            timestamp[13] = ':';
+            writeDigits(time.getMinute(), 14, 2);
+            timestamp[16] = ':';
+            writeDigits(time.getSecond(), 17, 2);
+        }
+        appendBytes(timestamp);
+    }
+
+    /**
+     * Write a number into the timestamp as a fixed number of decimal digits.
+     * @param value The number.
+     * @param offset The position of its first digit.
+     * @param digits The number of digits.
+     */
+    private void writeDigits(int value, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            timestamp[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Append an ASCII string to the output buffer.
+     * @param text The string.
+     */
+    private void appendAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (outputLength == output.length) {
+                writeOutput();
+            }
+            output[outputLength++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Append bytes to the output buffer.
+     * @param bytes The bytes.
+     */
+    private void appendBytes(byte[] bytes) {
+        appendBytes(bytes, bytes.length);
+    }
+
+    /**
+     * Append the first bytes of an array to the output buffer.
+     * @param bytes The bytes.
+     * @param length The number of bytes to append.
+     */
+    private void appendBytes(byte[] bytes, int length) {
+        if (outputLength + length > output.length) {
+            writeOutput();
+        }
+        if (length > output.length) {
+            writeDirectly(bytes, length);
+            return;
+        }
+        System.arraycopy(bytes, 0, output, outputLength, length);
+        outputLength += length;
+    }
+
+    /**
+     * Write bytes too long for the output buffer straight to the console.
+     * @param bytes The bytes.
+     * @param length The number of bytes to write.
+     */
+    private void writeDirectly(byte[] bytes, int length) {
+        try {
+            out.write(bytes, 0, length);
+        } catch (IOException e) {
+            // there is nowhere left to report a console that cannot be written to
+        }
+    }
+
+    /**
+     * Write the output buffer to the console.
+     */
+    private void writeOutput() {
+        if (outputLength == 0) {
+            return;
+        }
+        try {
+            out.write(output, 0, outputLength);
+        } catch (IOException e) {
+            // there is nowhere left to report a console that cannot be written to
+        }
+        outputLength = 0;
+    }
+}
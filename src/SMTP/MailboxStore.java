@@ -0,0 +1,1198 @@
+package SMTP;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Class that stores delivered emails in an append-only log of segment files, with an offset index per recipient.
+ * <p>
+ * Every email is appended to the active segment once, as a single record, however many recipients it has:
+ * <pre>
+ * int magic | long timestamp | short length, sender | short count, (short length, recipient)... | long length, body
+ *     | int CRC32
+ * </pre>
+ * where the checksum covers everything between the magic number and itself. A compressed body is written in a
+ * record with a magic number of its own, which also holds the codec and the raw length of the body:
+ * <pre>
+ * int magic | long timestamp | short length, sender | short count, (short length, recipient)...
+ *     | byte codec | long raw length | long length, compressed body | int CRC32
+ * </pre>
+ * so a compressed email costs nothing to locate, and its body is inflated as it is read. An email whose text is
+ * kept once for every copy in the {@link BlobStore} is written as a record that holds the hash of the blob, the
+ * raw length of the whole body, and the header section of its own copy, which the text in the blob follows:
+ * <pre>
+ * int magic | long timestamp | short length, sender | short count, (short length, recipient)...
+ *     | byte[32] hash | long raw length | long length, header section | int CRC32
+ * </pre>
+ * The segment is rolled once it grows
+ * past a size limit or an age limit. Each recipient has an index file of fixed-size entries holding the segment
+ * and position of their emails, so the n-th email of a mailbox is found with a single positional read and a new
+ * email never overwrites an older one. The index entries of every recipient of an email point at the same record.
+ * <p>
+ * Appending a record, forcing the segment to disk and indexing the record are separate steps, so a writer can
+ * append a batch of emails, force them with one fsync and only then index them; an index entry therefore never
+ * points at an email that is not durable. Index files are split over lock stripes by recipient, so writes to one
+ * mailbox are serialized while different mailboxes are updated independently. Indexes are forced to disk before
+ * a segment is rolled, so only the active segment can hold records whose index entries were lost. Recovery
+ * therefore scans it alone: it is truncated after the last complete record, and the indexes of the recipients it
+ * holds are brought back in line with it. Records that could not be forced to disk are discarded from the active
+ * segment straight away, so recovery never indexes an email whose delivery was reported as failed; if even that
+ * fails, the store stops taking new records.
+ * <p>
+ * Mailboxes are read through memory-mapped files: a {@link Mailbox} maps the index of a recipient, and the headers
+ * and bodies of its emails are read from mappings of the segments, which are shared by every reader and kept for
+ * the most recently read segments. Listing a mailbox therefore touches only the pages of the entries and headers
+ * it looks at, a body is streamed straight from the page cache, and no read takes a lock that a delivery waits
+ * for. An email is deleted from a mailbox by marking its index entry, which leaves the numbers of the other
+ * emails unchanged; its record stays in the segment, since other recipients may still refer to it.
+ */
+public class MailboxStore {
+    private static final int MAGIC = 0x534D5450; // "SMTP"
+    private static final int COMPRESSED_MAGIC = 0x534D545A; // "SMTZ"
+    private static final int BLOB_MAGIC = 0x534D5452; // "SMTR"
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES;
+    private static final int OPEN_INDEXES = 256;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAPPED_SEGMENTS = 64;
+    private static final long DELETED = Long.MIN_VALUE; // set in the position of the index entry of a deleted email
+
+    private final Path segmentDirectory;
+    private final Path indexDirectory;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final Stripe[] stripes;
+    private final Map<Long, MappedByteBuffer> mappedSegments;
+    private final Map<Integer, MessageCodec> codecs = new HashMap<>(); // every codec records can be read with
+    private final BlobStore blobs;
+    private long segmentId;
+    private FileChannel segment;
+    private long segmentSize;
+    private long segmentCreated;
+    private IOException failure; // set once the active segment holds records that could not be discarded
+
+    /**
+     * Class that guards the index files of the recipients that hash to it, and keeps the most recently used
+     * of them open.
+     */
+    private static class Stripe {
+        private final Map<String, FileChannel> indexes;
+
+        /**
+         * Create an object of type Stripe.
+         * @param openIndexes The maximum number of index files kept open.
+         */
+        Stripe(int openIndexes) {
+            this.indexes = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+                    if (size() <= openIndexes) {
+                        return false;
+                    }
+                    // an index is forced before it is closed, since a closed index would be missed by a roll
+                    forceQuietly(eldest.getValue());
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+    }
+
+    /**
+     * The location of a record appended to the store.
+     * @param recipients The recipients of the email.
+     * @param segment The identifier of the segment holding the record.
+     * @param position The position of the record within the segment.
+     */
+    public record Appended(List<String> recipients, long segment, long position) {
+    }
+
+    /**
+     * An email held in the store.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param timestamp When the email was stored, in milliseconds since the epoch.
+     * @param segment The identifier of the segment holding the email.
+     * @param bodyPosition The position of the body within the segment.
+     * @param bodyLength The length of the body in the segment in bytes, once compressed if it is, or of its header
+     *                   section if its text is a blob.
+     * @param codec The identifier of the codec the body in the segment is compressed with, or 0 if it is raw.
+     * @param rawLength The length of the body in bytes, as it was received.
+     * @param blob The key of the blob holding the text of the body, or null if the body is in the segment.
+     */
+    public record Message(String sender, List<String> recipients, long timestamp, long segment, long bodyPosition,
+            long bodyLength, int codec, long rawLength, String blob) {
+    }
+
+    /**
+     * The emails in the mailbox of a recipient, as they were when it was opened. Emails delivered afterwards are
+     * not in it, while deletions show up at once.
+     */
+    public class Mailbox {
+        private final String recipient;
+        private final ByteBuffer index; // the mapped index entries, or an empty buffer
+
+        /**
+         * Create an object of type Mailbox.
+         * @param recipient The recipient.
+         * @param index The mapped index entries.
+         */
+        private Mailbox(String recipient, ByteBuffer index) {
+            this.recipient = recipient;
+            this.index = index;
+        }
+
+        /**
+         * Get the recipient the mailbox belongs to.
+         * @return The recipient.
+         */
+        public String getRecipient() {
+            return recipient;
+        }
+
+        /**
+         * Get the number of emails in the mailbox, deleted ones included, so an email keeps its number for good.
+         * @return The number of emails.
+         */
+        public long size() {
+            return index.capacity() / INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * Check whether an email has been deleted from the mailbox.
+         * @param number The number of the email, counting from 0 in the order they were delivered.
+         * @return Whether the email was deleted.
+         */
+        public boolean isDeleted(long number) {
+            return position(number) < 0;
+        }
+
+        /**
+         * Look up an email in the mailbox, reading only its header.
+         * @param number The number of the email, counting from 0 in the order they were delivered.
+         * @return The email, or null if it was deleted.
+         * @throws IOException
+         */
+        public Message message(long number) throws IOException {
+            long position = position(number);
+            return position < 0 ? null : header(index.getLong(entry(number)), position);
+        }
+
+        /**
+         * Count the emails in the mailbox that were not deleted, and their bytes.
+         * @return The totals, counting the raw size of every body.
+         * @throws IOException
+         */
+        public Stat stat() throws IOException {
+            long messages = 0;
+            long bytes = 0;
+            for (long number = 0; number < size(); number++) {
+                Message message = message(number);
+                if (message != null) {
+                    messages++;
+                    bytes += message.rawLength();
+                }
+            }
+            return new Stat(messages, bytes);
+        }
+
+        /**
+         * Delete an email from the mailbox.
+         * @param number The number of the email, counting from 0 in the order they were delivered.
+         * @return Whether the email was deleted by this call, rather than already.
+         * @throws IOException
+         */
+        public boolean delete(long number) throws IOException {
+            return MailboxStore.this.delete(recipient, number);
+        }
+
+        /**
+         * Get the position of the record of an email, as its index entry holds it.
+         * @param number The number of the email.
+         * @return The position, which is negative if the email was deleted.
+         */
+        private long position(long number) {
+            return index.getLong(entry(number) + Long.BYTES);
+        }
+
+        /**
+         * Get the offset of the index entry of an email.
+         * @param number The number of the email.
+         * @return The offset within the mapped index.
+         */
+        private int entry(long number) {
+            if (number < 0 || number >= size()) {
+                throw new IndexOutOfBoundsException("No email " + number + " in the mailbox of " + recipient);
+            }
+            return (int) (number * INDEX_ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * The totals of a mailbox.
+     * @param messages The number of emails that were not deleted.
+     * @param bytes The raw size of their bodies in bytes.
+     */
+    public record Stat(long messages, long bytes) {
+    }
+
+    /**
+     * Create an object of type MailboxStore that keeps its segments and indexes in the mailbox directory,
+     * recovering from any write that was interrupted by a crash.
+     * @param config The settings of the server.
+     * @throws IOException
+     */
+    public MailboxStore(ServerConfig config) throws IOException {
+        Path directory = config.getMailboxDirectory();
+        this.segmentDirectory = Files.createDirectories(directory.resolve("segments"));
+        this.indexDirectory = Files.createDirectories(directory.resolve("index"));
+        this.segmentBytes = config.getSegmentBytes();
+        this.segmentMillis = config.getSegmentMillis();
+        this.stripes = new Stripe[config.getMailboxStripes()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(1, OPEN_INDEXES / stripes.length));
+        }
+        codecs.put(DeflateCodec.ID, new DeflateCodec(DeflateCodec.DEFAULT_LEVEL));
+        if (config.getCompressionCodec() != null) {
+            codecs.put(config.getCompressionCodec().getId(), config.getCompressionCodec());
+        }
+        this.mappedSegments = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > MAPPED_SEGMENTS; // the mapping is released once no reader holds it any more
+            }
+        };
+
+        List<Long> segments = listSegments();
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            openSegment(segments.get(segments.size() - 1));
+            recover();
+        }
+
+        this.blobs = new BlobStore(directory.resolve("blobs"), codecs);
+        if (blobs.size() > 0) {
+            countBlobReferences();
+        }
+    }
+
+    /**
+     * Get the store the bodies kept once for every copy are held in.
+     * @return The blob store.
+     */
+    public BlobStore getBlobs() {
+        return blobs;
+    }
+
+    /**
+     * Append an email to the active segment. The email is neither durable nor indexed until sync() and index()
+     * have been called.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param email The body of the email.
+     * @return The location of the appended record.
+     * @throws IOException
+     */
+    public Appended append(String sender, List<String> recipients, MessageBuffer email) throws IOException {
+        return append(sender, recipients, email, null, email.length(), null);
+    }
+
+    /**
+     * Append an email whose body has already been compressed to the active segment. The email is neither durable
+     * nor indexed until sync() and index() have been called.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param body The body of the email, compressed with the codec.
+     * @param codec The codec the body was compressed with, or null if it is raw.
+     * @param rawLength The length of the body before it was compressed.
+     * @return The location of the appended record.
+     * @throws IOException
+     */
+    public Appended append(String sender, List<String> recipients, MessageBuffer body, MessageCodec codec,
+            long rawLength) throws IOException {
+        return append(sender, recipients, body, codec, rawLength, null);
+    }
+
+    /**
+     * Append an email whose text is a blob to the active segment, as a record that holds its header section and
+     * refers to the blob. The references to the blob must have been taken for every recipient. The email is
+     * neither durable nor indexed until sync() and index() have been called.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param email The body of the email, which has been hashed.
+     * @param blob The blob holding the text of the body.
+     * @return The location of the appended record.
+     * @throws IOException
+     */
+    public Appended appendReference(String sender, List<String> recipients, MessageBuffer email, BlobStore.Blob blob)
+            throws IOException {
+        return append(sender, recipients, email, null, email.length(), HexFormat.of().parseHex(blob.key()));
+    }
+
+    /**
+     * Append a record of any kind to the active segment.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @param body The body of the email, compressed with the codec; only its header section is written if its
+     *             text is a blob.
+     * @param codec The codec the body was compressed with, or null if it is raw or a blob.
+     * @param rawLength The length of the body as it was received.
+     * @param hash The hash of the blob holding the text of the body, or null if the body is in the record.
+     * @return The location of the appended record.
+     * @throws IOException
+     */
+    private synchronized Appended append(String sender, List<String> recipients, MessageBuffer body,
+            MessageCodec codec, long rawLength, byte[] hash) throws IOException {
+        if (failure != null) {
+            throw new IOException("The mailbox store stopped after a write it could not undo", failure);
+        }
+        long now = System.currentTimeMillis();
+        long position = segmentSize;
+        try {
+            // the stream is deliberately left open: closing it would close the segment
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(segment), WRITE_BUFFER_SIZE));
+            out.writeInt(hash != null ? BLOB_MAGIC : codec != null ? COMPRESSED_MAGIC : MAGIC);
+            CRC32 crc = new CRC32();
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            RecordFiles.writeEnvelope(checked, now, sender, recipients);
+            if (codec != null) {
+                checked.writeByte(codec.getId());
+                checked.writeLong(rawLength);
+            }
+            if (hash != null) {
+                checked.write(hash);
+                checked.writeLong(rawLength);
+            }
+            checked.writeLong(hash != null ? body.headerLength() : body.length());
+            try (InputStream in = hash != null ? new HeaderInputStream(body.openStream()) : body.openStream()) {
+                in.transferTo(checked);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            segmentSize = segment.position();
+        } catch (IOException e) {
+            // leave no partial record behind for the next email to be appended after
+            try {
+                truncate(position);
+            } catch (IOException truncation) {
+                e.addSuppressed(truncation);
+            }
+            throw e;
+        }
+
+        return new Appended(recipients, segmentId, position);
+    }
+
+    /**
+     * Force every record appended so far to disk.
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        segment.force(false);
+    }
+
+    /**
+     * Discard a record that could not be forced to disk, along with every record appended after it, and force the
+     * shorter segment to disk, so that recovery does not index them. None of them may have been indexed. If the
+     * records cannot be discarded, the store stops taking new records.
+     * @param first The location of the first record to discard, which must be in the active segment.
+     * @throws IOException If the records could not be discarded.
+     */
+    public synchronized void discard(Appended first) throws IOException {
+        if (first.segment() != segmentId || first.position() > segmentSize) {
+            throw new IllegalArgumentException("Record " + first.position() + " of segment " + first.segment()
+                    + " is not in the active segment");
+        }
+        truncate(first.position());
+        try {
+            segment.force(false);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        synchronized (mappedSegments) {
+            mappedSegments.remove(segmentId); // a reader must not reach the discarded bytes through an old mapping
+        }
+    }
+
+    /**
+     * Index a durable record under one of its recipients. Recipients in different stripes can be indexed in
+     * parallel without contending for a lock.
+     * @param recipient The recipient.
+     * @param appended The location of the record.
+     * @throws IOException
+     */
+    public void index(String recipient, Appended appended) throws IOException {
+        appendIndexEntry(recipient, appended.segment(), appended.position());
+    }
+
+    /**
+     * Get the lock stripe a recipient's index belongs to.
+     * @param recipient The recipient.
+     * @return The number of the stripe.
+     */
+    public int stripeOf(String recipient) {
+        return Math.floorMod(recipient.hashCode(), stripes.length);
+    }
+
+    /**
+     * Start a new segment if the active one has outgrown the size or age limit. Every record appended so far
+     * must have been synced and indexed, since the indexes are forced to disk before the segment is rolled.
+     * @throws IOException
+     */
+    public synchronized void rollIfNeeded() throws IOException {
+        if (segmentSize < segmentBytes && System.currentTimeMillis() - segmentCreated < segmentMillis) {
+            return;
+        }
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (FileChannel index : stripe.indexes.values()) {
+                    index.force(false);
+                }
+            }
+        }
+        segment.force(false);
+        openSegment(segmentId + 1);
+    }
+
+    /**
+     * Get the number of emails in the mailbox of a recipient.
+     * @param recipient The recipient.
+     * @return The number of emails.
+     * @throws IOException
+     */
+    public long count(String recipient) throws IOException {
+        Path index = indexPath(recipient);
+        return Files.exists(index) ? Files.size(index) / INDEX_ENTRY_SIZE : 0;
+    }
+
+    /**
+     * Open the mailbox of a recipient by mapping its index, without taking any lock.
+     * @param recipient The recipient.
+     * @return The mailbox, which is empty if the recipient has never received an email.
+     * @throws IOException
+     */
+    public Mailbox open(String recipient) throws IOException {
+        return new Mailbox(recipient, mapIndex(recipient));
+    }
+
+    /**
+     * Look up an email in the mailbox of a recipient.
+     * @param recipient The recipient.
+     * @param number The number of the email, counting from 0 in the order they were delivered.
+     * @return The email, or null if it was deleted.
+     * @throws IOException
+     */
+    public Message message(String recipient, long number) throws IOException {
+        return open(recipient).message(number);
+    }
+
+    /**
+     * Open a stream over the body of an email, served from the mapped segment and decompressed as it is read.
+     * @param message The email.
+     * @return The stream, which the caller must close.
+     * @throws IOException
+     */
+    public InputStream openBody(Message message) throws IOException {
+        InputStream body = new BufferInputStream(body(message));
+        if (message.blob() != null) {
+            return new SequenceInputStream(body, blobs.open(message.blob()));
+        }
+        if (message.codec() == 0) {
+            return body;
+        }
+        MessageCodec codec = codecs.get(message.codec());
+        if (codec == null) {
+            throw new IOException("Unknown codec " + message.codec() + " in segment " + message.segment());
+        }
+        return codec.decompress(body);
+    }
+
+    /**
+     * Open a stream over the header section of an email: every line up to and including the empty line that
+     * separates it from the text, or the whole body if there is no such line. Only as much of a compressed body
+     * is inflated as the header section needs.
+     * @param message The email.
+     * @return The stream, which the caller must close.
+     * @throws IOException
+     */
+    public InputStream openHeaders(Message message) throws IOException {
+        if (message.blob() != null && message.bodyLength() > 0) {
+            return new BufferInputStream(body(message)); // the record holds just the header section
+        }
+        return new HeaderInputStream(openBody(message));
+    }
+
+    /**
+     * Delete an email from the mailbox of a recipient by marking its index entry, and force the mark to disk.
+     * Deliveries to the recipient wait for the mark, but not for any reader. If the body of the email is a blob,
+     * the reference the entry held to it is released.
+     * @param recipient The recipient.
+     * @param number The number of the email, counting from 0 in the order they were delivered.
+     * @return Whether the email was deleted by this call, rather than already or never delivered.
+     * @throws IOException
+     */
+    public boolean delete(String recipient, long number) throws IOException {
+        if (number < 0 || number >= count(recipient)) {
+            return false;
+        }
+        Stripe stripe = stripe(recipient);
+        long id;
+        long position;
+        synchronized (stripe) {
+            FileChannel index = openIndex(stripe, recipient);
+            ByteBuffer entry = RecordFiles.read(index, number * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+            id = entry.getLong();
+            position = entry.getLong();
+            if (position < 0) {
+                return false;
+            }
+            ByteBuffer mark = ByteBuffer.allocate(Long.BYTES).putLong(position | DELETED).flip();
+            while (mark.hasRemaining()) {
+                index.write(mark, number * INDEX_ENTRY_SIZE + Long.BYTES + mark.position());
+            }
+            index.force(false);
+        }
+
+        // the entry held a reference to the blob of the email, if it has one
+        Message message = header(id, position);
+        if (message.blob() != null) {
+            blobs.release(message.blob(), 1);
+        }
+        return true;
+    }
+
+    /**
+     * Close the active segment and the open indexes.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (FileChannel index : stripe.indexes.values()) {
+                    closeQuietly(index);
+                }
+                stripe.indexes.clear();
+            }
+        }
+        segment.close();
+        blobs.close();
+    }
+
+    /**
+     * Make a segment the active one, creating it if it does not exist.
+     * @param id The identifier of the segment.
+     * @throws IOException
+     */
+    private void openSegment(long id) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        Path path = segmentPath(id);
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentId = id;
+        segmentSize = segment.size();
+        segment.position(segmentSize);
+        if (segmentSize == 0) {
+            RecordFiles.forceDirectory(segmentDirectory); // so the records forced into it are not lost with its name
+        }
+        segmentCreated = Files.readAttributes(path, BasicFileAttributes.class).creationTime().toMillis();
+    }
+
+    /**
+     * Cut the active segment short, stopping the store if it cannot be done, since the records past the position
+     * would otherwise stay in it.
+     * @param position The position the segment ends at.
+     * @throws IOException
+     */
+    private void truncate(long position) throws IOException {
+        try {
+            segment.truncate(position);
+            segment.position(position);
+            segmentSize = position;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Truncate the active segment after its last complete record, and make the indexes of the recipients
+     * it holds agree with it.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        Map<String, List<Long>> positions = new HashMap<>();
+        long position = 0;
+        while (position < segmentSize) {
+            Message message = readRecord(position);
+            if (message == null) {
+                break;
+            }
+            for (String recipient : message.recipients()) {
+                positions.computeIfAbsent(recipient, key -> new ArrayList<>()).add(position);
+            }
+            position = message.bodyPosition() + message.bodyLength() + Integer.BYTES;
+        }
+
+        if (position < segmentSize) {
+            Log.warn("Truncating " + (segmentSize - position) + " bytes of an incomplete email from segment " +
+                    segmentId);
+            segment.truncate(position);
+            segmentSize = position;
+            segment.position(position);
+
+            // the recipient of the lost record is unknown, so every index is checked for entries pointing at it
+            try (Stream<Path> files = Files.list(indexDirectory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".idx")) {
+                        positions.putIfAbsent(URLDecoder.decode(name.substring(0, name.length() - ".idx".length()),
+                                StandardCharsets.UTF_8), List.of());
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Long>> recipient : positions.entrySet()) {
+            repairIndex(recipient.getKey(), recipient.getValue());
+        }
+    }
+
+    /**
+     * Count the references every index entry that was not deleted holds to a blob. This reads the header of
+     * every email in the store, so it is only done when there are blobs.
+     * @throws IOException
+     */
+    private void countBlobReferences() throws IOException {
+        long start = System.nanoTime();
+        long references = 0;
+        try (Stream<Path> files = Files.list(indexDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".idx")) {
+                    continue;
+                }
+                ByteBuffer index = mapIndex(URLDecoder.decode(name.substring(0, name.length() - ".idx".length()),
+                        StandardCharsets.UTF_8));
+                while (index.hasRemaining()) {
+                    long id = index.getLong();
+                    long position = index.getLong();
+                    Message message = position < 0 ? null : header(id, position);
+                    if (message != null && message.blob() != null) {
+                        blobs.acquire(message.blob(), 1);
+                        references++;
+                    }
+                }
+            }
+        }
+        Log.info("Counted " + references + " references to " + blobs.size() + " blobs in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Map the index of a recipient, without taking any lock.
+     * @param recipient The recipient.
+     * @return The mapped index entries, or an empty buffer if the recipient has never received an email.
+     * @throws IOException
+     */
+    private ByteBuffer mapIndex(String recipient) throws IOException {
+        try (FileChannel index = FileChannel.open(indexPath(recipient), StandardOpenOption.READ)) {
+            long size = index.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The index of " + recipient + " is too large to map");
+            }
+            // the mapping stays valid once the channel is closed
+            return index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            return ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Drop index entries that point past the end of the active segment, and add the entries of its records
+     * that were written without being indexed.
+     * @param recipient The recipient whose index is repaired.
+     * @param positions The positions of the recipient's records in the active segment.
+     * @throws IOException
+     */
+    private void repairIndex(String recipient, List<Long> positions) throws IOException {
+        Stripe stripe = stripe(recipient);
+        synchronized (stripe) {
+            repairIndex(stripe, recipient, positions);
+        }
+    }
+
+    /**
+     * Repair the index of a recipient while holding the lock of its stripe.
+     * @param stripe The stripe of the recipient.
+     * @param recipient The recipient whose index is repaired.
+     * @param positions The positions of the recipient's records in the active segment.
+     * @throws IOException
+     */
+    private void repairIndex(Stripe stripe, String recipient, List<Long> positions) throws IOException {
+        FileChannel index = openIndex(stripe, recipient);
+        long lastIndexed = -1;
+
+        // walk back over the entries of the active segment to find the last one that is still valid
+        long entries = index.size() / INDEX_ENTRY_SIZE;
+        index.truncate(entries * INDEX_ENTRY_SIZE);
+        while (entries > 0) {
+            ByteBuffer entry = RecordFiles.read(index, (entries - 1) * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+            long id = entry.getLong();
+            long position = entry.getLong() & ~DELETED;
+            if (id < segmentId) {
+                break;
+            }
+            if (id == segmentId && position < segmentSize) {
+                lastIndexed = position;
+                break;
+            }
+            entries--;
+        }
+        index.truncate(entries * INDEX_ENTRY_SIZE);
+        index.position(index.size());
+
+        for (long position : positions) {
+            if (position > lastIndexed) {
+                writeIndexEntry(index, segmentId, position);
+            }
+        }
+    }
+
+    /**
+     * Read and verify the record at a position of the active segment.
+     * @param position The position of the record.
+     * @return The email, or null if the record is incomplete or corrupt.
+     * @throws IOException
+     */
+    private Message readRecord(long position) throws IOException {
+        try {
+            Message message = readHeader(segment, segmentId, position);
+            long end = message.bodyPosition() + message.bodyLength();
+            if (end + Integer.BYTES > segmentSize) {
+                return null;
+            }
+
+            // the checksum covers the header after the magic number, and the body
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long offset = position + Integer.BYTES;
+            while (offset < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset));
+                RecordFiles.readFully(segment, buffer, offset);
+                buffer.flip();
+                offset += buffer.remaining();
+                crc.update(buffer);
+            }
+            return RecordFiles.read(segment, end, Integer.BYTES).getInt() == (int) crc.getValue() ? message : null;
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the header of a record from the mapping of its segment.
+     * @param id The identifier of the segment.
+     * @param position The position of the record.
+     * @return The email described by the header.
+     * @throws IOException
+     */
+    private Message header(long id, long position) throws IOException {
+        ByteBuffer segment = mapSegment(id, position + Integer.BYTES + Long.BYTES + Short.BYTES);
+        try {
+            return parseHeader(segment, id, position);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // the mapping was made while the record was still being appended, so the segment is mapped again
+            return parseHeader(mapSegment(id, segment.capacity() + 1L), id, position);
+        }
+    }
+
+    /**
+     * Parse the header of the record at a position of a mapped segment.
+     * @param segment The mapped segment.
+     * @param id The identifier of the segment.
+     * @param position The position of the record.
+     * @return The email described by the header.
+     */
+    private static Message parseHeader(ByteBuffer segment, long id, long position) {
+        ByteBuffer record = segment.position((int) position);
+        int magic = record.getInt();
+        if (magic != MAGIC && magic != COMPRESSED_MAGIC && magic != BLOB_MAGIC) {
+            throw new IllegalArgumentException("No record at position " + position + " of segment " + id);
+        }
+        long timestamp = record.getLong();
+        String sender = RecordFiles.readString(record);
+        int count = Short.toUnsignedInt(record.getShort());
+        List<String> recipients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(RecordFiles.readString(record));
+        }
+        int codec = magic == COMPRESSED_MAGIC ? Byte.toUnsignedInt(record.get()) : 0;
+        String blob = null;
+        if (magic == BLOB_MAGIC) {
+            byte[] hash = new byte[BlobStore.HASH_BYTES];
+            record.get(hash);
+            blob = BlobStore.key(hash);
+        }
+        long rawLength = magic != MAGIC ? record.getLong() : 0;
+        long bodyLength = record.getLong();
+        if (bodyLength < 0 || rawLength < 0) {
+            throw new IllegalArgumentException("Corrupt record at position " + position + " of segment " + id);
+        }
+        return new Message(sender, recipients, timestamp, id, record.position(), bodyLength, codec,
+                magic != MAGIC ? rawLength : bodyLength, blob);
+    }
+
+    /**
+     * Get the body of an email from the mapping of its segment.
+     * @param message The email.
+     * @return A buffer holding the body, ready to be read.
+     * @throws IOException
+     */
+    private ByteBuffer body(Message message) throws IOException {
+        long end = message.bodyPosition() + message.bodyLength();
+        return mapSegment(message.segment(), end).slice((int) message.bodyPosition(), (int) message.bodyLength());
+    }
+
+    /**
+     * Get a mapping of a segment that reaches at least a given position, mapping the segment again if the one
+     * kept was made before the segment grew that far.
+     * @param id The identifier of the segment.
+     * @param end The position the mapping must reach.
+     * @return A view of the mapping, whose position the caller may move.
+     * @throws IOException If the segment is shorter, or too large to map.
+     */
+    private ByteBuffer mapSegment(long id, long end) throws IOException {
+        synchronized (mappedSegments) {
+            MappedByteBuffer mapped = mappedSegments.get(id);
+            if (mapped == null || mapped.capacity() < end) {
+                try (FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < end) {
+                        throw new EOFException("Segment " + id + " ends before position " + end);
+                    }
+                    if (size > Integer.MAX_VALUE) {
+                        throw new IOException("Segment " + id + " is too large to map");
+                    }
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                mappedSegments.put(id, mapped);
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    /**
+     * Read the header of the record at a position of a segment.
+     * @param channel The segment.
+     * @param id The identifier of the segment.
+     * @param position The position of the record.
+     * @return The email described by the header.
+     * @throws IOException
+     */
+    private static Message readHeader(FileChannel channel, long id, long position) throws IOException {
+        ByteBuffer fixed = RecordFiles.read(channel, position, Integer.BYTES + Long.BYTES + Short.BYTES);
+        int magic = fixed.getInt();
+        if (magic != MAGIC && magic != COMPRESSED_MAGIC && magic != BLOB_MAGIC) {
+            throw new IllegalArgumentException("No record at position " + position + " of segment " + id);
+        }
+        long timestamp = fixed.getLong();
+        long offset = position + fixed.capacity();
+
+        ByteBuffer sender = RecordFiles.read(channel, offset, Short.toUnsignedInt(fixed.getShort()));
+        offset += sender.capacity();
+        int count = Short.toUnsignedInt(RecordFiles.read(channel, offset, Short.BYTES).getShort());
+        offset += Short.BYTES;
+        List<String> recipients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer length = RecordFiles.read(channel, offset, Short.BYTES);
+            offset += Short.BYTES;
+            ByteBuffer recipient = RecordFiles.read(channel, offset, Short.toUnsignedInt(length.getShort()));
+            offset += recipient.capacity();
+            recipients.add(new String(recipient.array(), StandardCharsets.UTF_8));
+        }
+        int codec = 0;
+        long rawLength = 0;
+        String blob = null;
+        if (magic == COMPRESSED_MAGIC) {
+            ByteBuffer compression = RecordFiles.read(channel, offset, Byte.BYTES + Long.BYTES);
+            offset += compression.capacity();
+            codec = Byte.toUnsignedInt(compression.get());
+            rawLength = compression.getLong();
+        } else if (magic == BLOB_MAGIC) {
+            ByteBuffer reference = RecordFiles.read(channel, offset, BlobStore.HASH_BYTES + Long.BYTES);
+            offset += reference.capacity();
+            byte[] hash = new byte[BlobStore.HASH_BYTES];
+            reference.get(hash);
+            blob = BlobStore.key(hash);
+            rawLength = reference.getLong();
+        }
+        long bodyLength = RecordFiles.read(channel, offset, Long.BYTES).getLong();
+        offset += Long.BYTES;
+        if (bodyLength < 0 || rawLength < 0) {
+            throw new IllegalArgumentException("Corrupt record at position " + position + " of segment " + id);
+        }
+
+        return new Message(new String(sender.array(), StandardCharsets.UTF_8), recipients, timestamp, id, offset,
+                bodyLength, codec, magic != MAGIC ? rawLength : bodyLength, blob);
+    }
+
+    /**
+     * Append an entry to the index of a recipient.
+     * @param recipient The recipient.
+     * @param id The identifier of the segment holding the email.
+     * @param position The position of the email's record in the segment.
+     * @throws IOException
+     */
+    private void appendIndexEntry(String recipient, long id, long position) throws IOException {
+        Stripe stripe = stripe(recipient);
+        synchronized (stripe) {
+            writeIndexEntry(openIndex(stripe, recipient), id, position);
+        }
+    }
+
+    /**
+     * Write an entry at the end of an open index.
+     * @param index The index.
+     * @param id The identifier of the segment holding the email.
+     * @param position The position of the email's record in the segment.
+     * @throws IOException
+     */
+    private static void writeIndexEntry(FileChannel index, long id, long position) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).putLong(id).putLong(position).flip();
+        while (entry.hasRemaining()) {
+            index.write(entry);
+        }
+    }
+
+    /**
+     * Get the lock stripe a recipient's index belongs to.
+     * @param recipient The recipient.
+     * @return The stripe.
+     */
+    private Stripe stripe(String recipient) {
+        return stripes[Math.floorMod(recipient.hashCode(), stripes.length)];
+    }
+
+    /**
+     * Get the open index of a recipient, opening it if necessary. The caller must hold the lock of the stripe.
+     * @param stripe The stripe of the recipient.
+     * @param recipient The recipient.
+     * @return The index, positioned at its end.
+     * @throws IOException
+     */
+    private FileChannel openIndex(Stripe stripe, String recipient) throws IOException {
+        FileChannel index = stripe.indexes.get(recipient);
+        if (index == null) {
+            index = FileChannel.open(indexPath(recipient), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            index.position(index.size());
+            stripe.indexes.put(recipient, index);
+        }
+        return index;
+    }
+
+    /**
+     * List the identifiers of the segments in the store, in ascending order.
+     * @return The segment identifiers.
+     * @throws IOException
+     */
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(segmentDirectory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(".seg"))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - ".seg".length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Get the path of a segment.
+     * @param id The identifier of the segment.
+     * @return The path.
+     */
+    private Path segmentPath(long id) {
+        return segmentDirectory.resolve(String.format("%020d.seg", id));
+    }
+
+    /**
+     * Get the path of the index of a recipient, encoding the address so it is always a plain file name.
+     * @param recipient The recipient.
+     * @return The path.
+     */
+    private Path indexPath(String recipient) {
+        return indexDirectory.resolve(URLEncoder.encode(recipient, StandardCharsets.UTF_8) + ".idx");
+    }
+
+    /**
+     * Class that streams the bytes of a buffer, such as the body of an email in a mapped segment.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        /**
+         * Create an object of type BufferInputStream.
+         * @param buffer The bytes, from its position to its limit.
+         */
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read a single byte.
+         * @return The byte, or -1 at the end of the buffer.
+         */
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        /**
+         * Read bytes into an array.
+         * @param b The array.
+         * @param off The offset of the first byte in the array.
+         * @param len The largest number of bytes to read.
+         * @return The number of bytes read, or -1 at the end of the buffer.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * Get the number of bytes left.
+         * @return The number of bytes.
+         */
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Class that streams the header section at the start of a body, ending after the empty line that follows it.
+     */
+    private static class HeaderInputStream extends InputStream {
+        private final InputStream in;
+        private int newlines = 1; // an empty first line ends a header section with no fields
+        private boolean ended;
+
+        /**
+         * Create an object of type HeaderInputStream.
+         * @param in The stream over the body.
+         */
+        HeaderInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Read a single byte.
+         * @return The byte, or -1 at the end of the header section.
+         * @throws IOException
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        /**
+         * Read bytes into an array, stopping at the end of the header section.
+         * @param b The array.
+         * @param off The offset of the first byte in the array.
+         * @param len The largest number of bytes to read.
+         * @return The number of bytes read, or -1 at the end of the header section.
+         * @throws IOException
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            int n = in.read(b, off, len);
+            for (int i = off; i < off + n; i++) {
+                if (b[i] == '\n') {
+                    if (++newlines == 2) {
+                        ended = true;
+                        return i + 1 - off;
+                    }
+                } else if (b[i] != '\r') {
+                    newlines = 0;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Close the stream over the body.
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Force a channel to disk, ignoring any error.
+     * @param channel The channel.
+     */
+    private static void forceQuietly(FileChannel channel) {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Log.warn("Could not force an index to disk");
+        }
+    }
+
+    /**
+     * Close a channel, ignoring any error.
+     * @param channel The channel.
+     */
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done with a channel that fails to close
+        }
+    }
+}
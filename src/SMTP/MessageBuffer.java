@@ -0,0 +1,269 @@
+package SMTP;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Class that collects the body of an email while it is being received, using a bounded amount of memory.
+ * Bytes are kept in memory up to a threshold; beyond it the whole body is spilled to a temporary file and
+ * streamed there through a fixed-size buffer. A buffer is reused for every email of a session.
+ * <p>
+ * A buffer can also hash the body as it arrives, so the hash that deduplicates it in the mailbox store is ready
+ * as soon as the last byte has been received, without reading the body a second time. Only the text after the
+ * header section is hashed, since the headers of two copies of the same email differ in their trace fields and
+ * recipients.
+ */
+public class MessageBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int SPILL_BUFFER_SIZE = 8192;
+
+    private final int spillThreshold;
+    private final Path spoolDirectory;
+    private final MessageDigest digest; // null unless the body is hashed
+    private byte[] memory = new byte[INITIAL_CAPACITY];
+    private int memoryLength;
+    private Path spillFile; // non-null once the body has outgrown the threshold
+    private OutputStream spill;
+    private byte[] transfer; // carries the bytes of a direct buffer to the spill file
+    private long length;
+    private byte[] hash; // the hash of the body, once it has been asked for
+    private long headerLength = -1; // the length of the header section, once its empty line has been written
+    private int newlines = 1; // an empty first line ends a header section with no fields
+
+    /**
+     * Create an object of type MessageBuffer.
+     * @param spillThreshold The number of bytes kept in memory before the body is spilled to disk.
+     * @param spoolDirectory The directory in which spill files are created.
+     */
+    public MessageBuffer(int spillThreshold, Path spoolDirectory) {
+        this(spillThreshold, spoolDirectory, false);
+    }
+
+    /**
+     * Create an object of type MessageBuffer that may hash the body as it is written.
+     * @param spillThreshold The number of bytes kept in memory before the body is spilled to disk.
+     * @param spoolDirectory The directory in which spill files are created.
+     * @param hashed Whether to hash the body with the algorithm of the blob store.
+     */
+    public MessageBuffer(int spillThreshold, Path spoolDirectory, boolean hashed) {
+        this.spillThreshold = spillThreshold;
+        this.spoolDirectory = spoolDirectory;
+        try {
+            this.digest = hashed ? MessageDigest.getInstance(BlobStore.ALGORITHM) : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(BlobStore.ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Append a single byte to the body.
+     * @param b The byte.
+     * @throws IOException
+     */
+    @Override
+    public void write(int b) throws IOException {
+        // a line terminator is written after every line, so it stays clear of the general path
+        if (spill == null && memoryLength < memory.length && digest == null) {
+            memory[memoryLength++] = (byte) b;
+            length++;
+            return;
+        }
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Append bytes to the body, spilling it to disk once it outgrows the threshold.
+     * @param b The bytes.
+     * @param off The offset of the first byte to append.
+     * @param len The number of bytes to append.
+     * @throws IOException
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (digest != null) {
+            int headers = scanHeaders(ByteBuffer.wrap(b), off, len);
+            digest.update(b, off + headers, len - headers);
+        }
+        length += len;
+        if (spill == null && memoryLength + len > spillThreshold) {
+            startSpilling();
+        }
+
+        if (spill != null) {
+            spill.write(b, off, len);
+            return;
+        }
+
+        if (memoryLength + len > memory.length) {
+            memory = Arrays.copyOf(memory, Math.min(Math.max(memory.length * 2, memoryLength + len), spillThreshold));
+        }
+        System.arraycopy(b, off, memory, memoryLength, len);
+        memoryLength += len;
+    }
+
+    /**
+     * Append bytes held in a buffer to the body, spilling it to disk once it outgrows the threshold. The position
+     * of the buffer is left alone, and a direct buffer is copied without an intermediate array while the body
+     * fits in memory.
+     * @param src The buffer.
+     * @param offset The index of the first byte to append.
+     * @param len The number of bytes to append.
+     * @throws IOException
+     */
+    public void write(ByteBuffer src, int offset, int len) throws IOException {
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + offset, len);
+            return;
+        }
+
+        if (digest != null) {
+            int headers = scanHeaders(src, offset, len);
+            digest.update(src.slice(offset + headers, len - headers));
+        }
+        length += len;
+        if (spill == null && memoryLength + len > spillThreshold) {
+            startSpilling();
+        }
+
+        if (spill == null) {
+            if (memoryLength + len > memory.length) {
+                memory = Arrays.copyOf(memory, Math.min(Math.max(memory.length * 2, memoryLength + len), spillThreshold));
+            }
+            src.get(offset, memory, memoryLength, len);
+            memoryLength += len;
+            return;
+        }
+
+        if (transfer == null) {
+            transfer = new byte[SPILL_BUFFER_SIZE];
+        }
+        while (len > 0) {
+            int count = Math.min(len, transfer.length);
+            src.get(offset, transfer, 0, count);
+            spill.write(transfer, 0, count);
+            offset += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Look for the empty line that ends the header section among bytes about to be appended, so that only the text
+     * after it is hashed.
+     * @param src The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param len The number of bytes.
+     * @return The number of the bytes that belong to the header section.
+     */
+    private int scanHeaders(ByteBuffer src, int offset, int len) {
+        if (headerLength >= 0) {
+            return 0;
+        }
+        for (int i = 0; i < len; i++) {
+            byte b = src.get(offset + i);
+            if (b == '\n') {
+                if (++newlines == 2) {
+                    headerLength = length + i + 1;
+                    return i + 1;
+                }
+            } else if (b != '\r') {
+                newlines = 0;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Move the bytes held in memory to a new spill file, which receives every byte from now on.
+     * @throws IOException
+     */
+    private void startSpilling() throws IOException {
+        spillFile = Files.createTempFile(spoolDirectory, "smtp-", ".eml");
+        spill = new BufferedOutputStream(Files.newOutputStream(spillFile), SPILL_BUFFER_SIZE);
+        spill.write(memory, 0, memoryLength);
+        memoryLength = 0;
+    }
+
+    /**
+     * Get the number of bytes in the body.
+     * @return The length of the body.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Get the length of the header section of a hashed body, including the empty line that ends it.
+     * @return The length of the header section, or -1 if the buffer does not hash the body or the body has no
+     *         empty line.
+     */
+    public long headerLength() {
+        return headerLength;
+    }
+
+    /**
+     * Get the hash of the text after the header section of the body, which must be complete: the body cannot be
+     * written to until the buffer is reset.
+     * @return The hash, or null if the buffer does not hash the body or the body has no header section.
+     */
+    public byte[] hash() {
+        if (headerLength < 0) {
+            return null;
+        }
+        if (digest != null && hash == null) {
+            hash = digest.digest();
+        }
+        return hash;
+    }
+
+    /**
+     * Open a stream over the body that has been collected so far.
+     * @return The stream, which the caller must close.
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        if (spill == null) {
+            return new ByteArrayInputStream(memory, 0, memoryLength);
+        }
+        spill.flush();
+        return Files.newInputStream(spillFile);
+    }
+
+    /**
+     * Discard the body so the buffer can collect the next email, deleting any spill file.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        length = 0;
+        memoryLength = 0;
+        hash = null;
+        headerLength = -1;
+        newlines = 1;
+        if (digest != null) {
+            digest.reset();
+        }
+        if (spill != null) {
+            spill.close();
+            Files.deleteIfExists(spillFile);
+            spill = null;
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Discard the body and release the spill file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        reset();
+    }
+}
@@ -0,0 +1,40 @@
+package SMTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface for the codecs the mailbox store can compress the bodies of emails with. Every compressed record
+ * holds the identifier of its codec, so a store can read records written with any codec it knows of, whichever
+ * one it is configured to write with.
+ */
+public interface MessageCodec {
+    /**
+     * Get the identifier held by the records written with the codec.
+     * @return The identifier, from 1 to 255.
+     */
+    int getId();
+
+    /**
+     * Get the name of the codec, as used in the settings of the server.
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * Open a stream that compresses the bytes written to it.
+     * @param out The stream the compressed bytes are written to.
+     * @return The stream, which finishes the compressed bytes when closed but leaves the given stream open.
+     * @throws IOException
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Open a stream that decompresses the bytes read from another, as they are read.
+     * @param in The stream the compressed bytes are read from.
+     * @return The stream, which closes the given stream when closed.
+     * @throws IOException
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
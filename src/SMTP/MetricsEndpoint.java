@@ -0,0 +1,77 @@
+package SMTP;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Class that serves the metrics of a server as Prometheus text on {@code http://127.0.0.1:<port>/metrics}.
+ * <p>
+ * The endpoint only listens on the loopback address, so the metrics are not exposed beyond the machine unless
+ * something there forwards them, and it answers on a single daemon thread of its own, away from the sessions.
+ */
+public class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ServerMetrics metrics;
+
+    /**
+     * Create an object of type MetricsEndpoint listening on a local port.
+     * @param port The port to listen on, on the loopback address.
+     * @param metrics The metrics to serve.
+     * @throws IOException If the port cannot be bound.
+     */
+    public MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::scrape);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Start answering scrapes.
+     */
+    public void start() {
+        server.start();
+        Log.info("Serving metrics on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Answer a request for the metrics.
+     * @param exchange The request and its response.
+     * @throws IOException
+     */
+    private void scrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringBuilder text = new StringBuilder(8192);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package SMTP;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * Class that describes a block of IP addresses in CIDR notation, such as {@code 192.168.0.0/16} or {@code ::1/128}.
+ */
+public final class Network {
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private final byte[] address;
+    private final int prefixLength;
+
+    /**
+     * Create an object of type Network.
+     * @param address The address of the block, with every bit after the prefix cleared.
+     * @param prefixLength The number of leading bits that addresses in the block share with it.
+     */
+    private Network(byte[] address, int prefixLength) {
+        this.address = address;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * Parse a block of addresses. The address must be a literal, so parsing never waits for DNS.
+     * @param value An IPv4 or IPv6 address, optionally followed by {@code /} and the length of the prefix; without
+     *              one, the block holds that address alone.
+     * @return The block.
+     * @throws IllegalArgumentException If the value is not a literal address with a valid prefix length.
+     */
+    public static Network parse(String value) {
+        String[] parts = value.trim().split("/", 2);
+        if (!IPV4.matcher(parts[0]).matches() && parts[0].indexOf(':') < 0) {
+            throw new IllegalArgumentException("A network must be an IP address with a prefix length: " + value);
+        }
+        byte[] address;
+        try {
+            address = InetAddress.getByName(parts[0]).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("A network must be an IP address with a prefix length: " + value);
+        }
+        int prefixLength = address.length * 8;
+        if (parts.length == 2) {
+            try {
+                prefixLength = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("The prefix length of a network must be a number: " + value);
+            }
+            if (prefixLength < 0 || prefixLength > address.length * 8) {
+                throw new IllegalArgumentException("The prefix length of a network is out of range: " + value);
+            }
+        }
+        for (int bit = prefixLength; bit < address.length * 8; bit++) {
+            address[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+        }
+        return new Network(address, prefixLength);
+    }
+
+    /**
+     * Check whether an address belongs to the block. An IPv4 address never belongs to an IPv6 block, nor the other
+     * way around.
+     * @param other The address.
+     * @return Whether the address shares the prefix of the block.
+     */
+    public boolean contains(InetAddress other) {
+        byte[] bytes = other.getAddress();
+        if (bytes.length != address.length) {
+            return false;
+        }
+        int whole = prefixLength / 8;
+        for (int i = 0; i < whole; i++) {
+            if (bytes[i] != address[i]) {
+                return false;
+            }
+        }
+        int rest = prefixLength % 8;
+        return rest == 0 || ((bytes[whole] ^ address[whole]) & (0xFF00 >>> rest) & 0xFF) == 0;
+    }
+
+    /**
+     * Get the block in CIDR notation.
+     * @return The address of the block, {@code /} and the length of its prefix.
+     */
+    @Override
+    public String toString() {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress() + "/" + prefixLength;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // the address always has a valid length
+        }
+    }
+}
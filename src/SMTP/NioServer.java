@@ -0,0 +1,563 @@
+package SMTP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that serves SMTP clients with a small, fixed number of event-loop threads instead of a thread per connection.
+ * Each connection is a non-blocking channel whose protocol state lives in an SmtpSession, so an idle client
+ * costs a selection key and a few small objects rather than a blocked thread and its stack.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 512;
+    private static final int MAX_OUTPUT_BYTES = 64 * 1024; // replies a client may leave unread before it is cut off
+
+    private final ServerSocketChannel[] channels;
+    private final String serverName;
+    private final int acceptors;
+    private final AcceptMetrics acceptMetrics;
+    private final ServerMetrics metrics;
+    private final ServerConfig config;
+    private final DeliveryWriter writer;
+    private final HostResolver resolver;
+    private final TimerWheel timer;
+    private final AdmissionControl admission;
+    private final TlsContext tls;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Create an object of type NioServer that accepts connections from already bound server channels.
+     * @param channels The bound server channels; several when they share a port through SO_REUSEPORT.
+     * @param serverName The host name the server announces to clients.
+     * @param config The settings of the server.
+     * @param metrics The metrics that accepted connections and sessions are recorded in.
+     * @param writer The writer that received emails are saved with.
+     * @param resolver The resolver that looks up the host names of clients.
+     * @param timer The timer wheel the timeouts of the sessions are checked on.
+     * @param admission The admission control that accepted connections must pass.
+     * @param tls The TLS context STARTTLS is served with, or null if it is not offered.
+     * @throws IOException
+     */
+    public NioServer(ServerSocketChannel[] channels, String serverName, ServerConfig config, ServerMetrics metrics,
+            DeliveryWriter writer, HostResolver resolver, TimerWheel timer, AdmissionControl admission,
+            TlsContext tls) throws IOException {
+        this.channels = channels;
+        this.serverName = serverName;
+        this.acceptors = config.getAcceptors();
+        this.acceptMetrics = metrics.getAccepts();
+        this.metrics = metrics;
+        this.config = config;
+        this.writer = writer;
+        this.resolver = resolver;
+        this.timer = timer;
+        this.admission = admission;
+        this.tls = tls;
+        this.loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Primary method used to accept clients and distribute them across the event loops.
+     * @throws IOException
+     */
+    public void listen() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "smtp-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // every acceptor after the first runs on its own thread; the first one keeps the calling thread busy
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocketChannel channel = channels[i % channels.length];
+            new Thread(() -> acceptConnections(channel), "smtp-acceptor-" + i).start();
+        }
+        acceptConnections(channels[0]);
+    }
+
+    /**
+     * Accept clients from a server channel and hand each one straight to an event loop.
+     * @param channel The server channel.
+     */
+    private void acceptConnections(ServerSocketChannel channel) {
+        while (channel.isOpen()) {
+            try {
+                long start = System.nanoTime();
+                SocketChannel client = channel.accept();
+                acceptMetrics.recordAccept(System.nanoTime() - start);
+                Log.info("Connected to " + client.socket().getInetAddress().getHostAddress());
+
+                // a client that is not admitted is turned away before an event loop ever sees it
+                AdmissionControl.Admission admitted = admission.admit(client.socket().getInetAddress());
+                if (admitted.refusal() != null) {
+                    refuse(client, admitted.refusal());
+                    continue;
+                }
+                resolver.resolve(client.socket().getInetAddress());
+
+                // hand the connection to the event loops in turn
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(client, admitted.peer());
+            } catch (IOException e) {
+                Log.error("Could not accept a connection", e);
+            }
+        }
+    }
+
+    /**
+     * Turn a client away because the server or its address is at capacity, and close its channel. The channel is
+     * still blocking and its send buffer is empty, so the reply is written at once.
+     * @param client The channel of the client.
+     * @param refusal Why the client is turned away.
+     */
+    private void refuse(SocketChannel client, AdmissionControl.Refusal refusal) {
+        Log.info("Refusing " + client.socket().getInetAddress().getHostAddress() + ": " + refusal.getReason());
+        try (client) {
+            client.write(ByteBuffer.wrap(("421 " + serverName + " " + refusal.getReason() + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            Log.error("Could not refuse " + client.socket().getInetAddress().getHostAddress(), e);
+        }
+    }
+
+    /**
+     * Class that runs a selector over the connections assigned to it.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Accepted> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        /**
+         * Create an object of type EventLoop with its own selector.
+         * @throws IOException
+         */
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queue a newly accepted connection to be served by this event loop.
+         * @param client The channel of the client.
+         * @param peer The state of the client address in admission control.
+         */
+        void register(SocketChannel client, AdmissionControl.Peer peer) {
+            pending.add(new Accepted(client, peer, System.nanoTime()));
+            selector.wakeup();
+        }
+
+        /**
+         * Queue a task to be run on the event-loop thread, such as the continuation of a session.
+         * @param task The task.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Run the tasks that were queued since the last selection.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Register the connections that were queued since the last selection.
+         */
+        private void registerPending() {
+            Accepted accepted;
+            while ((accepted = pending.poll()) != null) {
+                SocketChannel client = accepted.client();
+                acceptMetrics.recordHandoff(System.nanoTime() - accepted.at());
+                Connection connection = null;
+                try {
+                    client.configureBlocking(false);
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    connection = new Connection(client, key, this, accepted.peer());
+                    key.attach(connection);
+                    connection.session.initiateCommunication();
+                    connection.flush();
+                } catch (Exception e) {
+                    Log.error("Could not register a connection", e);
+                    if (connection != null) {
+                        connection.close(); // also ends the session
+                    } else {
+                        accepted.peer().release();
+                        closeQuietly(client);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Primary method used to wait for and dispatch readiness events.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (Exception e) {
+                            Log.error("Session with " + connection.session.getClientName() + " failed", e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("Event loop could not select", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection waiting to be registered with an event loop, along with when it was accepted.
+     * @param client The channel of the client.
+     * @param peer The state of the client address in admission control.
+     * @param at The value of System.nanoTime() when the connection was accepted.
+     */
+    private record Accepted(SocketChannel client, AdmissionControl.Peer peer, long at) {
+    }
+
+    /**
+     * Class that holds the buffers and session of a single non-blocking client connection.
+     */
+    private class Connection implements SmtpSession.Transport {
+        private final SocketChannel client;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final SmtpSession session;
+        private byte[] line = new byte[128]; // the bytes of a line that has not been terminated yet
+        private int lineLength;
+        private ByteBuffer output; // replies the socket has not accepted yet, in read mode, or null
+        private ByteBuffer unread; // input received while the session was suspended, or null
+        private boolean suspended; // whether the session is waiting for an asynchronous operation
+        private boolean startingTls; // whether the reply to STARTTLS is still being written in plain text
+        private TlsEngine engine; // null until the client has sent STARTTLS
+        private boolean closing;
+        private boolean closed;
+
+        /**
+         * Create an object of type Connection for a registered client channel.
+         * @param client The channel of the client.
+         * @param key The selection key of the channel.
+         * @param loop The event loop serving the channel.
+         * @param peer The state of the client address in admission control.
+         */
+        Connection(SocketChannel client, SelectionKey key, EventLoop loop, AdmissionControl.Peer peer) {
+            this.client = client;
+            this.key = key;
+            this.loop = loop;
+            this.session = new SmtpSession(serverName, client.socket().getInetAddress(), resolver, this, config,
+                    writer, metrics, timer, peer);
+        }
+
+        /**
+         * Read the available bytes from the client and feed each complete line to the session.
+         * @param buffer The read buffer shared by every connection of the event loop.
+         * @throws Exception
+         */
+        void read(ByteBuffer buffer) throws Exception {
+            buffer.clear();
+            int count = client.read(buffer);
+            if (count < 0) {
+                if (engine != null) {
+                    engine.disconnected();
+                }
+                close();
+                return;
+            }
+            metrics.recordBytesReceived(count);
+            buffer.flip();
+            if (engine != null) {
+                // the plaintext stays in the engine until the session has consumed it
+                engine.receive(buffer);
+                process(engine.plaintext());
+                closing |= engine.isInboundClosed();
+            } else {
+                process(buffer);
+
+                // the shared buffer is reused by the next connection, so keep what the session did not consume yet
+                if (suspended && buffer.hasRemaining()) {
+                    unread = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                }
+            }
+
+            // every command that arrived has been handled, so their replies leave together
+            flush();
+        }
+
+        /**
+         * Feed each complete line of a buffer to the session, or the bytes of the email it is receiving, until
+         * the buffer is empty or the session is suspended or finished.
+         * @param buffer The received bytes.
+         * @throws Exception
+         */
+        private void process(ByteBuffer buffer) throws Exception {
+            while (buffer.hasRemaining() && !closing && !suspended && !startingTls) {
+                // the body of an email goes straight from the read buffer to the session
+                if (session.isReceivingEmail()) {
+                    if (!session.handleData(buffer)) {
+                        closing = true;
+                    }
+                    continue;
+                }
+
+                byte b = buffer.get();
+                if (b != '\n') {
+                    appendToLine(b);
+                    continue;
+                }
+
+                // strip the carriage return of a CRLF terminator
+                int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                lineLength = 0;
+                if (!session.handleLine(line, length)) {
+                    closing = true;
+                }
+            }
+
+            // whatever the client pipelined after STARTTLS was sent in plain text, so it is dropped
+            if (startingTls) {
+                buffer.position(buffer.limit());
+            }
+        }
+
+        /**
+         * Append a byte to the line that is being received, growing the line buffer when needed.
+         * @param b The byte.
+         * @throws IOException
+         */
+        private void appendToLine(byte b) throws IOException {
+            if (lineLength == line.length) {
+                if (line.length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line from " + session.getClientName() + " is too long");
+                }
+                line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+            }
+            line[lineLength++] = b;
+        }
+
+        /**
+         * Stop reading from the client until an asynchronous operation has completed, then continue the session
+         * on the event-loop thread.
+         * @param operation The operation.
+         * @param continuation The work to do once the operation has completed.
+         */
+        @Override
+        public void await(CompletableFuture<?> operation, SmtpSession.Continuation continuation) {
+            suspended = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            operation.whenComplete((result, error) -> loop.execute(() -> resume(continuation)));
+        }
+
+        /**
+         * Continue a suspended session, then process any input that arrived while it was suspended.
+         * @param continuation The work to do now that the operation has completed.
+         */
+        private void resume(SmtpSession.Continuation continuation) {
+            suspended = false;
+            if (closed) {
+                session.close();
+                return;
+            }
+
+            try {
+                continuation.run();
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if (engine != null) {
+                    process(engine.plaintext());
+                } else if (unread != null) {
+                    ByteBuffer buffer = unread;
+                    unread = null;
+                    process(buffer);
+                    if (suspended && buffer.hasRemaining()) {
+                        unread = buffer;
+                    }
+                }
+                flush();
+            } catch (Exception e) {
+                Log.error("Session with " + session.getClientName() + " failed", e);
+                close();
+            }
+        }
+
+        /**
+         * Send the final reply of a session that has timed out and close the connection, on the event-loop thread.
+         * @param reply The reply, without a line terminator.
+         */
+        @Override
+        public void expire(String reply) {
+            loop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                sendMessage(reply);
+                closing = true;
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        /**
+         * Close the connection on the event-loop thread, without waiting for the replies still queued.
+         */
+        @Override
+        public void abort() {
+            loop.execute(this::close);
+        }
+
+        /**
+         * Check whether the connection can be upgraded to TLS.
+         * @return Whether the server has a certificate and the connection is not encrypted yet.
+         */
+        @Override
+        public boolean canStartTls() {
+            return tls != null && engine == null && !startingTls;
+        }
+
+        /**
+         * Stop feeding lines to the session, and start the TLS engine once the reply to STARTTLS has been written.
+         */
+        @Override
+        public void startTls() {
+            startingTls = true;
+        }
+
+        /**
+         * Queue a message for the client; it is transmitted by the next flush. The replies share one buffer per
+         * connection, which grows by doubling, so queuing a reply costs the same however many are waiting. A
+         * client that leaves more than {@code MAX_OUTPUT_BYTES} of replies unread is disconnected instead.
+         * @param message The message that will be transmitted.
+         */
+        @Override
+        public void sendMessage(String message) {
+            byte[] bytes = (message + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            if (output == null) {
+                output = ByteBuffer.allocate(Math.max(OUTPUT_BUFFER_SIZE, bytes.length)).flip();
+            }
+            if (output.remaining() + bytes.length > MAX_OUTPUT_BYTES) {
+                if (!closing) {
+                    Log.warn("Closing connection to " + session.getClientName() + ", which does not read its replies");
+                }
+                closing = true;
+                return;
+            }
+
+            if (output.capacity() - output.limit() >= bytes.length) {
+                int start = output.position();
+                output.position(output.limit()).limit(output.capacity());
+                output.put(bytes).flip().position(start);
+            } else if (output.remaining() + bytes.length <= output.capacity()) {
+                output.compact().put(bytes).flip();
+            } else {
+                output = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.remaining() + bytes.length))
+                        .put(output).put(bytes).flip();
+            }
+        }
+
+        /**
+         * Write the queued replies, waiting for the socket to become writable if it cannot take them all,
+         * and close the connection once the last reply has been written if the session has finished. Over TLS
+         * the replies are encrypted first, along with any handshake message the engine has to send. No more is
+         * read from the client while its replies are waiting, so a client that does not read them cannot make
+         * them pile up.
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            if (engine != null && output != null) {
+                engine.send(output);
+                output = null;
+            }
+
+            ByteBuffer pending = engine != null ? engine.ciphertext() : output;
+            if (pending != null && pending.hasRemaining()) {
+                metrics.recordBytesSent(client.write(pending));
+                if (pending.hasRemaining()) {
+                    key.interestOps((key.interestOps() | SelectionKey.OP_WRITE) & ~SelectionKey.OP_READ);
+                    return;
+                }
+                // a suspended session is read from again once it resumes
+                key.interestOps((key.interestOps() & ~SelectionKey.OP_WRITE)
+                        | (suspended ? 0 : SelectionKey.OP_READ));
+            }
+            output = null;
+
+            // the client starts the handshake once it has the reply to STARTTLS
+            if (startingTls) {
+                engine = tls.newServerEngine(metrics);
+                startingTls = false;
+            }
+            if (closing) {
+                close();
+            }
+        }
+
+        /**
+         * Close the connection to the client.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Log.info("Closing connection to " + session.getClientName());
+            key.cancel();
+            closeQuietly(client);
+
+            // a suspended session still lends its buffers to an operation, so it is released when it resumes
+            if (!suspended) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Close a client channel, ignoring any error.
+     * @param client The channel of the client.
+     */
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // nothing more can be done with a channel that fails to close
+        }
+    }
+}
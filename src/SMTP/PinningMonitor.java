@@ -0,0 +1,61 @@
+package SMTP;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Class that detects virtual threads pinned to their carrier thread, for example while blocking inside a
+ * synchronized block of a PrintWriter or BufferedReader, using the JDK Flight Recorder's pinning event.
+ */
+public class PinningMonitor {
+    private final LongAdder pinned = new LongAdder();
+    private final RecordingStream stream = new RecordingStream();
+
+    /**
+     * Create an object of type PinningMonitor and start listening for pinned virtual threads.
+     * @param threshold How long a virtual thread must stay pinned before it is reported.
+     */
+    public PinningMonitor(Duration threshold) {
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", this::report);
+        stream.startAsync();
+    }
+
+    /**
+     * Count a pinning event and print where it happened.
+     * @param event The pinning event.
+     */
+    private void report(RecordedEvent event) {
+        pinned.increment();
+        String location = "unknown location";
+        if (event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                if (frame.isJavaFrame()) {
+                    location = frame.getMethod().getType().getName() + "." + frame.getMethod().getName() +
+                            ":" + frame.getLineNumber();
+                    break;
+                }
+            }
+        }
+        Log.warn("Virtual thread pinned for " + event.getDuration().toMillis() + "ms at " + location);
+    }
+
+    /**
+     * Get the number of pinning events seen since the monitor was started.
+     * @return The number of pinning events.
+     */
+    public long getPinned() {
+        return pinned.sum();
+    }
+
+    /**
+     * Stop listening for pinned virtual threads.
+     */
+    public void close() {
+        stream.close();
+    }
+}
@@ -0,0 +1,443 @@
+package SMTP;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that serves the mailboxes of the mailbox store over a minimal POP3 on {@code 127.0.0.1:<port>}.
+ * <p>
+ * It supports {@code USER}, {@code PASS}, {@code STAT}, {@code LIST}, {@code UIDL}, {@code RETR}, {@code TOP},
+ * {@code DELE}, {@code RSET}, {@code NOOP}, {@code CAPA} and {@code QUIT}. Only the mailboxes listed in the
+ * password file of the configuration can be opened, each with its own password; the passwords travel in plain
+ * text, so like the metrics endpoint it only listens on the loopback address. Commands are read up to 512 bytes,
+ * and a client that sends a longer line is disconnected. A session works on the mailbox as it was when the
+ * session logged in, and deletes the emails marked with {@code DELE} when it quits. Every session runs on a
+ * virtual thread of its own, and reads the mailbox through its mappings, so it never holds up a delivery.
+ */
+public class Pop3Server {
+    private static final int LINE_LENGTH = 512;
+
+    private final ServerSocket server;
+    private final MailboxStore store;
+    private final Map<String, byte[]> passwords; // the password of every mailbox that may be opened
+    private final Set<String> locked = ConcurrentHashMap.newKeySet(); // mailboxes a session is logged in to
+
+    /**
+     * Create an object of type Pop3Server listening on the local port of the configuration.
+     * @param config The settings of the server, which must name the password file.
+     * @param store The mailbox store to serve.
+     * @throws IOException If the password file cannot be read or the port cannot be bound.
+     */
+    public Pop3Server(ServerConfig config, MailboxStore store) throws IOException {
+        if (config.getPop3Users() == null) {
+            throw new IllegalArgumentException("POP3 needs a password file; set smtp.pop3Users");
+        }
+        this.store = store;
+        this.passwords = readPasswords(config.getPop3Users());
+        this.server = new ServerSocket(config.getPop3Port(), 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Read a password file, made of {@code address:password} lines. Blank lines and lines starting with
+     * {@code #} are skipped.
+     * @param path The path of the file.
+     * @return The password of each address.
+     * @throws IOException If the file cannot be read or a line has no password.
+     */
+    private static Map<String, byte[]> readPasswords(Path path) throws IOException {
+        Map<String, byte[]> passwords = new HashMap<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 1) {
+                throw new IOException("A line of " + path + " must look like address:password");
+            }
+            passwords.put(line.substring(0, colon).trim(), line.substring(colon + 1).getBytes(StandardCharsets.UTF_8));
+        }
+        return passwords;
+    }
+
+    /**
+     * Start accepting sessions on a daemon thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptSessions, "smtp-pop3");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Serving mailboxes over POP3 on " + server.getInetAddress().getHostAddress() + ":"
+                + server.getLocalPort());
+    }
+
+    /**
+     * Get the port on which the POP3 socket is bound.
+     * @return The port.
+     */
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept sessions until the socket is closed, each on a virtual thread.
+     */
+    private void acceptSessions() {
+        Thread.Builder sessions = Thread.ofVirtual().name("smtp-pop3-session-", 0);
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                sessions.start(() -> serve(client));
+            } catch (IOException e) {
+                Log.error("Could not accept a POP3 session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hold a session with a client until it quits or goes away.
+     * @param client The socket of the client.
+     */
+    private void serve(Socket client) {
+        Session session = null;
+        try (client) {
+            session = new Session(client.getInputStream(), client.getOutputStream());
+            session.run();
+        } catch (IOException e) {
+            Log.debug("POP3 session ended: " + e.getMessage());
+        } finally {
+            if (session != null) {
+                session.unlock();
+            }
+        }
+    }
+
+    /**
+     * Class that holds the state of a single POP3 session.
+     */
+    private class Session {
+        private final LineReader in;
+        private final OutputStream out;
+        private String user;
+        private boolean holdsLock;
+        private MailboxStore.Mailbox mailbox; // null until the session has logged in
+        private long[] numbers; // the store numbers of the emails, by session number minus 1
+        private BitSet marked; // the emails marked for deletion, by session number minus 1
+
+        /**
+         * Create an object of type Session.
+         * @param in The stream the commands are read from.
+         * @param out The stream the replies are written to.
+         */
+        Session(InputStream in, OutputStream out) {
+            this.in = new LineReader(in, LINE_LENGTH);
+            this.out = new BufferedOutputStream(out);
+        }
+
+        /**
+         * Greet the client and answer its commands until it quits or goes away.
+         * @throws IOException
+         */
+        void run() throws IOException {
+            reply("+OK POP3 ready");
+            while (in.readLine()) {
+                String line = new String(in.getLine(), 0, in.getLineLength(), StandardCharsets.ISO_8859_1);
+                String[] words = line.trim().split(" +");
+                String command = words[0].toUpperCase();
+                try {
+                    if (command.equals("QUIT")) {
+                        quit();
+                        return;
+                    }
+                    if (mailbox == null) {
+                        authorize(command, words, line);
+                    } else {
+                        transact(command, words);
+                    }
+                } catch (IllegalArgumentException e) {
+                    reply("-ERR " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Answer a command before the session has logged in.
+         * @param command The command, in upper case.
+         * @param words The command followed by its arguments.
+         * @param line The whole command line, since a password may hold spaces.
+         * @throws IOException
+         */
+        private void authorize(String command, String[] words, String line) throws IOException {
+            switch (command) {
+                case "CAPA" -> capabilities();
+                case "NOOP" -> reply("+OK");
+                case "USER" -> {
+                    user = argument(words, 1);
+                    reply("+OK send PASS");
+                }
+                case "PASS" -> {
+                    if (user == null) {
+                        throw new IllegalArgumentException("send USER first");
+                    }
+                    // the password is everything after the space that follows the command
+                    String rest = line.stripLeading();
+                    String given = rest.length() > 5 ? rest.substring(5) : "";
+                    byte[] password = passwords.get(user);
+                    if (password == null
+                            || !MessageDigest.isEqual(password, given.getBytes(StandardCharsets.UTF_8))) {
+                        user = null;
+                        throw new IllegalArgumentException("invalid user name or password");
+                    }
+                    if (!locked.add(user)) {
+                        user = null;
+                        throw new IllegalArgumentException("mailbox already in use");
+                    }
+                    holdsLock = true;
+                    open();
+                }
+                default -> throw new IllegalArgumentException("unknown command");
+            }
+        }
+
+        /**
+         * Answer a command once the session has logged in.
+         * @param command The command, in upper case.
+         * @param words The command followed by its arguments.
+         * @throws IOException
+         */
+        private void transact(String command, String[] words) throws IOException {
+            switch (command) {
+                case "CAPA" -> capabilities();
+                case "NOOP" -> reply("+OK");
+                case "STAT" -> {
+                    long count = 0;
+                    long bytes = 0;
+                    for (int i = 0; i < numbers.length; i++) {
+                        MailboxStore.Message message = marked.get(i) ? null : mailbox.message(numbers[i]);
+                        if (message != null) {
+                            count++;
+                            bytes += message.rawLength();
+                        }
+                    }
+                    reply("+OK " + count + " " + bytes);
+                }
+                case "LIST", "UIDL" -> {
+                    boolean uidl = command.equals("UIDL");
+                    if (words.length > 1) {
+                        int i = select(words[1]);
+                        reply("+OK " + (i + 1) + " " + (uidl ? numbers[i] : message(i).rawLength()));
+                        return;
+                    }
+                    StringBuilder listing = new StringBuilder("+OK\r\n");
+                    for (int i = 0; i < numbers.length; i++) {
+                        MailboxStore.Message message = marked.get(i) ? null : mailbox.message(numbers[i]);
+                        if (message != null) {
+                            listing.append(i + 1).append(' ').append(uidl ? numbers[i] : message.rawLength())
+                                    .append("\r\n");
+                        }
+                    }
+                    reply(listing.append('.').toString());
+                }
+                case "RETR" -> {
+                    MailboxStore.Message message = message(select(argument(words, 1)));
+                    try (InputStream body = store.openBody(message)) {
+                        reply("+OK " + message.rawLength() + " octets");
+                        send(body, -1);
+                    }
+                }
+                case "TOP" -> {
+                    MailboxStore.Message message = message(select(argument(words, 1)));
+                    long lines = parseNumber(argument(words, 2));
+                    // without any line of the text, only the mapped header section is read
+                    try (InputStream body = lines == 0 ? store.openHeaders(message) : store.openBody(message)) {
+                        reply("+OK");
+                        send(body, lines);
+                    }
+                }
+                case "DELE" -> {
+                    int i = select(argument(words, 1));
+                    marked.set(i);
+                    reply("+OK message " + (i + 1) + " deleted");
+                }
+                case "RSET" -> {
+                    marked.clear();
+                    reply("+OK");
+                }
+                default -> throw new IllegalArgumentException("unknown command");
+            }
+        }
+
+        /**
+         * Open the mailbox of the user and number the emails that are still in it.
+         * @throws IOException
+         */
+        private void open() throws IOException {
+            MailboxStore.Mailbox opened = store.open(user);
+            int count = 0;
+            long[] live = new long[(int) Math.min(Integer.MAX_VALUE - 8, opened.size())];
+            for (long number = 0; number < live.length; number++) {
+                if (!opened.isDeleted(number)) {
+                    live[count++] = number;
+                }
+            }
+            numbers = Arrays.copyOf(live, count);
+            marked = new BitSet(count);
+            mailbox = opened;
+            reply("+OK " + count + " messages");
+        }
+
+        /**
+         * Delete the emails marked for deletion and end the session.
+         * @throws IOException
+         */
+        private void quit() throws IOException {
+            int deleted = 0;
+            if (mailbox != null) {
+                for (int i = marked.nextSetBit(0); i >= 0; i = marked.nextSetBit(i + 1)) {
+                    if (mailbox.delete(numbers[i])) {
+                        deleted++;
+                    }
+                }
+            }
+            reply("+OK " + deleted + " messages deleted");
+        }
+
+        /**
+         * Let another session log in to the mailbox of this one.
+         */
+        void unlock() {
+            if (holdsLock) {
+                locked.remove(user);
+            }
+        }
+
+        /**
+         * List the capabilities of the server.
+         * @throws IOException
+         */
+        private void capabilities() throws IOException {
+            reply("+OK\r\nUSER\r\nTOP\r\nUIDL\r\n.");
+        }
+
+        /**
+         * Turn a session number into an index of the emails of the session.
+         * @param word The session number, counting from 1.
+         * @return The index.
+         */
+        private int select(String word) {
+            long number = parseNumber(word);
+            if (number < 1 || number > numbers.length || marked.get((int) number - 1)) {
+                throw new IllegalArgumentException("no such message");
+            }
+            return (int) number - 1;
+        }
+
+        /**
+         * Look up an email of the session.
+         * @param i The index of the email.
+         * @return The email.
+         * @throws IOException
+         */
+        private MailboxStore.Message message(int i) throws IOException {
+            MailboxStore.Message message = mailbox.message(numbers[i]);
+            if (message == null) {
+                throw new IllegalArgumentException("message was deleted by another reader");
+            }
+            return message;
+        }
+
+        /**
+         * Send an email as the lines of a multi-line reply, doubling every leading dot.
+         * @param body The bytes of the email.
+         * @param textLines The number of lines of the text to send after the header section, or -1 for all.
+         * @throws IOException
+         */
+        private void send(InputStream body, long textLines) throws IOException {
+            byte[] buffer = new byte[8192];
+            boolean lineStart = true;
+            boolean inHeaders = true;
+            boolean emptyLine = true; // whether the line so far holds nothing but a carriage return
+            int n;
+            copy:
+            while ((n = body.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if (lineStart) {
+                        if (!inHeaders && textLines >= 0 && textLines-- == 0) {
+                            break copy;
+                        }
+                        if (b == '.') {
+                            out.write('.');
+                        }
+                        emptyLine = true;
+                    }
+                    out.write(b);
+                    lineStart = b == '\n';
+                    if (lineStart && emptyLine) {
+                        inHeaders = false;
+                    }
+                    emptyLine &= b == '\r' || b == '\n';
+                }
+            }
+            if (!lineStart) {
+                out.write('\r');
+                out.write('\n');
+            }
+            reply(".");
+        }
+
+        /**
+         * Write a reply line and flush it.
+         * @param reply The reply, without its final line break.
+         * @throws IOException
+         */
+        private void reply(String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+
+    /**
+     * Get an argument of a command.
+     * @param words The command followed by its arguments.
+     * @param i The position of the argument.
+     * @return The argument.
+     */
+    private static String argument(String[] words, int i) {
+        if (words.length <= i) {
+            throw new IllegalArgumentException("missing argument");
+        }
+        return words[i];
+    }
+
+    /**
+     * Parse a number given as an argument of a command.
+     * @param word The argument.
+     * @return The number, which is not negative.
+     */
+    private static long parseNumber(String word) {
+        try {
+            long number = Long.parseLong(word);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("invalid number " + word);
+    }
+}
@@ -0,0 +1,154 @@
+package SMTP;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Class that holds the pieces of the on-disk formats shared by the mailbox store, the blob store and the relay
+ * spool: the envelope at the start of an email record, the strings in it, and the reading and forcing of files.
+ * <p>
+ * The envelope is laid out as
+ * <pre>
+ * long timestamp | short length, sender | short count, (short length, recipient)...
+ * </pre>
+ * with every string in UTF-8.
+ */
+final class RecordFiles {
+    /**
+     * Create an object of type RecordFiles, which only has static methods.
+     */
+    private RecordFiles() {
+    }
+
+    /**
+     * Write the envelope of an email record.
+     * @param out The stream to write to.
+     * @param timestamp When the email was received, in milliseconds since the epoch.
+     * @param sender The sender of the email.
+     * @param recipients The recipients of the email.
+     * @throws IOException If an address is too long, there are too many recipients, or the stream fails.
+     */
+    static void writeEnvelope(DataOutputStream out, long timestamp, String sender, List<String> recipients)
+            throws IOException {
+        out.writeLong(timestamp);
+        writeString(out, sender);
+        if (recipients.size() > 0xFFFF) {
+            throw new IOException("Too many recipients");
+        }
+        out.writeShort(recipients.size());
+        for (String recipient : recipients) {
+            writeString(out, recipient);
+        }
+    }
+
+    /**
+     * Skip the envelope of an email record.
+     * @param buffer The buffer to read from, positioned at the timestamp of the record.
+     */
+    static void skipEnvelope(ByteBuffer buffer) {
+        buffer.getLong();
+        skipString(buffer);
+        for (int i = Short.toUnsignedInt(buffer.getShort()); i > 0; i--) {
+            skipString(buffer);
+        }
+    }
+
+    /**
+     * Write a string preceded by its length.
+     * @param out The stream to write to.
+     * @param value The string.
+     * @throws IOException
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Address is too long");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string preceded by its length.
+     * @param in The stream to read from.
+     * @return The string.
+     * @throws IOException
+     */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string preceded by its length.
+     * @param buffer The buffer to read from.
+     * @return The string.
+     */
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skip a string preceded by its length.
+     * @param buffer The buffer to read from.
+     */
+    private static void skipString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Read a number of bytes from a position of a channel.
+     * @param channel The channel.
+     * @param position The position to read from.
+     * @param length The number of bytes.
+     * @return A buffer holding the bytes, ready to be read.
+     * @throws IOException
+     */
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, position);
+        return buffer.flip();
+    }
+
+    /**
+     * Fill a buffer from a position of a channel.
+     * @param channel The channel.
+     * @param buffer The buffer.
+     * @param position The position to read from.
+     * @throws IOException
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Force a directory to disk, so that the files created, renamed or deleted in it stay that way. A platform
+     * that cannot open a directory is left alone, since its renames are still atomic.
+     * @param directory The directory.
+     */
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            Log.debug("Could not force the directory " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package SMTP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Class that relays the emails of recipients in other domains to the servers of those domains.
+ * <p>
+ * An email is written to the {@link RelaySpool} before it is acknowledged, and then waits in a delay queue until
+ * it is due. A fixed number of workers take due emails from the queue and send each of them once per destination
+ * domain, over the pooled connections of a {@link ClientPool}, which speaks the same protocol as the other clients
+ * and caps the number of connections to each server. A domain is delivered to the server of its route if it has
+ * one, and otherwise to its mail exchangers in order of preference. Recipients that were delivered, or refused
+ * for good, are settled; the rest are tried again after a delay that doubles with every attempt, up to a limit,
+ * until the email is too old and the relay gives up on them. The progress of an email is written to the spool
+ * after every attempt, so a restart picks up where the relay left off.
+ */
+public class RelayQueue {
+    private static final int SMTP_PORT = 25;
+    private static final String ANY_DOMAIN = "*";
+
+    /**
+     * What became of a relayed recipient after an attempt.
+     */
+    public enum Outcome {
+        /** The server of the recipient accepted the email. */
+        DELIVERED,
+        /** The email could not be delivered yet, and will be tried again. */
+        DEFERRED,
+        /** The server refused the recipient for good, or the email was too old to try again. */
+        FAILED
+    }
+
+    private final RelaySpool spool;
+    private final ClientPool clients;
+    private final ServerMetrics metrics;
+    private final Set<String> localDomains;
+    private final Map<String, InetSocketAddress> routes;
+    private final int workers;
+    private final long retryMinMillis;
+    private final long retryMaxMillis;
+    private final long maxAgeMillis;
+    private final DelayQueue<Scheduled> schedule = new DelayQueue<>();
+    private final AtomicInteger spooled = new AtomicInteger();
+    private final ExecutorService writer;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean stopped;
+
+    /**
+     * An email in the delay queue.
+     * @param entry The email, or null to tell the worker that takes it to stop.
+     * @param due The value of System.nanoTime() at which the email is due.
+     */
+    private record Scheduled(RelaySpool.Entry entry, long due) implements Delayed {
+        /**
+         * Get how long it is until the email is due.
+         * @param unit The unit of the delay.
+         * @return The delay, which is negative once the email is overdue.
+         */
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Order emails by when they are due.
+         * @param other The other email.
+         * @return A negative number, zero, or a positive number as this email is due before, with, or after it.
+         */
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Create an object of type RelayQueue. Its emails are only loaded and delivered once it is started.
+     * @param config The settings of the server.
+     * @param metrics The metrics the outcomes of the relayed recipients are recorded in.
+     * @throws IOException If the relay directory cannot be created.
+     */
+    public RelayQueue(ServerConfig config, ServerMetrics metrics) throws IOException {
+        this.spool = new RelaySpool(config);
+        this.metrics = metrics;
+        this.localDomains = config.getLocalDomains();
+        this.routes = config.getRelayRoutes();
+        this.workers = config.getRelayWorkers();
+        this.retryMinMillis = TimeUnit.SECONDS.toMillis(config.getRelayRetryMinSeconds());
+        this.retryMaxMillis = TimeUnit.SECONDS.toMillis(config.getRelayRetryMaxSeconds());
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(config.getRelayMaxAgeSeconds());
+
+        // the relay connects like any other client, with at most a few connections to each server
+        ClientConfig client = ClientConfig.fromSystemProperties();
+        client.setMaxConnections(config.getRelayConnectionsPerHost());
+        this.clients = new ClientPool(client);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-relay-spool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedule the emails that were waiting when the server last stopped, and start the workers.
+     * @throws IOException If the spool cannot be read.
+     */
+    public void start() throws IOException {
+        List<RelaySpool.Entry> entries = spool.load();
+        for (RelaySpool.Entry entry : entries) {
+            spooled.incrementAndGet();
+            schedule(entry);
+        }
+        if (!entries.isEmpty()) {
+            Log.info("Resuming the relay of " + entries.size() + " emails");
+        }
+
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(this::work, "smtp-relay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Stop the workers once they have finished the attempts they are making, and close the connections of the
+     * relay. The emails still waiting stay in the spool, for a queue started on the same directory to carry on
+     * with; no email may be enqueued once the queue has stopped.
+     * @throws InterruptedException If the thread is interrupted while it waits for the workers.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        // the workers are not interrupted, since that would close the file a worker is writing the progress to
+        for (int i = 0; i < threads.size(); i++) {
+            schedule.add(new Scheduled(null, System.nanoTime()));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+        clients.close();
+    }
+
+    /**
+     * Check whether a recipient is delivered to a local mailbox rather than relayed.
+     * @param recipient The email address of the recipient.
+     * @return Whether its domain is one of the local domains; an address without a domain is always local.
+     */
+    public boolean isLocal(String recipient) {
+        int at = recipient.lastIndexOf('@');
+        return at < 0 || localDomains.contains(recipient.substring(at + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Spool an email for relaying. The buffer must not be reused until the returned future has completed.
+     * @param sender The sender of the email.
+     * @param recipients The recipients in other domains.
+     * @param trace The {@code Received} header put in front of the email, with its line terminator.
+     * @param email The body of the email.
+     * @return A future completed once the email is durable, or completed exceptionally if it could not be spooled.
+     */
+    public CompletableFuture<Void> enqueue(String sender, List<String> recipients, String trace,
+            MessageBuffer email) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        writer.execute(() -> {
+            try {
+                RelaySpool.Entry entry = spool.add(sender, recipients, trace, email);
+                spooled.incrementAndGet();
+                schedule(entry);
+                done.complete(null);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Get the number of emails waiting to be relayed.
+     * @return The number of spooled emails.
+     */
+    public int size() {
+        return spooled.get();
+    }
+
+    /**
+     * Put an email in the delay queue for its next attempt.
+     * @param entry The email.
+     */
+    private void schedule(RelaySpool.Entry entry) {
+        long delay = Math.max(0, entry.getNextAttempt() - System.currentTimeMillis());
+        schedule.add(new Scheduled(entry, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+    }
+
+    /**
+     * Primary method of a worker, which relays emails as they fall due.
+     */
+    private void work() {
+        while (true) {
+            RelaySpool.Entry entry;
+            try {
+                entry = schedule.take().entry();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (stopped || entry == null) {
+                return; // an email taken after the queue stopped is still in the spool
+            }
+            try {
+                attempt(entry);
+            } catch (RuntimeException e) {
+                // the email is dropped from the queue, but stays in the spool for the next restart
+                Log.error("Could not relay email " + entry.getId() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Try to deliver an email to every recipient still waiting for it, then settle or reschedule it.
+     * @param entry The email.
+     */
+    private void attempt(RelaySpool.Entry entry) {
+        byte[] body;
+        try {
+            body = spool.readBody(entry);
+        } catch (IOException e) {
+            // another attempt would read the same bytes, so the email is left in the spool for someone to look at
+            Log.error("Could not read relayed email " + entry.getId() + ": " + e.getMessage());
+            spooled.decrementAndGet();
+            return;
+        }
+
+        // the email is sent once for each domain, to every domain at the same time
+        Map<String, List<String>> domains = new LinkedHashMap<>();
+        for (String recipient : entry.getRecipients()) {
+            String domain = recipient.substring(recipient.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+            domains.computeIfAbsent(domain, key -> new ArrayList<>()).add(recipient);
+        }
+        Map<String, CompletableFuture<Map<String, SmtpException>>> sent = new LinkedHashMap<>();
+        domains.forEach((domain, recipients) ->
+                sent.put(domain, deliver(domain, new Envelope(entry.getSender(), recipients), body)));
+
+        int delivered = 0;
+        int failed = 0;
+        List<String> waiting = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Map<String, SmtpException>>> domain : sent.entrySet()) {
+            List<String> recipients = domains.get(domain.getKey());
+            try {
+                Map<String, SmtpException> refused = domain.getValue().join();
+                for (String recipient : recipients) {
+                    SmtpException refusal = refused.get(recipient);
+                    if (refusal == null) {
+                        delivered++;
+                    } else if (refusal.isTransient()) {
+                        waiting.add(recipient);
+                    } else {
+                        failed++;
+                        Log.warn("Relaying email " + entry.getId() + " to " + recipient + " failed: " +
+                                refusal.getMessage());
+                    }
+                }
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SmtpException refusal && !refusal.isTransient()) {
+                    failed += recipients.size();
+                    Log.warn("Relaying email " + entry.getId() + " to " + domain.getKey() + " failed: " +
+                            refusal.getMessage());
+                } else {
+                    waiting.addAll(recipients);
+                    Log.info("Relaying email " + entry.getId() + " to " + domain.getKey() + " deferred: " +
+                            cause.getMessage());
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (!waiting.isEmpty() && now - entry.getTimestamp() >= maxAgeMillis) {
+            Log.warn("Giving up on relaying email " + entry.getId() + " to " + waiting);
+            failed += waiting.size();
+            waiting.clear();
+        }
+        metrics.recordRelay(Outcome.DELIVERED, delivered);
+        metrics.recordRelay(Outcome.FAILED, failed);
+        metrics.recordRelay(Outcome.DEFERRED, waiting.size());
+
+        try {
+            if (waiting.isEmpty()) {
+                spool.remove(entry);
+                spooled.decrementAndGet();
+                return;
+            }
+            entry.retry(waiting, now + backoff(entry.getAttempts() + 1));
+            spool.update(entry);
+        } catch (IOException e) {
+            // the spool still holds the progress of the previous attempt, which a restart would carry on from
+            Log.error("Could not record the progress of relayed email " + entry.getId() + ": " + e.getMessage());
+            if (waiting.isEmpty()) {
+                spooled.decrementAndGet();
+                return;
+            }
+        }
+        schedule(entry);
+    }
+
+    /**
+     * Get how long to wait before the next attempt at an email.
+     * @param attempts The number of attempts made so far, at least 1.
+     * @return The delay in milliseconds, which doubles with every attempt up to the limit.
+     */
+    private long backoff(int attempts) {
+        return Math.min(retryMaxMillis, retryMinMillis << Math.min(attempts - 1, 30));
+    }
+
+    /**
+     * Send an email to the recipients of one domain.
+     * @param domain The domain.
+     * @param envelope The sender of the email, and the recipients in the domain.
+     * @param body The email.
+     * @return A future completed as {@link ClientPool#send} completes it.
+     */
+    private CompletableFuture<Map<String, SmtpException>> deliver(String domain, Envelope envelope, byte[] body) {
+        InetSocketAddress route = routes.getOrDefault(domain, routes.get(ANY_DOMAIN));
+        if (route != null) {
+            // resolved for every attempt, so a changed address is picked up
+            return clients.send(new InetSocketAddress(route.getHostString(), route.getPort()), envelope, body);
+        }
+        try {
+            return deliver(mailExchangers(domain), 0, envelope, body);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Send an email to the first mail exchanger that can be reached, starting at a given one. An exchanger that
+     * answers with a refusal is not passed over, since the others would refuse the email the same way.
+     * @param hosts The mail exchangers of the domain, in order of preference.
+     * @param index The exchanger to start at.
+     * @param envelope The sender of the email, and the recipients in the domain.
+     * @param body The email.
+     * @return A future completed as {@link ClientPool#send} completes it for the last exchanger tried.
+     */
+    private CompletableFuture<Map<String, SmtpException>> deliver(List<String> hosts, int index, Envelope envelope,
+            byte[] body) {
+        return clients.send(new InetSocketAddress(hosts.get(index), SMTP_PORT), envelope, body)
+                .exceptionallyCompose(e -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof SmtpException || index + 1 == hosts.size()) {
+                        return CompletableFuture.failedFuture(cause);
+                    }
+                    return deliver(hosts, index + 1, envelope, body);
+                });
+    }
+
+    /**
+     * Look up the mail exchangers of a domain in DNS.
+     * @param domain The domain.
+     * @return The host names of the exchangers in order of preference, or the domain itself if it has none.
+     * @throws IOException If the lookup fails; an SmtpException with a permanent code if the domain does not exist.
+     */
+    private static List<String> mailExchangers(String domain) throws IOException {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        try {
+            DirContext dns = new InitialDirContext(environment);
+            try {
+                Attribute records = dns.getAttributes(domain, new String[] {"MX"}).get("MX");
+                if (records == null || records.size() == 0) {
+                    return List.of(domain);
+                }
+
+                // each record is the preference of the exchanger followed by its host name
+                List<String[]> exchangers = new ArrayList<>();
+                NamingEnumeration<?> values = records.getAll();
+                while (values.hasMore()) {
+                    String[] record = values.next().toString().trim().split("\\s+");
+                    if (record.length == 2) {
+                        exchangers.add(record);
+                    }
+                }
+                exchangers.sort(Comparator.comparingInt(record -> Integer.parseInt(record[0])));
+                List<String> hosts = new ArrayList<>(exchangers.size());
+                for (String[] record : exchangers) {
+                    hosts.add(record[1].endsWith(".") ? record[1].substring(0, record[1].length() - 1) : record[1]);
+                }
+                return hosts.isEmpty() ? List.of(domain) : hosts;
+            } finally {
+                dns.close();
+            }
+        } catch (NameNotFoundException e) {
+            throw new SmtpException(550, "550 Domain " + domain + " does not exist");
+        } catch (NamingException | NumberFormatException e) {
+            throw new IOException("Could not look up the mail exchangers of " + domain, e);
+        }
+    }
+}
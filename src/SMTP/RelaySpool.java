@@ -0,0 +1,355 @@
+package SMTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Class that keeps the emails waiting to be relayed on disk, so that they survive a restart of the server.
+ * <p>
+ * Every email is a file of its own, written once and never changed:
+ * <pre>
+ * int magic | long timestamp | short length, sender | short count, (short length, recipient)... | long length, body
+ *     | int CRC32
+ * </pre>
+ * which is the record of the mailbox store, with the {@code Received} header of this server in front of the body as
+ * the email was received. It is written under a temporary name, forced to disk and only then
+ * renamed, so an email file is always complete, and an email is only acknowledged once it is durable. Progress is
+ * kept next to it in a small state file holding the number of attempts, when the next one is due and the
+ * recipients still waiting; the state is replaced with an atomic rename after every attempt, so a restart carries
+ * on with the recipients that were not delivered yet rather than sending the email again. Once no recipient is
+ * left the email file is deleted before its state, since an email without a state would be sent to every one of
+ * its recipients again.
+ */
+public class RelaySpool {
+    private static final int MAGIC = 0x534D5450; // "SMTP"
+    private static final int STATE_MAGIC = 0x52454C59; // "RELY"
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final Path directory;
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * An email waiting to be relayed, and the progress made with it. Only the worker delivering the email changes
+     * its progress.
+     */
+    public static class Entry {
+        private final long id;
+        private final String sender;
+        private final long timestamp;
+        private List<String> recipients;
+        private int attempts;
+        private long nextAttempt;
+
+        /**
+         * Create an object of type Entry.
+         * @param id The identifier of the email.
+         * @param sender The sender of the email.
+         * @param timestamp When the email was spooled, in milliseconds since the epoch.
+         * @param recipients The recipients still waiting for the email.
+         * @param attempts The number of attempts made so far.
+         * @param nextAttempt When the next attempt is due, in milliseconds since the epoch.
+         */
+        Entry(long id, String sender, long timestamp, List<String> recipients, int attempts, long nextAttempt) {
+            this.id = id;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.recipients = List.copyOf(recipients);
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+
+        /**
+         * Get the identifier of the email, which orders emails by when they were spooled.
+         * @return The identifier.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Get the sender of the email.
+         * @return The sender, which may be empty for a bounce.
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * Get when the email was spooled.
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the recipients still waiting for the email.
+         * @return The recipients.
+         */
+        public List<String> getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * Get the number of attempts made to deliver the email.
+         * @return The number of attempts.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Get when the next attempt to deliver the email is due.
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+
+        /**
+         * Record the outcome of an attempt that left some recipients waiting.
+         * @param recipients The recipients still waiting for the email.
+         * @param nextAttempt When the next attempt is due, in milliseconds since the epoch.
+         */
+        void retry(List<String> recipients, long nextAttempt) {
+            this.recipients = List.copyOf(recipients);
+            this.attempts++;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+
+    /**
+     * Create an object of type RelaySpool that keeps its emails in the relay directory.
+     * @param config The settings of the server.
+     * @throws IOException
+     */
+    public RelaySpool(ServerConfig config) throws IOException {
+        this.directory = Files.createDirectories(config.getRelayDirectory());
+    }
+
+    /**
+     * Read the emails that were waiting to be relayed when the server last stopped. Temporary files, and states
+     * whose email is gone, are deleted.
+     * @return The emails, in the order they were spooled.
+     * @throws IOException
+     */
+    public List<Entry> load() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<Path> states = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (name.endsWith(".state")) {
+                    states.add(file);
+                } else if (name.endsWith(".msg")) {
+                    long id = Long.parseLong(name.substring(0, name.length() - ".msg".length()));
+                    nextId.accumulateAndGet(id + 1, Math::max);
+                    try {
+                        entries.add(readEntry(id));
+                    } catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+                        Log.error("Could not read the relayed email " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        for (Path state : states) {
+            String name = state.getFileName().toString();
+            if (!Files.exists(directory.resolve(name.substring(0, name.length() - ".state".length()) + ".msg"))) {
+                Files.delete(state);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write an email to the spool and force it to disk.
+     * @param sender The sender of the email.
+     * @param recipients The recipients the email is relayed to.
+     * @param trace The {@code Received} header written in front of the body, with its line terminator.
+     * @param email The body of the email.
+     * @return The email, due to be delivered at once.
+     * @throws IOException
+     */
+    public Entry add(String sender, List<String> recipients, String trace, MessageBuffer email)
+            throws IOException {
+        byte[] header = trace.getBytes(StandardCharsets.UTF_8);
+        long id = nextId.getAndIncrement();
+        long now = System.currentTimeMillis();
+        Path temporary = directory.resolve(name(id, ".msg.tmp"));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), WRITE_BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            CRC32 crc = new CRC32();
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            RecordFiles.writeEnvelope(checked, now, sender, recipients);
+            checked.writeLong(header.length + email.length());
+            checked.write(header);
+            try (InputStream in = email.openStream()) {
+                in.transferTo(checked);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, directory.resolve(name(id, ".msg")), StandardCopyOption.ATOMIC_MOVE);
+        RecordFiles.forceDirectory(directory);
+        return new Entry(id, sender, now, recipients, 0, now);
+    }
+
+    /**
+     * Read the body of an email, checking that it is intact.
+     * @param entry The email.
+     * @return The body.
+     * @throws IOException If the email cannot be read or is corrupt.
+     */
+    public byte[] readBody(Entry entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(name(entry.getId(), ".msg")),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("The email is too large to relay");
+            }
+            ByteBuffer file = RecordFiles.read(channel, 0, (int) size);
+            file.getInt(); // the magic number, checked when the email was loaded or added
+            RecordFiles.skipEnvelope(file);
+            long length = file.getLong();
+            if (length != file.remaining() - Integer.BYTES) {
+                throw new IOException("The email is truncated");
+            }
+            byte[] body = new byte[(int) length];
+            file.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(file.array(), Integer.BYTES, file.position() - Integer.BYTES);
+            if (file.getInt() != (int) crc.getValue()) {
+                throw new IOException("The email is corrupt");
+            }
+            return body;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("The email is corrupt");
+        }
+    }
+
+    /**
+     * Replace the state of an email after an attempt that left some recipients waiting.
+     * @param entry The email.
+     * @throws IOException
+     */
+    public void update(Entry entry) throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(256);
+        state.putInt(STATE_MAGIC).putInt(entry.getAttempts()).putLong(entry.getNextAttempt())
+                .putShort((short) entry.getRecipients().size());
+        for (String recipient : entry.getRecipients()) {
+            byte[] bytes = recipient.getBytes(StandardCharsets.UTF_8);
+            if (state.remaining() < Short.BYTES + bytes.length) {
+                state = ByteBuffer.allocate(2 * state.capacity() + bytes.length).put(state.flip());
+            }
+            state.putShort((short) bytes.length).put(bytes);
+        }
+        state.flip();
+
+        Path temporary = directory.resolve(name(entry.getId(), ".state.tmp"));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (state.hasRemaining()) {
+                channel.write(state);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve(name(entry.getId(), ".state")), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        RecordFiles.forceDirectory(directory);
+    }
+
+    /**
+     * Delete an email once no recipient is waiting for it any more.
+     * @param entry The email.
+     * @throws IOException
+     */
+    public void remove(Entry entry) throws IOException {
+        Files.deleteIfExists(directory.resolve(name(entry.getId(), ".msg")));
+        RecordFiles.forceDirectory(directory);
+        Files.deleteIfExists(directory.resolve(name(entry.getId(), ".state")));
+    }
+
+    /**
+     * Read the envelope of a spooled email, and its progress if any attempt was made.
+     * @param id The identifier of the email.
+     * @return The email.
+     * @throws IOException
+     */
+    private Entry readEntry(long id) throws IOException {
+        long timestamp;
+        String sender;
+        List<String> recipients;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(name(id, ".msg"))), READ_BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a relayed email");
+            }
+            timestamp = in.readLong();
+            sender = RecordFiles.readString(in);
+            int count = in.readUnsignedShort();
+            recipients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(RecordFiles.readString(in));
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(name(id, ".state")),
+                StandardOpenOption.READ)) {
+            ByteBuffer state = RecordFiles.read(channel, 0, (int) channel.size());
+            if (state.getInt() != STATE_MAGIC) {
+                throw new IllegalArgumentException("Not the state of a relayed email");
+            }
+            int attempts = state.getInt();
+            long nextAttempt = state.getLong();
+            int count = Short.toUnsignedInt(state.getShort());
+            List<String> waiting = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                waiting.add(RecordFiles.readString(state));
+            }
+            return new Entry(id, sender, timestamp, waiting, attempts, nextAttempt);
+        } catch (NoSuchFileException e) {
+            return new Entry(id, sender, timestamp, recipients, 0, timestamp); // never attempted
+        }
+    }
+
+    /**
+     * Get the file name of an email, padded so that names sort in the order the emails were spooled.
+     * @param id The identifier of the email.
+     * @param suffix The suffix of the file.
+     * @return The file name.
+     */
+    private static String name(long id, String suffix) {
+        return String.format("%020d%s", id, suffix);
+    }
+}
@@ -32,9 +32,11 @@ public class STServer {
      */
     public STServer(String ipAddress, int port) throws Exception {
         if (ipAddress != null && !ipAddress.isEmpty()) {
-            this.server = new ServerSocket(port, 1, InetAddress.getByName(ipAddress));
+            this.server = new ServerSocket(port, ServerConfig.fromSystemProperties().getBacklog(),
+                    InetAddress.getByName(ipAddress));
         } else {
-            this.server = new ServerSocket(0, 1, InetAddress.getLocalHost());
+            this.server = new ServerSocket(0, ServerConfig.fromSystemProperties().getBacklog(),
+                    InetAddress.getLocalHost());
         }
     }
 
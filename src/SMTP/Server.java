@@ -1,17 +1,25 @@
 package SMTP;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.EOFException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import javax.management.ObjectName;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that acts as an SMTP server; allowing clients to connect and send emails.
@@ -19,42 +27,140 @@ import java.time.format.DateTimeFormatter;
  *
  */
 public class Server {
+    private static final long TIMER_TICK_MILLIS = 100;
+
     private static ServerSocket server;
-    private Socket client;
-    private static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    private ServerSocket[] listeners;
+    private ServerSocketChannel[] channels;
+    private ServerConfig config;
+    private MailboxStore store;
+    private DeliveryWriter writer;
+    private HostResolver resolver;
+    private String hostName;
+    private SessionExecutor sessions;
+    private PinningMonitor pinningMonitor;
+    private ServerMetrics metrics = new ServerMetrics();
+    private AcceptMetrics acceptMetrics = metrics.getAccepts();
+    private TimerWheel timer = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    private AdmissionControl admission;
+    private TlsContext tls; // null unless a key store is configured, in which case STARTTLS is offered
+    private long lastAccepted;
 
     /**
      * Create an object of type Server that creates a server socket at an IP address, with a given port.
      * @param ipAddress The IP address the server will be bound to.
      * @param port The port on which the server socket is bound.
+     * @param config The settings of the server.
      * @throws Exception
      */
-    public Server(String ipAddress, int port) throws Exception {
+    public Server(String ipAddress, int port, ServerConfig config) throws Exception {
+        this.config = config;
+        Log.configure(config);
+        // with local domains, the emails of every other domain are relayed rather than stored
+        RelayQueue relay = null;
+        if (!config.getLocalDomains().isEmpty()) {
+            relay = new RelayQueue(config, metrics);
+            metrics.gauge("smtp_relay_queued_messages", "Emails waiting to be relayed.", relay::size);
+        }
+        store = new MailboxStore(config);
+        this.writer = new DeliveryWriter(store, relay, config, metrics);
+        writer.start();
+        if (relay != null) {
+            relay.start();
+        }
+        if (config.isDedup() || store.getBlobs().size() > 0) {
+            store.getBlobs().start(config.getBlobCollectIntervalSeconds());
+            metrics.gauge("smtp_blobs", "Bodies held in the blob store, including those waiting to be collected.",
+                    store.getBlobs()::size);
+        }
+        if (config.getPop3Port() > 0) {
+            new Pop3Server(config, store).start();
+        }
+        timer.start();
+        admission = new AdmissionControl(config, metrics);
+        metrics.gauge("smtp_admission_tracked_addresses", "Client addresses whose connections and rates are tracked.",
+                admission::getTrackedAddresses);
+        metrics.gauge("smtp_inflight_bytes", "Bytes of the emails being received or saved, reserved from the budget.",
+                admission::getInFlightBytes);
+        if (config.getTlsKeyStore() != null) {
+            tls = TlsContext.forServer(config);
+        }
+        InetAddress address = InetAddress.getLocalHost();
         if (ipAddress != null && !ipAddress.isEmpty()) {
-            server = new ServerSocket(port, 1, InetAddress.getByName(ipAddress));
+            address = InetAddress.getByName(ipAddress);
         } else {
-            server = new ServerSocket(0, 1, InetAddress.getLocalHost());
+            port = 0;
+        }
+
+        // with SO_REUSEPORT every acceptor gets a listening socket of its own, and the kernel shards connections
+        int count = config.isReusePort() ? config.getAcceptors() : 1;
+        listeners = new ServerSocket[count];
+        channels = new ServerSocketChannel[count];
+        for (int i = 0; i < count; i++) {
+            bind(i, address, port);
+            port = listeners[0].getLocalPort(); // the remaining sockets must share the port of the first
         }
+        server = listeners[0];
+
+        // the name announced to every client is looked up once, rather than for every greeting
+        hostName = server.getInetAddress().getHostName();
+        resolver = new HostResolver(config);
+        publishMetrics();
     }
 
     /**
-     * Print a message to the console prefaced with a timestamp.
-     * @param message The message that is to be printed.
+     * Publish the metrics of the server over JMX, and on a local HTTP port if the configuration asks for it.
+     * @throws Exception
      */
-    private static void print(String message) {
-        LocalDateTime now = LocalDateTime.now();
-        System.out.println("\r\n[" + dtf.format(now) + "] " + message);
+    private void publishMetrics() throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                new ObjectName("SMTP:type=Server,port=" + server.getLocalPort()));
+
+        if (config.getMetricsPort() > 0) {
+            new MetricsEndpoint(config.getMetricsPort(), metrics).start();
+        }
+    }
+
+    /**
+     * Create and bind one of the listening sockets of the server.
+     * @param index The index of the listening socket.
+     * @param address The IP address the socket will be bound to.
+     * @param port The port on which the socket is bound.
+     * @throws IOException
+     */
+    private void bind(int index, InetAddress address, int port) throws IOException {
+        InetSocketAddress endpoint = new InetSocketAddress(address, port);
+
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            // the selector engine needs a channel; its socket still describes the bound address
+            channels[index] = ServerSocketChannel.open();
+            if (config.isReusePort()) {
+                channels[index].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channels[index].bind(endpoint, config.getBacklog());
+            listeners[index] = channels[index].socket();
+        } else {
+            listeners[index] = new ServerSocket();
+            if (config.isReusePort()) {
+                listeners[index].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            listeners[index].bind(endpoint, config.getBacklog());
+        }
     }
 
     /**
      * Wait until a client wishes to connect to the server, and accept the connection.
+     * @param listener The listening socket to accept the connection from.
+     * @return The socket of the client.
      * @throws Exception
      */
-    private void waitForConnection() throws Exception {
-        print("Waiting for a connection");
-        client = server.accept();
-        print("Connected to " + client.getInetAddress().getHostAddress() + "/" +
-                client.getInetAddress().getHostName());
+    private Socket waitForConnection(ServerSocket listener) throws Exception {
+        Log.info("Waiting for a connection");
+        long start = System.nanoTime();
+        Socket client = listener.accept();
+        acceptMetrics.recordAccept(System.nanoTime() - start);
+        Log.info("Connected to " + client.getInetAddress().getHostAddress());
+        return client;
     }
 
     /**
@@ -62,31 +168,171 @@ public class Server {
      * @throws Exception
      */
     private void listen() throws Exception {
-        while (true) {
+        startStatsReporter();
+
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            new NioServer(channels, hostName, config, metrics, writer, resolver, timer, admission, tls).listen();
+            return;
+        }
+
+        if (config.getMode() == ServerConfig.Mode.VIRTUAL) {
+            startVirtualThreads();
+        }
+
+        // every acceptor after the first runs on its own thread; the first one keeps the main thread busy
+        for (int i = 1; i < config.getAcceptors(); i++) {
+            ServerSocket listener = listeners[i % listeners.length];
+            new Thread(() -> acceptConnections(listener), "smtp-acceptor-" + i).start();
+        }
+        acceptConnections(listeners[0]);
+    }
+
+    /**
+     * Accept and handle clients on a background thread, for a server that runs inside another program, such as a
+     * test, rather than on the main thread.
+     */
+    void start() {
+        Thread thread = new Thread(() -> {
             try {
-                waitForConnection();
-                ClientHandler clientSocket = new ClientHandler(client);
-                new Thread(clientSocket).start();
+                listen();
+            } catch (Exception e) {
+                Log.error("The server stopped", e);
+            }
+        }, "smtp-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Accept clients from a listening socket and hand each one straight to the worker model.
+     * @param listener The listening socket.
+     */
+    private void acceptConnections(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try {
+                Socket client = waitForConnection(listener);
+                long acceptedAt = System.nanoTime();
+
+                // a client that is not admitted is turned away before anything is allocated for it
+                AdmissionControl.Admission admitted = admission.admit(client.getInetAddress());
+                if (admitted.refusal() != null) {
+                    refuse(client, admitted.refusal());
+                    continue;
+                }
+
+                // the host name is only wanted for the console, so it must never hold up the next accept
+                resolver.resolve(client.getInetAddress());
+                ClientHandler clientSocket = new ClientHandler(client, hostName, resolver, config, writer, metrics,
+                        timer, admitted.peer(), tls);
+                Runnable worker = () -> {
+                    acceptMetrics.recordHandoff(System.nanoTime() - acceptedAt);
+                    clientSocket.run();
+                };
+
+                if (sessions == null) {
+                    new Thread(worker).start();
+                } else if (!sessions.execute(worker)) {
+                    admitted.peer().release();
+                    refuse(client, AdmissionControl.Refusal.OVERLOADED);
+                }
             } catch (EOFException e) {
-                print("Server closed the connection");
+                Log.info("Server closed the connection");
+            } catch (Exception e) {
+                Log.error("Could not accept a connection", e);
             }
         }
     }
 
+    /**
+     * Prepare the bounded executor that runs each client on its own virtual thread, along with its monitoring.
+     */
+    private void startVirtualThreads() {
+        sessions = new SessionExecutor(Thread.ofVirtual().name("smtp-session-", 0).factory(),
+                config.getMaxSessions(), config.getMaxQueuedSessions());
+        metrics.gauge("smtp_sessions_queued", "Sessions waiting for a virtual thread.", sessions::getQueued);
+        metrics.gauge("smtp_sessions_rejected", "Sessions refused because the queue was full.", sessions::getRejected);
+
+        if (config.getPinningThresholdMillis() > 0) {
+            pinningMonitor = new PinningMonitor(Duration.ofMillis(config.getPinningThresholdMillis()));
+            metrics.gauge("smtp_virtual_threads_pinned", "Virtual threads seen pinned to their carrier.",
+                    pinningMonitor::getPinned);
+        }
+    }
+
+    /**
+     * Periodically print the listener and session statistics, if the configuration asks for it.
+     */
+    private void startStatsReporter() {
+        if (config.getStatsIntervalSeconds() <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::printStats, config.getStatsIntervalSeconds(),
+                config.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Print the accept rate and hand-off latency, and the live session counts of the virtual-thread executor.
+     */
+    private void printStats() {
+        long accepted = acceptMetrics.getAccepted();
+        Log.info("Accepts: rate=" + (accepted - lastAccepted) / config.getStatsIntervalSeconds() + "/s" +
+                " total=" + accepted +
+                " immediate=" + acceptMetrics.getImmediateAccepts() +
+                " handoffMeanMicros=" + acceptMetrics.getMeanHandoffMicros() +
+                " handoffMaxMicros=" + acceptMetrics.getAndResetMaxHandoffMicros());
+        lastAccepted = accepted;
+
+        if (sessions != null) {
+            Log.info("Sessions: active=" + sessions.getActive() +
+                    " queued=" + sessions.getQueued() +
+                    " rejected=" + sessions.getRejected() +
+                    (pinningMonitor == null ? "" : " pinned=" + pinningMonitor.getPinned()));
+        }
+    }
+
+    /**
+     * Turn a client away because the server or its address is at capacity, and close its socket.
+     * @param socket The socket of the client.
+     * @param refusal Why the client is turned away.
+     */
+    private void refuse(Socket socket, AdmissionControl.Refusal refusal) {
+        Log.info("Refusing " + socket.getInetAddress().getHostAddress() + ": " + refusal.getReason());
+        try (socket) {
+            PrintWriter output = new PrintWriter(socket.getOutputStream(), true);
+            output.println("421 " + hostName + " " + refusal.getReason());
+        } catch (Exception e) {
+            Log.error("Could not refuse " + socket.getInetAddress().getHostAddress(), e);
+        }
+    }
+
     /**
      * Get the IP address the server is be bound to.
      * @return The IP address.
      */
     private InetAddress getSocketAddress() {
-        return server.getInetAddress();
+        return listeners[0].getInetAddress();
     }
 
     /**
      * Get the port on which the server socket is bound.
      * @return The port.
      */
-    private int getPort() {
-        return server.getLocalPort();
+    int getPort() {
+        return listeners[0].getLocalPort();
+    }
+
+    /**
+     * Get the store the emails of the local mailboxes are kept in.
+     * @return The mailbox store.
+     */
+    MailboxStore getStore() {
+        return store;
     }
 
     /**
@@ -106,10 +352,12 @@ public class Server {
         }
 
         // create an object of type Server
-        Server server = new Server(serverIP, port);
-        print("Running server: " +
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        Server server = new Server(serverIP, port, config);
+        Log.info("Running server: " +
                 "Host=" + server.getSocketAddress().getHostAddress() +
-                " Port=" + server.getPort());
+                " Port=" + server.getPort() +
+                " Mode=" + config.getMode());
 
         server.listen();
     }
@@ -119,21 +367,38 @@ public class Server {
      * @author Harshil Surendralal
      *
      */
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler implements Runnable, SmtpSession.Transport {
         private PrintWriter output;
-        private InputStreamReader input;
-        private BufferedReader br;
+        private LineReader input;
+        private InputStream rawInput;
+        private OutputStream rawOutput;
         private Socket client;
-        private String clientName;
+        private SmtpSession session;
+        private ServerMetrics metrics;
+        private TlsContext tls;
+        private TlsEngine engine; // null until the client has sent STARTTLS
+        private volatile String expiry; // the reply to send once the session has timed out, or null
 
         /**
          * Create an object of type ClientHandler that holds the client's socket.
          * @param socket The socket of the client.
+         * @param serverName The host name the server announces to the client.
+         * @param resolver The resolver that looks up the host name of the client.
+         * @param config The settings of the server.
+         * @param writer The writer that received emails are saved with.
+         * @param metrics The metrics the session is recorded in.
+         * @param timer The timer wheel the timeouts of the session are checked on.
+         * @param peer The state of the client address in admission control.
+         * @param tls The TLS context STARTTLS is served with, or null if it is not offered.
          */
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, String serverName, HostResolver resolver, ServerConfig config,
+                DeliveryWriter writer, ServerMetrics metrics, TimerWheel timer, AdmissionControl.Peer peer,
+                TlsContext tls) {
             this.client = socket;
-            this.clientName = client.getInetAddress().getHostAddress() + "/" +
-                    client.getInetAddress().getHostName();
+            this.metrics = metrics;
+            this.tls = tls;
+            this.session = new SmtpSession(serverName, client.getInetAddress(), resolver, this, config, writer,
+                    metrics, timer, peer);
         }
 
         /**
@@ -141,10 +406,12 @@ public class Server {
          * @throws Exception
          */
         private void setupStreams() throws Exception {
-            output = new PrintWriter(client.getOutputStream(), true);
-            input = new InputStreamReader(client.getInputStream());
-            br = new BufferedReader(input);
-            print("Streams are setup");
+            // replies are flushed explicitly, so those to a batch of pipelined commands leave together
+            rawOutput = metrics.meter(client.getOutputStream());
+            rawInput = metrics.meter(client.getInputStream());
+            output = new PrintWriter(rawOutput, false);
+            input = new LineReader(rawInput);
+            Log.info("Streams are setup");
         }
 
         /**
@@ -152,116 +419,109 @@ public class Server {
          * @param message The message that will be transmitted.
          * @throws Exception
          */
-        private void sendMessage(String message) throws Exception {
+        @Override
+        public void sendMessage(String message) throws Exception {
             output.println(message);
         }
 
         /**
-         * Transmit the initial message to the client.
+         * Wait for an asynchronous operation of the session, then continue it on this thread.
+         * @param operation The operation.
+         * @param continuation The work to do once the operation has completed.
          * @throws Exception
          */
-        private void initiateCommunication() throws Exception {
-            sendMessage("220 " + server.getInetAddress().getHostName());
+        @Override
+        public void await(CompletableFuture<?> operation, SmtpSession.Continuation continuation) throws Exception {
+            try {
+                operation.join();
+            } catch (CompletionException e) {
+                // the continuation inspects the outcome of the operation itself
+            }
+            continuation.run();
         }
 
         /**
-         * Read each line of the email that is being transmitted from the client.
-         * @return The email that has been transmitted from the client.
-         * @throws Exception
+         * End the input of the socket, so that the thread serving the client stops reading and sends the final
+         * reply itself, without the timer thread touching the output stream it may be using.
+         * @param reply The reply, without a line terminator.
          */
-        private String handleEmail() throws Exception {
-            String email = "";
-            String line;
-
-            // until the client sends a ".", concatenate the line to email, followed by a newline character
-            while (!(line = br.readLine()).equals(".")) {
-                email = email + line + "\n";
+        @Override
+        public void expire(String reply) {
+            expiry = reply;
+            try {
+                client.shutdownInput();
+            } catch (IOException e) {
+                // the socket is already closed, so the session is ending anyway
             }
-
-            return email;
         }
 
         /**
-         * Save the email that has been transmitted by the client to a file, named after the intended recipient of the email.
-         * @param sender The sender of the email.
-         * @param recipient The recipient of the email.
-         * @param email The email that has been transmitted by the client.
+         * Close the socket, which also interrupts the thread serving the client if it is stuck writing.
          */
-        private void saveEmail(String sender, String recipient, String email) {
+        @Override
+        public void abort() {
             try {
-                // create a FileWriter object, and create a BufferedWriter object from it
-                FileWriter fw = new FileWriter(recipient + ".txt");
-                BufferedWriter bw = new BufferedWriter(fw);
-
-                // write the email to the file and close the BufferedWriter
-                bw.write(sender + "\n" + email);
-                bw.close();
+                client.close();
             } catch (IOException e) {
-                // if there was a problem writing to the file
-                print("Could not save the email");
+                // nothing more can be done with a socket that fails to close
             }
         }
 
+        /**
+         * Check whether the connection can be upgraded to TLS.
+         * @return Whether the server has a certificate and the connection is not encrypted yet.
+         */
+        @Override
+        public boolean canStartTls() {
+            return tls != null && engine == null;
+        }
+
+        /**
+         * Transmit the replies sent so far in plain text, then read and write the socket through a TLS engine. The
+         * handshake runs on the first read, and anything the client pipelined after STARTTLS is dropped along with
+         * the old input buffer.
+         * @throws Exception
+         */
+        @Override
+        public void startTls() throws Exception {
+            output.flush();
+            engine = tls.newServerEngine(metrics);
+            output = new PrintWriter(engine.outputStream(rawOutput), false);
+            input = new LineReader(engine.inputStream(rawInput, rawOutput));
+        }
+
         /**
          * Primary method used to transmit and receive messages to and from the client.
          * @throws Exception
          */
         private void exchangeMessages() throws Exception {
-            String line, sender = "", recipient = "", email = "";
-            String[] lineSplitted;
-
-            // until the message that is received is "QUIT", keep reading messages from the client
-            while (!(line = br.readLine()).equals("QUIT")) {
-                print(clientName + ": " + line);
-                lineSplitted = line.split(" "); // split the line by spaces so the message can be identified easily
-
-                // if the first word is "HELLO"
-                if (lineSplitted[0].equals("HELLO") && lineSplitted.length == 2) {
-                    // respond by greeting the client
-                    sendMessage("250 Hello " + lineSplitted[1] + ", pleased to meet you");
-                }
-
-                // if the line starts with "MAIL FROM:"
-                if (line.startsWith("MAIL FROM:")) {
-                    // save the sender's email address and respond with an OK message
-                    sender = lineSplitted[2].substring(1, lineSplitted[2].length() - 1);
-                    sendMessage("250 ok");
+            // until the session asks for the connection to be closed, keep reading messages from the client
+            while (true) {
+                if (session.isReceivingEmail()) {
+                    // the body of an email is handed over as it was received, rather than line by line
+                    ByteBuffer data = input.fill();
+                    if (data == null || !session.handleData(data)) {
+                        return;
+                    }
+                } else if (!input.readLine() || !session.handleLine(input.getLine(), input.getLineLength())) {
+                    return;
                 }
 
-                // if the line starts with "RCPT TO:"
-                if (line.startsWith("RCPT TO: ")) {
-                    // save the recipient's email address and respond with an OK message
-                    recipient = lineSplitted[2].substring(1, lineSplitted[2].length() - 1);
-                    sendMessage("250 ok");
-                }
-
-                // if the message is "DATA"
-                if (line.equals("DATA")) {
-                    sendMessage("354 End data with <CR><LF>.<CR><LF>");
-                    email = handleEmail(); // handle the email
-                    saveEmail(sender, recipient, email); // save the email to a file
-                    sendMessage("250 ok Message accepted for delivery");
+                // the replies are only flushed once every command the client has pipelined has been handled
+                if (!input.ready()) {
+                    output.flush();
                 }
             }
         }
 
-        /**
-         * Transmit the final message to the client.
-         * @throws Exception
-         */
-        private void farewell() throws Exception {
-            sendMessage("221 " + server.getInetAddress().getHostName() + " closing connection");
-        }
-
         /**
          * Close the socket, input buffer, and the input and output streams that were used to send and receive messages, to and from the client.
          * @throws Exception
          */
         private void cleanUp() throws Exception {
-            print("Closing connection to " + clientName);
+            Log.info("Closing connection to " + session.getClientName());
+            session.close();
             output.close();
-            input.close();
-            br.close();
             client.close();
         }
 
@@ -272,18 +532,25 @@ public class Server {
         public void run() {
             try {
                 setupStreams();
-                initiateCommunication();
+                session.initiateCommunication();
+                output.flush();
                 exchangeMessages();
-                farewell();
+
+                // the input ends early when the session times out, and the client is told why, unless it timed out
+                // in the middle of a TLS handshake, when there is no way to tell it anything
+                if (expiry != null && (engine == null || !engine.isHandshaking())) {
+                    sendMessage(expiry);
+                    output.flush();
+                }
             } catch (EOFException e) {
-                print("Server closed the connection");
+                Log.info("Server closed the connection");
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Session with " + session.getClientName() + " failed", e);
             } finally {
                 try {
                     cleanUp();
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error("Could not close the connection to " + session.getClientName(), e);
                 }
             }
         }
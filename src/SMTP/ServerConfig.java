@@ -0,0 +1,1445 @@
+package SMTP;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class that holds the tunable settings of the SMTP server.
+ * Every setting has a sensible default and can be overridden with a system property, e.g. {@code -Dsmtp.mode=nio}.
+ */
+public class ServerConfig {
+    /**
+     * The ways in which the server can execute client sessions.
+     */
+    public enum Mode {
+        /** One platform thread per connection, blocking on each read. */
+        THREAD,
+        /** A small number of event-loop threads multiplexing non-blocking channels with a selector. */
+        NIO,
+        /** One virtual thread per connection, blocking on each read, behind a concurrency cap. */
+        VIRTUAL
+    }
+
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int backlog = 1024;
+    private int acceptors = 1;
+    private boolean reusePort = false;
+    private int maxSessions = 10000;
+    private int maxQueuedSessions = 1000;
+    private int maxConnections = 20000;
+    private int maxConnectionsPerIp = 100;
+    private int ipMessagesPerMinute = 0;
+    private long ipBytesPerMinute = 0;
+    private int maxTrackedIps = 100000;
+    private long pinningThresholdMillis = 20;
+    private int statsIntervalSeconds = 0;
+    private int metricsPort = 0;
+    private int pop3Port = 0;
+    private Path pop3Users = null;
+    private Path mailboxDirectory = Path.of(".");
+    private Path spoolDirectory = Path.of(System.getProperty("java.io.tmpdir"));
+    private int spillThresholdBytes = 64 * 1024;
+    private long segmentBytes = 64L * 1024 * 1024;
+    private long segmentMillis = 60L * 60 * 1000;
+    private int mailboxStripes = 64;
+    private long groupCommitMicros = 2000;
+    private int groupCommitMaxBatch = 256;
+    private int indexThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private MessageCodec compressionCodec = null;
+    private long compressionThresholdBytes = 4096;
+    private int compressionThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private boolean dedup = false;
+    private long dedupThresholdBytes = 8192;
+    private long blobCollectIntervalSeconds = 60;
+    private int maxRecipients = 100;
+    private long maxMessageBytes = 25L * 1024 * 1024;
+    private long maxInFlightBytes = 256L * 1024 * 1024;
+    private int greetingTimeoutSeconds = 60;
+    private int commandTimeoutSeconds = 300;
+    private int dataTimeoutSeconds = 180;
+    private int sessionTimeoutSeconds = 1800;
+    private int minDataRateBytesPerSecond = 512;
+    private Path tlsKeyStore = null;
+    private String tlsKeyStorePassword = "changeit";
+    private int tlsSessionCacheSize = 20000;
+    private int tlsSessionTimeoutSeconds = 3600;
+    private boolean tlsSessionTickets = true;
+    private Set<String> localDomains = Set.of();
+    private Path relayDirectory = null;
+    private Map<String, InetSocketAddress> relayRoutes = Map.of();
+    private int relayWorkers = 8;
+    private int relayConnectionsPerHost = 4;
+    private long relayRetryMinSeconds = 60;
+    private long relayRetryMaxSeconds = 60L * 60;
+    private long relayMaxAgeSeconds = 5L * 24 * 60 * 60;
+    private List<Network> relayNetworks = List.of(Network.parse("127.0.0.0/8"), Network.parse("::1/128"));
+    private boolean relayOverTls = false;
+    private int maxHops = 100;
+    private Log.Level logLevel = Log.Level.INFO;
+    private int logBufferSize = 8192;
+    private Log.Overflow logOverflow = Log.Overflow.DROP;
+    private int resolverThreads = 4;
+    private int resolverCacheSize = 10000;
+    private int resolverQueueSize = 1000;
+    private long resolverTtlSeconds = 300;
+    private long resolverNegativeTtlSeconds = 60;
+
+    /**
+     * Create an object of type ServerConfig populated from the {@code smtp.*} system properties.
+     * @return The configuration.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setMode(Mode.valueOf(System.getProperty("smtp.mode", config.getMode().name()).toUpperCase()));
+        config.setEventLoops(Integer.getInteger("smtp.eventLoops", config.getEventLoops()));
+        config.setBacklog(Integer.getInteger("smtp.backlog", config.getBacklog()));
+        config.setAcceptors(Integer.getInteger("smtp.acceptors", config.getAcceptors()));
+        config.setReusePort(Boolean.parseBoolean(System.getProperty("smtp.reusePort", String.valueOf(config.isReusePort()))));
+        config.setMaxSessions(Integer.getInteger("smtp.maxSessions", config.getMaxSessions()));
+        config.setMaxQueuedSessions(Integer.getInteger("smtp.maxQueuedSessions", config.getMaxQueuedSessions()));
+        config.setMaxConnections(Integer.getInteger("smtp.maxConnections", config.getMaxConnections()));
+        config.setMaxConnectionsPerIp(Integer.getInteger("smtp.maxConnectionsPerIp", config.getMaxConnectionsPerIp()));
+        config.setIpMessagesPerMinute(Integer.getInteger("smtp.ipMessagesPerMinute", config.getIpMessagesPerMinute()));
+        config.setIpBytesPerMinute(Long.getLong("smtp.ipBytesPerMinute", config.getIpBytesPerMinute()));
+        config.setMaxTrackedIps(Integer.getInteger("smtp.maxTrackedIps", config.getMaxTrackedIps()));
+        config.setPinningThresholdMillis(Long.getLong("smtp.pinningThresholdMillis", config.getPinningThresholdMillis()));
+        config.setStatsIntervalSeconds(Integer.getInteger("smtp.statsIntervalSeconds", config.getStatsIntervalSeconds()));
+        config.setMetricsPort(Integer.getInteger("smtp.metricsPort", config.getMetricsPort()));
+        config.setPop3Port(Integer.getInteger("smtp.pop3Port", config.getPop3Port()));
+        String pop3Users = System.getProperty("smtp.pop3Users");
+        config.setPop3Users(pop3Users == null || pop3Users.isEmpty() ? null : Path.of(pop3Users));
+        config.setMailboxDirectory(Path.of(System.getProperty("smtp.mailboxDirectory", config.getMailboxDirectory().toString())));
+        config.setSpoolDirectory(Path.of(System.getProperty("smtp.spoolDirectory", config.getSpoolDirectory().toString())));
+        config.setSpillThresholdBytes(Integer.getInteger("smtp.spillThresholdBytes", config.getSpillThresholdBytes()));
+        config.setSegmentBytes(Long.getLong("smtp.segmentBytes", config.getSegmentBytes()));
+        config.setSegmentMillis(Long.getLong("smtp.segmentMillis", config.getSegmentMillis()));
+        config.setMailboxStripes(Integer.getInteger("smtp.mailboxStripes", config.getMailboxStripes()));
+        config.setGroupCommitMicros(Long.getLong("smtp.groupCommitMicros", config.getGroupCommitMicros()));
+        config.setGroupCommitMaxBatch(Integer.getInteger("smtp.groupCommitMaxBatch", config.getGroupCommitMaxBatch()));
+        config.setIndexThreads(Integer.getInteger("smtp.indexThreads", config.getIndexThreads()));
+        config.setCompressionCodec(parseCodec(System.getProperty("smtp.compression", "none")));
+        config.setCompressionThresholdBytes(Long.getLong("smtp.compressionThresholdBytes", config.getCompressionThresholdBytes()));
+        config.setCompressionThreads(Integer.getInteger("smtp.compressionThreads", config.getCompressionThreads()));
+        config.setDedup(Boolean.parseBoolean(System.getProperty("smtp.dedup", String.valueOf(config.isDedup()))));
+        config.setDedupThresholdBytes(Long.getLong("smtp.dedupThresholdBytes", config.getDedupThresholdBytes()));
+        config.setBlobCollectIntervalSeconds(Long.getLong("smtp.blobCollectIntervalSeconds", config.getBlobCollectIntervalSeconds()));
+        config.setMaxRecipients(Integer.getInteger("smtp.maxRecipients", config.getMaxRecipients()));
+        config.setMaxMessageBytes(Long.getLong("smtp.maxMessageBytes", config.getMaxMessageBytes()));
+        config.setMaxInFlightBytes(Long.getLong("smtp.maxInFlightBytes", config.getMaxInFlightBytes()));
+        config.setGreetingTimeoutSeconds(Integer.getInteger("smtp.greetingTimeoutSeconds", config.getGreetingTimeoutSeconds()));
+        config.setCommandTimeoutSeconds(Integer.getInteger("smtp.commandTimeoutSeconds", config.getCommandTimeoutSeconds()));
+        config.setDataTimeoutSeconds(Integer.getInteger("smtp.dataTimeoutSeconds", config.getDataTimeoutSeconds()));
+        config.setSessionTimeoutSeconds(Integer.getInteger("smtp.sessionTimeoutSeconds", config.getSessionTimeoutSeconds()));
+        config.setMinDataRateBytesPerSecond(Integer.getInteger("smtp.minDataRateBytesPerSecond", config.getMinDataRateBytesPerSecond()));
+        String tlsKeyStore = System.getProperty("smtp.tlsKeyStore");
+        config.setTlsKeyStore(tlsKeyStore == null || tlsKeyStore.isEmpty() ? null : Path.of(tlsKeyStore));
+        config.setTlsKeyStorePassword(System.getProperty("smtp.tlsKeyStorePassword", config.getTlsKeyStorePassword()));
+        config.setTlsSessionCacheSize(Integer.getInteger("smtp.tlsSessionCacheSize", config.getTlsSessionCacheSize()));
+        config.setTlsSessionTimeoutSeconds(Integer.getInteger("smtp.tlsSessionTimeoutSeconds", config.getTlsSessionTimeoutSeconds()));
+        config.setTlsSessionTickets(Boolean.parseBoolean(System.getProperty("smtp.tlsSessionTickets", String.valueOf(config.isTlsSessionTickets()))));
+        config.setLocalDomains(parseDomains(System.getProperty("smtp.localDomains", "")));
+        String relayDirectory = System.getProperty("smtp.relayDirectory");
+        config.setRelayDirectory(relayDirectory == null || relayDirectory.isEmpty() ? null : Path.of(relayDirectory));
+        config.setRelayRoutes(parseRoutes(System.getProperty("smtp.relayRoutes", "")));
+        config.setRelayWorkers(Integer.getInteger("smtp.relayWorkers", config.getRelayWorkers()));
+        config.setRelayConnectionsPerHost(Integer.getInteger("smtp.relayConnectionsPerHost", config.getRelayConnectionsPerHost()));
+        config.setRelayRetryMinSeconds(Long.getLong("smtp.relayRetryMinSeconds", config.getRelayRetryMinSeconds()));
+        config.setRelayRetryMaxSeconds(Long.getLong("smtp.relayRetryMaxSeconds", config.getRelayRetryMaxSeconds()));
+        config.setRelayMaxAgeSeconds(Long.getLong("smtp.relayMaxAgeSeconds", config.getRelayMaxAgeSeconds()));
+        String relayNetworks = System.getProperty("smtp.relayNetworks");
+        if (relayNetworks != null) {
+            config.setRelayNetworks(parseNetworks(relayNetworks));
+        }
+        config.setRelayOverTls(Boolean.parseBoolean(System.getProperty("smtp.relayOverTls", String.valueOf(config.isRelayOverTls()))));
+        config.setMaxHops(Integer.getInteger("smtp.maxHops", config.getMaxHops()));
+        config.setLogLevel(Log.Level.valueOf(System.getProperty("smtp.logLevel", config.getLogLevel().name()).toUpperCase()));
+        config.setLogBufferSize(Integer.getInteger("smtp.logBufferSize", config.getLogBufferSize()));
+        config.setLogOverflow(Log.Overflow.valueOf(System.getProperty("smtp.logOverflow", config.getLogOverflow().name()).toUpperCase()));
+        config.setResolverThreads(Integer.getInteger("smtp.resolverThreads", config.getResolverThreads()));
+        config.setResolverCacheSize(Integer.getInteger("smtp.resolverCacheSize", config.getResolverCacheSize()));
+        config.setResolverQueueSize(Integer.getInteger("smtp.resolverQueueSize", config.getResolverQueueSize()));
+        config.setResolverTtlSeconds(Long.getLong("smtp.resolverTtlSeconds", config.getResolverTtlSeconds()));
+        config.setResolverNegativeTtlSeconds(Long.getLong("smtp.resolverNegativeTtlSeconds", config.getResolverNegativeTtlSeconds()));
+        return config;
+    }
+
+    /**
+     * Get the execution mode used for client sessions.
+     * @return The execution mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the execution mode used for client sessions.
+     * @param mode The execution mode.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Get the number of event-loop threads used in NIO mode.
+     * @return The number of event-loop threads.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Set the number of event-loop threads used in NIO mode.
+     * @param eventLoops The number of event-loop threads, at least 1.
+     */
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be at least 1");
+        }
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Get the length of the queue of connections the operating system completes before the server accepts them.
+     * @return The listen backlog.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set the length of the queue of connections the operating system completes before the server accepts them.
+     * @param backlog The listen backlog, at least 1.
+     */
+    public void setBacklog(int backlog) {
+        if (backlog < 1) {
+            throw new IllegalArgumentException("backlog must be at least 1");
+        }
+        this.backlog = backlog;
+    }
+
+    /**
+     * Get the number of threads that accept connections.
+     * @return The number of acceptor threads.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Set the number of threads that accept connections.
+     * @param acceptors The number of acceptor threads, at least 1.
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("acceptors must be at least 1");
+        }
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Get whether each acceptor binds a listening socket of its own with SO_REUSEPORT.
+     * @return Whether SO_REUSEPORT sharding is used.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Set whether each acceptor binds a listening socket of its own with SO_REUSEPORT, letting the kernel spread
+     * connections across them, instead of every acceptor sharing a single socket.
+     * @param reusePort Whether SO_REUSEPORT sharding is used.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Get the maximum number of sessions that may run at once in virtual-thread mode.
+     * @return The maximum number of active sessions.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Set the maximum number of sessions that may run at once in virtual-thread mode.
+     * @param maxSessions The maximum number of active sessions, at least 1.
+     */
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1");
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Get the maximum number of sessions that may wait for a free slot in virtual-thread mode.
+     * @return The maximum number of queued sessions.
+     */
+    public int getMaxQueuedSessions() {
+        return maxQueuedSessions;
+    }
+
+    /**
+     * Set the maximum number of sessions that may wait for a free slot in virtual-thread mode.
+     * @param maxQueuedSessions The maximum number of queued sessions, 0 to reject as soon as every slot is taken.
+     */
+    public void setMaxQueuedSessions(int maxQueuedSessions) {
+        if (maxQueuedSessions < 0) {
+            throw new IllegalArgumentException("maxQueuedSessions must not be negative");
+        }
+        this.maxQueuedSessions = maxQueuedSessions;
+    }
+
+    /**
+     * Get the number of connections the server keeps open at once before it sheds load.
+     * @return The maximum number of connections, or 0 if there is none.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the number of connections the server keeps open at once; any more are answered with 421 and closed as
+     * soon as they are accepted.
+     * @param maxConnections The maximum number of connections, or 0 for no limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("maxConnections must not be negative");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Get the number of connections a single client address may keep open at once.
+     * @return The maximum number of connections, or 0 if there is none.
+     */
+    public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    /**
+     * Set the number of connections a single client address may keep open at once; any more are answered with
+     * 421 and closed as soon as they are accepted.
+     * @param maxConnectionsPerIp The maximum number of connections, or 0 for no limit.
+     */
+    public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        if (maxConnectionsPerIp < 0) {
+            throw new IllegalArgumentException("maxConnectionsPerIp must not be negative");
+        }
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    /**
+     * Get the number of emails a single client address may send per minute.
+     * @return The rate, or 0 if there is no limit.
+     */
+    public int getIpMessagesPerMinute() {
+        return ipMessagesPerMinute;
+    }
+
+    /**
+     * Set the number of emails a single client address may send per minute, which is also the largest burst it
+     * may send at once; MAIL is answered with 450 once the address has run out.
+     * @param ipMessagesPerMinute The rate, or 0 for no limit.
+     */
+    public void setIpMessagesPerMinute(int ipMessagesPerMinute) {
+        if (ipMessagesPerMinute < 0) {
+            throw new IllegalArgumentException("ipMessagesPerMinute must not be negative");
+        }
+        this.ipMessagesPerMinute = ipMessagesPerMinute;
+    }
+
+    /**
+     * Get the number of bytes of email a single client address may send per minute.
+     * @return The rate, or 0 if there is no limit.
+     */
+    public long getIpBytesPerMinute() {
+        return ipBytesPerMinute;
+    }
+
+    /**
+     * Set the number of bytes of email a single client address may send per minute, which is also the largest
+     * burst it may send at once; MAIL is answered with 450 until the bytes of its previous emails are paid off.
+     * @param ipBytesPerMinute The rate, or 0 for no limit.
+     */
+    public void setIpBytesPerMinute(long ipBytesPerMinute) {
+        if (ipBytesPerMinute < 0) {
+            throw new IllegalArgumentException("ipBytesPerMinute must not be negative");
+        }
+        this.ipBytesPerMinute = ipBytesPerMinute;
+    }
+
+    /**
+     * Get the number of client addresses whose connections and rates are tracked.
+     * @return The number of addresses.
+     */
+    public int getMaxTrackedIps() {
+        return maxTrackedIps;
+    }
+
+    /**
+     * Set the number of client addresses whose connections and rates are tracked; past it, the least recently
+     * seen addresses without open connections are forgotten.
+     * @param maxTrackedIps The number of addresses, at least 1.
+     */
+    public void setMaxTrackedIps(int maxTrackedIps) {
+        if (maxTrackedIps < 1) {
+            throw new IllegalArgumentException("maxTrackedIps must be at least 1");
+        }
+        this.maxTrackedIps = maxTrackedIps;
+    }
+
+    /**
+     * Get how long a virtual thread must stay pinned to its carrier before it is reported.
+     * @return The threshold in milliseconds, or 0 if pinning is not monitored.
+     */
+    public long getPinningThresholdMillis() {
+        return pinningThresholdMillis;
+    }
+
+    /**
+     * Set how long a virtual thread must stay pinned to its carrier before it is reported.
+     * @param pinningThresholdMillis The threshold in milliseconds, or 0 to disable pinning detection.
+     */
+    public void setPinningThresholdMillis(long pinningThresholdMillis) {
+        this.pinningThresholdMillis = pinningThresholdMillis;
+    }
+
+    /**
+     * Get how often the session counts are printed to the console.
+     * @return The interval in seconds, or 0 if they are not printed.
+     */
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    /**
+     * Set how often the session counts are printed to the console.
+     * @param statsIntervalSeconds The interval in seconds, or 0 to disable printing.
+     */
+    public void setStatsIntervalSeconds(int statsIntervalSeconds) {
+        this.statsIntervalSeconds = statsIntervalSeconds;
+    }
+
+    /**
+     * Get the local port the metrics are served on as Prometheus text.
+     * @return The port, or 0 if the metrics are only published over JMX.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Set the local port the metrics are served on as Prometheus text, on the loopback address.
+     * @param metricsPort The port, or 0 to only publish the metrics over JMX.
+     */
+    public void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException("metricsPort must be between 0 and 65535");
+        }
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Get the local port the mailboxes are read from over POP3.
+     * @return The port, or 0 if the mailboxes are not served.
+     */
+    public int getPop3Port() {
+        return pop3Port;
+    }
+
+    /**
+     * Set the local port the mailboxes are read from over POP3, on the loopback address.
+     * @param pop3Port The port, or 0 to not serve the mailboxes.
+     */
+    public void setPop3Port(int pop3Port) {
+        if (pop3Port < 0 || pop3Port > 65535) {
+            throw new IllegalArgumentException("pop3Port must be between 0 and 65535");
+        }
+        this.pop3Port = pop3Port;
+    }
+
+    /**
+     * Get the file holding the passwords of the mailboxes served over POP3.
+     * @return The path of the file, or null if there is none.
+     */
+    public Path getPop3Users() {
+        return pop3Users;
+    }
+
+    /**
+     * Set the file holding the passwords of the mailboxes served over POP3, one {@code address:password} line for
+     * each mailbox that may be read. POP3 is only served with one, and only to the mailboxes in it.
+     * @param pop3Users The path of the file, or null for none.
+     */
+    public void setPop3Users(Path pop3Users) {
+        this.pop3Users = pop3Users;
+    }
+
+    /**
+     * Get the directory the mailboxes are stored in.
+     * @return The mailbox directory.
+     */
+    public Path getMailboxDirectory() {
+        return mailboxDirectory;
+    }
+
+    /**
+     * Set the directory the mailboxes are stored in.
+     * @param mailboxDirectory The mailbox directory.
+     */
+    public void setMailboxDirectory(Path mailboxDirectory) {
+        this.mailboxDirectory = mailboxDirectory;
+    }
+
+    /**
+     * Get the directory in which bodies that outgrow the spill threshold are buffered.
+     * @return The spool directory.
+     */
+    public Path getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Set the directory in which bodies that outgrow the spill threshold are buffered.
+     * @param spoolDirectory The spool directory.
+     */
+    public void setSpoolDirectory(Path spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Get the number of bytes of a body kept in memory before it is spilled to the spool directory.
+     * @return The spill threshold in bytes.
+     */
+    public int getSpillThresholdBytes() {
+        return spillThresholdBytes;
+    }
+
+    /**
+     * Set the number of bytes of a body kept in memory before it is spilled to the spool directory.
+     * @param spillThresholdBytes The spill threshold in bytes, at least 1.
+     */
+    public void setSpillThresholdBytes(int spillThresholdBytes) {
+        if (spillThresholdBytes < 1) {
+            throw new IllegalArgumentException("spillThresholdBytes must be at least 1");
+        }
+        this.spillThresholdBytes = spillThresholdBytes;
+    }
+
+    /**
+     * Get the size past which the mailbox store starts a new segment.
+     * @return The segment size limit in bytes.
+     */
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Set the size past which the mailbox store starts a new segment.
+     * @param segmentBytes The segment size limit in bytes, at least 1.
+     */
+    public void setSegmentBytes(long segmentBytes) {
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1");
+        }
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Get the age past which the mailbox store starts a new segment.
+     * @return The segment age limit in milliseconds.
+     */
+    public long getSegmentMillis() {
+        return segmentMillis;
+    }
+
+    /**
+     * Set the age past which the mailbox store starts a new segment.
+     * @param segmentMillis The segment age limit in milliseconds, at least 1.
+     */
+    public void setSegmentMillis(long segmentMillis) {
+        if (segmentMillis < 1) {
+            throw new IllegalArgumentException("segmentMillis must be at least 1");
+        }
+        this.segmentMillis = segmentMillis;
+    }
+
+    /**
+     * Get the number of lock stripes the mailbox indexes are spread over.
+     * @return The number of stripes.
+     */
+    public int getMailboxStripes() {
+        return mailboxStripes;
+    }
+
+    /**
+     * Set the number of lock stripes the mailbox indexes are spread over.
+     * @param mailboxStripes The number of stripes, at least 1.
+     */
+    public void setMailboxStripes(int mailboxStripes) {
+        if (mailboxStripes < 1) {
+            throw new IllegalArgumentException("mailboxStripes must be at least 1");
+        }
+        this.mailboxStripes = mailboxStripes;
+    }
+
+    /**
+     * Get how long the delivery writer waits for more emails to join a batch before forcing it to disk.
+     * @return The group commit window in microseconds.
+     */
+    public long getGroupCommitMicros() {
+        return groupCommitMicros;
+    }
+
+    /**
+     * Set how long the delivery writer waits for more emails to join a batch before forcing it to disk.
+     * @param groupCommitMicros The group commit window in microseconds, 0 to only batch emails already waiting.
+     */
+    public void setGroupCommitMicros(long groupCommitMicros) {
+        if (groupCommitMicros < 0) {
+            throw new IllegalArgumentException("groupCommitMicros must not be negative");
+        }
+        this.groupCommitMicros = groupCommitMicros;
+    }
+
+    /**
+     * Get the largest number of emails forced to disk together.
+     * @return The maximum batch size.
+     */
+    public int getGroupCommitMaxBatch() {
+        return groupCommitMaxBatch;
+    }
+
+    /**
+     * Set the largest number of emails forced to disk together.
+     * @param groupCommitMaxBatch The maximum batch size, at least 1.
+     */
+    public void setGroupCommitMaxBatch(int groupCommitMaxBatch) {
+        if (groupCommitMaxBatch < 1) {
+            throw new IllegalArgumentException("groupCommitMaxBatch must be at least 1");
+        }
+        this.groupCommitMaxBatch = groupCommitMaxBatch;
+    }
+
+    /**
+     * Get the number of threads that write the index entries of a batch in parallel.
+     * @return The number of index threads.
+     */
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    /**
+     * Set the number of threads that write the index entries of a batch in parallel.
+     * @param indexThreads The number of index threads, at least 1.
+     */
+    public void setIndexThreads(int indexThreads) {
+        if (indexThreads < 1) {
+            throw new IllegalArgumentException("indexThreads must be at least 1");
+        }
+        this.indexThreads = indexThreads;
+    }
+
+    /**
+     * Get the codec the bodies of emails are compressed with in the mailbox store.
+     * @return The codec, or null if bodies are stored raw.
+     */
+    public MessageCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Set the codec the bodies of emails are compressed with in the mailbox store. Records written with any
+     * known codec stay readable whichever one is set.
+     * @param compressionCodec The codec, or null to store bodies raw.
+     */
+    public void setCompressionCodec(MessageCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    /**
+     * Get the size below which the body of an email is stored raw rather than compressed.
+     * @return The threshold in bytes.
+     */
+    public long getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    /**
+     * Set the size below which the body of an email is stored raw rather than compressed.
+     * @param compressionThresholdBytes The threshold in bytes, not negative.
+     */
+    public void setCompressionThresholdBytes(long compressionThresholdBytes) {
+        if (compressionThresholdBytes < 0) {
+            throw new IllegalArgumentException("compressionThresholdBytes must not be negative");
+        }
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    /**
+     * Get the number of threads that compress or deduplicate the bodies of emails before they are written.
+     * @return The number of compression threads.
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Set the number of threads that compress or deduplicate the bodies of emails before they are written.
+     * @param compressionThreads The number of compression threads, at least 1.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("compressionThreads must be at least 1");
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Check whether identical bodies are stored once, as blobs named after the hash of their content.
+     * @return Whether bodies are deduplicated.
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * Set whether identical bodies are stored once, as blobs named after the hash of their content.
+     * @param dedup Whether to deduplicate bodies.
+     */
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * Get the size below which the body of an email is stored in the segment rather than as a blob.
+     * @return The threshold in bytes.
+     */
+    public long getDedupThresholdBytes() {
+        return dedupThresholdBytes;
+    }
+
+    /**
+     * Set the size below which the body of an email is stored in the segment rather than as a blob.
+     * @param dedupThresholdBytes The threshold in bytes, not negative.
+     */
+    public void setDedupThresholdBytes(long dedupThresholdBytes) {
+        if (dedupThresholdBytes < 0) {
+            throw new IllegalArgumentException("dedupThresholdBytes must not be negative");
+        }
+        this.dedupThresholdBytes = dedupThresholdBytes;
+    }
+
+    /**
+     * Get the time between two collections of the blobs left without references.
+     * @return The interval in seconds.
+     */
+    public long getBlobCollectIntervalSeconds() {
+        return blobCollectIntervalSeconds;
+    }
+
+    /**
+     * Set the time between two collections of the blobs left without references.
+     * @param blobCollectIntervalSeconds The interval in seconds, at least 1.
+     */
+    public void setBlobCollectIntervalSeconds(long blobCollectIntervalSeconds) {
+        if (blobCollectIntervalSeconds < 1) {
+            throw new IllegalArgumentException("blobCollectIntervalSeconds must be at least 1");
+        }
+        this.blobCollectIntervalSeconds = blobCollectIntervalSeconds;
+    }
+
+    /**
+     * Get the largest number of recipients accepted for a single email.
+     * @return The maximum number of recipients.
+     */
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * Set the largest number of recipients accepted for a single email.
+     * @param maxRecipients The maximum number of recipients, between 1 and 65535.
+     */
+    public void setMaxRecipients(int maxRecipients) {
+        if (maxRecipients < 1 || maxRecipients > 0xFFFF) {
+            throw new IllegalArgumentException("maxRecipients must be between 1 and 65535");
+        }
+        this.maxRecipients = maxRecipients;
+    }
+
+    /**
+     * Get the size of the largest email the server accepts, which it advertises with the SIZE extension.
+     * @return The maximum size in bytes, 0 for no limit.
+     */
+    public long getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Set the size of the largest email the server accepts, which it advertises with the SIZE extension. A MAIL
+     * command that announces a larger email is refused, and an email that grows past it is read to its end and
+     * refused.
+     * @param maxMessageBytes The maximum size in bytes, 0 for no limit.
+     */
+    public void setMaxMessageBytes(long maxMessageBytes) {
+        if (maxMessageBytes < 0) {
+            throw new IllegalArgumentException("maxMessageBytes must not be negative");
+        }
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Get the number of bytes of email that every session together may hold while the emails are being received
+     * and saved.
+     * @return The budget in bytes, 0 for no limit.
+     */
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * Set the number of bytes of email that every session together may hold while the emails are being received
+     * and saved; an email that does not fit is refused.
+     * @param maxInFlightBytes The budget in bytes, 0 for no limit.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes < 0) {
+            throw new IllegalArgumentException("maxInFlightBytes must not be negative");
+        }
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Get how long a client may take to send its first command once it has been greeted.
+     * @return The timeout in seconds, or 0 if there is none.
+     */
+    public int getGreetingTimeoutSeconds() {
+        return greetingTimeoutSeconds;
+    }
+
+    /**
+     * Set how long a client may take to send its first command once it has been greeted.
+     * @param greetingTimeoutSeconds The timeout in seconds, or 0 to wait forever.
+     */
+    public void setGreetingTimeoutSeconds(int greetingTimeoutSeconds) {
+        if (greetingTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("greetingTimeoutSeconds must not be negative");
+        }
+        this.greetingTimeoutSeconds = greetingTimeoutSeconds;
+    }
+
+    /**
+     * Get how long a client may take to send each command once the previous one has been answered.
+     * @return The timeout in seconds, or 0 if there is none.
+     */
+    public int getCommandTimeoutSeconds() {
+        return commandTimeoutSeconds;
+    }
+
+    /**
+     * Set how long a client may take to send each command once the previous one has been answered. Only complete
+     * lines count, so a client cannot keep the session alive by trickling a command one byte at a time.
+     * @param commandTimeoutSeconds The timeout in seconds, or 0 to wait forever.
+     */
+    public void setCommandTimeoutSeconds(int commandTimeoutSeconds) {
+        if (commandTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("commandTimeoutSeconds must not be negative");
+        }
+        this.commandTimeoutSeconds = commandTimeoutSeconds;
+    }
+
+    /**
+     * Get how long the server waits for the next block of bytes while receiving an email.
+     * @return The timeout in seconds, or 0 if there is none.
+     */
+    public int getDataTimeoutSeconds() {
+        return dataTimeoutSeconds;
+    }
+
+    /**
+     * Set how long the server waits for the next block of bytes while receiving an email, after DATA or BDAT.
+     * @param dataTimeoutSeconds The timeout in seconds, or 0 to wait forever.
+     */
+    public void setDataTimeoutSeconds(int dataTimeoutSeconds) {
+        if (dataTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("dataTimeoutSeconds must not be negative");
+        }
+        this.dataTimeoutSeconds = dataTimeoutSeconds;
+    }
+
+    /**
+     * Get how long a session may last in total, whatever the client is doing.
+     * @return The timeout in seconds, or 0 if there is none.
+     */
+    public int getSessionTimeoutSeconds() {
+        return sessionTimeoutSeconds;
+    }
+
+    /**
+     * Set how long a session may last in total, whatever the client is doing.
+     * @param sessionTimeoutSeconds The timeout in seconds, or 0 to let sessions last forever.
+     */
+    public void setSessionTimeoutSeconds(int sessionTimeoutSeconds) {
+        if (sessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("sessionTimeoutSeconds must not be negative");
+        }
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+    }
+
+    /**
+     * Get the slowest rate at which the body of an email may arrive.
+     * @return The rate in bytes per second, or 0 if there is no minimum.
+     */
+    public int getMinDataRateBytesPerSecond() {
+        return minDataRateBytesPerSecond;
+    }
+
+    /**
+     * Set the slowest rate at which the body of an email may arrive, measured over windows of
+     * {@link SmtpSession#DATA_RATE_WINDOW_SECONDS} seconds, so that a client which trickles its email does not
+     * hold on to a connection forever without ever tripping the DATA timeout.
+     * @param minDataRateBytesPerSecond The rate in bytes per second, or 0 for no minimum.
+     */
+    public void setMinDataRateBytesPerSecond(int minDataRateBytesPerSecond) {
+        if (minDataRateBytesPerSecond < 0) {
+            throw new IllegalArgumentException("minDataRateBytesPerSecond must not be negative");
+        }
+        this.minDataRateBytesPerSecond = minDataRateBytesPerSecond;
+    }
+
+    /**
+     * Get the key store holding the certificate and private key the server offers STARTTLS with.
+     * @return The path of the key store, or null if STARTTLS is not offered.
+     */
+    public Path getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    /**
+     * Set the key store holding the certificate and private key the server offers STARTTLS with.
+     * @param tlsKeyStore The path of a PKCS12 or JKS key store, or null to not offer STARTTLS.
+     */
+    public void setTlsKeyStore(Path tlsKeyStore) {
+        this.tlsKeyStore = tlsKeyStore;
+    }
+
+    /**
+     * Get the password of the key store and of the private key in it.
+     * @return The password.
+     */
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    /**
+     * Set the password of the key store and of the private key in it.
+     * @param tlsKeyStorePassword The password.
+     */
+    public void setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        if (tlsKeyStorePassword == null) {
+            throw new IllegalArgumentException("tlsKeyStorePassword must not be null");
+        }
+        this.tlsKeyStorePassword = tlsKeyStorePassword;
+    }
+
+    /**
+     * Get the number of TLS sessions the server keeps so that clients can resume them.
+     * @return The size of the session cache.
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * Set the number of TLS sessions the server keeps so that clients can resume them; past it, the least recently
+     * used session is forgotten.
+     * @param tlsSessionCacheSize The size of the session cache, or 0 for no limit.
+     */
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        if (tlsSessionCacheSize < 0) {
+            throw new IllegalArgumentException("tlsSessionCacheSize must not be negative");
+        }
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+
+    /**
+     * Get how long a TLS session can be resumed after it was created, from the cache or from a ticket.
+     * @return The lifetime of a session in seconds.
+     */
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    /**
+     * Set how long a TLS session can be resumed after it was created, from the cache or from a ticket.
+     * @param tlsSessionTimeoutSeconds The lifetime of a session in seconds, or 0 for no limit.
+     */
+    public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        if (tlsSessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("tlsSessionTimeoutSeconds must not be negative");
+        }
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+    }
+
+    /**
+     * Check whether the server hands out session tickets, which clients resume sessions with without the server
+     * looking them up in its cache.
+     * @return Whether session tickets are used.
+     */
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+
+    /**
+     * Set whether the server hands out session tickets, which clients resume sessions with without the server
+     * looking them up in its cache.
+     * @param tlsSessionTickets Whether session tickets are used; false resumes sessions from the cache only. This
+     *                          applies to the whole process, and only before its first TLS context is created.
+     */
+    public void setTlsSessionTickets(boolean tlsSessionTickets) {
+        this.tlsSessionTickets = tlsSessionTickets;
+    }
+
+    /**
+     * Get the domains whose recipients are delivered to the local mailboxes.
+     * @return The domains in lower case; when there are none, every recipient is local and nothing is relayed.
+     */
+    public Set<String> getLocalDomains() {
+        return localDomains;
+    }
+
+    /**
+     * Set the domains whose recipients are delivered to the local mailboxes. When any are set, the server relays
+     * the emails of every other recipient to the server of its domain.
+     * @param localDomains The domains, or an empty set to deliver every recipient locally.
+     */
+    public void setLocalDomains(Set<String> localDomains) {
+        Set<String> domains = new LinkedHashSet<>();
+        for (String domain : localDomains) {
+            domains.add(domain.toLowerCase(Locale.ROOT));
+        }
+        this.localDomains = Set.copyOf(domains);
+    }
+
+    /**
+     * Get the directory in which emails waiting to be relayed are kept.
+     * @return The relay directory, which defaults to {@code relay} in the mailbox directory.
+     */
+    public Path getRelayDirectory() {
+        return relayDirectory != null ? relayDirectory : mailboxDirectory.resolve("relay");
+    }
+
+    /**
+     * Set the directory in which emails waiting to be relayed are kept.
+     * @param relayDirectory The relay directory, or null for {@code relay} in the mailbox directory.
+     */
+    public void setRelayDirectory(Path relayDirectory) {
+        this.relayDirectory = relayDirectory;
+    }
+
+    /**
+     * Get the servers emails are relayed to, by the domain of their recipients.
+     * @return The address of the server of each domain, with {@code *} matching any other domain.
+     */
+    public Map<String, InetSocketAddress> getRelayRoutes() {
+        return relayRoutes;
+    }
+
+    /**
+     * Set the servers emails are relayed to, by the domain of their recipients. A domain without a route is
+     * relayed to its mail exchangers on port 25.
+     * @param relayRoutes The address of the server of each domain, with {@code *} matching any other domain.
+     */
+    public void setRelayRoutes(Map<String, InetSocketAddress> relayRoutes) {
+        Map<String, InetSocketAddress> routes = new LinkedHashMap<>();
+        relayRoutes.forEach((domain, server) -> routes.put(domain.toLowerCase(Locale.ROOT), server));
+        this.relayRoutes = Map.copyOf(routes);
+    }
+
+    /**
+     * Get the number of threads delivering relayed emails.
+     * @return The number of relay workers.
+     */
+    public int getRelayWorkers() {
+        return relayWorkers;
+    }
+
+    /**
+     * Set the number of threads delivering relayed emails, which is the number of emails being relayed at once.
+     * @param relayWorkers The number of relay workers, at least 1.
+     */
+    public void setRelayWorkers(int relayWorkers) {
+        if (relayWorkers < 1) {
+            throw new IllegalArgumentException("relayWorkers must be at least 1");
+        }
+        this.relayWorkers = relayWorkers;
+    }
+
+    /**
+     * Get the number of connections the relay keeps open to the same server.
+     * @return The maximum number of connections per destination.
+     */
+    public int getRelayConnectionsPerHost() {
+        return relayConnectionsPerHost;
+    }
+
+    /**
+     * Set the number of connections the relay keeps open to the same server; further emails to it wait for one.
+     * @param relayConnectionsPerHost The maximum number of connections per destination, at least 1.
+     */
+    public void setRelayConnectionsPerHost(int relayConnectionsPerHost) {
+        if (relayConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("relayConnectionsPerHost must be at least 1");
+        }
+        this.relayConnectionsPerHost = relayConnectionsPerHost;
+    }
+
+    /**
+     * Get how long the relay waits before retrying an email for the first time.
+     * @return The first retry delay in seconds.
+     */
+    public long getRelayRetryMinSeconds() {
+        return relayRetryMinSeconds;
+    }
+
+    /**
+     * Set how long the relay waits before retrying an email for the first time; the delay doubles with every
+     * further attempt.
+     * @param relayRetryMinSeconds The first retry delay in seconds, at least 1.
+     */
+    public void setRelayRetryMinSeconds(long relayRetryMinSeconds) {
+        if (relayRetryMinSeconds < 1) {
+            throw new IllegalArgumentException("relayRetryMinSeconds must be at least 1");
+        }
+        this.relayRetryMinSeconds = relayRetryMinSeconds;
+    }
+
+    /**
+     * Get the longest the relay waits between two attempts at an email.
+     * @return The largest retry delay in seconds.
+     */
+    public long getRelayRetryMaxSeconds() {
+        return relayRetryMaxSeconds;
+    }
+
+    /**
+     * Set the longest the relay waits between two attempts at an email, which caps the doubling of the delay.
+     * @param relayRetryMaxSeconds The largest retry delay in seconds, at least 1.
+     */
+    public void setRelayRetryMaxSeconds(long relayRetryMaxSeconds) {
+        if (relayRetryMaxSeconds < 1) {
+            throw new IllegalArgumentException("relayRetryMaxSeconds must be at least 1");
+        }
+        this.relayRetryMaxSeconds = relayRetryMaxSeconds;
+    }
+
+    /**
+     * Get how long the relay keeps retrying an email before it gives up on the recipients still waiting for it.
+     * @return The age in seconds.
+     */
+    public long getRelayMaxAgeSeconds() {
+        return relayMaxAgeSeconds;
+    }
+
+    /**
+     * Set how long the relay keeps retrying an email before it gives up on the recipients still waiting for it.
+     * @param relayMaxAgeSeconds The age in seconds, at least 1.
+     */
+    public void setRelayMaxAgeSeconds(long relayMaxAgeSeconds) {
+        if (relayMaxAgeSeconds < 1) {
+            throw new IllegalArgumentException("relayMaxAgeSeconds must be at least 1");
+        }
+        this.relayMaxAgeSeconds = relayMaxAgeSeconds;
+    }
+
+    /**
+     * Get the networks whose clients may have their emails relayed to other domains.
+     * @return The networks.
+     */
+    public List<Network> getRelayNetworks() {
+        return relayNetworks;
+    }
+
+    /**
+     * Set the networks whose clients may have their emails relayed to other domains. Any other client may only
+     * send to the local domains, and its other recipients are refused with {@code 550}.
+     * @param relayNetworks The networks, or an empty list to relay for no client by its address alone.
+     */
+    public void setRelayNetworks(List<Network> relayNetworks) {
+        this.relayNetworks = List.copyOf(relayNetworks);
+    }
+
+    /**
+     * Check whether a client that has upgraded its connection with STARTTLS may have its emails relayed, wherever
+     * it connects from.
+     * @return Whether TLS clients may relay.
+     */
+    public boolean isRelayOverTls() {
+        return relayOverTls;
+    }
+
+    /**
+     * Set whether a client that has upgraded its connection with STARTTLS may have its emails relayed, wherever it
+     * connects from. TLS proves nothing about who the client is, so this only suits a server whose port is
+     * reachable by trusted clients alone.
+     * @param relayOverTls Whether TLS clients may relay.
+     */
+    public void setRelayOverTls(boolean relayOverTls) {
+        this.relayOverTls = relayOverTls;
+    }
+
+    /**
+     * Get the number of {@code Received} headers past which an email is taken to be looping between servers.
+     * @return The largest number of hops.
+     */
+    public int getMaxHops() {
+        return maxHops;
+    }
+
+    /**
+     * Set the number of {@code Received} headers past which an email is taken to be looping between servers, and
+     * is refused with {@code 554} instead of being saved.
+     * @param maxHops The largest number of hops, at least 1.
+     */
+    public void setMaxHops(int maxHops) {
+        if (maxHops < 1) {
+            throw new IllegalArgumentException("maxHops must be at least 1");
+        }
+        this.maxHops = maxHops;
+    }
+
+    /**
+     * Parse a comma-separated list of domains.
+     * @param value The list, such as {@code example.com,example.org}.
+     * @return The domains.
+     */
+    private static Set<String> parseDomains(String value) {
+        Set<String> domains = new LinkedHashSet<>();
+        for (String domain : value.split(",")) {
+            if (!domain.isBlank()) {
+                domains.add(domain.trim());
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * Parse a comma-separated list of networks.
+     * @param value The list, such as {@code 127.0.0.0/8,10.0.0.0/8}.
+     * @return The networks.
+     */
+    private static List<Network> parseNetworks(String value) {
+        List<Network> networks = new ArrayList<>();
+        for (String network : value.split(",")) {
+            if (!network.isBlank()) {
+                networks.add(Network.parse(network));
+            }
+        }
+        return networks;
+    }
+
+    /**
+     * Parse the name of a compression codec.
+     * @param value {@code none}, or {@code deflate} optionally followed by a level, such as {@code deflate:9}.
+     * @return The codec, or null for {@code none}.
+     */
+    private static MessageCodec parseCodec(String value) {
+        String[] parts = value.trim().toLowerCase(Locale.ROOT).split(":", 2);
+        if (parts[0].equals("none") && parts.length == 1) {
+            return null;
+        }
+        if (!parts[0].equals(DeflateCodec.NAME)) {
+            throw new IllegalArgumentException("Unknown compression codec: " + value);
+        }
+        try {
+            return new DeflateCodec(parts.length == 1 ? DeflateCodec.DEFAULT_LEVEL : Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("A compression level must be a number: " + value);
+        }
+    }
+
+    /**
+     * Parse a comma-separated list of relay routes.
+     * @param value The list, such as {@code example.com=mx.example.com:25,*=127.0.0.1:2526}.
+     * @return The address of the server of each domain.
+     */
+    private static Map<String, InetSocketAddress> parseRoutes(String value) {
+        Map<String, InetSocketAddress> routes = new LinkedHashMap<>();
+        for (String route : value.split(",")) {
+            if (route.isBlank()) {
+                continue;
+            }
+            int equals = route.indexOf('=');
+            int colon = route.lastIndexOf(':');
+            if (equals < 1 || colon < equals) {
+                throw new IllegalArgumentException("A relay route must look like domain=host:port: " + route);
+            }
+            try {
+                routes.put(route.substring(0, equals).trim(), InetSocketAddress.createUnresolved(
+                        route.substring(equals + 1, colon).trim(), Integer.parseInt(route.substring(colon + 1).trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("A relay route must look like domain=host:port: " + route);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Get the lowest level of the messages printed to the console.
+     * @return The log level.
+     */
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Set the lowest level of the messages printed to the console.
+     * @param logLevel The log level, or OFF to print nothing.
+     */
+    public void setLogLevel(Log.Level logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Get the number of messages the log can hold before they are printed.
+     * @return The size of the log ring buffer.
+     */
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    /**
+     * Set the number of messages the log can hold before they are printed.
+     * @param logBufferSize The size of the log ring buffer, between 2 and 2^30; rounded up to a power of two.
+     */
+    public void setLogBufferSize(int logBufferSize) {
+        if (logBufferSize < 2 || logBufferSize > 1 << 30) {
+            throw new IllegalArgumentException("logBufferSize must be between 2 and 2^30");
+        }
+        this.logBufferSize = logBufferSize;
+    }
+
+    /**
+     * Get what a thread does when it logs a message while the log is full.
+     * @return The overflow policy.
+     */
+    public Log.Overflow getLogOverflow() {
+        return logOverflow;
+    }
+
+    /**
+     * Set what a thread does when it logs a message while the log is full.
+     * @param logOverflow The overflow policy.
+     */
+    public void setLogOverflow(Log.Overflow logOverflow) {
+        this.logOverflow = logOverflow;
+    }
+
+    /**
+     * Get the number of threads that look up the host names of clients.
+     * @return The number of resolver threads.
+     */
+    public int getResolverThreads() {
+        return resolverThreads;
+    }
+
+    /**
+     * Set the number of threads that look up the host names of clients.
+     * @param resolverThreads The number of resolver threads, at least 1.
+     */
+    public void setResolverThreads(int resolverThreads) {
+        if (resolverThreads < 1) {
+            throw new IllegalArgumentException("resolverThreads must be at least 1");
+        }
+        this.resolverThreads = resolverThreads;
+    }
+
+    /**
+     * Get the largest number of client addresses whose host names are remembered.
+     * @return The size of the host name cache.
+     */
+    public int getResolverCacheSize() {
+        return resolverCacheSize;
+    }
+
+    /**
+     * Set the largest number of client addresses whose host names are remembered.
+     * @param resolverCacheSize The size of the host name cache, at least 1.
+     */
+    public void setResolverCacheSize(int resolverCacheSize) {
+        if (resolverCacheSize < 1) {
+            throw new IllegalArgumentException("resolverCacheSize must be at least 1");
+        }
+        this.resolverCacheSize = resolverCacheSize;
+    }
+
+    /**
+     * Get the largest number of host name lookups waiting for a resolver thread.
+     * @return The size of the lookup queue.
+     */
+    public int getResolverQueueSize() {
+        return resolverQueueSize;
+    }
+
+    /**
+     * Set the largest number of host name lookups waiting for a resolver thread; a client that connects while the
+     * queue is full is known by its IP address alone.
+     * @param resolverQueueSize The size of the lookup queue, at least 1.
+     */
+    public void setResolverQueueSize(int resolverQueueSize) {
+        if (resolverQueueSize < 1) {
+            throw new IllegalArgumentException("resolverQueueSize must be at least 1");
+        }
+        this.resolverQueueSize = resolverQueueSize;
+    }
+
+    /**
+     * Get how long the host name of a client address is remembered.
+     * @return The time to live in seconds.
+     */
+    public long getResolverTtlSeconds() {
+        return resolverTtlSeconds;
+    }
+
+    /**
+     * Set how long the host name of a client address is remembered.
+     * @param resolverTtlSeconds The time to live in seconds, not negative.
+     */
+    public void setResolverTtlSeconds(long resolverTtlSeconds) {
+        if (resolverTtlSeconds < 0) {
+            throw new IllegalArgumentException("resolverTtlSeconds must not be negative");
+        }
+        this.resolverTtlSeconds = resolverTtlSeconds;
+    }
+
+    /**
+     * Get how long a client address without a host name is remembered as such.
+     * @return The time to live in seconds.
+     */
+    public long getResolverNegativeTtlSeconds() {
+        return resolverNegativeTtlSeconds;
+    }
+
+    /**
+     * Set how long a client address without a host name is remembered as such.
+     * @param resolverNegativeTtlSeconds The time to live in seconds, not negative.
+     */
+    public void setResolverNegativeTtlSeconds(long resolverNegativeTtlSeconds) {
+        if (resolverNegativeTtlSeconds < 0) {
+            throw new IllegalArgumentException("resolverNegativeTtlSeconds must not be negative");
+        }
+        this.resolverNegativeTtlSeconds = resolverNegativeTtlSeconds;
+    }
+}
@@ -0,0 +1,648 @@
+package SMTP;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Class that holds the metrics of a server: its sessions and their timeouts, the latency of each command, the bytes
+ * exchanged with clients, the TLS handshakes, the sizes of the emails, and the latency of the mailbox store.
+ * <p>
+ * Sessions on every thread record into the same registry, so every counter is a LongAdder and every distribution
+ * a striped {@link Histogram}: recording is an uncontended increment of a counter of the calling thread, and the
+ * cost of adding them up is paid when the metrics are read. The metrics are published over JMX and, when a port
+ * is configured, as Prometheus text by a {@link MetricsEndpoint}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean, TlsEngine.HandshakeListener {
+    private final LongAdder totalSessions = new LongAdder();
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder messagesAccepted = new LongAdder();
+    private final LongAdder messagesFailed = new LongAdder();
+    private final Map<SmtpSession.Expiry, LongAdder> timeouts = new EnumMap<>(SmtpSession.Expiry.class);
+    private final Map<AdmissionControl.Refusal, LongAdder> refusals = new EnumMap<>(AdmissionControl.Refusal.class);
+    private final Map<RelayQueue.Outcome, LongAdder> relayed = new EnumMap<>(RelayQueue.Outcome.class);
+    private final Map<DeliveryWriter.Compression, LongAdder> compressions =
+            new EnumMap<>(DeliveryWriter.Compression.class);
+    private final LongAdder compressionRawBytes = new LongAdder();
+    private final LongAdder compressionStoredBytes = new LongAdder();
+    private final LongAdder compressionCpuNanos = new LongAdder();
+    private final LongAdder blobsWritten = new LongAdder();
+    private final LongAdder blobsReused = new LongAdder();
+    private final LongAdder dedupSavedBytes = new LongAdder();
+    private final Map<CommandParser.Verb, Histogram> commands = new EnumMap<>(CommandParser.Verb.class);
+    private final Histogram fullHandshakes = new Histogram();
+    private final Histogram resumedHandshakes = new Histogram();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final Histogram messageSizes = new Histogram();
+    private final Histogram storageWrites = new Histogram();
+    private final Histogram storageSyncs = new Histogram();
+    private final Histogram storageBatches = new Histogram();
+    private final AcceptMetrics accepts = new AcceptMetrics();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A value read whenever the metrics are, such as the length of a queue owned by another class.
+     * @param help The description of the value.
+     * @param value The supplier of the value.
+     */
+    private record Gauge(String help, LongSupplier value) {
+    }
+
+    /**
+     * Create an object of type ServerMetrics with every metric at zero.
+     */
+    public ServerMetrics() {
+        for (CommandParser.Verb verb : CommandParser.Verb.values()) {
+            commands.put(verb, new Histogram());
+        }
+        for (SmtpSession.Expiry expiry : SmtpSession.Expiry.values()) {
+            timeouts.put(expiry, new LongAdder());
+        }
+        for (AdmissionControl.Refusal refusal : AdmissionControl.Refusal.values()) {
+            refusals.put(refusal, new LongAdder());
+        }
+        for (RelayQueue.Outcome outcome : RelayQueue.Outcome.values()) {
+            relayed.put(outcome, new LongAdder());
+        }
+        for (DeliveryWriter.Compression compression : DeliveryWriter.Compression.values()) {
+            compressions.put(compression, new LongAdder());
+        }
+    }
+
+    /**
+     * Get the metrics of the listener, which are published along with the others.
+     * @return The accept metrics.
+     */
+    public AcceptMetrics getAccepts() {
+        return accepts;
+    }
+
+    /**
+     * Publish a value that is owned elsewhere along with the metrics.
+     * @param name The name of the value in the Prometheus text, such as {@code smtp_sessions_queued}.
+     * @param help The description of the value.
+     * @param value The supplier of the value, called whenever the metrics are read.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Record that a session has started.
+     */
+    public void sessionOpened() {
+        totalSessions.increment();
+        activeSessions.increment();
+    }
+
+    /**
+     * Record that a session has ended.
+     */
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    /**
+     * Record that a session has been closed because it timed out.
+     * @param expiry What the session was waiting for.
+     */
+    public void recordTimeout(SmtpSession.Expiry expiry) {
+        timeouts.get(expiry).increment();
+    }
+
+    /**
+     * Record that a connection or an email has been refused by admission control.
+     * @param refusal Why it was refused.
+     */
+    public void recordRefusal(AdmissionControl.Refusal refusal) {
+        refusals.get(refusal).increment();
+    }
+
+    /**
+     * Record what became of the recipients of an attempt to relay an email.
+     * @param outcome What became of them.
+     * @param recipients The number of recipients.
+     */
+    public void recordRelay(RelayQueue.Outcome outcome, int recipients) {
+        relayed.get(outcome).add(recipients);
+    }
+
+    /**
+     * Record what became of the body of an email while compression is enabled.
+     * @param compression What became of the body.
+     * @param rawBytes The length of the body as received.
+     * @param storedBytes The length of the body as stored.
+     * @param cpuNanos The CPU time spent compressing it.
+     */
+    public void recordCompression(DeliveryWriter.Compression compression, long rawBytes, long storedBytes,
+            long cpuNanos) {
+        compressions.get(compression).increment();
+        compressionRawBytes.add(rawBytes);
+        compressionStoredBytes.add(storedBytes);
+        compressionCpuNanos.add(cpuNanos);
+    }
+
+    /**
+     * Record that the body of an email was kept in the blob store.
+     * @param written Whether the blob was written, rather than held already for an earlier copy.
+     * @param rawBytes The length of the body.
+     */
+    public void recordDedup(boolean written, long rawBytes) {
+        if (written) {
+            blobsWritten.increment();
+        } else {
+            blobsReused.increment();
+            dedupSavedBytes.add(rawBytes);
+        }
+    }
+
+    /**
+     * Record that a command has been answered.
+     * @param verb The command.
+     * @param nanos The time from receiving the command to answering it; for DATA and BDAT, up to the reply that
+     *              follows the email or chunk.
+     */
+    public void recordCommand(CommandParser.Verb verb, long nanos) {
+        commands.get(verb).record(nanos);
+    }
+
+    /**
+     * Record that a TLS handshake has completed.
+     * @param nanos How long the handshake took.
+     * @param resumed Whether an earlier session was resumed, rather than a full handshake being made.
+     */
+    @Override
+    public void handshakeCompleted(long nanos, boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).record(nanos);
+    }
+
+    /**
+     * Record that a TLS handshake has failed.
+     */
+    @Override
+    public void handshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    /**
+     * Record bytes received from a client.
+     * @param count The number of bytes.
+     */
+    public void recordBytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    /**
+     * Record bytes sent to a client.
+     * @param count The number of bytes.
+     */
+    public void recordBytesSent(long count) {
+        bytesSent.add(count);
+    }
+
+    /**
+     * Record the outcome of saving an email.
+     * @param size The size of the email in bytes.
+     * @param saved Whether the email was saved, rather than refused because of a local error.
+     */
+    public void recordMessage(long size, boolean saved) {
+        if (saved) {
+            messagesAccepted.increment();
+            messageSizes.record(size);
+        } else {
+            messagesFailed.increment();
+        }
+    }
+
+    /**
+     * Record the time taken to append an email to the mailbox store.
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordStorageWrite(long nanos) {
+        storageWrites.record(nanos);
+    }
+
+    /**
+     * Record the time taken to force a batch of emails to disk.
+     * @param nanos The latency in nanoseconds.
+     * @param emails The number of emails in the batch.
+     */
+    public void recordStorageSync(long nanos, int emails) {
+        storageSyncs.record(nanos);
+        storageBatches.record(emails);
+    }
+
+    /**
+     * Wrap the input stream of a client so that the bytes read from it are counted.
+     * @param input The input stream of the client.
+     * @return The counting stream.
+     */
+    public InputStream meter(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesReceived.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count > 0) {
+                    bytesReceived.add(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Wrap the output stream of a client so that the bytes written to it are counted.
+     * @param output The output stream of the client.
+     * @return The counting stream.
+     */
+    public OutputStream meter(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSent.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesSent.add(len);
+            }
+        };
+    }
+
+    /**
+     * Get the number of sessions currently open.
+     * @return The number of active sessions.
+     */
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    /**
+     * Get the number of sessions opened since the server started.
+     * @return The total number of sessions.
+     */
+    @Override
+    public long getTotalSessions() {
+        return totalSessions.sum();
+    }
+
+    /**
+     * Get the number of sessions closed because they timed out, by what they were waiting for.
+     * @return The counts, keyed by phase.
+     */
+    @Override
+    public Map<String, Long> getSessionTimeouts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        timeouts.forEach((expiry, count) -> counts.put(expiry.name(), count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the number of connections and emails refused by admission control, by reason.
+     * @return The counts, keyed by reason.
+     */
+    @Override
+    public Map<String, Long> getRefusals() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        refusals.forEach((refusal, count) -> counts.put(refusal.name(), count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the number of relayed recipients, by what became of them after each attempt.
+     * @return The counts, keyed by outcome.
+     */
+    @Override
+    public Map<String, Long> getRelayedRecipients() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        relayed.forEach((outcome, count) -> counts.put(outcome.name(), count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the number of emails stored while compression is enabled, by what became of their bodies.
+     * @return The counts, keyed by outcome.
+     */
+    @Override
+    public Map<String, Long> getCompressedMessages() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        compressions.forEach((compression, count) -> counts.put(compression.name(), count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the size of the bodies stored while compression is enabled, relative to their size as received.
+     * @return The stored size in percent of the raw size, or 0 if no email has been stored.
+     */
+    @Override
+    public long getCompressedSizePercent() {
+        long raw = compressionRawBytes.sum();
+        return raw == 0 ? 0 : compressionStoredBytes.sum() * 100 / raw;
+    }
+
+    /**
+     * Get the CPU time spent compressing bodies.
+     * @return The CPU time in milliseconds.
+     */
+    @Override
+    public long getCompressionCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionCpuNanos.sum());
+    }
+
+    /**
+     * Get the number of emails whose body was already held in the blob store by an earlier copy.
+     * @return The number of emails.
+     */
+    @Override
+    public long getDedupHits() {
+        return blobsReused.sum();
+    }
+
+    /**
+     * Get the number of bytes the bodies held in the blob store already would have taken to store again.
+     * @return The number of bytes.
+     */
+    @Override
+    public long getDedupSavedBytes() {
+        return dedupSavedBytes.sum();
+    }
+
+    /**
+     * Get the number of TLS handshakes that created a new session.
+     * @return The number of handshakes.
+     */
+    @Override
+    public long getTlsFullHandshakes() {
+        return fullHandshakes.getCount();
+    }
+
+    /**
+     * Get the number of TLS handshakes that resumed an earlier session.
+     * @return The number of handshakes.
+     */
+    @Override
+    public long getTlsResumedHandshakes() {
+        return resumedHandshakes.getCount();
+    }
+
+    /**
+     * Get the number of TLS handshakes that failed.
+     * @return The number of handshakes.
+     */
+    @Override
+    public long getTlsHandshakeFailures() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * Get the share of the completed TLS handshakes that resumed an earlier session.
+     * @return The share in percent, or 0 if there has been no handshake.
+     */
+    @Override
+    public long getTlsResumptionPercent() {
+        long resumed = getTlsResumedHandshakes();
+        long total = resumed + getTlsFullHandshakes();
+        return total == 0 ? 0 : resumed * 100 / total;
+    }
+
+    /**
+     * Get the number of bytes received from clients.
+     * @return The number of bytes.
+     */
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Get the number of bytes sent to clients.
+     * @return The number of bytes.
+     */
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Get the number of emails accepted and saved.
+     * @return The number of emails.
+     */
+    @Override
+    public long getMessagesAccepted() {
+        return messagesAccepted.sum();
+    }
+
+    /**
+     * Get the number of emails that could not be saved.
+     * @return The number of emails.
+     */
+    @Override
+    public long getMessagesFailed() {
+        return messagesFailed.sum();
+    }
+
+    /**
+     * Get the number of commands handled, by command.
+     * @return The counts, keyed by verb.
+     */
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        commands.forEach((verb, latencies) -> counts.put(verb.name(), latencies.getCount()));
+        return counts;
+    }
+
+    /**
+     * Get the 99th percentile of the time taken to answer each command, by command.
+     * @return The latencies in microseconds, keyed by verb.
+     */
+    @Override
+    public Map<String, Long> getCommandP99Micros() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        commands.forEach((verb, histogram) ->
+                latencies.put(verb.name(), TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99))));
+        return latencies;
+    }
+
+    /**
+     * Get the median size of the emails accepted.
+     * @return The size in bytes.
+     */
+    @Override
+    public long getMessageSizeP50Bytes() {
+        return messageSizes.getPercentile(50);
+    }
+
+    /**
+     * Get the 99th percentile of the time taken to append an email to the mailbox store.
+     * @return The latency in microseconds.
+     */
+    @Override
+    public long getStorageWriteP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(storageWrites.getPercentile(99));
+    }
+
+    /**
+     * Get the 99th percentile of the time taken to force a batch of emails to disk.
+     * @return The latency in microseconds.
+     */
+    @Override
+    public long getStorageSyncP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(storageSyncs.getPercentile(99));
+    }
+
+    /**
+     * Get the number of live platform threads.
+     * @return The number of threads.
+     */
+    @Override
+    public int getThreadCount() {
+        return threads.getThreadCount();
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format.
+     * @param out The text the metrics are appended to.
+     */
+    public void writePrometheus(StringBuilder out) {
+        counter(out, "smtp_sessions_total", "Sessions opened since the server started.", getTotalSessions());
+        gauge(out, "smtp_sessions_active", "Sessions currently open.", getActiveSessions());
+        header(out, "smtp_session_timeouts_total", "counter", "Sessions closed because they timed out.");
+        timeouts.forEach((expiry, count) -> out.append("smtp_session_timeouts_total{phase=\"")
+                .append(expiry.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+        header(out, "smtp_refused_total", "counter", "Connections and emails refused by admission control.");
+        refusals.forEach((refusal, count) -> out.append("smtp_refused_total{reason=\"")
+                .append(refusal.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+        header(out, "smtp_relay_recipients_total", "counter", "Relayed recipients, by the outcome of each attempt.");
+        relayed.forEach((outcome, count) -> out.append("smtp_relay_recipients_total{outcome=\"")
+                .append(outcome.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+        header(out, "smtp_compression_messages_total", "counter", "Emails stored while compression is enabled, by "
+                + "what became of their bodies.");
+        compressions.forEach((compression, count) -> out.append("smtp_compression_messages_total{outcome=\"")
+                .append(compression.name().toLowerCase()).append("\"} ").append(count.sum()).append('\n'));
+        counter(out, "smtp_compression_raw_bytes_total", "Bytes of the bodies stored while compression is enabled, "
+                + "as received.", compressionRawBytes.sum());
+        counter(out, "smtp_compression_stored_bytes_total", "Bytes of the bodies stored while compression is "
+                + "enabled, as stored.", compressionStoredBytes.sum());
+        header(out, "smtp_compression_cpu_seconds_total", "counter", "CPU time spent compressing bodies.");
+        out.append("smtp_compression_cpu_seconds_total ").append(compressionCpuNanos.sum() / 1e9).append('\n');
+        header(out, "smtp_dedup_messages_total", "counter", "Emails whose body was kept in the blob store, by "
+                + "whether the blob was written or already held.");
+        out.append("smtp_dedup_messages_total{outcome=\"written\"} ").append(blobsWritten.sum()).append('\n');
+        out.append("smtp_dedup_messages_total{outcome=\"duplicate\"} ").append(blobsReused.sum()).append('\n');
+        counter(out, "smtp_dedup_saved_bytes_total", "Bytes of the bodies that were already held in the blob store.",
+                getDedupSavedBytes());
+        counter(out, "smtp_accepts_total", "Connections accepted.", accepts.getAccepted());
+        counter(out, "smtp_accepts_immediate_total", "Accepts that found a connection already waiting.",
+                accepts.getImmediateAccepts());
+        header(out, "smtp_tls_handshakes_total", "counter", "TLS handshakes completed, full or resumed.");
+        out.append("smtp_tls_handshakes_total{type=\"full\"} ").append(getTlsFullHandshakes()).append('\n');
+        out.append("smtp_tls_handshakes_total{type=\"resumed\"} ").append(getTlsResumedHandshakes()).append('\n');
+        counter(out, "smtp_tls_handshake_failures_total", "TLS handshakes that failed.", getTlsHandshakeFailures());
+        counter(out, "smtp_received_bytes_total", "Bytes received from clients.", getBytesReceived());
+        counter(out, "smtp_sent_bytes_total", "Bytes sent to clients.", getBytesSent());
+        counter(out, "smtp_messages_accepted_total", "Emails accepted and saved.", getMessagesAccepted());
+        counter(out, "smtp_messages_failed_total", "Emails that could not be saved.", getMessagesFailed());
+
+        header(out, "smtp_command_duration_seconds", "summary", "Time from receiving a command to answering it.");
+        commands.forEach((verb, latencies) ->
+                summary(out, "smtp_command_duration_seconds", "command=\"" + verb.name() + "\"", latencies, 1e9));
+        header(out, "smtp_tls_handshake_seconds", "summary", "Time taken by a TLS handshake.");
+        summary(out, "smtp_tls_handshake_seconds", "type=\"full\"", fullHandshakes, 1e9);
+        summary(out, "smtp_tls_handshake_seconds", "type=\"resumed\"", resumedHandshakes, 1e9);
+        header(out, "smtp_message_size_bytes", "summary", "Sizes of the emails accepted.");
+        summary(out, "smtp_message_size_bytes", "", messageSizes, 1);
+        header(out, "smtp_storage_write_seconds", "summary", "Time taken to append an email to the mailbox store.");
+        summary(out, "smtp_storage_write_seconds", "", storageWrites, 1e9);
+        header(out, "smtp_storage_sync_seconds", "summary", "Time taken to force a batch of emails to disk.");
+        summary(out, "smtp_storage_sync_seconds", "", storageSyncs, 1e9);
+        header(out, "smtp_storage_batch_emails", "summary", "Emails forced to disk together.");
+        summary(out, "smtp_storage_batch_emails", "", storageBatches, 1);
+
+        gauge(out, "jvm_threads_live", "Live platform threads.", threads.getThreadCount());
+        gauge(out, "jvm_threads_daemon", "Live platform daemon threads.", threads.getDaemonThreadCount());
+        gauge(out, "jvm_threads_peak", "Peak number of live platform threads.", threads.getPeakThreadCount());
+        gauges.forEach((name, gauge) -> gauge(out, name, gauge.help(), gauge.value().getAsLong()));
+    }
+
+    /**
+     * Write the HELP and TYPE lines of a metric.
+     * @param out The text.
+     * @param name The name of the metric.
+     * @param type The type of the metric.
+     * @param help The description of the metric.
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a counter.
+     * @param out The text.
+     * @param name The name of the counter.
+     * @param help The description of the counter.
+     * @param value The value of the counter.
+     */
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a gauge.
+     * @param out The text.
+     * @param name The name of the gauge.
+     * @param help The description of the gauge.
+     * @param value The value of the gauge.
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write the quantiles, sum and count of a distribution, without its header.
+     * @param out The text.
+     * @param name The name of the summary.
+     * @param labels The labels of the summary, such as {@code command="MAIL"}, or an empty string.
+     * @param histogram The distribution.
+     * @param divisor The number of recorded units in a unit of the summary, such as 1e9 for nanoseconds.
+     */
+    private static void summary(StringBuilder out, String name, String labels, Histogram histogram, double divisor) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.append(name).append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getPercentile(quantile * 100) / divisor).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ').append(histogram.getSum() / divisor).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+    }
+}
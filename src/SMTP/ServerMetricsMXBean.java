@@ -0,0 +1,153 @@
+package SMTP;
+
+import java.util.Map;
+
+/**
+ * Management interface through which {@link ServerMetrics} is published over JMX, under the name
+ * {@code SMTP:type=Server,port=<port>}.
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * Get the number of sessions currently open.
+     * @return The number of active sessions.
+     */
+    long getActiveSessions();
+
+    /**
+     * Get the number of sessions opened since the server started.
+     * @return The total number of sessions.
+     */
+    long getTotalSessions();
+
+    /**
+     * Get the number of sessions closed because they timed out, by what they were waiting for.
+     * @return The counts, keyed by phase.
+     */
+    Map<String, Long> getSessionTimeouts();
+
+    /**
+     * Get the number of connections and emails refused by admission control, by reason.
+     * @return The counts, keyed by reason.
+     */
+    Map<String, Long> getRefusals();
+
+    /**
+     * Get the number of relayed recipients, by what became of them after each attempt.
+     * @return The counts, keyed by outcome.
+     */
+    Map<String, Long> getRelayedRecipients();
+
+    /**
+     * Get the number of emails stored while compression is enabled, by what became of their bodies.
+     * @return The counts, keyed by outcome.
+     */
+    Map<String, Long> getCompressedMessages();
+
+    /**
+     * Get the size of the bodies stored while compression is enabled, relative to their size as received.
+     * @return The stored size in percent of the raw size, or 0 if no email has been stored.
+     */
+    long getCompressedSizePercent();
+
+    /**
+     * Get the CPU time spent compressing bodies.
+     * @return The CPU time in milliseconds.
+     */
+    long getCompressionCpuMillis();
+
+    /**
+     * Get the number of emails whose body was already held in the blob store by an earlier copy.
+     * @return The number of emails.
+     */
+    long getDedupHits();
+
+    /**
+     * Get the number of bytes the bodies held in the blob store already would have taken to store again.
+     * @return The number of bytes.
+     */
+    long getDedupSavedBytes();
+
+    /**
+     * Get the number of TLS handshakes that created a new session.
+     * @return The number of handshakes.
+     */
+    long getTlsFullHandshakes();
+
+    /**
+     * Get the number of TLS handshakes that resumed an earlier session.
+     * @return The number of handshakes.
+     */
+    long getTlsResumedHandshakes();
+
+    /**
+     * Get the number of TLS handshakes that failed.
+     * @return The number of handshakes.
+     */
+    long getTlsHandshakeFailures();
+
+    /**
+     * Get the share of the completed TLS handshakes that resumed an earlier session.
+     * @return The share in percent, or 0 if there has been no handshake.
+     */
+    long getTlsResumptionPercent();
+
+    /**
+     * Get the number of bytes received from clients.
+     * @return The number of bytes.
+     */
+    long getBytesReceived();
+
+    /**
+     * Get the number of bytes sent to clients.
+     * @return The number of bytes.
+     */
+    long getBytesSent();
+
+    /**
+     * Get the number of emails accepted and saved.
+     * @return The number of emails.
+     */
+    long getMessagesAccepted();
+
+    /**
+     * Get the number of emails that could not be saved.
+     * @return The number of emails.
+     */
+    long getMessagesFailed();
+
+    /**
+     * Get the number of commands handled, by command.
+     * @return The counts, keyed by verb.
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Get the 99th percentile of the time taken to answer each command, by command.
+     * @return The latencies in microseconds, keyed by verb.
+     */
+    Map<String, Long> getCommandP99Micros();
+
+    /**
+     * Get the median size of the emails accepted.
+     * @return The size in bytes.
+     */
+    long getMessageSizeP50Bytes();
+
+    /**
+     * Get the 99th percentile of the time taken to append an email to the mailbox store.
+     * @return The latency in microseconds.
+     */
+    long getStorageWriteP99Micros();
+
+    /**
+     * Get the 99th percentile of the time taken to force a batch of emails to disk.
+     * @return The latency in microseconds.
+     */
+    long getStorageSyncP99Micros();
+
+    /**
+     * Get the number of live platform threads.
+     * @return The number of threads.
+     */
+    int getThreadCount();
+}
@@ -0,0 +1,90 @@
+package SMTP;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that runs client sessions on threads from a factory, with a cap on how many may run at once.
+ * Sessions beyond the cap wait in a bounded queue; once the queue is full further sessions are rejected.
+ * The live number of active, queued and rejected sessions can be read at any time.
+ */
+public class SessionExecutor {
+    private final ThreadFactory factory;
+    private final int maxActive;
+    private final int maxQueued;
+    private final Semaphore permits;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create an object of type SessionExecutor.
+     * @param factory The factory that creates the thread of each session.
+     * @param maxActive The maximum number of sessions that may run at once.
+     * @param maxQueued The maximum number of sessions that may wait for a running one to finish.
+     */
+    public SessionExecutor(ThreadFactory factory, int maxActive, int maxQueued) {
+        this.factory = factory;
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.permits = new Semaphore(maxActive);
+    }
+
+    /**
+     * Run a session on a new thread, unless both the running sessions and the queue are at capacity.
+     * @param session The session to run.
+     * @return Whether the session was accepted.
+     */
+    public boolean execute(Runnable session) {
+        if (admitted.incrementAndGet() > maxActive + maxQueued) {
+            admitted.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+
+        queued.incrementAndGet();
+        factory.newThread(() -> {
+            try {
+                permits.acquireUninterruptibly();
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    session.run();
+                } finally {
+                    active.decrementAndGet();
+                    permits.release();
+                }
+            } finally {
+                admitted.decrementAndGet();
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * Get the number of sessions that are currently running.
+     * @return The number of active sessions.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Get the number of sessions that are waiting for a running one to finish.
+     * @return The number of queued sessions.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Get the number of sessions that have been rejected since the executor was created.
+     * @return The number of rejected sessions.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,39 @@
+package SMTP;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an SMTP server answers a command with a reply that is not the one expected.
+ * The connection itself is still usable, unlike after any other IOException.
+ */
+public class SmtpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /**
+     * Create an object of type SmtpException for a reply of the server.
+     * @param code The code of the reply.
+     * @param reply The last line of the reply.
+     */
+    public SmtpException(int code, String reply) {
+        super(reply);
+        this.code = code;
+    }
+
+    /**
+     * Get the code of the reply.
+     * @return The reply code, such as 452.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Check whether the server may accept the same command if it is tried again later.
+     * @return Whether the reply was a transient (4xx) rather than a permanent (5xx) failure.
+     */
+    public boolean isTransient() {
+        return code >= 400 && code < 500;
+    }
+}
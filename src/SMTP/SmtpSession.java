@@ -0,0 +1,825 @@
+package SMTP;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class that holds the state of a single SMTP conversation with a client, independently of how bytes reach it.
+ * Both the thread-per-connection ClientHandler and the NIO event loops feed it one line at a time.
+ * <p>
+ * A session also enforces its own timeouts: whenever it starts waiting for the client it moves a deadline, and a
+ * single task on the shared {@link TimerWheel} checks the deadlines when they fall due, so that answering a command
+ * costs a volatile write rather than cancelling and scheduling a timer. A session that expires asks its transport
+ * to send a 421 reply and close the connection.
+ */
+public class SmtpSession {
+    /**
+     * The length of the windows over which the rate of an incoming email is measured.
+     */
+    public static final int DATA_RATE_WINDOW_SECONDS = 30;
+    private static final long DATA_RATE_WINDOW = TimeUnit.SECONDS.toNanos(DATA_RATE_WINDOW_SECONDS);
+    private static final long EXPIRY_GRACE = TimeUnit.SECONDS.toNanos(10); // how long the 421 reply may take
+    private static final byte[] RECEIVED = "received:".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * What a session was waiting for when it timed out, along with the reason given to the client.
+     */
+    public enum Expiry {
+        GREETING("Timed out waiting for a command"),
+        COMMAND("Timed out waiting for a command"),
+        DATA("Timed out waiting for the email"),
+        DATA_RATE("Email arriving too slowly"),
+        SESSION("Session lasted too long");
+
+        private final String reason;
+
+        /**
+         * Create an object of type Expiry.
+         * @param reason The reason given to the client.
+         */
+        Expiry(String reason) {
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Destination for the replies produced by a session.
+     */
+    public interface Transport {
+        /**
+         * Transmit a message to the client.
+         * @param message The message that will be transmitted, without a line terminator.
+         * @throws Exception
+         */
+        void sendMessage(String message) throws Exception;
+
+        /**
+         * Continue the session once an asynchronous operation has completed. No further lines are fed to the
+         * session until the continuation has run, and the continuation runs on the thread that serves the client.
+         * @param operation The operation.
+         * @param continuation The work to do once the operation has completed.
+         * @throws Exception
+         */
+        void await(CompletableFuture<?> operation, Continuation continuation) throws Exception;
+
+        /**
+         * Transmit a final reply and close the connection, because the session has timed out. This is called on
+         * the timer thread, so it must not block, and must hand the work over to the thread that serves the client.
+         * @param reply The reply, without a line terminator.
+         */
+        void expire(String reply);
+
+        /**
+         * Close the connection at once, because the reply of an expired session could not be sent in time. This is
+         * called on the timer thread, so it must not block.
+         */
+        void abort();
+
+        /**
+         * Check whether the connection can be upgraded to TLS: the server has a certificate, and the connection is
+         * not encrypted yet.
+         * @return Whether STARTTLS is offered.
+         */
+        boolean canStartTls();
+
+        /**
+         * Upgrade the connection to TLS once the replies sent so far have been transmitted. Whatever the client sent
+         * after STARTTLS in plain text is discarded, and the next line fed to the session is the first one received
+         * over TLS.
+         * @throws Exception
+         */
+        void startTls() throws Exception;
+    }
+
+    /**
+     * Work to do once an asynchronous operation of the session has completed.
+     */
+    public interface Continuation {
+        /**
+         * Continue the session.
+         * @throws Exception
+         */
+        void run() throws Exception;
+    }
+
+    private final String serverName;
+    private final InetAddress clientAddress;
+    private final HostResolver resolver;
+    private String clientName; // the bare IP address until the host name of the client is known
+    private boolean clientNameResolved;
+    private final Transport transport;
+    private final DeliveryWriter writer;
+    private final ServerMetrics metrics;
+    private final MessageBuffer email;
+    private final int maxRecipients;
+    private final boolean trustedNetwork; // whether the client connects from one of the relay networks
+    private final boolean relayOverTls;
+    private final int maxHops;
+    private String clientHello; // the name the client greeted the server with, or null before it did
+    private boolean extendedHello;
+    private final long maxMessageBytes; // 0 for no limit
+    private final List<String> extensions;
+    private final List<String> extensionsWithStartTls;
+    private long reserved; // the bytes of the email held in the in-flight budget of admission control
+    private final CommandParser parser = new CommandParser();
+    private final DataDecoder decoder = new DataDecoder();
+    private final Set<String> recipients = new LinkedHashSet<>();
+    private String sender; // null until MAIL FROM has been accepted, so RCPT TO needs a sender first
+    private boolean receivingEmail;
+    private boolean chunking; // whether the email that is being prepared is sent with BDAT
+    private boolean receivingChunk;
+    private long chunkSize;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    private String rejection; // the reply to an email or chunk whose bytes are read only to be discarded, or null
+    private boolean saving; // whether the reply to the last command waits for the email to be saved
+    private CommandParser.Verb pendingVerb; // the command whose reply has not been sent yet, or null
+    private long pendingSince; // the value of System.nanoTime() when that command was received
+    private boolean opened;
+    private boolean secure; // whether the session has been upgraded with STARTTLS
+    private final TimerWheel timer;
+    private final long greetingTimeout; // each timeout is in nanoseconds, or 0 if there is none
+    private final long commandTimeout;
+    private final long dataTimeout;
+    private final long sessionTimeout;
+    private final long minDataRate; // in bytes per second
+    private long sessionDeadline; // set before the first check, and only read by the timer thread after that
+    private volatile Expiry waitingFor; // what the client is expected to send next, or null while the server works
+    private volatile long deadline; // the value of System.nanoTime() by which it must have arrived
+    private volatile long dataSince; // when the email that is being received started
+    private volatile long dataReceived; // the bytes of that email received so far
+    private long windowStart; // the window over which the rate is being measured, only used by the timer thread
+    private long windowBytes;
+    private TimerWheel.Timeout timeout; // the pending check, guarded by the session along with the two below
+    private volatile long checkAt; // when that check is due, or Long.MAX_VALUE if there is none
+    private boolean expired;
+    private volatile boolean timing;
+    private final AdmissionControl.Peer peer;
+    private boolean admitted; // whether the connection still holds its slot in admission control
+
+    /**
+     * Create an object of type SmtpSession for a newly connected client.
+     * @param serverName The host name the server announces in its greeting and farewell.
+     * @param clientAddress The address of the client.
+     * @param resolver The resolver that looks up the host name of the client.
+     * @param transport The destination for the replies of the session.
+     * @param config The settings of the server.
+     * @param writer The writer that received emails are saved with.
+     * @param metrics The metrics the session records its commands and emails in.
+     * @param timer The timer wheel the timeouts of the session are checked on, or null for a session without any.
+     * @param peer The state of the client address in admission control, whose connection slot the session
+     *             releases once it is closed, or null for a session without limits.
+     */
+    public SmtpSession(String serverName, InetAddress clientAddress, HostResolver resolver, Transport transport,
+            ServerConfig config, DeliveryWriter writer, ServerMetrics metrics, TimerWheel timer,
+            AdmissionControl.Peer peer) {
+        this.serverName = serverName;
+        this.clientAddress = clientAddress;
+        this.resolver = resolver;
+        this.clientName = clientAddress.getHostAddress();
+        this.transport = transport;
+        this.writer = writer;
+        this.metrics = metrics;
+        this.email = new MessageBuffer(config.getSpillThresholdBytes(), config.getSpoolDirectory(), config.isDedup());
+        this.maxRecipients = config.getMaxRecipients();
+        boolean trusted = false;
+        for (Network network : config.getRelayNetworks()) {
+            trusted |= network.contains(clientAddress);
+        }
+        this.trustedNetwork = trusted;
+        this.relayOverTls = config.isRelayOverTls();
+        this.maxHops = config.getMaxHops();
+        this.maxMessageBytes = config.getMaxMessageBytes();
+        String size = maxMessageBytes > 0 ? "SIZE " + maxMessageBytes : "SIZE";
+        this.extensions = List.of("PIPELINING", "8BITMIME", "CHUNKING", size);
+        this.extensionsWithStartTls = List.of("PIPELINING", "8BITMIME", "CHUNKING", size, "STARTTLS");
+        this.timer = timer;
+        this.greetingTimeout = TimeUnit.SECONDS.toNanos(config.getGreetingTimeoutSeconds());
+        this.commandTimeout = TimeUnit.SECONDS.toNanos(config.getCommandTimeoutSeconds());
+        this.dataTimeout = TimeUnit.SECONDS.toNanos(config.getDataTimeoutSeconds());
+        this.sessionTimeout = TimeUnit.SECONDS.toNanos(config.getSessionTimeoutSeconds());
+        this.minDataRate = config.getMinDataRateBytesPerSecond();
+        this.peer = peer;
+        this.admitted = peer != null;
+    }
+
+    /**
+     * Get the name used to identify the client in the console: its IP address, followed by its host name once
+     * the resolver has found it.
+     * @return The client name.
+     */
+    public String getClientName() {
+        if (!clientNameResolved) {
+            String hostName = resolver.lookup(clientAddress);
+            if (hostName != null) {
+                clientName = clientAddress.getHostAddress() + "/" + hostName;
+                clientNameResolved = true;
+            }
+        }
+        return clientName;
+    }
+
+    /**
+     * Transmit the initial message to the client.
+     * @throws Exception
+     */
+    public void initiateCommunication() throws Exception {
+        opened = true;
+        metrics.sessionOpened();
+        startTimer();
+        transport.sendMessage("220 " + serverName);
+    }
+
+    /**
+     * Check whether the session is receiving the body of an email, after DATA or BDAT, which must be given to
+     * {@link #handleData} as it arrives rather than split into lines.
+     * @return Whether the body of an email is being received.
+     */
+    public boolean isReceivingEmail() {
+        return receivingEmail || receivingChunk;
+    }
+
+    /**
+     * Process a single command line received from the client.
+     * @param line The bytes of the line, without its line terminator. They are only read during the call.
+     * @param length The number of bytes in the line.
+     * @return Whether the connection should be kept open.
+     * @throws Exception
+     */
+    public boolean handleLine(byte[] line, int length) throws Exception {
+        pendingSince = System.nanoTime();
+        CommandParser.Verb verb = parser.parse(line, length);
+        pendingVerb = verb;
+
+        // if the message is "QUIT", say goodbye and ask for the connection to be closed
+        if (verb == CommandParser.Verb.QUIT) {
+            farewell();
+            recordCommand();
+            return false;
+        }
+
+        Log.info(getClientName(), ": ", line, 0, length);
+
+        // a command with malformed arguments is refused before it can change the state of the session
+        if (!parser.isValid()) {
+            transport.sendMessage("501 Syntax error in parameters or arguments");
+            recordCommand();
+            waitForClient(pendingSince);
+            return true;
+        }
+
+        switch (verb) {
+            case HELO -> {
+                // respond by greeting the client
+                clientHello = parser.argument();
+                extendedHello = false;
+                transport.sendMessage("250 Hello " + parser.argument() + ", pleased to meet you");
+            }
+            case EHLO -> {
+                // respond by greeting the client, followed by the extensions the server supports
+                resetEnvelope();
+                clientHello = parser.argument();
+                extendedHello = true;
+                transport.sendMessage("250-" + serverName + " Hello " + parser.argument() + ", pleased to meet you");
+                List<String> extensions = extensions();
+                for (int i = 0; i < extensions.size(); i++) {
+                    transport.sendMessage((i < extensions.size() - 1 ? "250-" : "250 ") + extensions.get(i));
+                }
+            }
+            case MAIL -> {
+                // save the sender's email address, which starts a new email, and respond with an OK message,
+                // unless the email is announced as too large, or the address of the client has sent too much
+                // mail lately
+                long size = parser.getDeclaredSize();
+                AdmissionControl.Refusal refusal;
+                if (maxMessageBytes > 0 && size > maxMessageBytes) {
+                    refuse("552 ", AdmissionControl.Refusal.MESSAGE_SIZE);
+                } else if (peer != null && !peer.hasRoomFor(Math.max(size, 0))) {
+                    refuse("452 ", AdmissionControl.Refusal.IN_FLIGHT_BYTES);
+                } else if ((refusal = peer == null ? null : peer.startMessage()) != null) {
+                    transport.sendMessage("450 " + refusal.getReason());
+                } else {
+                    resetEnvelope();
+                    sender = parser.address();
+                    transport.sendMessage("250 ok");
+                }
+            }
+            case RCPT -> {
+                // add the recipient's email address to those of the email and respond with an OK message, once a
+                // sender has been accepted, and unless the recipient is in another domain and the client may not
+                // relay
+                String recipient = parser.address();
+                if (sender == null) {
+                    transport.sendMessage("503 Bad sequence of commands");
+                } else if (!mayRelay() && writer.isRelayed(recipient)) {
+                    transport.sendMessage("550 5.7.1 Relaying denied");
+                } else if (recipients.size() >= maxRecipients && !recipients.contains(recipient)) {
+                    transport.sendMessage("452 Too many recipients");
+                } else {
+                    recipients.add(recipient);
+                    transport.sendMessage("250 ok");
+                }
+            }
+            case DATA -> {
+                // start collecting the body of the email
+                if (recipients.isEmpty()) {
+                    transport.sendMessage("503 No valid recipients");
+                } else if (chunking) {
+                    transport.sendMessage("503 Bad sequence of commands");
+                } else {
+                    transport.sendMessage("354 End data with <CR><LF>.<CR><LF>");
+                    decoder.reset();
+                    receivingEmail = true;
+                }
+            }
+            case BDAT -> {
+                // a chunk is read whatever happens, since the client is already sending it, but one that comes
+                // without an accepted recipient, would make the email too large or finds no room in the server is
+                // only read to be discarded, and refused once its last byte has arrived
+                long size = parser.getChunkSize();
+                if (recipients.isEmpty()) {
+                    rejection = "503 No valid recipients";
+                } else if (maxMessageBytes > 0 && size > maxMessageBytes - email.length()) {
+                    rejectEmail("552 ", AdmissionControl.Refusal.MESSAGE_SIZE);
+                } else if (!reserve(email.length() + size)) {
+                    rejectEmail("452 ", AdmissionControl.Refusal.IN_FLIGHT_BYTES);
+                }
+                receivingChunk = true;
+                chunkSize = chunkRemaining = size;
+                lastChunk = parser.isLastChunk();
+                chunking |= rejection == null;
+                if (chunkRemaining == 0) {
+                    finishChunk();
+                }
+            }
+            case RSET -> {
+                // abandon the email that is being prepared
+                resetEnvelope();
+                transport.sendMessage("250 ok");
+            }
+            case NOOP -> transport.sendMessage("250 ok");
+            case STARTTLS -> {
+                // encrypt the rest of the connection, on which the session starts over without an email
+                if (secure) {
+                    transport.sendMessage("503 Bad sequence of commands");
+                } else if (!transport.canStartTls()) {
+                    transport.sendMessage("502 Command not implemented");
+                } else {
+                    resetEnvelope();
+                    transport.sendMessage("220 Ready to start TLS");
+                    transport.startTls();
+                    secure = true;
+                }
+            }
+            default -> transport.sendMessage("500 Command not recognized");
+        }
+
+        // DATA and BDAT are answered once their email or chunk has arrived, and saved if it is the last one
+        if (!isReceivingEmail() && !saving) {
+            recordCommand();
+        }
+        waitForClient(pendingSince);
+        return true;
+    }
+
+    /**
+     * Record how long the command that was just answered took, unless it has already been recorded.
+     */
+    private void recordCommand() {
+        if (pendingVerb != null) {
+            metrics.recordCommand(pendingVerb, System.nanoTime() - pendingSince);
+            pendingVerb = null;
+        }
+    }
+
+    /**
+     * Forget the sender and recipients of the email that is being prepared.
+     */
+    private void resetEnvelope() throws IOException {
+        sender = null;
+        recipients.clear();
+        chunking = false;
+        email.reset(); // the chunks of an email that was never finished
+        releaseReserved();
+    }
+
+    /**
+     * Refuse a command because of the size of its email, recording why.
+     * @param code The reply code, followed by a space.
+     * @param refusal Why the command is refused.
+     * @throws Exception
+     */
+    private void refuse(String code, AdmissionControl.Refusal refusal) throws Exception {
+        metrics.recordRefusal(refusal);
+        transport.sendMessage(code + refusal.getReason());
+    }
+
+    /**
+     * Give up on the email that is being received, because it has grown too large or the server has no room left
+     * for it. Its buffer and reservation are given back at once, while the rest of the email or chunk is still read
+     * to find the next command, but dropped; the refusal is only sent once it has all arrived. Closing the
+     * connection instead would make the client take the refusal for a temporary failure and send the email again.
+     * @param code The reply code, followed by a space.
+     * @param refusal Why the email is refused.
+     * @throws IOException
+     */
+    private void rejectEmail(String code, AdmissionControl.Refusal refusal) throws IOException {
+        metrics.recordRefusal(refusal);
+        rejection = code + refusal.getReason();
+        resetEnvelope();
+    }
+
+    /**
+     * Send the refusal of an email or chunk whose bytes have all been read and dropped.
+     * @throws Exception
+     */
+    private void sendRejection() throws Exception {
+        transport.sendMessage(rejection);
+        rejection = null;
+        recordCommand();
+    }
+
+    /**
+     * Grow the reservation of the email in the in-flight budget, before its bytes are buffered.
+     * @param total The number of bytes the email may take up once they have been.
+     * @return Whether the budget had room for them.
+     */
+    private boolean reserve(long total) {
+        if (peer == null || total <= reserved) {
+            return true;
+        }
+        if (!peer.reserveBytes(total - reserved)) {
+            return false;
+        }
+        reserved = total;
+        return true;
+    }
+
+    /**
+     * Give the reservation of the email back to the in-flight budget, once it has been saved or discarded.
+     */
+    private void releaseReserved() {
+        if (reserved > 0) {
+            peer.releaseBytes(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Get the ESMTP extensions advertised in the reply to EHLO.
+     * @return The extensions.
+     */
+    private List<String> extensions() {
+        return transport.canStartTls() ? extensionsWithStartTls : extensions;
+    }
+
+    /**
+     * Process bytes of the email that is being transmitted from the client, up to the line holding a single "."
+     * after DATA, or up to the announced size after BDAT.
+     * @param data The received bytes; its position is advanced past those that belong to the email, and any
+     *             bytes after the end of the email or chunk are left for the next command.
+     * @return Whether the connection should be kept open, which it always is: an email that grows too large or
+     *         that the server runs out of room for is read to its end and refused.
+     * @throws Exception
+     */
+    public boolean handleData(ByteBuffer data) throws Exception {
+        int start = data.position();
+        if (receivingChunk) {
+            // a chunk is moved to the buffer in bulk, without looking at its lines
+            int count = (int) Math.min(chunkRemaining, data.remaining());
+            if (rejection == null) {
+                email.write(data, data.position(), count);
+            }
+            data.position(data.position() + count);
+            chunkRemaining -= count;
+            if (chunkRemaining == 0) {
+                finishChunk();
+            }
+        } else {
+            // the bytes are reserved before they are buffered, at most the whole read, so the budget always holds
+            if (rejection == null && !reserve(email.length() + data.remaining())) {
+                rejectEmail("452 ", AdmissionControl.Refusal.IN_FLIGHT_BYTES);
+            }
+            boolean ended = decoder.decode(data, rejection == null ? email : null);
+            if (rejection == null && maxMessageBytes > 0 && email.length() > maxMessageBytes) {
+                rejectEmail("552 ", AdmissionControl.Refusal.MESSAGE_SIZE);
+            }
+            if (ended) {
+                // until the client sends a ".", the bytes were streamed into the buffer as they were received
+                receivingEmail = false;
+                if (rejection != null) {
+                    sendRejection();
+                } else {
+                    saveEmail();
+                }
+            }
+        }
+
+        // only this thread writes the count, so it is not incremented atomically
+        dataReceived = dataReceived + data.position() - start;
+        waitForClient(System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Acknowledge a chunk that has been received in full, and save the email if it was the last one.
+     * @throws Exception
+     */
+    private void finishChunk() throws Exception {
+        receivingChunk = false;
+        if (rejection != null) {
+            sendRejection();
+        } else if (!lastChunk) {
+            transport.sendMessage("250 ok " + chunkSize + " octets received");
+            recordCommand();
+        } else {
+            chunking = false;
+            saveEmail();
+        }
+    }
+
+    /**
+     * Save the email that has been received once for all of its recipients, and acknowledge it once it is
+     * durable.
+     * @throws Exception
+     */
+    private void saveEmail() throws Exception {
+        // an email that has already passed through too many servers is most likely going round in a loop
+        if (countHops() > maxHops) {
+            Log.warn("Refusing an email of " + getClientName() + " that has passed through too many servers");
+            resetEnvelope();
+            transport.sendMessage("554 5.4.6 Too many hops");
+            recordCommand();
+            return;
+        }
+
+        // save the email once for all of its recipients, and only acknowledge it once it is durable
+        CompletableFuture<Void> saved = writer.deliver(sender, new ArrayList<>(recipients), trace(), email);
+        sender = null;
+        recipients.clear();
+        if (peer != null) {
+            peer.recordBytes(email.length());
+        }
+        saving = true;
+        transport.await(saved, () -> {
+            saving = false;
+            metrics.recordMessage(email.length(), !saved.isCompletedExceptionally());
+            email.reset();
+            releaseReserved();
+            if (saved.isCompletedExceptionally()) {
+                // if there was a problem writing to the store
+                Log.error("Could not save the email of " + getClientName());
+                transport.sendMessage("451 Requested action aborted: local error in processing");
+            } else {
+                transport.sendMessage("250 ok Message accepted for delivery");
+            }
+            recordCommand();
+            waitForClient(System.nanoTime());
+        });
+    }
+
+    /**
+     * Check whether the client may send emails to recipients in other domains: it connects from one of the relay
+     * networks, or has upgraded the connection with STARTTLS if that is enough.
+     * @return Whether the client may relay.
+     */
+    private boolean mayRelay() {
+        return trustedNetwork || (secure && relayOverTls);
+    }
+
+    /**
+     * Count the {@code Received} headers of the email that has been received, one for each server it has passed
+     * through. Only the header section is read, and only until the count is past the limit.
+     * @return The number of hops.
+     * @throws IOException
+     */
+    private int countHops() throws IOException {
+        int hops = 0;
+        try (InputStream in = new BufferedInputStream(email.openStream())) {
+            int column = 0; // the bytes of the line read so far, not counting carriage returns
+            boolean matching = true;
+            int b;
+            while (hops <= maxHops && (b = in.read()) >= 0) {
+                if (b == '\n') {
+                    if (column == 0) {
+                        break; // the blank line that ends the header section
+                    }
+                    column = 0;
+                    matching = true;
+                } else if (b != '\r') {
+                    if (matching && column < RECEIVED.length) {
+                        matching = Character.toLowerCase(b) == RECEIVED[column];
+                        if (matching && column == RECEIVED.length - 1) {
+                            hops++;
+                        }
+                    }
+                    column++;
+                }
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * Build the {@code Received} header this server adds to the emails it relays, which records where the email
+     * came from and counts towards its hops on the next server.
+     * @return The header, with its line terminator.
+     */
+    private String trace() {
+        String address = clientAddress.getHostAddress();
+        String hostName = resolver.lookup(clientAddress);
+        String protocol = extendedHello ? (secure ? "ESMTPS" : "ESMTP") : "SMTP";
+        return "Received: from " + (clientHello == null ? "[" + address + "]" : clientHello) +
+                " (" + (hostName == null ? "" : hostName + " ") + "[" + address + "])\r\n" +
+                "\tby " + serverName + " with " + protocol + "; " +
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now()) + "\r\n";
+    }
+
+    /**
+     * Start checking the timeouts of the session, unless it has none.
+     */
+    private void startTimer() {
+        long now = System.nanoTime();
+        sessionDeadline = sessionTimeout > 0 ? now + sessionTimeout : Long.MAX_VALUE;
+        deadline = greetingTimeout > 0 ? now + greetingTimeout : Long.MAX_VALUE;
+        waitingFor = Expiry.GREETING;
+        checkAt = Long.MAX_VALUE;
+        if (timer == null || greetingTimeout + commandTimeout + dataTimeout + sessionTimeout + minDataRate == 0) {
+            return;
+        }
+        timing = true;
+        checkAt(Math.min(deadline, sessionDeadline));
+    }
+
+    /**
+     * Move the deadline by which the client must send something, once the session has done what it can with what
+     * the client sent so far. Deadlines usually move later, which the pending check finds out when it runs; only
+     * one that moves before the pending check, such as on entering DATA, reschedules it.
+     * @param now The current value of System.nanoTime().
+     */
+    private void waitForClient(long now) {
+        Expiry next;
+        long limit;
+        long due = Long.MAX_VALUE;
+        if (isReceivingEmail()) {
+            if (waitingFor != Expiry.DATA) {
+                // the bytes are counted before the start is published, so the timer never sees a stale count
+                dataReceived = 0;
+                dataSince = now;
+                if (minDataRate > 0) {
+                    due = now + DATA_RATE_WINDOW;
+                }
+            }
+            next = Expiry.DATA;
+            limit = dataTimeout;
+        } else if (saving) {
+            // the client is not to blame while its email is being saved
+            next = null;
+            limit = 0;
+        } else {
+            next = Expiry.COMMAND;
+            limit = commandTimeout;
+        }
+        deadline = limit > 0 ? now + limit : Long.MAX_VALUE;
+        waitingFor = next;
+
+        due = Math.min(due, deadline);
+        if (timing && due - checkAt < 0) {
+            checkAt(due);
+        }
+    }
+
+    /**
+     * Check the timeouts of the session at a given time, instead of when the pending check is due.
+     * @param at The value of System.nanoTime() to check them at.
+     */
+    private synchronized void checkAt(long at) {
+        if (!timing || expired) {
+            return;
+        }
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        checkAt = at;
+        timeout = timer.schedule(this::checkTimeouts, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Expire the session if the client has missed a deadline or is sending its email too slowly, or check again
+     * when the next deadline falls due. This runs on the timer thread.
+     */
+    private void checkTimeouts() {
+        if (!timing) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Expiry phase = waitingFor;
+        long phaseDeadline = phase == null ? Long.MAX_VALUE : deadline;
+        if (now - sessionDeadline >= 0) {
+            expire(Expiry.SESSION);
+            return;
+        }
+        if (now - phaseDeadline >= 0) {
+            expire(phase);
+            return;
+        }
+
+        long next = Math.min(phaseDeadline, sessionDeadline);
+        if (phase == Expiry.DATA && minDataRate > 0) {
+            // the rate is measured over whole windows, the first of which starts with the email
+            long since = dataSince;
+            long received = dataReceived;
+            if (windowStart - since < 0) {
+                windowStart = since;
+                windowBytes = 0;
+            }
+            if (now - windowStart >= DATA_RATE_WINDOW) {
+                if (received - windowBytes < minDataRate * (now - windowStart) / TimeUnit.SECONDS.toNanos(1)) {
+                    expire(Expiry.DATA_RATE);
+                    return;
+                }
+                windowStart = now;
+                windowBytes = received;
+            }
+            next = Math.min(next, windowStart + DATA_RATE_WINDOW);
+        }
+
+        synchronized (this) {
+            if (checkAt - now > 0) {
+                // the session moved a deadline earlier and scheduled a check of its own in the meantime
+                return;
+            }
+            checkAt = Long.MAX_VALUE;
+            timeout = null;
+            if (next != Long.MAX_VALUE) {
+                checkAt(next);
+            }
+        }
+    }
+
+    /**
+     * Ask the transport to close the connection with a 421 reply, and to close it outright if that reply has not
+     * gone out in time, such as when the client is not reading. This runs on the timer thread.
+     * @param expiry What the session was waiting for.
+     */
+    private void expire(Expiry expiry) {
+        synchronized (this) {
+            if (!timing || expired) {
+                return;
+            }
+            expired = true;
+            checkAt = Long.MAX_VALUE;
+            timeout = timer.schedule(transport::abort, EXPIRY_GRACE, TimeUnit.NANOSECONDS);
+        }
+        Log.info("Session with " + clientName + " expired: " + expiry.reason);
+        metrics.recordTimeout(expiry);
+        transport.expire("421 " + serverName + " " + expiry.reason + ", closing connection");
+    }
+
+    /**
+     * Transmit the final message to the client.
+     * @throws Exception
+     */
+    private void farewell() throws Exception {
+        transport.sendMessage("221 " + serverName + " closing connection");
+    }
+
+    /**
+     * Release the resources of the session once the connection has been closed, discarding any partial email.
+     */
+    public void close() {
+        synchronized (this) {
+            timing = false;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+        if (opened) {
+            opened = false;
+            metrics.sessionClosed();
+        }
+        if (admitted) {
+            admitted = false;
+            peer.release();
+        }
+        try {
+            email.close();
+        } catch (IOException e) {
+            Log.warn("Could not discard the email of " + getClientName());
+        }
+        releaseReserved();
+    }
+}
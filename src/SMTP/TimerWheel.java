@@ -0,0 +1,230 @@
+package SMTP;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class that runs delayed tasks for every session of the server on a single thread, with a hashed timer wheel.
+ * <p>
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick; a task is put in the bucket of the
+ * tick it is due in, along with the number of turns of the wheel still to go, and the timer thread only looks at
+ * one bucket per tick. Scheduling and cancelling a task are constant-time whatever the number of tasks, where a
+ * priority queue would pay a logarithm and a thread per connection would pay a stack. Tasks may fire up to one tick
+ * late, which is of no consequence for timeouts measured in seconds.
+ * <p>
+ * Tasks are scheduled and cancelled from any thread through lock-free queues, and the buckets are only ever
+ * touched by the timer thread. A task runs on the timer thread, so it must be short and hand any real work over.
+ */
+public class TimerWheel implements Runnable {
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final long tickNanos;
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick;
+
+    /**
+     * A task scheduled on the wheel, which can be cancelled until it has run.
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline; // in nanoseconds since the wheel started
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        /**
+         * Create an object of type Timeout.
+         * @param timer The wheel the task is scheduled on.
+         * @param task The task.
+         * @param deadline When the task is due, in nanoseconds since the wheel started.
+         */
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevent the task from running, if it has not run yet, and let the wheel forget it.
+         * @return Whether the task was cancelled before it ran.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * The tasks due in one slot of the wheel, as a doubly linked list so that a cancelled task is removed at once.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        /**
+         * Add a task at the end of the bucket.
+         * @param timeout The task.
+         */
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Take a task out of the bucket.
+         * @param timeout The task.
+         * @return The task that followed it.
+         */
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.previous != null) {
+                timeout.previous.next = next;
+            }
+            if (next != null) {
+                next.previous = timeout.previous;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.previous;
+            }
+            timeout.next = timeout.previous = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    /**
+     * Create an object of type TimerWheel.
+     * @param tick The duration of a tick, which is the precision of the wheel.
+     * @param unit The unit of the tick.
+     */
+    public TimerWheel(long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Start the timer thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "smtp-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task once a delay has passed.
+     * @param task The task, which runs on the timer thread.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return The handle through which the task can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - start + Math.max(0, unit.toNanos(delay)));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Primary method used to advance the wheel one tick at a time and run the tasks that are due.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long tickEnd = (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime() - start) < tickEnd) {
+                LockSupport.parkNanos(tickEnd - now);
+            }
+
+            removeCancelled();
+            addScheduled();
+            expire(wheel[(int) (tick & MASK)], now);
+            tick++;
+        }
+    }
+
+    /**
+     * Put the newly scheduled tasks in the buckets of the ticks they are due in.
+     */
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            // a task that is already late goes in the current bucket, so it runs at the end of this tick
+            long due = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (due - tick) / WHEEL_SIZE;
+            wheel[(int) (due & MASK)].add(timeout);
+        }
+    }
+
+    /**
+     * Take the cancelled tasks out of their buckets, so the wheel holds on to nothing a session has let go of.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Run the tasks of a bucket that are due in this turn of the wheel, and count down the others.
+     * @param bucket The bucket of the current tick.
+     * @param now The current time, in nanoseconds since the wheel started.
+     */
+    private void expire(Bucket bucket, long now) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.rounds > 0 && timeout.deadline > now) {
+                timeout.rounds--;
+                timeout = timeout.next;
+                continue;
+            }
+
+            Timeout next = bucket.remove(timeout);
+            if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("A timer task failed", e);
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package SMTP;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Class that holds the TLS settings and the session cache shared by every connection of a server or a client.
+ * <p>
+ * A full handshake costs a key exchange and a certificate signature; resuming an earlier session costs neither, so
+ * a context is made once and kept for the lifetime of the process. The server side keeps a cache of its sessions,
+ * bounded in size and age, and also hands out session tickets, which let a client resume without the server having
+ * to remember anything; the client side remembers the sessions of each server it talks to, so its next connections
+ * to the same host and port offer them.
+ */
+public class TlsContext {
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final SSLContext context;
+
+    /**
+     * Create an object of type TlsContext.
+     * @param context The initialized SSL context.
+     */
+    private TlsContext(SSLContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Create an object of type TlsContext for a server, with the certificate of its key store.
+     * @param config The settings of the server; the key store must be set.
+     * @return The context.
+     * @throws IOException If the key store cannot be read.
+     */
+    public static TlsContext forServer(ServerConfig config) throws IOException {
+        // the JDK reads this once, when the first context of the process is initialized
+        System.setProperty(TICKETS_PROPERTY, String.valueOf(config.isTlsSessionTickets()));
+        Path path = config.getTlsKeyStore();
+        char[] password = config.getTlsKeyStorePassword().toCharArray();
+        try {
+            KeyStore keyStore = KeyStore.getInstance(path.toFile(), password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+            sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+            return new TlsContext(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load the TLS key store " + path, e);
+        }
+    }
+
+    /**
+     * Create an object of type TlsContext for a client, which trusts the certificates of its trust store.
+     * @param config The settings of the client.
+     * @return The context.
+     * @throws IOException If the trust store cannot be read.
+     */
+    public static TlsContext forClient(ClientConfig config) throws IOException {
+        Path path = config.getTrustStore();
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            if (path == null) {
+                trust.init((KeyStore) null); // the trust store of the JDK
+            } else {
+                trust.init(KeyStore.getInstance(path.toFile(), config.getTrustStorePassword().toCharArray()));
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return new TlsContext(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load the TLS trust store " + path, e);
+        }
+    }
+
+    /**
+     * Start the server side of a TLS connection.
+     * @param listener The listener told about the handshake.
+     * @return The engine, waiting for the first message of the client.
+     * @throws SSLException If the handshake cannot be started.
+     */
+    public TlsEngine newServerEngine(TlsEngine.HandshakeListener listener) throws SSLException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsEngine(engine, listener);
+    }
+
+    /**
+     * Start the client side of a TLS connection. The host and port identify the sessions that can be resumed, and
+     * the host is checked against the certificate of the server.
+     * @param host The host name of the server.
+     * @param port The port of the server.
+     * @param listener The listener told about the handshake.
+     * @return The engine, with its first message ready to transmit.
+     * @throws SSLException If the handshake cannot be started.
+     */
+    public TlsEngine newClientEngine(String host, int port, TlsEngine.HandshakeListener listener) throws SSLException {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsEngine(engine, listener);
+    }
+}
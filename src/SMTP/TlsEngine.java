@@ -0,0 +1,485 @@
+package SMTP;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that encrypts and decrypts the bytes of one connection with an {@link SSLEngine}, without doing any IO.
+ * <p>
+ * Ciphertext read from the connection is handed to {@link #receive(ByteBuffer)}, which leaves the plaintext in
+ * {@link #plaintext()}, and plaintext to transmit is handed to {@link #send(ByteBuffer)}, which leaves the ciphertext
+ * in {@link #ciphertext()}; the handshake runs along the way, its messages joining the ciphertext to transmit. Since
+ * the engine never blocks, the same class serves a selector loop, which moves the bytes itself, and a blocking
+ * socket, through the streams of {@link #inputStream(InputStream, OutputStream)} and
+ * {@link #outputStream(OutputStream)}. Delegated tasks, the certificate and key computations of a handshake, run on
+ * the calling thread.
+ */
+public class TlsEngine {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final HandshakeListener listener;
+    private ByteBuffer netIn;  // ciphertext received and not decrypted yet, in write mode
+    private ByteBuffer appIn;  // plaintext decrypted and not consumed yet, in read mode
+    private ByteBuffer netOut; // ciphertext waiting to be transmitted, in read mode
+    private long handshakeStart; // 0 once the handshake has completed
+    private long handshakeStartMillis;
+    private boolean inboundClosed;
+
+    /**
+     * Told about the handshakes of the engine, so they can be counted.
+     */
+    public interface HandshakeListener {
+        /**
+         * A listener that ignores every handshake.
+         */
+        HandshakeListener NONE = new HandshakeListener() {
+            /**
+             * Ignore a completed handshake.
+             * @param nanos How long the handshake took.
+             * @param resumed Whether an earlier session was resumed.
+             */
+            @Override
+            public void handshakeCompleted(long nanos, boolean resumed) {
+            }
+
+            /**
+             * Ignore a failed handshake.
+             */
+            @Override
+            public void handshakeFailed() {
+            }
+        };
+
+        /**
+         * Called when a handshake has completed.
+         * @param nanos How long the handshake took, from its first message to its last.
+         * @param resumed Whether an earlier session was resumed, rather than a full handshake being made.
+         */
+        void handshakeCompleted(long nanos, boolean resumed);
+
+        /**
+         * Called when a handshake has failed.
+         */
+        void handshakeFailed();
+    }
+
+    /**
+     * Create an object of type TlsEngine and start the handshake; the engine of a client has its first message
+     * ready to transmit at once.
+     * @param engine The engine, in client or server mode.
+     * @param listener The listener told about the handshake.
+     * @throws SSLException If the handshake cannot be started.
+     */
+    public TlsEngine(SSLEngine engine, HandshakeListener listener) throws SSLException {
+        this.engine = engine;
+        this.listener = listener;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).limit(0);
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).limit(0);
+
+        handshakeStart = System.nanoTime();
+        handshakeStartMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+        if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+            wrap(EMPTY);
+        }
+    }
+
+    /**
+     * Decrypt ciphertext received from the connection. The plaintext is added to {@link #plaintext()}, and any
+     * handshake message it calls for to {@link #ciphertext()}.
+     * @param data The ciphertext, which is consumed entirely; a partial record is kept until the rest arrives.
+     * @throws SSLException If the ciphertext is not valid or the handshake fails.
+     */
+    public void receive(ByteBuffer data) throws SSLException {
+        if (netIn.remaining() < data.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(netIn.position() + data.remaining());
+            netIn.flip();
+            netIn = bigger.put(netIn);
+        }
+        netIn.put(data);
+        try {
+            unwrap();
+        } catch (SSLException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypt plaintext to transmit over the connection. The ciphertext is added to {@link #ciphertext()}.
+     * @param data The plaintext, which is consumed entirely.
+     * @throws SSLException If the connection is closed or the handshake fails.
+     */
+    public void send(ByteBuffer data) throws SSLException {
+        try {
+            wrap(data);
+        } catch (SSLException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Unwrap every whole record received, running the handshake as it asks to.
+     * @throws SSLException If a record is not valid.
+     */
+    private void unwrap() throws SSLException {
+        netIn.flip();
+        try {
+            while (true) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    continue;
+                }
+
+                appIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+                checkFinished(result);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW -> appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    case BUFFER_UNDERFLOW -> {
+                        return; // the rest of the record has not arrived yet
+                    }
+                    case CLOSED -> {
+                        inboundClosed = true;
+                        return;
+                    }
+                    case OK -> {
+                        HandshakeStatus next = result.getHandshakeStatus();
+                        if (result.bytesConsumed() == 0 && next != HandshakeStatus.NEED_TASK
+                                && next != HandshakeStatus.NEED_WRAP) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Wrap plaintext into records, or only the handshake messages the engine has to send when there is none.
+     * @param data The plaintext.
+     * @throws SSLException If the connection is closed or the handshake fails.
+     */
+    private void wrap(ByteBuffer data) throws SSLException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(data, netOut);
+            } finally {
+                netOut.flip();
+            }
+            checkFinished(result);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                case CLOSED -> {
+                    if (data.hasRemaining()) {
+                        throw new SSLException("The TLS connection is closed");
+                    }
+                    return;
+                }
+                default -> {
+                    // the record was wrapped
+                }
+            }
+
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                continue;
+            } else if (!data.hasRemaining()) {
+                return;
+            } else if (result.bytesConsumed() == 0) {
+                // plaintext can only be wrapped once the handshake is complete
+                throw new SSLException("Cannot send data before the TLS handshake has completed");
+            }
+        }
+    }
+
+    /**
+     * Run the tasks the engine delegates, such as verifying a certificate, on the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Tell the listener if an operation completed the handshake. A session that was created before the handshake
+     * started has been resumed, whether from the cache of the server or from a ticket.
+     * @param result The result of the operation.
+     */
+    private void checkFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && handshakeStart != 0) {
+            long nanos = System.nanoTime() - handshakeStart;
+            handshakeStart = 0;
+            listener.handshakeCompleted(nanos, engine.getSession().getCreationTime() < handshakeStartMillis);
+        }
+    }
+
+    /**
+     * Tell the listener that the handshake failed, if it had not completed yet.
+     */
+    private void failed() {
+        if (handshakeStart != 0) {
+            handshakeStart = 0;
+            listener.handshakeFailed();
+        }
+    }
+
+    /**
+     * Note that the connection has ended, which fails the handshake if it had not completed yet.
+     */
+    public void disconnected() {
+        failed();
+    }
+
+    /**
+     * Copy a buffer in read mode into a larger one.
+     * @param buffer The buffer.
+     * @param extra The number of bytes to add to its capacity.
+     * @return The larger buffer, in read mode.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        return ByteBuffer.allocate(buffer.capacity() + extra).put(buffer).flip();
+    }
+
+    /**
+     * Get the plaintext received and not consumed yet. Consuming it means advancing the position of the buffer.
+     * @return The plaintext, in read mode.
+     */
+    public ByteBuffer plaintext() {
+        return appIn;
+    }
+
+    /**
+     * Get the ciphertext waiting to be transmitted. Transmitting it means advancing the position of the buffer.
+     * @return The ciphertext, in read mode.
+     */
+    public ByteBuffer ciphertext() {
+        return netOut;
+    }
+
+    /**
+     * Check whether the handshake is still running, so no plaintext can be sent yet.
+     * @return Whether the handshake is running.
+     */
+    public boolean isHandshaking() {
+        return engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * Check whether the other side has closed the TLS connection.
+     * @return Whether a close_notify was received.
+     */
+    public boolean isInboundClosed() {
+        return inboundClosed;
+    }
+
+    /**
+     * Get the TLS session of the connection.
+     * @return The session.
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Close the TLS connection, adding the close_notify message to {@link #ciphertext()}.
+     * @throws SSLException If the message cannot be wrapped.
+     */
+    public void close() throws SSLException {
+        engine.closeOutbound();
+        wrap(EMPTY);
+    }
+
+    /**
+     * Write the ciphertext waiting to be transmitted to a blocking stream.
+     * @param output The stream.
+     * @throws IOException
+     */
+    private void transmit(OutputStream output) throws IOException {
+        if (netOut.hasRemaining()) {
+            output.write(netOut.array(), netOut.arrayOffset() + netOut.position(), netOut.remaining());
+            output.flush();
+            netOut.position(netOut.limit());
+        }
+    }
+
+    /**
+     * Run the handshake over blocking streams until it has completed, as a client does before sending anything.
+     * @param input The stream the ciphertext is read from.
+     * @param output The stream the ciphertext is written to.
+     * @throws IOException If the connection fails or is closed during the handshake.
+     */
+    public void handshake(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[engine.getSession().getPacketBufferSize()];
+        transmit(output);
+        while (isHandshaking()) {
+            int count = input.read(buffer);
+            if (count < 0) {
+                disconnected();
+                throw new SSLException("The connection was closed during the TLS handshake");
+            }
+            receive(ByteBuffer.wrap(buffer, 0, count));
+            transmit(output);
+        }
+    }
+
+    /**
+     * Get a blocking stream of the plaintext received over a socket.
+     * @param input The stream of the socket the ciphertext is read from.
+     * @param output The stream of the socket that handshake messages are written to.
+     * @return The stream of plaintext.
+     */
+    public InputStream inputStream(InputStream input, OutputStream output) {
+        return new InputStream() {
+            private final byte[] buffer = new byte[engine.getSession().getPacketBufferSize()];
+
+            /**
+             * Read a single byte of plaintext.
+             * @return The byte, or -1 at the end of the stream.
+             * @throws IOException
+             */
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            /**
+             * Read plaintext, reading and decrypting records from the socket until some is available.
+             * @param bytes The array to read into.
+             * @param offset The offset to read into.
+             * @param length The largest number of bytes to read.
+             * @return The number of bytes read, or -1 at the end of the stream.
+             * @throws IOException
+             */
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (!appIn.hasRemaining()) {
+                    if (inboundClosed) {
+                        return -1;
+                    }
+                    int count = input.read(buffer);
+                    if (count < 0) {
+                        disconnected();
+                        return -1;
+                    }
+                    receive(ByteBuffer.wrap(buffer, 0, count));
+                    transmit(output); // a handshake message or a session ticket
+                }
+                int count = Math.min(length, appIn.remaining());
+                appIn.get(bytes, offset, count);
+                return count;
+            }
+
+            /**
+             * Get the number of bytes of plaintext that can be read without blocking. Ciphertext waiting on the
+             * socket is not counted, since it may hold only part of a record.
+             * @return The number of bytes decrypted and not read yet.
+             */
+            @Override
+            public int available() {
+                return appIn.remaining();
+            }
+
+            /**
+             * Close the stream of the socket.
+             * @throws IOException
+             */
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    /**
+     * Get a blocking stream that encrypts plaintext and writes it to a socket. Each write is sent as records at
+     * once, so the stream should be buffered.
+     * @param output The stream of the socket the ciphertext is written to.
+     * @return The stream of plaintext.
+     */
+    public OutputStream outputStream(OutputStream output) {
+        return new OutputStream() {
+            /**
+             * Write a single byte of plaintext.
+             * @param value The byte.
+             * @throws IOException
+             */
+            @Override
+            public void write(int value) throws IOException {
+                write(new byte[] {(byte) value}, 0, 1);
+            }
+
+            /**
+             * Encrypt plaintext and write it to the socket.
+             * @param bytes The array to write from.
+             * @param offset The offset to write from.
+             * @param length The number of bytes to write.
+             * @throws IOException
+             */
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                send(ByteBuffer.wrap(bytes, offset, length));
+                transmit(output);
+            }
+
+            /**
+             * Flush the stream of the socket.
+             * @throws IOException
+             */
+            @Override
+            public void flush() throws IOException {
+                output.flush();
+            }
+
+            /**
+             * Send close_notify, then close the stream of the socket.
+             * @throws IOException
+             */
+            @Override
+            public void close() throws IOException {
+                try {
+                    TlsEngine.this.close();
+                    transmit(output);
+                } finally {
+                    output.close();
+                }
+            }
+        };
+    }
+}